@@ -71,4 +71,85 @@ public class MetricsConfig {
                 .getOptionalValue("metrics.storage.cleanup-interval-minutes", Long.class)
                 .orElse(60L);
     }
+
+    /**
+     * 获取分区目录 (S3 列表) 缓存有效期 (单位: 秒)
+     * 默认 60秒
+     */
+    public long getCatalogTtlSeconds() {
+        return ConfigProvider.getConfig()
+                .getOptionalValue("metrics.storage.catalog-ttl-seconds", Long.class)
+                .orElse(60L);
+    }
+
+    /**
+     * 获取派生指标计算时读取源结果集的批大小 (JDBC fetchSize)
+     * 默认 5000 行
+     */
+    public int getComputeFetchSize() {
+        return ConfigProvider.getConfig()
+                .getOptionalValue("metrics.compute.fetch-size", Integer.class)
+                .orElse(5000);
+    }
+
+    /**
+     * 获取派生指标计算的拆分维度 (如 city_id)
+     * 非空且为取数模型的维度时，取数SQL按该维度拆分为多个分片并发执行；默认不拆分
+     */
+    public String getComputeSplitDim() {
+        return ConfigProvider.getConfig()
+                .getOptionalValue("metrics.compute.split.dim", String.class)
+                .orElse("");
+    }
+
+    /**
+     * 获取拆分的分片数
+     * 默认 8
+     */
+    public int getComputeSplitBuckets() {
+        return ConfigProvider.getConfig()
+                .getOptionalValue("metrics.compute.split.buckets", Integer.class)
+                .orElse(8);
+    }
+
+    /**
+     * 获取同时执行的分片数 (每个分片占用一个源库连接)
+     * 默认 4
+     */
+    public int getComputeSplitParallelism() {
+        return ConfigProvider.getConfig()
+                .getOptionalValue("metrics.compute.split.parallelism", Integer.class)
+                .orElse(4);
+    }
+
+    /**
+     * 获取分片编号表达式，${dim} 为拆分维度，${buckets} 为分片数，结果须在 [0, buckets) 内
+     * 默认按 MySQL 方言哈希分桶；其他源库按方言配置 (如 Oracle: MOD(ORA_HASH(${dim}), ${buckets}))，
+     * 也可配置为按取值范围分段的 CASE 表达式
+     */
+    public String getComputeSplitBucketExpr() {
+        return ConfigProvider.getConfig()
+                .getOptionalValue("metrics.compute.split.bucket-expr", String.class)
+                .orElse("MOD(CRC32(${dim}), ${buckets})");
+    }
+
+    /**
+     * 获取 MySQL 存储时每条多行 INSERT 的行数 (每块提交一次)
+     * 默认 1000 行，实际行数另受单条语句 65535 个参数的限制
+     */
+    public int getMySQLWriteChunkRows() {
+        return ConfigProvider.getConfig()
+                .getOptionalValue("metrics.storage.mysql.chunk-rows", Integer.class)
+                .orElse(1000);
+    }
+
+    /**
+     * 获取 MySQL 存储时同时写入的表数 (每张表占用一个 metadb 连接)
+     * 默认 4
+     */
+    public int getMySQLWriteParallelism() {
+        return ConfigProvider.getConfig()
+                .getOptionalValue("metrics.storage.mysql.parallelism", Integer.class)
+                .orElse(4);
+    }
 }
@@ -0,0 +1,106 @@
+package com.asiainfo.metrics.etl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 维度字典：(dim_id, dim_code) -> 整数代理键 dim_key
+ * 代理键在组合维度内唯一且从 1 开始，0 保留给空维度；重新生产维度表时沿用已有的键，只为新编码分配新键，
+ * 因此已发布的整数编码分区在维度表更新后仍然有效。
+ * 源数据中已不存在的编码也随维度表一起保留 ({@link #entries()})，键只增不减，不会被重新分配给其他编码。
+ */
+public class DimDictionary {
+
+    /**
+     * 空维度的编码 (维度表中不存在该键，解码结果为 NULL)
+     */
+    public static final long NULL_KEY = 0L;
+
+    private final Map<String, Map<String, Long>> keys = new HashMap<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private long maxKey = NULL_KEY;
+
+    /**
+     * 已有维度表中的一行
+     */
+    public record Entry(String dimId, String dimCode, String dimVal, String parentDimCode, long key) {
+    }
+
+    public static DimDictionary empty() {
+        return new DimDictionary();
+    }
+
+    /**
+     * 从已有的维度表读取字典；维度表没有 dim_key 列 (历史格式) 时返回空字典
+     */
+    public static DimDictionary load(Connection dimConn, String tableName) throws SQLException {
+        DimDictionary dictionary = new DimDictionary();
+        try (Statement stmt = dimConn.createStatement()) {
+            boolean hasKey = false;
+            try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + tableName + ")")) {
+                while (rs.next()) {
+                    hasKey |= "dim_key".equalsIgnoreCase(rs.getString("name"));
+                }
+            }
+            if (!hasKey) {
+                return dictionary;
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT dim_id, dim_code, dim_val, parent_dim_code, dim_key FROM "
+                    + tableName + " WHERE dim_key IS NOT NULL")) {
+                while (rs.next()) {
+                    Entry entry = new Entry(rs.getString("dim_id"), rs.getString("dim_code"), rs.getString("dim_val"),
+                            rs.getString("parent_dim_code"), rs.getLong("dim_key"));
+                    dictionary.keys.computeIfAbsent(entry.dimId(), k -> new HashMap<>()).put(entry.dimCode(), entry.key());
+                    dictionary.entries.add(entry);
+                    dictionary.maxKey = Math.max(dictionary.maxKey, entry.key());
+                }
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * 查找或分配代理键 (生产维度表时使用)
+     */
+    public long assign(String dimId, String dimCode) {
+        Long key = keys.computeIfAbsent(dimId, k -> new HashMap<>()).get(dimCode);
+        if (key == null) {
+            key = ++maxKey;
+            keys.get(dimId).put(dimCode, key);
+        }
+        return key;
+    }
+
+    /**
+     * 编码维度取值 (生产分区时使用)，空值编码为 {@link #NULL_KEY}
+     *
+     * @throws IllegalStateException 维度表中不存在该编码 (需先生产维度表)
+     */
+    public long encode(String dimId, String dimCode) {
+        if (dimCode == null) {
+            return NULL_KEY;
+        }
+        Long key = keys.getOrDefault(dimId, Map.of()).get(dimCode);
+        if (key == null) {
+            throw new IllegalStateException("维度编码不存在于维度表: " + dimId + "=" + dimCode);
+        }
+        return key;
+    }
+
+    /**
+     * 从已有维度表读取的全部行，重新生产维度表时源数据中缺失的编码按原行写回
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+}
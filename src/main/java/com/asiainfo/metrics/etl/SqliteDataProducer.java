@@ -1,22 +1,27 @@
 package com.asiainfo.metrics.etl;
 
+import com.asiainfo.metrics.util.BlockGzip;
+import io.minio.DownloadObjectArgs;
 import io.minio.MinioClient;
 import io.minio.UploadObjectArgs;
+import io.minio.errors.ErrorResponseException;
 import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPOutputStream;
+import java.util.stream.IntStream;
 
 /**
  * SQLite 数据生产工具 (ETL Producer)
@@ -54,7 +59,30 @@ public class SqliteDataProducer {
     }
 
     /**
-     * 生产 KPI 数据文件
+     * 分区文件布局
+     */
+    public enum PartitionLayout {
+        /**
+         * rowid 堆表，每行冗余 kpi_id/op_time，装载后建维度联合索引 (历史格式)
+         */
+        LEGACY,
+        /**
+         * 以维度为主键的 WITHOUT ROWID 聚簇表，去掉冗余常量列 (kpi_id/op_time 由表名推导)，
+         * 调大 page_size，内嵌 ANALYZE 统计并 VACUUM 压实。
+         * 主键列不允许 NULL，维度为 NULL 时存空串 (整数编码时为 0)，读取端 (SqlGenerator) 还原为 NULL。
+         * 同一维度组合的多行在生产时合并，查询端会在合并结果上再次聚合，只适用于 sum/min/max 指标；
+         * avg (平均的平均) 与 count (行数变为组数) 等指标仍按 LEGACY 布局生产。
+         */
+        OPTIMIZED
+    }
+
+    // 优化布局的页大小：分区扫描为顺序读，大页减少页数与 B 树层数
+    private static final int OPTIMIZED_PAGE_SIZE = 16384;
+    // 分片上传的分片大小 (MinIO 要求不小于 5MB)，小于该大小的文件单次上传
+    private static final long MULTIPART_PART_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * 生产 KPI 数据文件 (历史布局)
      * 对应 Runtime 的物理表: kpi_{kpiId}_{opTime}_{compDimCode}
      *
      * @param sourceConn    源数据库连接
@@ -67,91 +95,273 @@ public class SqliteDataProducer {
     public void produceKpiData(Connection sourceConn, String sourceSql,
                                String kpiId, String opTime, String compDimCode,
                                List<String> dimCols) throws Exception {
+        produceKpiData(sourceConn, sourceSql, kpiId, opTime, compDimCode, dimCols, PartitionLayout.LEGACY, "sum");
+    }
+
+    /**
+     * 生产 KPI 数据文件
+     *
+     * @param layout  分区文件布局
+     * @param aggFunc 指标聚合函数 (OPTIMIZED 布局下合并同一维度组合的多行)
+     */
+    public void produceKpiData(Connection sourceConn, String sourceSql,
+                               String kpiId, String opTime, String compDimCode,
+                               List<String> dimCols, PartitionLayout layout, String aggFunc) throws Exception {
+        produceKpiData(sourceConn, sourceSql, kpiId, opTime, compDimCode, dimCols, layout, aggFunc, null);
+    }
+
+    /**
+     * 生产 KPI 数据文件
+     *
+     * @param layout     分区文件布局
+     * @param aggFunc    指标聚合函数 (OPTIMIZED 布局下合并同一维度组合的多行)
+     * @param dictionary 维度字典 (见 {@link #loadDimDictionary})，非空时维度列以整数代理键存储；为空时存储维度编码文本
+     */
+    public void produceKpiData(Connection sourceConn, String sourceSql,
+                               String kpiId, String opTime, String compDimCode,
+                               List<String> dimCols, PartitionLayout layout, String aggFunc,
+                               DimDictionary dictionary) throws Exception {
+
+        Path dbPath;
+        try (PreparedStatement sourceStmt = sourceConn.prepareStatement(sourceSql);
+             ResultSet sourceRs = sourceStmt.executeQuery()) {
+            dbPath = writeKpiFile(sourceRs, kpiId, opTime, compDimCode, dimCols, layout, aggFunc, dictionary);
+        }
+
+        // 3. 压缩文件 (.db -> .db.gz)
+        String gzPath = dbPath + ".gz";
+        compressGzip(dbPath.toString(), gzPath);
+
+        // 4. 上传到 MinIO
+        // 路径规范: {year}/{yyyymm}/{yyyymmdd}/{compDimCode}/{filename}
+        String s3Key = buildKpiS3Key(kpiId, opTime, compDimCode);
+        uploadToMinio(gzPath, s3Key);
+
+        // 5. 清理临时文件
+        Files.deleteIfExists(dbPath);
+        Files.deleteIfExists(Paths.get(gzPath));
+        log.info("生产完成，文件已上传至: {}", s3Key);
+    }
+
+    /**
+     * 将源结果集写入本地临时 SQLite 文件 (不压缩、不上传)
+     *
+     * @param dictionary 维度字典，为空时维度列存储编码文本
+     * @return 生成的 .db 文件路径
+     */
+    public Path writeKpiFile(ResultSet sourceRs, String kpiId, String opTime, String compDimCode,
+                             List<String> dimCols, PartitionLayout layout, String aggFunc,
+                             DimDictionary dictionary) throws Exception {
 
         // 1. 准备本地临时文件
         String tableName = String.format("kpi_%s_%s_%s", kpiId, opTime, compDimCode);
+        if (layout == PartitionLayout.OPTIMIZED && !isRollupSafe(aggFunc)) {
+            log.warn("聚合函数 {} 在合并后的行上再次聚合结果会改变，{} 按 LEGACY 布局生产", aggFunc, tableName);
+            layout = PartitionLayout.LEGACY;
+        }
         File dbFile = File.createTempFile(tableName, ".db");
         String dbPath = dbFile.getAbsolutePath();
 
-        log.info("开始生产 KPI 数据: {} -> {}", tableName, dbPath);
+        log.info("开始生产 KPI 数据: {} -> {} ({})", tableName, dbPath, layout);
 
         // 2. 创建 SQLite 表结构并导入数据
         try (Connection sqliteConn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-             Statement sqliteStmt = sqliteConn.createStatement();
-             PreparedStatement sourceStmt = sourceConn.prepareStatement(sourceSql);
-             ResultSet sourceRs = sourceStmt.executeQuery()) {
+             Statement sqliteStmt = sqliteConn.createStatement()) {
+            if (layout == PartitionLayout.OPTIMIZED) {
+                writeOptimized(sqliteConn, sqliteStmt, sourceRs, tableName, dimCols, aggFunc, dictionary);
+            } else {
+                writeLegacy(sqliteConn, sqliteStmt, sourceRs, tableName, kpiId, opTime, dimCols, dictionary);
+            }
+        }
+        return dbFile.toPath();
+    }
 
-            // 2.1 建表
-            // 必须包含: kpi_id, op_time, kpi_val 以及所有维度列
-            StringBuilder createSql = new StringBuilder();
-            createSql.append("CREATE TABLE ").append(tableName).append(" (");
-            createSql.append("kpi_id TEXT, op_time TEXT, kpi_val REAL");
-            for (String dim : dimCols) {
-                createSql.append(", ").append(dim).append(" TEXT");
+    private void writeLegacy(Connection sqliteConn, Statement sqliteStmt, ResultSet sourceRs, String tableName,
+                             String kpiId, String opTime, List<String> dimCols, DimDictionary dictionary) throws SQLException {
+        String dimType = dictionary != null ? " INTEGER" : " TEXT";
+        // 2.1 建表
+        // 必须包含: kpi_id, op_time, kpi_val 以及所有维度列
+        StringBuilder createSql = new StringBuilder();
+        createSql.append("CREATE TABLE ").append(tableName).append(" (");
+        createSql.append("kpi_id TEXT, op_time TEXT, kpi_val REAL");
+        for (String dim : dimCols) {
+            createSql.append(", ").append(dim).append(dimType);
+        }
+        createSql.append(")");
+        sqliteStmt.execute(createSql.toString());
+
+        // 2.2 插入数据
+        sqliteConn.setAutoCommit(false);
+        StringBuilder insertSql = new StringBuilder();
+        insertSql.append("INSERT INTO ").append(tableName).append(" VALUES (?, ?, ?");
+        for (int i = 0; i < dimCols.size(); i++) insertSql.append(", ?");
+        insertSql.append(")");
+
+        try (PreparedStatement insertStmt = sqliteConn.prepareStatement(insertSql.toString())) {
+            int count = 0;
+            while (sourceRs.next()) {
+                // 固定字段
+                insertStmt.setString(1, kpiId);
+                insertStmt.setString(2, opTime);
+                // 指标值 (假设源SQL中列名为 kpi_val)
+                insertStmt.setDouble(3, sourceRs.getDouble("kpi_val"));
+
+                // 动态维度字段
+                for (int i = 0; i < dimCols.size(); i++) {
+                    // 假设源SQL中的列名与 dimCols 一致
+                    String code = sourceRs.getString(dimCols.get(i));
+                    if (dictionary == null) {
+                        insertStmt.setString(4 + i, code);
+                    } else if (code == null) {
+                        insertStmt.setNull(4 + i, Types.INTEGER);
+                    } else {
+                        insertStmt.setLong(4 + i, dictionary.encode(dimCols.get(i), code));
+                    }
+                }
+
+                insertStmt.addBatch();
+                if (++count % 5000 == 0) insertStmt.executeBatch();
             }
-            createSql.append(")");
-            sqliteStmt.execute(createSql.toString());
+            insertStmt.executeBatch();
+            sqliteConn.commit();
+            log.info("数据导入完成，共 {} 条", count);
+        }
 
-            // 2.2 插入数据
-            sqliteConn.setAutoCommit(false);
-            StringBuilder insertSql = new StringBuilder();
-            insertSql.append("INSERT INTO ").append(tableName).append(" VALUES (?, ?, ?");
-            for (int i = 0; i < dimCols.size(); i++) insertSql.append(", ?");
-            insertSql.append(")");
+        // 2.3 创建索引 (优化查询性能)
+        // 为维度列创建索引
+        if (!dimCols.isEmpty()) {
+            String idxCols = String.join(", ", dimCols);
+            sqliteStmt.execute("CREATE INDEX idx_" + tableName + " ON " + tableName + "(" + idxCols + ")");
+        }
+        sqliteConn.setAutoCommit(true);
+    }
 
-            try (PreparedStatement insertStmt = sqliteConn.prepareStatement(insertSql.toString())) {
-                int count = 0;
-                while (sourceRs.next()) {
-                    // 固定字段
-                    insertStmt.setString(1, kpiId);
-                    insertStmt.setString(2, opTime);
-                    // 指标值 (假设源SQL中列名为 kpi_val)
-                    insertStmt.setDouble(3, sourceRs.getDouble("kpi_val"));
-
-                    // 动态维度字段
-                    for (int i = 0; i < dimCols.size(); i++) {
-                        // 假设源SQL中的列名与 dimCols 一致
-                        insertStmt.setString(4 + i, sourceRs.getString(dimCols.get(i)));
+    private void writeOptimized(Connection sqliteConn, Statement sqliteStmt, ResultSet sourceRs, String tableName,
+                                List<String> dimCols, String aggFunc, DimDictionary dictionary) throws SQLException {
+        // 主键列不允许 NULL：文本编码以空串、整数编码以 NULL_KEY 表示空维度
+        String dimType = dictionary != null ? " INTEGER" : " TEXT";
+        String nullDim = dictionary != null ? String.valueOf(DimDictionary.NULL_KEY) : "''";
+        // 页大小须在建表前设置；临时文件无需日志与同步
+        sqliteStmt.execute("PRAGMA page_size = " + OPTIMIZED_PAGE_SIZE);
+        sqliteStmt.execute("PRAGMA journal_mode = OFF");
+        sqliteStmt.execute("PRAGMA synchronous = OFF");
+
+        // 2.1 原始行先装入临时表 (temp 库，不进入最终文件)
+        StringBuilder loadSql = new StringBuilder("CREATE TEMP TABLE load_rows (");
+        for (String dim : dimCols) {
+            loadSql.append(dim).append(dimType).append(", ");
+        }
+        loadSql.append("kpi_val REAL)");
+        sqliteStmt.execute(loadSql.toString());
+
+        sqliteConn.setAutoCommit(false);
+        String placeholders = String.join(", ", Collections.nCopies(dimCols.size() + 1, "?"));
+        try (PreparedStatement insertStmt = sqliteConn.prepareStatement("INSERT INTO load_rows VALUES (" + placeholders + ")")) {
+            int count = 0;
+            while (sourceRs.next()) {
+                for (int i = 0; i < dimCols.size(); i++) {
+                    String code = sourceRs.getString(dimCols.get(i));
+                    if (dictionary == null) {
+                        insertStmt.setString(1 + i, code);
+                    } else {
+                        insertStmt.setLong(1 + i, dictionary.encode(dimCols.get(i), code));
                     }
-
-                    insertStmt.addBatch();
-                    if (++count % 5000 == 0) insertStmt.executeBatch();
                 }
-                insertStmt.executeBatch();
-                sqliteConn.commit();
-                log.info("数据导入完成，共 {} 条", count);
+                double val = sourceRs.getDouble("kpi_val");
+                if (sourceRs.wasNull()) {
+                    insertStmt.setNull(dimCols.size() + 1, Types.REAL);
+                } else {
+                    insertStmt.setDouble(dimCols.size() + 1, val);
+                }
+                insertStmt.addBatch();
+                if (++count % 5000 == 0) insertStmt.executeBatch();
             }
+            insertStmt.executeBatch();
+            log.info("数据导入完成，共 {} 条", count);
+        }
 
-            // 2.3 创建索引 (优化查询性能)
-            // 为维度列创建索引
-            if (!dimCols.isEmpty()) {
-                String idxCols = String.join(", ", dimCols);
-                sqliteStmt.execute("CREATE INDEX idx_" + tableName + " ON " + tableName + "(" + idxCols + ")");
+        // 2.2 按主键顺序聚合写入聚簇表：B 树顺序追加，页填充率最高
+        String agg = rollupFunc(aggFunc);
+        if (dimCols.isEmpty()) {
+            sqliteStmt.execute("CREATE TABLE " + tableName + " (kpi_val REAL)");
+            sqliteStmt.execute("INSERT INTO " + tableName + " SELECT " + agg + "(kpi_val) FROM load_rows");
+        } else {
+            String keyCols = String.join(", ", dimCols);
+            StringBuilder createSql = new StringBuilder("CREATE TABLE ").append(tableName).append(" (");
+            StringBuilder selectDims = new StringBuilder();
+            for (String dim : dimCols) {
+                createSql.append(dim).append(dimType).append(" NOT NULL, ");
+                selectDims.append("coalesce(").append(dim).append(", ").append(nullDim).append("), ");
             }
+            createSql.append("kpi_val REAL, PRIMARY KEY (").append(keyCols).append(")) WITHOUT ROWID");
+            sqliteStmt.execute(createSql.toString());
+
+            String positions = String.join(", ", IntStream.rangeClosed(1, dimCols.size()).mapToObj(String::valueOf).toList());
+            sqliteStmt.execute("INSERT INTO " + tableName + " SELECT " + selectDims + agg + "(kpi_val) FROM load_rows"
+                    + " GROUP BY " + positions + " ORDER BY " + positions);
         }
+        sqliteStmt.execute("DROP TABLE load_rows");
+        sqliteConn.commit();
+        sqliteConn.setAutoCommit(true);
 
-        // 3. 压缩文件 (.db -> .db.gz)
-        String gzPath = dbPath + ".gz";
-        compressGzip(dbPath, gzPath);
+        // 2.3 统计信息随文件分发 (ATTACH 后查询规划器直接使用)，最后压实文件
+        sqliteStmt.execute("ANALYZE");
+        sqliteStmt.execute("VACUUM");
+    }
 
-        // 4. 上传到 MinIO
-        // 路径规范: {year}/{yyyymm}/{yyyymmdd}/{compDimCode}/{filename}
-        String s3Key = buildKpiS3Key(kpiId, opTime, compDimCode);
-        uploadToMinio(gzPath, s3Key);
+    /**
+     * 预合并是否安全：查询端对合并后的行再做同一聚合，结果与对原始行聚合相同 (sum/min/max，未指定按 sum)
+     */
+    static boolean isRollupSafe(String aggFunc) {
+        if (aggFunc == null) return true;
+        return switch (aggFunc.toLowerCase()) {
+            case "sum", "min", "max" -> true;
+            default -> false;
+        };
+    }
 
-        // 5. 清理临时文件
-        Files.deleteIfExists(Paths.get(dbPath));
-        Files.deleteIfExists(Paths.get(gzPath));
-        log.info("生产完成，文件已上传至: {}", s3Key);
+    /**
+     * 合并同一维度组合多行时的聚合函数 (只用于 isRollupSafe 的指标)
+     */
+    private static String rollupFunc(String aggFunc) {
+        return aggFunc == null ? "sum" : aggFunc.toLowerCase();
     }
 
     /**
      * 生产维度表数据
      * 对应 Runtime 的维度表: kpi_dim_{compDimCode}
+     * 每个 (dim_id, dim_code) 分配整数代理键 dim_key，沿用 MinIO 上当前维度表中已有的键；
+     * 源数据中已不存在的编码保留原行，已发布的整数编码分区仍能解码。
      */
     public void produceDimData(Connection sourceConn, String sourceSql,
                                String compDimCode, List<String> dimCols) throws Exception {
 
+        DimDictionary previous = loadDimDictionary(compDimCode);
+        Path dbPath;
+        try (PreparedStatement sourceStmt = sourceConn.prepareStatement(sourceSql);
+             ResultSet sourceRs = sourceStmt.executeQuery()) {
+            dbPath = writeDimFile(sourceRs, compDimCode, previous);
+        }
+
+        // 压缩和上传
+        String gzPath = dbPath + ".gz";
+        compressGzip(dbPath.toString(), gzPath);
+
+        // 维度表路径: dim/kpi_dim_{compDimCode}.db.gz
+        String s3Key = String.format("dim/kpi_dim_%s.db.gz", compDimCode);
+        uploadToMinio(gzPath, s3Key);
+
+        Files.deleteIfExists(dbPath);
+        Files.deleteIfExists(Paths.get(gzPath));
+    }
+
+    /**
+     * 将维度源结果集写入本地临时 SQLite 文件 (不压缩、不上传)
+     *
+     * @param dictionary 已有的维度字典，新编码在其上追加分配代理键，源数据中缺失的已有编码原样写回
+     * @return 生成的 .db 文件路径
+     */
+    public Path writeDimFile(ResultSet sourceRs, String compDimCode, DimDictionary dictionary) throws Exception {
         String tableName = "kpi_dim_" + compDimCode;
         File dbFile = File.createTempFile(tableName, ".db");
         String dbPath = dbFile.getAbsolutePath();
@@ -159,30 +369,50 @@ public class SqliteDataProducer {
         log.info("开始生产维度数据: {} -> {}", tableName, dbPath);
 
         try (Connection sqliteConn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-             Statement sqliteStmt = sqliteConn.createStatement();
-             PreparedStatement sourceStmt = sourceConn.prepareStatement(sourceSql);
-             ResultSet sourceRs = sourceStmt.executeQuery()) {
+             Statement sqliteStmt = sqliteConn.createStatement()) {
 
             // 2.1 建表
             // 必须包含: dim_code, dim_val, 以及所有维度ID和描述 (e.g., city_id, city_id_desc)
             String createSql = "CREATE TABLE " + tableName + " (" +
-                    "dim_code TEXT, dim_val TEXT, dim_id text, parent_dim_code text )"; // 联合主键和联合描述
+                    "dim_code TEXT, dim_val TEXT, dim_id text, parent_dim_code text, dim_key INTEGER )"; // 联合主键和联合描述
             sqliteStmt.execute(createSql);
 
             // 2.2 插入数据
             sqliteConn.setAutoCommit(false);
             StringBuilder insertSql = new StringBuilder();
-            insertSql.append("INSERT INTO ").append(tableName).append(" (dim_code, dim_val, dim_id, parent_dim_code) VALUES (?, ?, ?, ?)");
+            insertSql.append("INSERT INTO ").append(tableName).append(" (dim_code, dim_val, dim_id, parent_dim_code, dim_key) VALUES (?, ?, ?, ?, ?)");
 
             try (PreparedStatement insertStmt = sqliteConn.prepareStatement(insertSql.toString())) {
                 int count = 0;
+                // 同一 (dim_id, dim_code) 只保留第一行，保证按 dim_key 解码时不会放大行数
+                Set<String> seen = new HashSet<>();
                 while (sourceRs.next()) {
                     // 假设源SQL已经按照 dim_code, dim_val, col1, col1_desc... 的顺序查好了
                     // 或者在这里做简单的拼接逻辑
-                    insertStmt.setString(1, sourceRs.getString("dim_code"));
+                    String dimCode = sourceRs.getString("dim_code");
+                    String dimId = sourceRs.getString("dim_id");
+                    if (!seen.add(dimId + "\u0000" + dimCode)) {
+                        continue;
+                    }
+                    insertStmt.setString(1, dimCode);
                     insertStmt.setString(2, sourceRs.getString("dim_val"));
-                    insertStmt.setString(3, sourceRs.getString("dim_id"));
+                    insertStmt.setString(3, dimId);
                     insertStmt.setString(4, sourceRs.getString("parent_dim_code"));
+                    insertStmt.setLong(5, dictionary.assign(dimId, dimCode));
+
+                    insertStmt.addBatch();
+                    if (++count % 5000 == 0) insertStmt.executeBatch();
+                }
+                // 源数据中已下线的编码保留原键：已发布的分区仍引用这些键，且键不能再分配给新编码
+                for (DimDictionary.Entry entry : dictionary.entries()) {
+                    if (!seen.add(entry.dimId() + "\u0000" + entry.dimCode())) {
+                        continue;
+                    }
+                    insertStmt.setString(1, entry.dimCode());
+                    insertStmt.setString(2, entry.dimVal());
+                    insertStmt.setString(3, entry.dimId());
+                    insertStmt.setString(4, entry.parentDimCode());
+                    insertStmt.setLong(5, entry.key());
 
                     insertStmt.addBatch();
                     if (++count % 5000 == 0) insertStmt.executeBatch();
@@ -191,33 +421,65 @@ public class SqliteDataProducer {
                 sqliteConn.commit();
             }
 
-            // 创建索引
+            // 创建索引 (dim_code 供文本编码分区关联，dim_key 供整数编码分区解码)
             sqliteStmt.execute("CREATE INDEX idx_dim_code ON " + tableName + "(dim_code)");
+            sqliteStmt.execute("CREATE UNIQUE INDEX idx_dim_key ON " + tableName + "(dim_key)");
+            sqliteConn.setAutoCommit(true);
         }
+        return dbFile.toPath();
+    }
 
-        // 压缩和上传
-        String gzPath = dbPath + ".gz";
-        compressGzip(dbPath, gzPath);
-
-        // 维度表路径: dim/kpi_dim_{compDimCode}.db.gz
+    /**
+     * 读取 MinIO 上当前维度表的字典，维度表不存在或为历史格式时返回空字典
+     */
+    public DimDictionary loadDimDictionary(String compDimCode) throws Exception {
+        String tableName = "kpi_dim_" + compDimCode;
         String s3Key = String.format("dim/kpi_dim_%s.db.gz", compDimCode);
-        uploadToMinio(gzPath, s3Key);
-
-        Files.deleteIfExists(Paths.get(dbPath));
-        Files.deleteIfExists(Paths.get(gzPath));
+        Path gzPath = Files.createTempFile(tableName, ".db.gz");
+        Path dbPath = Files.createTempFile(tableName, ".db");
+        try {
+            try {
+                Files.delete(gzPath);
+                minioClient.downloadObject(DownloadObjectArgs.builder()
+                        .bucket(bucketName)
+                        .object(s3Key)
+                        .filename(gzPath.toString())
+                        .build());
+            } catch (ErrorResponseException e) {
+                if ("NoSuchKey".equals(e.errorResponse().code())) {
+                    log.info("维度表不存在，使用空字典: {}", s3Key);
+                    return DimDictionary.empty();
+                }
+                throw e;
+            }
+            BlockGzip.decompress(gzPath, dbPath);
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+                return DimDictionary.load(conn, tableName);
+            }
+        } finally {
+            Files.deleteIfExists(gzPath);
+            Files.deleteIfExists(dbPath);
+        }
     }
 
     // --- 辅助方法 ---
 
-    private void compressGzip(String src, String dst) throws IOException {
-        try (FileInputStream fis = new FileInputStream(src);
-             GZIPOutputStream gos = new GZIPOutputStream(new FileOutputStream(dst))) {
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = fis.read(buffer)) > 0) {
-                gos.write(buffer, 0, len);
-            }
-        }
+    /**
+     * 按块并发压缩 (多 member gzip + 块索引)，查询端可按块并发解压
+     */
+    void compressGzip(String src, String dst) throws IOException {
+        BlockGzip.compress(Paths.get(src), Paths.get(dst));
+    }
+
+    /**
+     * 单次上传 (不重试)：超过分片大小的文件按分片并发上传 (multipart)
+     */
+    void uploadObject(String filePath, String objectKey) throws Exception {
+        minioClient.uploadObject(UploadObjectArgs.builder()
+                .bucket(bucketName)
+                .object(objectKey)
+                .filename(filePath, MULTIPART_PART_SIZE)
+                .build());
     }
 
     private void uploadToMinio(String filePath, String objectKey) throws Exception {
@@ -227,11 +489,7 @@ public class SqliteDataProducer {
         for (int i = 0; i < maxRetries; i++) {
             try {
                 log.info("正在上传到 MinIO (第 {}/{} 次): key={}", i + 1, maxRetries, objectKey);
-                minioClient.uploadObject(UploadObjectArgs.builder()
-                        .bucket(bucketName)
-                        .object(objectKey)
-                        .filename(filePath)
-                        .build());
+                uploadObject(filePath, objectKey);
                 log.info("上传成功: {}", objectKey);
                 return; // 成功则返回
             } catch (Exception e) {
@@ -245,12 +503,17 @@ public class SqliteDataProducer {
         }
     }
 
-    private String buildKpiS3Key(String kpiId, String opTime, String compDimCode) {
-        String fileName = String.format("%s_%s_%s.db.gz", kpiId, opTime, compDimCode);
-        // 构建时间路径: yyyy/yyyymm/yyyymmdd
+    /**
+     * 与读取端 StorageManager 的 S3 Key 规则一致: {timePath}/{compDimCode}/kpi_{kpiId}_{opTime}_{compDimCode}.db.gz
+     */
+    String buildKpiS3Key(String kpiId, String opTime, String compDimCode) {
+        String fileName = String.format("kpi_%s_%s_%s.db.gz", kpiId, opTime, compDimCode);
+        // 构建时间路径: yyyy/yyyymm/yyyymmdd (日)、yyyy/yyyymm (月)
         String timePath;
         if (opTime.length() == 8) {
             timePath = opTime.substring(0, 4) + "/" + opTime.substring(0, 6) + "/" + opTime;
+        } else if (opTime.length() == 6) {
+            timePath = opTime.substring(0, 4) + "/" + opTime;
         } else {
             timePath = opTime; // 简单回退
         }
@@ -0,0 +1,454 @@
+package com.asiainfo.metrics.etl;
+
+import com.asiainfo.metrics.etl.SqliteDataProducer.PartitionLayout;
+import com.asiainfo.metrics.util.JdbcStreaming;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SQLite 分区文件生产流水线 (用于批量回溯)
+ * <p>
+ * 按 抽取 → 建库 → 压缩 → 上传 四个阶段并发处理多个指标、多个账期：
+ * <ul>
+ *   <li>抽取：每个作业只执行一次源查询 (共享游标)，按 kpi_id 落入本地 SQLite 暂存表，同一作业的多个指标从暂存表分别建库</li>
+ *   <li>各阶段使用独立的固定大小线程池，阶段之间以 CompletableFuture 串接</li>
+ *   <li>背压：暂存表数量与已建库未上传的文件数均有上限，避免回溯时临时文件撑满磁盘</li>
+ *   <li>上传失败按退避延迟重试，不占用上传线程</li>
+ * </ul>
+ * 每个阶段的耗时与字节数记录到 {@code etl.producer.stage.duration} / {@code etl.producer.stage.bytes} (tag: stage)。
+ */
+public class SqliteProducerPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(SqliteProducerPipeline.class);
+
+    private static final String STAGE_EXTRACT = "extract";
+    private static final String STAGE_BUILD = "build";
+    private static final String STAGE_COMPRESS = "compress";
+    private static final String STAGE_UPLOAD = "upload";
+    private static final List<String> STAGES = List.of(STAGE_EXTRACT, STAGE_BUILD, STAGE_COMPRESS, STAGE_UPLOAD);
+
+    private static final int SOURCE_FETCH_SIZE = 5000;
+    private static final int SPOOL_BATCH_SIZE = 5000;
+
+    /**
+     * 源查询作业：一个账期、一个组合维度的源数据，可包含多个指标
+     *
+     * @param sourceSql   源 SQL，结果需包含维度列与 kpi_val；包含 kpi_id 列时按指标拆分，否则 kpiAggFuncs 只能有一个指标
+     * @param kpiAggFuncs 需要生产的指标及其聚合函数 (kpiId -> aggFunc)，结果集中的其他指标忽略
+     * @param dictionary  维度字典，为空时维度列存储编码文本
+     */
+    public record SourceJob(String sourceSql, String opTime, String compDimCode, List<String> dimCols,
+                            Map<String, String> kpiAggFuncs, PartitionLayout layout, DimDictionary dictionary) {
+        public SourceJob {
+            if (kpiAggFuncs == null || kpiAggFuncs.isEmpty()) {
+                throw new IllegalArgumentException("SourceJob requires at least one KPI: " + opTime + "/" + compDimCode);
+            }
+            kpiAggFuncs = Map.copyOf(kpiAggFuncs);
+            dimCols = List.copyOf(dimCols);
+        }
+    }
+
+    /**
+     * 流水线参数
+     *
+     * @param maxSpools        同时存在的暂存表上限 (抽取完成但指标尚未全部建库)
+     * @param maxInFlightFiles 已建库但尚未上传完成的文件上限
+     * @param maxRetries       单个文件的上传尝试次数
+     * @param retryBackoffMs   首次重试的等待时间，之后按次数线性增加
+     */
+    public record Options(int extractParallelism, int buildParallelism, int compressParallelism, int uploadParallelism,
+                          int maxSpools, int maxInFlightFiles, int maxRetries, long retryBackoffMs) {
+        public static Options defaults() {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            return new Options(2, Math.max(2, cpus / 2), Math.max(2, cpus / 2), 8, 4, 32, 3, 1000L);
+        }
+    }
+
+    /**
+     * 上传单个文件 (一次尝试，失败抛异常，由流水线负责重试)
+     */
+    @FunctionalInterface
+    public interface Uploader {
+        void upload(String filePath, String objectKey) throws Exception;
+    }
+
+    public record StageStats(long count, long bytes, long nanos) {
+        public double mbPerSecond() {
+            return nanos == 0 ? 0 : (bytes / 1024.0 / 1024.0) / (nanos / 1e9);
+        }
+    }
+
+    public record Failure(String kpiId, String opTime, String compDimCode, String stage, String message) {
+    }
+
+    /**
+     * 运行结果：阶段统计中的耗时为各线程累计耗时，mbPerSecond 表示单线程吞吐
+     */
+    public record Report(List<String> uploadedKeys, List<Failure> failures, Map<String, StageStats> stages,
+                         long elapsedNanos) {
+        public boolean success() {
+            return failures.isEmpty();
+        }
+    }
+
+    private final DataSource source;
+    private final SqliteDataProducer producer;
+    private final Options options;
+    private final MeterRegistry registry;
+    private final Uploader uploader;
+
+    public SqliteProducerPipeline(DataSource source, SqliteDataProducer producer, Options options) {
+        this(source, producer, options, new SimpleMeterRegistry(), producer::uploadObject);
+    }
+
+    public SqliteProducerPipeline(DataSource source, SqliteDataProducer producer, Options options,
+                                  MeterRegistry registry, Uploader uploader) {
+        this.source = source;
+        this.producer = producer;
+        this.options = options;
+        this.registry = registry;
+        this.uploader = uploader;
+    }
+
+    /**
+     * 执行全部作业并等待完成；单个文件失败不影响其他文件，失败明细见 {@link Report#failures()}
+     */
+    public Report run(List<SourceJob> jobs) {
+        Run run = new Run();
+        long start = System.nanoTime();
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (SourceJob job : jobs) {
+                futures.add(run.submit(job));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } finally {
+            run.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Map<String, StageStats> stages = new LinkedHashMap<>();
+        for (String stage : STAGES) {
+            StageStats stats = run.stats.get(stage).snapshot();
+            stages.put(stage, stats);
+            log.info("阶段 {}: {} 个, {} 字节, 累计 {} ms, {} MB/s", stage, stats.count(), stats.bytes(),
+                    stats.nanos() / 1_000_000, String.format("%.2f", stats.mbPerSecond()));
+        }
+        log.info("流水线完成: 作业 {} 个, 上传 {} 个文件, 失败 {} 个, 耗时 {} ms",
+                jobs.size(), run.uploadedKeys.size(), run.failures.size(), elapsed / 1_000_000);
+        return new Report(List.copyOf(run.uploadedKeys), List.copyOf(run.failures), stages, elapsed);
+    }
+
+    /**
+     * 单次运行的线程池、背压信号量与统计
+     */
+    private class Run {
+        final ExecutorService extractPool = Executors.newFixedThreadPool(options.extractParallelism());
+        final ExecutorService buildPool = Executors.newFixedThreadPool(options.buildParallelism());
+        final ExecutorService compressPool = Executors.newFixedThreadPool(options.compressParallelism());
+        final ExecutorService uploadPool = Executors.newFixedThreadPool(options.uploadParallelism());
+        final Semaphore spools = new Semaphore(options.maxSpools());
+        final Semaphore inFlight = new Semaphore(options.maxInFlightFiles());
+        final Queue<String> uploadedKeys = new ConcurrentLinkedQueue<>();
+        final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+        final Map<String, StageCounter> stats = new HashMap<>();
+
+        Run() {
+            for (String stage : STAGES) {
+                stats.put(stage, new StageCounter(stage));
+            }
+        }
+
+        CompletableFuture<Void> submit(SourceJob job) {
+            CompletableFuture<Path> spool = CompletableFuture.supplyAsync(() -> extract(job), extractPool);
+            return spool.thenCompose(spoolPath -> {
+                List<CompletableFuture<Void>> files = new ArrayList<>();
+                for (Map.Entry<String, String> kpi : job.kpiAggFuncs().entrySet()) {
+                    files.add(produceFile(job, spoolPath, kpi.getKey(), kpi.getValue()));
+                }
+                // 同一作业的指标全部建库后才能删除暂存表
+                return CompletableFuture.allOf(files.toArray(new CompletableFuture[0]))
+                        .whenComplete((v, e) -> releaseSpool(spoolPath));
+            }).exceptionally(e -> {
+                // 抽取失败：该作业的全部指标记为失败
+                for (String kpiId : job.kpiAggFuncs().keySet()) {
+                    fail(kpiId, job, STAGE_EXTRACT, e);
+                }
+                return null;
+            });
+        }
+
+        private CompletableFuture<Void> produceFile(SourceJob job, Path spoolPath, String kpiId, String aggFunc) {
+            String key = producer.buildKpiS3Key(kpiId, job.opTime(), job.compDimCode());
+            return CompletableFuture.supplyAsync(() -> build(job, spoolPath, kpiId, aggFunc), buildPool)
+                    .thenApplyAsync(dbPath -> compress(dbPath), compressPool)
+                    .thenCompose(gzPath -> upload(gzPath, key, 1)
+                            .whenComplete((v, e) -> deleteQuietly(gzPath)))
+                    .handle((v, e) -> {
+                        if (e == null) {
+                            uploadedKeys.add(key);
+                        } else {
+                            fail(kpiId, job, stageOf(e), e);
+                        }
+                        // 建库时占用的在途名额在文件处理结束 (成功或失败) 后释放
+                        inFlight.release();
+                        return null;
+                    });
+        }
+
+        /**
+         * 抽取：执行一次源查询，按 kpi_id 写入暂存表 (kpi_id, 维度列..., kpi_val)
+         */
+        private Path extract(SourceJob job) {
+            acquire(spools);
+            Path spoolPath = null;
+            long start = System.nanoTime();
+            try {
+                spoolPath = File.createTempFile("spool_" + job.opTime() + "_" + job.compDimCode() + "_", ".db").toPath();
+                String singleKpi = job.kpiAggFuncs().size() == 1 ? job.kpiAggFuncs().keySet().iterator().next() : null;
+                long rows;
+                try (Connection sourceConn = source.getConnection();
+                     Connection spoolConn = DriverManager.getConnection("jdbc:sqlite:" + spoolPath)) {
+                    rows = spool(sourceConn, spoolConn, job, singleKpi);
+                }
+                long bytes = Files.size(spoolPath);
+                stats.get(STAGE_EXTRACT).record(System.nanoTime() - start, bytes);
+                log.info("抽取完成: {}/{} {} 行", job.opTime(), job.compDimCode(), rows);
+                return spoolPath;
+            } catch (Exception e) {
+                releaseSpool(spoolPath);
+                throw new StageException(STAGE_EXTRACT, e);
+            }
+        }
+
+        private long spool(Connection sourceConn, Connection spoolConn, SourceJob job, String singleKpi) throws SQLException {
+            List<String> dimCols = job.dimCols();
+            try (Statement stmt = spoolConn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode = OFF");
+                stmt.execute("PRAGMA synchronous = OFF");
+                StringBuilder ddl = new StringBuilder("CREATE TABLE spool (kpi_id TEXT, ");
+                for (String dim : dimCols) {
+                    ddl.append(dim).append(" TEXT, ");
+                }
+                ddl.append("kpi_val REAL)");
+                stmt.execute(ddl.toString());
+            }
+
+            // 源库游标：与派生指标计算相同的流式读取，避免驱动把整个结果集读入内存
+            spoolConn.setAutoCommit(false);
+            String placeholders = String.join(", ", Collections.nCopies(dimCols.size() + 2, "?"));
+            long count = 0;
+            try (PreparedStatement sourceStmt = JdbcStreaming.prepareStreamingStatement(sourceConn, job.sourceSql(), SOURCE_FETCH_SIZE);
+                 PreparedStatement insertStmt = spoolConn.prepareStatement("INSERT INTO spool VALUES (" + placeholders + ")")) {
+                try (ResultSet rs = sourceStmt.executeQuery()) {
+                    boolean hasKpiId = singleKpi == null || hasColumn(rs, "kpi_id");
+                    while (rs.next()) {
+                        String kpiId = hasKpiId ? rs.getString("kpi_id") : singleKpi;
+                        if (!job.kpiAggFuncs().containsKey(kpiId)) continue;
+                        insertStmt.setString(1, kpiId);
+                        for (int i = 0; i < dimCols.size(); i++) {
+                            insertStmt.setString(2 + i, rs.getString(dimCols.get(i)));
+                        }
+                        double val = rs.getDouble("kpi_val");
+                        if (rs.wasNull()) {
+                            insertStmt.setNull(dimCols.size() + 2, Types.REAL);
+                        } else {
+                            insertStmt.setDouble(dimCols.size() + 2, val);
+                        }
+                        insertStmt.addBatch();
+                        if (++count % SPOOL_BATCH_SIZE == 0) insertStmt.executeBatch();
+                    }
+                }
+                insertStmt.executeBatch();
+            } finally {
+                // MySQL 流式读取保持自动提交，此时无事务可回滚
+                if (!sourceConn.getAutoCommit()) sourceConn.rollback();
+            }
+            try (Statement stmt = spoolConn.createStatement()) {
+                stmt.execute("CREATE INDEX idx_spool_kpi ON spool (kpi_id)");
+            }
+            spoolConn.commit();
+            return count;
+        }
+
+        /**
+         * 建库：从暂存表读出单个指标的行，按分区布局写入 SQLite 文件
+         */
+        private Path build(SourceJob job, Path spoolPath, String kpiId, String aggFunc) {
+            acquire(inFlight);
+            long start = System.nanoTime();
+            String sql = "SELECT " + String.join(", ", job.dimCols()) + (job.dimCols().isEmpty() ? "" : ", ")
+                    + "kpi_val FROM spool WHERE kpi_id = ?";
+            try (Connection spoolConn = DriverManager.getConnection("jdbc:sqlite:" + spoolPath);
+                 PreparedStatement stmt = spoolConn.prepareStatement(sql)) {
+                stmt.setString(1, kpiId);
+                Path dbPath;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    dbPath = producer.writeKpiFile(rs, kpiId, job.opTime(), job.compDimCode(), job.dimCols(),
+                            job.layout(), aggFunc, job.dictionary());
+                }
+                stats.get(STAGE_BUILD).record(System.nanoTime() - start, Files.size(dbPath));
+                return dbPath;
+            } catch (Exception e) {
+                throw new StageException(STAGE_BUILD, e);
+            }
+        }
+
+        private Path compress(Path dbPath) {
+            long start = System.nanoTime();
+            Path gzPath = Paths.get(dbPath + ".gz");
+            try {
+                producer.compressGzip(dbPath.toString(), gzPath.toString());
+                stats.get(STAGE_COMPRESS).record(System.nanoTime() - start, Files.size(gzPath));
+                return gzPath;
+            } catch (Exception e) {
+                deleteQuietly(gzPath);
+                throw new StageException(STAGE_COMPRESS, e);
+            } finally {
+                deleteQuietly(dbPath);
+            }
+        }
+
+        /**
+         * 上传：失败后按退避延迟重新提交到上传线程池 (不在线程内 sleep)
+         */
+        private CompletableFuture<Void> upload(Path gzPath, String key, int attempt) {
+            return CompletableFuture.runAsync(() -> {
+                long start = System.nanoTime();
+                try {
+                    uploader.upload(gzPath.toString(), key);
+                    stats.get(STAGE_UPLOAD).record(System.nanoTime() - start, Files.size(gzPath));
+                } catch (Exception e) {
+                    throw new StageException(STAGE_UPLOAD, e);
+                }
+            }, uploadPool).exceptionallyCompose(e -> {
+                if (attempt >= options.maxRetries()) {
+                    return CompletableFuture.failedFuture(e);
+                }
+                log.warn("上传失败 (第 {}/{} 次): key={}, {}", attempt, options.maxRetries(), key, rootCause(e).getMessage());
+                Executor delayed = CompletableFuture.delayedExecutor(
+                        options.retryBackoffMs() * attempt, TimeUnit.MILLISECONDS, uploadPool);
+                return CompletableFuture.supplyAsync(() -> null, delayed)
+                        .thenCompose(v -> upload(gzPath, key, attempt + 1));
+            });
+        }
+
+        private void releaseSpool(Path spoolPath) {
+            if (spoolPath != null) {
+                deleteQuietly(spoolPath);
+            }
+            spools.release();
+        }
+
+        private void fail(String kpiId, SourceJob job, String stage, Throwable e) {
+            Throwable cause = rootCause(e);
+            log.error("生产失败 [{}] {}/{}/{}: {}", stage, kpiId, job.opTime(), job.compDimCode(), cause.getMessage());
+            failures.add(new Failure(kpiId, job.opTime(), job.compDimCode(), stage, String.valueOf(cause.getMessage())));
+        }
+
+        void shutdown() {
+            extractPool.shutdown();
+            buildPool.shutdown();
+            compressPool.shutdown();
+            uploadPool.shutdown();
+        }
+    }
+
+    private class StageCounter {
+        final Timer timer;
+        final DistributionSummary bytesSummary;
+        final LongAdder count = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        StageCounter(String stage) {
+            this.timer = Timer.builder("etl.producer.stage.duration")
+                    .description("SQLite 分区生产各阶段耗时")
+                    .tag("stage", stage)
+                    .register(registry);
+            this.bytesSummary = DistributionSummary.builder("etl.producer.stage.bytes")
+                    .description("SQLite 分区生产各阶段产出字节数")
+                    .baseUnit("bytes")
+                    .tag("stage", stage)
+                    .register(registry);
+        }
+
+        void record(long elapsedNanos, long size) {
+            timer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+            bytesSummary.record(size);
+            count.increment();
+            bytes.add(size);
+            nanos.add(elapsedNanos);
+        }
+
+        StageStats snapshot() {
+            return new StageStats(count.sum(), bytes.sum(), nanos.sum());
+        }
+    }
+
+    /**
+     * 携带失败阶段的异常
+     */
+    private static class StageException extends RuntimeException {
+        final String stage;
+
+        StageException(String stage, Throwable cause) {
+            super(cause.getMessage(), cause);
+            this.stage = stage;
+        }
+    }
+
+    private static String stageOf(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof StageException se) return se.stage;
+        }
+        return "unknown";
+    }
+
+    private static Throwable rootCause(Throwable e) {
+        Throwable t = e;
+        while ((t instanceof CompletionException || t instanceof StageException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    private static boolean hasColumn(ResultSet rs, String column) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            if (column.equalsIgnoreCase(meta.getColumnLabel(i))) return true;
+        }
+        return false;
+    }
+
+    private static void acquire(Semaphore semaphore) {
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("流水线被中断", e);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (Exception e) {
+            log.warn("删除临时文件失败: {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.asiainfo.metrics.model.http;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.List;
+
+/**
+ * KPI批量查询结果
+ */
+@RegisterForReflection
+public record KpiBatchQueryResult(
+    List<KpiQueryResult> resultArray, // 各查询结果，与请求顺序一一对应，每个结果有独立的 status、msg
+    String status, // 业务状态码：全部成功为0000，否则为9999
+    String msg
+) {
+}
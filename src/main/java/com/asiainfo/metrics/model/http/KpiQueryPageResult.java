@@ -16,27 +16,36 @@ import java.util.Set;
 public record KpiQueryPageResult(List<Map<String, Object>> dataArray, // 数据数组
                                  boolean hasNext, // 是否有下一页
                                  long total, // 总记录数
-                                 Set<String> schema // 字段集合（仅限横表模式）
+                                 Set<String> schema, // 字段集合（仅限横表模式）
+                                 String nextCursor // 下一页游标，作为下次请求的 pageCursor；无下一页时为空
 ) {
 
     /**
      * 创建成功结果
      */
     public static KpiQueryPageResult success(List<Map<String, Object>> dataArray, boolean hasNext, long total) {
-        return new KpiQueryPageResult(dataArray, hasNext, total, null);
+        return new KpiQueryPageResult(dataArray, hasNext, total, null, null);
     }
 
     /**
      * 创建横表成功结果
      */
     public static KpiQueryPageResult successWideTable(List<Map<String, Object>> dataArray, boolean hasNext, long total, Set<String> schema) {
-        return new KpiQueryPageResult(dataArray, hasNext, total, schema);
+        return new KpiQueryPageResult(dataArray, hasNext, total, schema, null);
+    }
+
+    /**
+     * 创建键集分页结果
+     */
+    public static KpiQueryPageResult page(List<Map<String, Object>> dataArray, boolean hasNext, long total,
+                                          Set<String> schema, String nextCursor) {
+        return new KpiQueryPageResult(dataArray, hasNext, total, schema, nextCursor);
     }
 
     /**
      * 创建空结果
      */
     public static KpiQueryPageResult empty() {
-        return new KpiQueryPageResult(List.of(), false, 0, null);
+        return new KpiQueryPageResult(List.of(), false, 0, null, null);
     }
 }
\ No newline at end of file
@@ -2,6 +2,11 @@ package com.asiainfo.metrics.model.http;
 
 import io.quarkus.runtime.annotations.RegisterForReflection;
 
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -14,11 +19,79 @@ public record KpiQueryRequest(
     List<String> opTimeArray, // 时间点列表
     List<String> dimCodeArray, // 维度字段列表，是SQL的聚合字段 如 ["city_id", "county_id"]
     List<DimCondition> dimConditionArray, // 维度条件，多个条件之间是and关系
-    Map<String, String> sortOptions, // SQL排序选项, 报表才会用到，指标暂时不用
+    Map<String, String> sortOptions, // 排序选项 {字段: asc|desc}，按插入顺序决定优先级，如 {"KD1002": "desc"}
     Boolean includeHistoricalData, // 是否包含历史数据（lastCycle和lastYear），默认true
-    Boolean includeTargetData // 是否包含目标值相关数据（target_value、check_result、check_desc），默认false
+    Boolean includeTargetData, // 是否包含目标值相关数据（target_value、check_result、check_desc），默认false
+    Integer pageSize, // 报表分页大小，仅报表查询使用，默认100
+    String pageCursor, // 报表分页游标，取上一页返回的 nextCursor，为空表示第一页
+    Integer limit, // Top-N：按 sortOptions 排序后最多返回的行数，为空表示不限
+    OpTimeRange opTimeRange, // 趋势查询的账期范围，代替逐个列出 opTimeArray
+    List<String> derivedArray // 派生输出：yoy_rate、mom_rate、yoy_delta、mom_delta，输出列为 {kpi}_{派生名}
 ) {
 
+    public KpiQueryRequest(List<String> kpiArray, List<String> opTimeArray, List<String> dimCodeArray,
+                           List<DimCondition> dimConditionArray, Map<String, String> sortOptions,
+                           Boolean includeHistoricalData, Boolean includeTargetData) {
+        this(kpiArray, opTimeArray, dimCodeArray, dimConditionArray, sortOptions, includeHistoricalData,
+                includeTargetData, null, null, null, null, null);
+    }
+
+    /**
+     * 账期范围 (含首尾)，如 {"start": "20251001", "end": "20251130", "granularity": "day"}
+     */
+    public record OpTimeRange(
+        String start, // 开始账期
+        String end, // 结束账期
+        String granularity // day (yyyyMMdd) 或 month (yyyyMM)，默认按 start 的长度判断
+    ) {
+        private static final int MAX_POINTS = 1000;
+        private static final DateTimeFormatter DAY = DateTimeFormatter.BASIC_ISO_DATE;
+        private static final DateTimeFormatter MONTH = DateTimeFormatter.ofPattern("yyyyMM");
+
+        /**
+         * 展开为账期列表 (升序)
+         *
+         * @throws IllegalArgumentException 格式错误、开始晚于结束或点数过多
+         */
+        public List<String> expand() {
+            if (start == null || end == null) {
+                throw new IllegalArgumentException("opTimeRange requires start and end");
+            }
+            String unit = granularity != null ? granularity.toLowerCase() : (start.length() == 6 ? "month" : "day");
+            List<String> opTimes = new ArrayList<>();
+            try {
+                switch (unit) {
+                    case "day" -> {
+                        LocalDate last = LocalDate.parse(end, DAY);
+                        for (LocalDate d = LocalDate.parse(start, DAY); !d.isAfter(last); d = d.plusDays(1)) {
+                            addPoint(opTimes, d.format(DAY));
+                        }
+                    }
+                    case "month" -> {
+                        YearMonth last = YearMonth.parse(end, MONTH);
+                        for (YearMonth m = YearMonth.parse(start, MONTH); !m.isAfter(last); m = m.plusMonths(1)) {
+                            addPoint(opTimes, m.format(MONTH));
+                        }
+                    }
+                    default -> throw new IllegalArgumentException("Unsupported granularity: " + granularity);
+                }
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid opTimeRange: " + start + " - " + end, e);
+            }
+            if (opTimes.isEmpty()) {
+                throw new IllegalArgumentException("opTimeRange start is after end: " + start + " - " + end);
+            }
+            return opTimes;
+        }
+
+        private static void addPoint(List<String> opTimes, String opTime) {
+            if (opTimes.size() >= MAX_POINTS) {
+                throw new IllegalArgumentException("opTimeRange exceeds " + MAX_POINTS + " points");
+            }
+            opTimes.add(opTime);
+        }
+    }
+
     /**
      * 维度条件
      */
@@ -0,0 +1,19 @@
+package com.asiainfo.metrics.model.http;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * KPI订阅推送事件
+ * snapshot 事件：upsertArray 为完整结果，removeArray 为空；
+ * diff 事件：upsertArray 为新增或取值变化的行，removeArray 为消失的行 (只含维度与 op_time)。
+ */
+@RegisterForReflection
+public record KpiSubscriptionEvent(
+    String version, // 结果版本 (与 queryKpiData 的 ETag 版本部分一致)
+    List<Map<String, Object>> upsertArray,
+    List<Map<String, Object>> removeArray
+) {
+}
@@ -0,0 +1,40 @@
+package com.asiainfo.metrics.model.http;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * KPI趋势查询结果 (紧凑序列格式)
+ * 每个维度组合只输出一次维度取值，指标值按 opTimeArray 对齐为数组，缺失为 null：
+ * {"opTimeArray": ["20251101", "20251102"], "seriesArray": [{"dims": {"city_id": "4", "city_id_desc": "..."},
+ *   "values": {"KD1002": [1.0, null]}}], ...}
+ */
+@RegisterForReflection
+public record KpiTrendResult(
+    List<String> opTimeArray, // 实际存在数据的账期 (升序)，缺失的账期已跳过
+    List<String> kpiArray, // 输出指标列表
+    List<String> dimCodeArray, // 维度字段列表
+    List<Series> seriesArray, // 每个维度组合一条序列
+    String status, // 业务状态码
+    String msg
+) {
+
+    /**
+     * 单个维度组合的序列
+     */
+    @RegisterForReflection
+    public record Series(
+        Map<String, Object> dims, // 维度取值与描述 (city_id, city_id_desc)
+        Map<String, List<Double>> values // 指标 -> 与 opTimeArray 对齐的取值
+    ) {}
+
+    public static KpiTrendResult error(String errorMsg) {
+        return new KpiTrendResult(List.of(), List.of(), List.of(), List.of(), "9999", errorMsg);
+    }
+
+    public KpiTrendResult withStatus(String status, String msg) {
+        return new KpiTrendResult(opTimeArray, kpiArray, dimCodeArray, seriesArray, status, msg);
+    }
+}
@@ -2,9 +2,19 @@ package com.asiainfo.metrics.repository;
 
 import com.asiainfo.metrics.util.AesCipher;
 import io.agroal.api.AgroalDataSource;
+import io.agroal.api.AgroalDataSourceMetrics;
+import io.agroal.api.configuration.AgroalConnectionPoolConfiguration;
+import io.agroal.api.configuration.supplier.AgroalDataSourceConfigurationSupplier;
+import io.agroal.api.security.NamePrincipal;
+import io.agroal.api.security.SimplePassword;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.Shutdown;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -15,11 +25,21 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
 
 /**
- *
+ * 取数数据源 (modo_datasource) 连接
+ * 每个 dsName 按需创建一个连接池，驱动类与插件目录的类加载器只加载一次；
+ * 数据源配置按 metrics.datasource.refresh-seconds 周期重新读取，配置变化时重建连接池，旧连接池在连接归还后关闭。
  *
  * @author QvQ
  * @date 2025/11/12
@@ -27,15 +47,92 @@ import java.util.List;
 @ApplicationScoped
 public class KpiDataSourceRepository {
 
+    private static final Logger log = LoggerFactory.getLogger(KpiDataSourceRepository.class);
+
     @Inject
     @io.quarkus.agroal.DataSource("metadb")
     AgroalDataSource metadbDataSource;
 
+    @Inject
+    MeterRegistry registry;
+
     @ConfigProperty(name = "metrics.driver.plugin.dir")
     private String driverPluginDir;
 
+    @ConfigProperty(name = "metrics.datasource.pool.max-size", defaultValue = "10")
+    int poolMaxSize;
+
+    @ConfigProperty(name = "metrics.datasource.pool.acquisition-timeout-seconds", defaultValue = "30")
+    long acquisitionTimeoutSeconds;
+
+    @ConfigProperty(name = "metrics.datasource.refresh-seconds", defaultValue = "60")
+    long refreshSeconds;
+
+    // dsName -> 连接池
+    private final Map<String, PooledSource> pools = new ConcurrentHashMap<>();
+    // 配置变化后被替换的连接池，活动连接归还后关闭
+    private final Queue<AgroalDataSource> retiredPools = new ConcurrentLinkedQueue<>();
+    // driver_class_name -> 驱动类
+    private final Map<String, Class<?>> driverClasses = new ConcurrentHashMap<>();
+    private volatile ClassLoader pluginClassLoader;
+
+    /**
+     * 取数数据源配置 (ds_auth 为密文)
+     */
+    record DataSourceDef(String url, String userName, String encryptedPassword, String driverClassName,
+                                 String validationSql) {
+    }
+
+    /**
+     * 一个 dsName 的连接池及创建它的配置
+     */
+    private record PooledSource(DataSourceDef def, AgroalDataSource dataSource, long checkedAt) {
+        PooledSource checked(long now) {
+            return new PooledSource(def, dataSource, now);
+        }
+    }
 
     public Connection getConnection(String dsName) {
+        try {
+            return getPool(dsName).getConnection();
+        } catch (SQLException e) {
+            throw new RuntimeException("获取数据源连接失败: " + dsName, e);
+        }
+    }
+
+    private AgroalDataSource getPool(String dsName) {
+        long now = System.currentTimeMillis();
+        PooledSource current = pools.get(dsName);
+        if (current != null && now - current.checkedAt() < refreshSeconds * 1000) {
+            return current.dataSource();
+        }
+        closeDrainedPools();
+
+        PooledSource refreshed = pools.compute(dsName, (name, existing) -> {
+            DataSourceDef def;
+            try {
+                def = loadDataSourceDef(name);
+            } catch (RuntimeException e) {
+                if (existing == null) throw e;
+                // 元数据库暂时不可用时沿用现有连接池
+                log.warn("刷新数据源 {} 配置失败，沿用现有连接池: {}", name, e.getMessage());
+                return existing.checked(now);
+            }
+            if (existing != null && existing.def().equals(def)) {
+                return existing.checked(now);
+            }
+            if (existing != null) {
+                log.info("数据源 {} 配置已变更，重建连接池", name);
+                retire(existing.dataSource());
+            } else {
+                registerPoolMetrics(name);
+            }
+            return new PooledSource(def, createPool(name, def), now);
+        });
+        return refreshed.dataSource();
+    }
+
+    private DataSourceDef loadDataSourceDef(String dsName) {
         String dsQuery = """
                 select ds_acct, ds_auth, driver_class_name, url, validation_sql
                 from modo_datasource
@@ -49,35 +146,14 @@ public class KpiDataSourceRepository {
 
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    String url = rs.getString("url");
-                    String userName = rs.getString("ds_acct");
-                    String password = rs.getString("ds_auth");
-                    String driverClassName = rs.getString("driver_class_name");
-                    String validationSql = rs.getString("validation_sql");
-
-                    // 使用自定义类加载器加载驱动
-                    ClassLoader extendedClassLoader = createExtendedClassLoader();
-                    Class<?> driverClass = Class.forName(driverClassName, true, extendedClassLoader);
-
-                    // 创建驱动实例
-                    java.sql.Driver driver = (java.sql.Driver) driverClass.getDeclaredConstructor().newInstance();
-
-                    // 创建连接属性
-                    java.util.Properties props = new java.util.Properties();
-                    props.setProperty("user", userName);
-                    props.setProperty("password", AesCipher.decrypt(password));
-
-                    // 使用驱动实例获取连接
-                    Connection connection = driver.connect(url, props);
-                    connection.prepareStatement(validationSql).execute();
-                    return connection;
+                    return new DataSourceDef(
+                            rs.getString("url"),
+                            rs.getString("ds_acct"),
+                            rs.getString("ds_auth"),
+                            rs.getString("driver_class_name"),
+                            rs.getString("validation_sql"));
                 }
                 throw new RuntimeException("指定的数据源不存在:" + dsName);
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException("加载驱动失败: " + e.getMessage(), e);
-            } catch (InstantiationException | IllegalAccessException | NoSuchMethodException |
-                     java.lang.reflect.InvocationTargetException e) {
-                throw new RuntimeException("创建驱动实例失败: " + e.getMessage(), e);
             }
 
         } catch (SQLException e) {
@@ -85,6 +161,77 @@ public class KpiDataSourceRepository {
         }
     }
 
+    /**
+     * 按配置创建连接池 (包可见，单元测试替换为模拟连接池)
+     */
+    AgroalDataSource createPool(String dsName, DataSourceDef def) {
+        Class<?> driverClass = driverClasses.computeIfAbsent(def.driverClassName(), this::loadDriverClass);
+        String validationSql = def.validationSql();
+
+        AgroalDataSourceConfigurationSupplier configuration = new AgroalDataSourceConfigurationSupplier()
+                .metricsEnabled(true)
+                .connectionPoolConfiguration(pool -> pool
+                        .initialSize(0)
+                        .minSize(0)
+                        .maxSize(poolMaxSize)
+                        .acquisitionTimeout(Duration.ofSeconds(acquisitionTimeoutSeconds))
+                        // 校验 SQL 只对空闲超过 2 分钟的连接执行，不再每次获取连接都执行
+                        .idleValidationTimeout(Duration.ofMinutes(2))
+                        .reapTimeout(Duration.ofMinutes(5))
+                        .maxLifetime(Duration.ofMinutes(30))
+                        .connectionValidator(validationSql == null || validationSql.isBlank()
+                                ? AgroalConnectionPoolConfiguration.ConnectionValidator.defaultValidator()
+                                : connection -> isValid(connection, validationSql))
+                        .connectionFactoryConfiguration(factory -> factory
+                                .jdbcUrl(def.url())
+                                .connectionProviderClass(driverClass)
+                                .principal(new NamePrincipal(def.userName()))
+                                .credential(new SimplePassword(AesCipher.decrypt(def.encryptedPassword())))));
+        try {
+            AgroalDataSource dataSource = AgroalDataSource.from(configuration);
+            log.info("创建数据源连接池: {} (maxSize={})", dsName, poolMaxSize);
+            return dataSource;
+        } catch (SQLException e) {
+            throw new RuntimeException("创建数据源连接池失败: " + dsName, e);
+        }
+    }
+
+    private static boolean isValid(Connection connection, String validationSql) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(validationSql);
+            return true;
+        } catch (SQLException e) {
+            log.warn("数据源连接校验失败: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private Class<?> loadDriverClass(String driverClassName) {
+        try {
+            Class<?> driverClass = Class.forName(driverClassName, true, getPluginClassLoader());
+            if (!java.sql.Driver.class.isAssignableFrom(driverClass)
+                    && !javax.sql.DataSource.class.isAssignableFrom(driverClass)) {
+                throw new RuntimeException("创建驱动实例失败: " + driverClassName + " 不是 JDBC 驱动");
+            }
+            return driverClass;
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("加载驱动失败: " + e.getMessage(), e);
+        }
+    }
+
+    private ClassLoader getPluginClassLoader() {
+        ClassLoader loader = pluginClassLoader;
+        if (loader == null) {
+            synchronized (this) {
+                if (pluginClassLoader == null) {
+                    pluginClassLoader = createExtendedClassLoader();
+                }
+                loader = pluginClassLoader;
+            }
+        }
+        return loader;
+    }
+
     private ClassLoader createExtendedClassLoader() {
         try {
             Path driverDir = Paths.get(driverPluginDir);
@@ -93,15 +240,16 @@ public class KpiDataSourceRepository {
             }
 
             List<URL> urls = new ArrayList<>();
-            Files.list(driverDir)
-                    .filter(path -> path.toString().endsWith(".jar"))
-                    .forEach(jarPath -> {
-                        try {
-                            urls.add(jarPath.toUri().toURL());
-                        } catch (Exception e) {
-                            System.err.println("无法加载JAR: " + jarPath);
-                        }
-                    });
+            try (Stream<Path> jars = Files.list(driverDir)) {
+                jars.filter(path -> path.toString().endsWith(".jar"))
+                        .forEach(jarPath -> {
+                            try {
+                                urls.add(jarPath.toUri().toURL());
+                            } catch (Exception e) {
+                                log.warn("无法加载JAR: {}", jarPath);
+                            }
+                        });
+            }
 
             if (urls.isEmpty()) {
                 return Thread.currentThread().getContextClassLoader();
@@ -114,4 +262,54 @@ public class KpiDataSourceRepository {
         }
     }
 
+    /**
+     * 连接池指标 (tag: ds)，始终读取该 dsName 当前的连接池
+     */
+    private void registerPoolMetrics(String dsName) {
+        registerPoolGauge(dsName, "metrics.source.pool.active", "活动连接数", AgroalDataSourceMetrics::activeCount);
+        registerPoolGauge(dsName, "metrics.source.pool.available", "空闲连接数", AgroalDataSourceMetrics::availableCount);
+        registerPoolGauge(dsName, "metrics.source.pool.awaiting", "等待获取连接的线程数", AgroalDataSourceMetrics::awaitingCount);
+        registerPoolGauge(dsName, "metrics.source.pool.max.used", "历史最大活动连接数", AgroalDataSourceMetrics::maxUsedCount);
+        registerPoolGauge(dsName, "metrics.source.pool.created", "累计创建的物理连接数", AgroalDataSourceMetrics::creationCount);
+        registerPoolGauge(dsName, "metrics.source.pool.creation.avg.ms", "物理连接平均创建耗时 (毫秒)",
+                m -> m.creationTimeAverage().toMillis());
+        registerPoolGauge(dsName, "metrics.source.pool.blocking.avg.ms", "获取连接平均等待耗时 (毫秒)",
+                m -> m.blockingTimeAverage().toMillis());
+    }
+
+    private void registerPoolGauge(String dsName, String name, String description,
+                                   ToDoubleFunction<AgroalDataSourceMetrics> metric) {
+        Gauge.builder(name, pools, map -> {
+                    PooledSource source = map.get(dsName);
+                    return source == null ? 0 : metric.applyAsDouble(source.dataSource().getMetrics());
+                })
+                .description(description)
+                .tag("ds", dsName)
+                .register(registry);
+    }
+
+    private void retire(AgroalDataSource dataSource) {
+        // 空闲连接立即关闭，活动连接归还时关闭
+        dataSource.flush(AgroalDataSource.FlushMode.GRACEFUL);
+        retiredPools.add(dataSource);
+        closeDrainedPools();
+    }
+
+    private void closeDrainedPools() {
+        retiredPools.removeIf(dataSource -> {
+            if (dataSource.getMetrics().activeCount() > 0) {
+                return false;
+            }
+            dataSource.close();
+            return true;
+        });
+    }
+
+    @Shutdown
+    void shutdown() {
+        pools.values().forEach(source -> source.dataSource().close());
+        pools.clear();
+        retiredPools.forEach(AgroalDataSource::close);
+        retiredPools.clear();
+    }
 }
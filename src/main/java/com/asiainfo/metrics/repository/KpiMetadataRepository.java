@@ -230,6 +230,73 @@ public class KpiMetadataRepository {
 
 
 
+    /**
+     * 登记宽表分区：取数模型在某账期、组合维度下的一个分区文件，包含的每个指标一行
+     * 重新发布时覆盖 (同一指标在同一账期只会落在一个分区文件中)
+     */
+    public void registerModelPartition(String modelId, String opTime, String compDimCode, Collection<String> kpiIds) {
+        String sql = """
+        INSERT INTO metrics_model_partition (kpi_id, op_time, comp_dim_code, model_id, update_time)
+        VALUES (?, ?, ?, ?, NOW())
+        ON DUPLICATE KEY UPDATE model_id = VALUES(model_id), update_time = VALUES(update_time)
+        """;
+
+        try (Connection conn = metadbDataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            for (String kpiId : kpiIds) {
+                stmt.setString(1, kpiId);
+                stmt.setString(2, opTime);
+                stmt.setString(3, compDimCode);
+                stmt.setString(4, modelId);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+
+        } catch (SQLException e) {
+            throw new RuntimeException("登记宽表分区失败: " + modelId + "_" + opTime + "_" + compDimCode, e);
+        }
+    }
+
+    /**
+     * 批量查询多个账期已发布的宽表分区 (一次查询)
+     *
+     * @return opTime -> (kpiId@compDimCode -> modelId)，每个请求的账期都有一项 (无登记时为空)，未登记的指标仍为单指标分区
+     */
+    public Map<String, Map<String, String>> getModelPartitions(Collection<String> opTimes) {
+        Map<String, Map<String, String>> result = new HashMap<>();
+        if (opTimes == null || opTimes.isEmpty()) {
+            return result;
+        }
+        for (String opTime : opTimes) {
+            result.put(opTime, new HashMap<>());
+        }
+
+        String sql = "SELECT op_time, kpi_id, comp_dim_code, model_id FROM metrics_model_partition WHERE op_time IN (" +
+                     opTimes.stream().map(t -> "?").collect(Collectors.joining(",")) + ")";
+
+        try (Connection conn = metadbDataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            int idx = 1;
+            for (String opTime : opTimes) {
+                stmt.setString(idx++, opTime);
+            }
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    result.computeIfAbsent(rs.getString("op_time"), k -> new HashMap<>())
+                            .put(rs.getString("kpi_id") + "@" + rs.getString("comp_dim_code"), rs.getString("model_id"));
+                }
+            }
+
+        } catch (SQLException e) {
+            throw new RuntimeException("查询宽表分区失败: " + opTimes, e);
+        }
+
+        return result;
+    }
+
     /**
      * 根据组合维度编码获取组合维度定义
      */
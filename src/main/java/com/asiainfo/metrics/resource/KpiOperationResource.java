@@ -1,20 +1,23 @@
 package com.asiainfo.metrics.resource;
 
-import com.asiainfo.metrics.config.MetricsConfig;
 import com.asiainfo.metrics.model.http.ETLModel;
-import com.asiainfo.metrics.service.KpiComputeService;
-import com.asiainfo.metrics.service.KpiStorageService;
+import com.asiainfo.metrics.service.EtlJobService;
 import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,20 +35,15 @@ public class KpiOperationResource {
     private static final Logger log = LoggerFactory.getLogger(KpiOperationResource.class);
 
     @Inject
-    KpiComputeService kpiComputeService;
-
-    @Inject
-    KpiStorageService kpiStorageService;
-
-    @Inject
-    MetricsConfig metricsConfig;
+    EtlJobService etlJobService;
 
     /**
      * 源表数据完成触发器
-     * 当源表数据准备好后，调用此接口触发派生指标的计算与存储
+     * 登记派生指标的计算与存储任务后立即返回任务ID，任务在后台执行；
+     * 同一 (源表, 批次) 尚未开始执行的任务只保留一个，重复通知返回已有任务ID
      *
      * @param etlModel ETL模型，包含源表名称和批次时间
-     * @return 计算与存储结果
+     * @return 任务登记结果
      */
     @POST
     @Path("/srcTableComplete")
@@ -56,51 +54,47 @@ public class KpiOperationResource {
         Map<String, Object> result = new HashMap<>();
 
         try {
-            // 1. 计算派生指标
-            KpiComputeService.ComputeResult computeResult = kpiComputeService.computeExtendedMetrics(
-                    etlModel.tableName(), etlModel.opTime());
-
-            if (!computeResult.success()) {
-                result.put("status", "ERROR");
-                result.put("message", computeResult.message());
-                log.error("指标计算失败：{}", computeResult.message());
-                return result;
-            }
-
-            log.info("指标计算成功，生成 {} 条数据", computeResult.data().size());
-
-            // 2. 存储指标数据
-            String engineType = metricsConfig.getCurrentEngine();
-            KpiStorageService.StorageResult storageResult = kpiStorageService.storageMetrics(
-                    computeResult.data(), engineType);
-
-            if (!storageResult.success()) {
-                result.put("status", "ERROR");
-                result.put("message", storageResult.message());
-                log.error("指标存储失败：{}", storageResult.message());
-                return result;
-            }
-
-            log.info("指标存储成功，存储 {} 条记录", storageResult.storedCount());
-
-            // 3. 返回成功结果
-            result.put("status", "SUCCESS");
-            result.put("message", "指标计算与存储成功");
-            result.put("computeCount", computeResult.data().size());
-            result.put("storageCount", storageResult.storedCount());
-            result.put("engineType", engineType);
+            EtlJobService.EtlJob job = etlJobService.submit(etlModel.tableName(), etlModel.opTime());
+            result.put("status", "ACCEPTED");
+            result.put("message", "任务已登记");
+            result.put("jobId", job.getJobId());
+            result.put("jobState", job.getState());
             result.put("tableName", etlModel.tableName());
             result.put("opTime", etlModel.opTime());
-
-            log.info("指标计算与存储流程完成");
-
             return result;
 
         } catch (Exception e) {
-            log.error("指标计算与存储过程发生异常", e);
+            log.error("登记ETL任务失败", e);
             result.put("status", "ERROR");
             result.put("message", "发生异常：" + e.getMessage());
             return result;
         }
     }
+
+    /**
+     * 查询ETL任务状态与进度
+     *
+     * @param jobId 任务ID
+     * @return 任务状态，任务不存在 (或已过保留期) 时返回 404
+     */
+    @GET
+    @Path("/etlJobs/{jobId}")
+    public Response getEtlJob(@PathParam("jobId") String jobId) {
+        return etlJobService.getJob(jobId)
+                .map(job -> Response.ok(job).build())
+                .orElseGet(() -> Response.status(Response.Status.NOT_FOUND)
+                        .entity(Map.of("status", "ERROR", "message", "任务不存在: " + jobId))
+                        .build());
+    }
+
+    /**
+     * 查询ETL任务列表 (按登记时间倒序)
+     *
+     * @param state 任务状态过滤：PENDING, RUNNING, SUCCESS, ERROR，为空返回全部
+     */
+    @GET
+    @Path("/etlJobs")
+    public List<EtlJobService.EtlJob> listEtlJobs(@QueryParam("state") EtlJobService.JobState state) {
+        return etlJobService.listJobs(state);
+    }
 }
@@ -0,0 +1,352 @@
+package com.asiainfo.metrics.service;
+
+import com.asiainfo.metrics.config.MetricsConfig;
+import com.asiainfo.metrics.model.db.KpiModel;
+import com.asiainfo.metrics.repository.KpiMetadataRepository;
+import com.asiainfo.metrics.v2.core.engine.KpiSubscriptionService;
+import com.asiainfo.metrics.v2.core.model.PhysicalTableReq;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.Shutdown;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * 派生指标 ETL 任务队列
+ * 源表完成通知只登记任务并返回任务ID，计算、存储、发布在后台执行：
+ * - 同一 (源表, 批次) 尚未开始执行的任务只保留一个，重复通知返回已有任务ID
+ * - 同时执行的任务数受 metrics.etl.workers 限制，同一取数数据源的任务数受 metrics.etl.per-datasource-concurrency 限制
+ * - 任务状态与进度可按任务ID查询，结束的任务保留 metrics.etl.job-retention-minutes 分钟
+ *
+ * @author QvQ
+ * @date 2025/11/12
+ */
+@ApplicationScoped
+public class EtlJobService {
+
+    private static final Logger log = LoggerFactory.getLogger(EtlJobService.class);
+
+    @Inject
+    KpiComputeService kpiComputeService;
+
+    @Inject
+    KpiStorageService kpiStorageService;
+
+    @Inject
+    KpiMetadataRepository metadataRepository;
+
+    @Inject
+    KpiSubscriptionService subscriptionService;
+
+    @Inject
+    MetricsConfig metricsConfig;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "metrics.etl.workers", defaultValue = "4")
+    int workers;
+
+    @ConfigProperty(name = "metrics.etl.per-datasource-concurrency", defaultValue = "2")
+    int perDataSourceConcurrency;
+
+    @ConfigProperty(name = "metrics.etl.queue-capacity", defaultValue = "1000")
+    int queueCapacity;
+
+    @ConfigProperty(name = "metrics.etl.job-retention-minutes", defaultValue = "1440")
+    long retentionMinutes;
+
+    private final ExecutorService vThreadExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    // jobId -> 任务
+    private final Map<String, EtlJob> jobs = new ConcurrentHashMap<>();
+    // (源表, 批次) -> 尚未开始执行的任务
+    private final Map<String, EtlJob> pendingByKey = new ConcurrentHashMap<>();
+    // 取数数据源 -> 并发名额
+    private final Map<String, Semaphore> dataSourcePermits = new ConcurrentHashMap<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile Semaphore workerPermits;
+
+    public enum JobState {
+        PENDING, RUNNING, SUCCESS, ERROR
+    }
+
+    /**
+     * ETL 任务状态 (供查询接口序列化)
+     */
+    public static final class EtlJob {
+        private final String jobId;
+        private final String tableName;
+        private final String opTime;
+        private final String dsName;
+        private final long submittedAt;
+        private volatile JobState state = JobState.PENDING;
+        private volatile String stage = "QUEUED";
+        private volatile int progress;
+        private volatile String message;
+        private volatile String engineType;
+        private volatile long computeCount;
+        private volatile long storageCount;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+
+        EtlJob(String jobId, String tableName, String opTime, String dsName) {
+            this.jobId = jobId;
+            this.tableName = tableName;
+            this.opTime = opTime;
+            this.dsName = dsName;
+            this.submittedAt = System.currentTimeMillis();
+        }
+
+        void progress(String stage, int progress) {
+            this.stage = stage;
+            this.progress = progress;
+        }
+
+        void finish(JobState state, String message) {
+            this.state = state;
+            this.message = message;
+            this.finishedAt = System.currentTimeMillis();
+            if (state == JobState.SUCCESS) {
+                this.stage = "DONE";
+                this.progress = 100;
+            }
+        }
+
+        public String getJobId() { return jobId; }
+        public String getTableName() { return tableName; }
+        public String getOpTime() { return opTime; }
+        public String getDsName() { return dsName; }
+        public JobState getState() { return state; }
+        public String getStage() { return stage; }
+        public int getProgress() { return progress; }
+        public String getMessage() { return message; }
+        public String getEngineType() { return engineType; }
+        public long getComputeCount() { return computeCount; }
+        public long getStorageCount() { return storageCount; }
+        public long getSubmittedAt() { return submittedAt; }
+        public long getStartedAt() { return startedAt; }
+        public long getFinishedAt() { return finishedAt; }
+    }
+
+    void onStart(@Observes StartupEvent ev) {
+        Gauge.builder("etl.job.queue.depth", pendingByKey, Map::size)
+                .description("等待执行的 ETL 任务数")
+                .register(registry);
+        Gauge.builder("etl.job.running", running, AtomicInteger::get)
+                .description("正在执行的 ETL 任务数")
+                .register(registry);
+    }
+
+    /**
+     * 登记 ETL 任务；同一 (源表, 批次) 已有等待执行的任务时直接返回该任务
+     *
+     * @throws IllegalStateException 等待执行的任务数已达上限
+     */
+    public EtlJob submit(String tableName, String opTime) {
+        if (tableName == null || tableName.isBlank() || opTime == null || opTime.isBlank()) {
+            throw new IllegalArgumentException("tableName 与 opTime 不能为空");
+        }
+        purgeFinishedJobs();
+
+        String normalizedOpTime = opTime.replace("-", "");
+        String key = tableName + "@" + normalizedOpTime;
+        EtlJob pending = pendingByKey.get(key);
+        if (pending != null) {
+            return deduplicated(pending);
+        }
+        if (pendingByKey.size() >= queueCapacity) {
+            throw new IllegalStateException("ETL 任务队列已满 (" + queueCapacity + ")");
+        }
+
+        // 数据源在登记时解析 (元数据查询)，避免在 compute 中持有 map 锁
+        String dsName = resolveDataSource(tableName);
+        EtlJob candidate = new EtlJob(UUID.randomUUID().toString(), tableName, normalizedOpTime, dsName);
+        EtlJob job = pendingByKey.computeIfAbsent(key, k -> candidate);
+        if (job != candidate) {
+            return deduplicated(job);
+        }
+        jobs.put(job.jobId, job);
+        vThreadExecutor.submit(() -> runQueued(key, job));
+        log.info("登记ETL任务 {}: {} / {} (数据源 {})", job.jobId, tableName, normalizedOpTime, dsName);
+        return job;
+    }
+
+    public Optional<EtlJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    /**
+     * 查询任务列表 (按登记时间倒序)，state 为空时返回全部
+     */
+    public List<EtlJob> listJobs(JobState state) {
+        return jobs.values().stream()
+                .filter(job -> state == null || job.state == state)
+                .sorted(Comparator.comparingLong(EtlJob::getSubmittedAt).reversed())
+                .collect(Collectors.toList());
+    }
+
+    private EtlJob deduplicated(EtlJob job) {
+        Counter.builder("etl.job.deduplicated")
+                .description("被合并到已有等待任务的重复通知数")
+                .register(registry)
+                .increment();
+        log.info("ETL任务 {} 尚未执行，合并重复通知: {} / {}", job.jobId, job.tableName, job.opTime);
+        return job;
+    }
+
+    private String resolveDataSource(String tableName) {
+        try {
+            KpiModel modelDef = metadataRepository.getMetricsModelDef(tableName);
+            if (modelDef != null && modelDef.modelDsName() != null) {
+                return modelDef.modelDsName();
+            }
+        } catch (Exception e) {
+            log.warn("解析源表 {} 的取数数据源失败: {}", tableName, e.getMessage());
+        }
+        return "unknown";
+    }
+
+    /**
+     * 排队等待名额后执行：先取数据源名额再取全局名额，避免等待某个繁忙数据源时占用全局名额
+     */
+    private void runQueued(String key, EtlJob job) {
+        Semaphore dsPermits = dataSourcePermits.computeIfAbsent(job.dsName,
+                k -> new Semaphore(Math.max(1, perDataSourceConcurrency), true));
+        Semaphore globalPermits = getWorkerPermits();
+        try {
+            dsPermits.acquire();
+            try {
+                globalPermits.acquire();
+                try {
+                    // 出队与状态切换原子完成：此后的重复通知会登记新任务
+                    pendingByKey.compute(key, (k, pending) -> {
+                        job.state = JobState.RUNNING;
+                        job.startedAt = System.currentTimeMillis();
+                        return pending == job ? null : pending;
+                    });
+                    Timer.builder("etl.job.wait")
+                            .description("ETL 任务排队等待时间")
+                            .register(registry)
+                            .record(job.startedAt - job.submittedAt, TimeUnit.MILLISECONDS);
+                    running.incrementAndGet();
+                    try {
+                        execute(job);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                } finally {
+                    globalPermits.release();
+                }
+            } finally {
+                dsPermits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pendingByKey.remove(key, job);
+            job.finish(JobState.ERROR, "任务被中断");
+        }
+    }
+
+    private Semaphore getWorkerPermits() {
+        Semaphore permits = workerPermits;
+        if (permits == null) {
+            synchronized (this) {
+                if (workerPermits == null) {
+                    workerPermits = new Semaphore(Math.max(1, workers), true);
+                }
+                permits = workerPermits;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * 执行任务：计算 → 存储 → 通知订阅者
+     */
+    void execute(EtlJob job) {
+        long start = System.nanoTime();
+        try {
+            // 1. 计算派生指标：SQLite 引擎流式写入宽表分区文件，MySQL 引擎返回纵表记录
+            job.progress("COMPUTE", 10);
+            String engineType = metricsConfig.getCurrentEngine();
+            job.engineType = engineType;
+            KpiComputeService.ComputeResult computeResult = metricsConfig.isSQLiteEnabled()
+                    ? kpiComputeService.computeExtendedMetricsToSQLite(job.tableName, job.opTime)
+                    : kpiComputeService.computeExtendedMetrics(job.tableName, job.opTime);
+
+            if (!computeResult.success()) {
+                log.error("指标计算失败：{}", computeResult.message());
+                job.finish(JobState.ERROR, computeResult.message());
+                return;
+            }
+            job.computeCount = computeResult.computedCount();
+            log.info("指标计算成功，生成 {} 条数据", computeResult.computedCount());
+
+            // 2. 存储指标数据
+            job.progress("STORAGE", 60);
+            KpiStorageService.StorageResult storageResult = kpiStorageService.storageMetrics(computeResult, engineType);
+
+            if (!storageResult.success()) {
+                log.error("指标存储失败：{}", storageResult.message());
+                job.finish(JobState.ERROR, storageResult.message());
+                return;
+            }
+            job.storageCount = storageResult.storedCount();
+            log.info("指标存储成功，存储 {} 条记录", storageResult.storedCount());
+
+            // 3. 通知订阅者：发布的分区失效本地副本，受影响的订阅重新计算并推送差异
+            job.progress("PUBLISH", 90);
+            subscriptionService.publish(publishedPartitions(computeResult));
+
+            job.finish(JobState.SUCCESS, "指标计算与存储成功");
+            log.info("ETL任务 {} 完成", job.jobId);
+        } catch (Exception e) {
+            log.error("ETL任务 {} 执行异常", job.jobId, e);
+            job.finish(JobState.ERROR, "发生异常：" + e.getMessage());
+        } finally {
+            Timer.builder("etl.job.duration")
+                    .description("ETL 任务执行耗时")
+                    .tag("status", job.state.name().toLowerCase())
+                    .register(registry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Set<PhysicalTableReq> publishedPartitions(KpiComputeService.ComputeResult computeResult) {
+        if (computeResult.partitionFile() != null) {
+            KpiComputeService.ModelPartitionFile partition = computeResult.partitionFile();
+            return partition.kpiIds().stream()
+                    .map(kpiId -> new PhysicalTableReq(kpiId, partition.opTime(), partition.compDimCode(), partition.modelId()))
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+        }
+        return computeResult.data().stream()
+                .map(r -> new PhysicalTableReq(r.kpiId(), r.opTime(), r.compDimCode()))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    private void purgeFinishedJobs() {
+        long expireBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(retentionMinutes);
+        jobs.values().removeIf(job -> job.finishedAt > 0 && job.finishedAt < expireBefore);
+    }
+
+    @Shutdown
+    void shutdown() {
+        vThreadExecutor.shutdownNow();
+    }
+}
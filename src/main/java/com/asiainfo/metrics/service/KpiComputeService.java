@@ -1,20 +1,31 @@
 package com.asiainfo.metrics.service;
 
+import com.asiainfo.metrics.config.MetricsConfig;
 import com.asiainfo.metrics.model.KpiRowMaper;
 import com.asiainfo.metrics.model.db.KpiDefinition;
 import com.asiainfo.metrics.model.db.KpiModel;
 import com.asiainfo.metrics.repository.KpiDataSourceRepository;
 import com.asiainfo.metrics.repository.KpiMetadataRepository;
+import com.asiainfo.metrics.util.JdbcStreaming;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -37,8 +48,15 @@ public class KpiComputeService {
     @Inject
     KpiDataSourceRepository kpiDataSourceRepository;
 
+    @Inject
+    SQLiteFileManager sqliteFileManager;
+
+    @Inject
+    MetricsConfig metricsConfig;
+
     /**
-     * 计算指定批次的所有派生指标
+     * 计算指定批次的所有派生指标 (MySQL 引擎，返回纵表记录)
+     * 横表结果转换为纵表后即不再引用，存储期间不与纵表记录同时驻留内存。
      *
      * @param tableName 源表名称
      * @param opTime    批次时间
@@ -46,42 +64,16 @@ public class KpiComputeService {
      */
     public ComputeResult computeExtendedMetrics(String tableName, String opTime) {
         try {
-            log.info("开始计算派生指标，源表：{}，批次：{}", tableName, opTime);
-            opTime = opTime.replace("-", "");
-            String realTableName = tableName;
-            String regex = "(?i)(yyyymmdd|yyyymm|yyyy)";
-
-            Pattern pattern = Pattern.compile(regex);
-            Matcher matcher = pattern.matcher(tableName);
-            if (matcher.find()) {
-                String result = matcher.replaceAll(opTime);
-                log.info("源表是模板表:{}, 替换为实体表:{}", tableName, result);
-                realTableName = result;
+            ComputePlan plan = planCompute(tableName, opTime);
+            if (plan.error() != null) {
+                return ComputeResult.error(plan.error());
             }
-
-            // 1. 获取源表对应的取数模型
-            KpiModel modelDef = metadataRepository.getMetricsModelDef(tableName);
-            if (modelDef == null) {
-                log.error("未找到源表 {} 的取数模型", tableName);
-                return ComputeResult.error("未找到取数模型: " + tableName);
-            }
-
-            // 2. 获取该批次需要计算的所有派生指标
-//            String compDimCode = metadataRepository.getCompDimCodeByTableName(tableName);
-            List<KpiDefinition> extendedKpis = metadataRepository.getExtendedKpisByModelId(modelDef.modelId());
-            if (extendedKpis.isEmpty()) {
-                log.warn("未找到需要计算的派生指标");
-                return ComputeResult.error("未找到需要计算的派生指标");
-            }
-
-            log.info("找到 {} 个需要计算的派生指标", extendedKpis.size());
-
-            // 3. 拼接取数SQL
-            String computeSql = buildComputeSql(modelDef, extendedKpis, opTime, tableName, realTableName);
-            log.info("计算SQL：\n{}", computeSql);
+            KpiModel modelDef = plan.modelDef();
+            List<KpiDefinition> extendedKpis = plan.kpis();
+            opTime = plan.opTime();
 
             // 4. 执行计算
-            List<Map<String, Object>> results = executeComputeSql(modelDef.modelDsName(), computeSql);
+            List<Map<String, Object>> results = executeComputeSql(modelDef.modelDsName(), plan.sql());
 
             if (results.isEmpty()) {
                 log.warn("计算结果为空");
@@ -103,6 +95,209 @@ public class KpiComputeService {
         }
     }
 
+    /**
+     * 计算指定批次的所有派生指标，结果直接流式写入本地宽表分区文件 (SQLite 引擎)
+     * 源结果集按 fetchSize 分批读取、逐行写入，不在内存中保留结果，内存占用与源数据量无关。
+     * 返回的 partitionFile 由 {@link KpiStorageService#storageMetrics(ComputeResult, String)} 上传并登记。
+     *
+     * @param tableName 源表名称
+     * @param opTime    批次时间
+     * @return 计算结果 (data 为空列表)
+     */
+    public ComputeResult computeExtendedMetricsToSQLite(String tableName, String opTime) {
+        String localPath = null;
+        try {
+            ComputePlan plan = planCompute(tableName, opTime);
+            if (plan.error() != null) {
+                return ComputeResult.error(plan.error());
+            }
+            KpiModel modelDef = plan.modelDef();
+            opTime = plan.opTime();
+            List<String> kpiIds = plan.kpis().stream().map(KpiDefinition::kpiId).toList();
+            List<String> dimFieldNames = List.of(getDimFieldsFromCompDimCode(modelDef.compDimCode()).split("\\s*,\\s*"));
+
+            localPath = sqliteFileManager.createModelDBFile(modelDef.modelId(), opTime, modelDef.compDimCode());
+            String sqliteTableName = sqliteFileManager.getSQLiteModelTableName(modelDef.modelId(), opTime, modelDef.compDimCode());
+
+            // 4. 执行计算，边读边写；配置了拆分维度时各分片并发取数，分别写入分片文件后合并
+            long rows;
+            List<String> sliceSqls = buildSliceSqls(plan, dimFieldNames);
+            if (sliceSqls.size() == 1) {
+                rows = streamSlice(modelDef.modelDsName(), plan.sql(), localPath, sqliteTableName, dimFieldNames, kpiIds);
+            } else {
+                rows = streamSlices(modelDef.modelDsName(), sliceSqls, localPath, sqliteTableName, dimFieldNames, kpiIds);
+            }
+
+            if (rows == 0) {
+                log.warn("计算结果为空");
+                Files.deleteIfExists(Paths.get(localPath));
+                return ComputeResult.error("计算结果为空");
+            }
+
+            log.info("计算完成，{} 行 × {} 个指标写入宽表分区: {}", rows, kpiIds.size(), localPath);
+            return ComputeResult.success(new ModelPartitionFile(modelDef.modelId(), opTime, modelDef.compDimCode(),
+                    kpiIds, localPath, rows));
+
+        } catch (Exception e) {
+            log.error("计算派生指标失败", e);
+            if (localPath != null) {
+                try {
+                    Files.deleteIfExists(Paths.get(localPath));
+                } catch (IOException ex) {
+                    log.warn("清理本地SQLite文件失败: {}", localPath, ex);
+                }
+            }
+            return ComputeResult.error("计算失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 执行一条取数SQL并流式写入宽表分区文件，返回写入行数
+     */
+    private long streamSlice(String dsName, String sql, String localPath, String sqliteTableName,
+                             List<String> dimFieldNames, List<String> kpiIds) throws Exception {
+        try (Connection conn = kpiDataSourceRepository.getConnection(dsName);
+             PreparedStatement stmt = JdbcStreaming.prepareStreamingStatement(conn, sql, metricsConfig.getComputeFetchSize());
+             ResultSet rs = stmt.executeQuery();
+             Connection sqliteConn = DriverManager.getConnection("jdbc:sqlite:" + localPath)) {
+            sqliteFileManager.createWideSQLiteTable(sqliteConn, sqliteTableName, dimFieldNames, kpiIds);
+            return sqliteFileManager.streamWideSQLiteData(sqliteConn, sqliteTableName, dimFieldNames, kpiIds, rs);
+        }
+    }
+
+    /**
+     * 分片并发取数：每个分片使用独立的源库连接，在虚拟线程上执行，同时执行的分片数受
+     * metrics.compute.split.parallelism 限制；各分片写入独立文件，全部完成后合并到 localPath
+     */
+    private long streamSlices(String dsName, List<String> sliceSqls, String localPath, String sqliteTableName,
+                              List<String> dimFieldNames, List<String> kpiIds) throws Exception {
+        Semaphore permits = new Semaphore(Math.max(1, metricsConfig.getComputeSplitParallelism()));
+        List<String> partPaths = new ArrayList<>();
+        for (int i = 0; i < sliceSqls.size(); i++) {
+            partPaths.add(localPath + ".part" + i);
+        }
+        try {
+            long rows = 0;
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<Long>> futures = new ArrayList<>();
+                for (int i = 0; i < sliceSqls.size(); i++) {
+                    String sql = sliceSqls.get(i);
+                    String partPath = partPaths.get(i);
+                    int slice = i;
+                    futures.add(executor.submit(() -> {
+                        permits.acquire();
+                        try {
+                            long start = System.currentTimeMillis();
+                            Files.deleteIfExists(Paths.get(partPath));
+                            long sliceRows = streamSlice(dsName, sql, partPath, sqliteTableName, dimFieldNames, kpiIds);
+                            log.info("分片 {}/{} 完成，{} 行，耗时 {} ms", slice + 1, sliceSqls.size(), sliceRows,
+                                    System.currentTimeMillis() - start);
+                            return sliceRows;
+                        } finally {
+                            permits.release();
+                        }
+                    }));
+                }
+                for (Future<Long> future : futures) {
+                    try {
+                        rows += future.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception cause ? cause : e;
+                    }
+                }
+            }
+
+            try (Connection sqliteConn = DriverManager.getConnection("jdbc:sqlite:" + localPath)) {
+                sqliteFileManager.createWideSQLiteTable(sqliteConn, sqliteTableName, dimFieldNames, kpiIds);
+                sqliteFileManager.mergeWideSQLiteFiles(sqliteConn, sqliteTableName, partPaths);
+            }
+            return rows;
+        } finally {
+            for (String partPath : partPaths) {
+                Files.deleteIfExists(Paths.get(partPath));
+            }
+        }
+    }
+
+    /**
+     * 按拆分维度生成分片取数SQL；未配置拆分维度或模型不含该维度时只有一条 (即 plan.sql())
+     * 拆分维度属于 GROUP BY 维度，各分片的分组互不重叠，分片结果直接合并即为完整结果。
+     */
+    private List<String> buildSliceSqls(ComputePlan plan, List<String> dimFieldNames) {
+        String splitDim = metricsConfig.getComputeSplitDim();
+        int buckets = metricsConfig.getComputeSplitBuckets();
+        if (splitDim == null || splitDim.isBlank() || buckets <= 1) {
+            return List.of(plan.sql());
+        }
+        if (dimFieldNames.stream().noneMatch(dim -> dim.equalsIgnoreCase(splitDim))) {
+            log.info("取数模型 {} 不含拆分维度 {}，不拆分", plan.modelDef().modelId(), splitDim);
+            return List.of(plan.sql());
+        }
+        List<String> sqls = new ArrayList<>();
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            sqls.add(buildComputeSql(plan.modelDef(), plan.kpis(), plan.opTime(), plan.tableName(),
+                    plan.realTableName(), new Slice(splitDim, bucket, buckets)));
+        }
+        log.info("取数SQL按维度 {} 拆分为 {} 个分片", splitDim, buckets);
+        return sqls;
+    }
+
+    /**
+     * 解析源表、取数模型与派生指标，拼接取数SQL
+     */
+    private ComputePlan planCompute(String tableName, String opTime) {
+        log.info("开始计算派生指标，源表：{}，批次：{}", tableName, opTime);
+        opTime = opTime.replace("-", "");
+        String realTableName = tableName;
+        String regex = "(?i)(yyyymmdd|yyyymm|yyyy)";
+
+        Pattern pattern = Pattern.compile(regex);
+        Matcher matcher = pattern.matcher(tableName);
+        if (matcher.find()) {
+            String result = matcher.replaceAll(opTime);
+            log.info("源表是模板表:{}, 替换为实体表:{}", tableName, result);
+            realTableName = result;
+        }
+
+        // 1. 获取源表对应的取数模型
+        KpiModel modelDef = metadataRepository.getMetricsModelDef(tableName);
+        if (modelDef == null) {
+            log.error("未找到源表 {} 的取数模型", tableName);
+            return ComputePlan.error("未找到取数模型: " + tableName);
+        }
+
+        // 2. 获取该批次需要计算的所有派生指标
+//            String compDimCode = metadataRepository.getCompDimCodeByTableName(tableName);
+        List<KpiDefinition> extendedKpis = metadataRepository.getExtendedKpisByModelId(modelDef.modelId());
+        if (extendedKpis.isEmpty()) {
+            log.warn("未找到需要计算的派生指标");
+            return ComputePlan.error("未找到需要计算的派生指标");
+        }
+
+        log.info("找到 {} 个需要计算的派生指标", extendedKpis.size());
+
+        // 3. 拼接取数SQL
+        String computeSql = buildComputeSql(modelDef, extendedKpis, opTime, tableName, realTableName, null);
+        log.info("计算SQL：\n{}", computeSql);
+        return new ComputePlan(modelDef, extendedKpis, opTime, tableName, realTableName, computeSql, null);
+    }
+
+    /**
+     * 取数计划：取数模型、派生指标、批次时间 (已去掉分隔符) 与取数SQL；error 非空表示无法计算
+     */
+    private record ComputePlan(KpiModel modelDef, List<KpiDefinition> kpis, String opTime, String tableName,
+                               String realTableName, String sql, String error) {
+        static ComputePlan error(String message) {
+            return new ComputePlan(null, null, null, null, null, null, message);
+        }
+    }
+
+    /**
+     * 取数分片：拆分维度、分片编号与分片数
+     */
+    private record Slice(String dim, int bucket, int buckets) {
+    }
+
     /**
      * 根据批次时间获取周期类型
      */
@@ -119,8 +314,11 @@ public class KpiComputeService {
 
     /**
      * 构建计算SQL
+     * slice 非空时只取该分片的数据：模型SQL含 ${slice_filter} 占位符时在占位处过滤 (由模型作者放在源表扫描的 WHERE 中)，
+     * 否则在外层派生表上过滤 (依赖源库把条件下推到子查询)；为空时占位符替换为 1=1
      */
-    private String buildComputeSql(KpiModel modelDef, List<KpiDefinition> kpis, String opTime, String tableName, String realTableName) {
+    private String buildComputeSql(KpiModel modelDef, List<KpiDefinition> kpis, String opTime, String tableName,
+                                   String realTableName, Slice slice) {
         // 拼接指标表达式
 
 //        for (KpiDefinition kpi : kpis) {
@@ -153,11 +351,28 @@ public class KpiComputeService {
         sql = sql.replace("${dimGroup}", dimFields);
         sql = sql.replace("${metrics_def}", metricsExpr.toString());
 
+        boolean inlineSlice = sql.contains("${slice_filter}");
+        sql = sql.replace("${slice_filter}", slice != null ? slicePredicate(slice, slice.dim()) : "1=1");
+
         finalSql.append(" from (").append(sql).append(") t \n");
+        if (slice != null && !inlineSlice) {
+            finalSql.append(" where ").append(slicePredicate(slice, "t." + slice.dim())).append(" \n");
+        }
         finalSql.append(" group by op_time, ").append(dimFields);
         return finalSql.toString();
     }
 
+    /**
+     * 分片过滤条件：分片编号表达式等于分片号，拆分维度为 NULL 的行归入 0 号分片
+     */
+    private String slicePredicate(Slice slice, String dimRef) {
+        String bucketExpr = metricsConfig.getComputeSplitBucketExpr()
+                .replace("${dim}", dimRef)
+                .replace("${buckets}", String.valueOf(slice.buckets()));
+        String predicate = "(" + bucketExpr + ") = " + slice.bucket();
+        return slice.bucket() == 0 ? "(" + predicate + " or " + dimRef + " is null)" : predicate;
+    }
+
     /**
      * 从组合维度编码获取维度字段列表
      * 从数据库动态获取，不再硬编码
@@ -232,16 +447,36 @@ public class KpiComputeService {
 
     /**
      * 计算结果
+     * data 为纵表格式 (每个指标一行，MySQL 引擎)，partitionFile 为流式写入的宽表分区文件 (SQLite 引擎)
      */
-    public record ComputeResult(boolean success, List<KpiDataRecord> data, String message) {
+    public record ComputeResult(boolean success, List<KpiDataRecord> data, String message,
+                                ModelPartitionFile partitionFile) {
 
         public static ComputeResult success(List<KpiDataRecord> data) {
-            return new ComputeResult(true, data, null);
+            return new ComputeResult(true, data, null, null);
+        }
+
+        public static ComputeResult success(ModelPartitionFile partitionFile) {
+            return new ComputeResult(true, List.of(), null, partitionFile);
         }
 
         public static ComputeResult error(String message) {
-            return new ComputeResult(false, null, message);
+            return new ComputeResult(false, null, message, null);
         }
+
+        /**
+         * 计算产出的数据量：纵表记录数，流式写入时为宽表行数
+         */
+        public long computedCount() {
+            return partitionFile != null ? partitionFile.rowCount() : data.size();
+        }
+    }
+
+    /**
+     * 流式计算写入的本地宽表分区文件 (尚未上传)
+     */
+    public record ModelPartitionFile(String modelId, String opTime, String compDimCode, List<String> kpiIds,
+                                     String localPath, long rowCount) {
     }
 
     /**
@@ -3,6 +3,7 @@ package com.asiainfo.metrics.service;
 import com.asiainfo.metrics.config.MetricsConfig;
 import com.asiainfo.metrics.repository.KpiMetadataRepository;
 import io.agroal.api.AgroalDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import org.slf4j.Logger;
@@ -10,8 +11,17 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -47,6 +57,19 @@ public class KpiStorageService {
     @Inject
     KpiMetadataRepository kpiMetadataRepository;
 
+    @Inject
+    MeterRegistry registry;
+
+    // MySQL 单条语句最多 65535 个占位参数
+    private static final int MAX_STATEMENT_PARAMS = 65535;
+    // 组合维度的维度字段列表缓存有效期
+    private static final long DIM_FIELDS_TTL_MS = 5 * 60 * 1000L;
+
+    private final Map<String, CachedDimFields> dimFieldsCache = new ConcurrentHashMap<>();
+
+    private record CachedDimFields(List<String> fieldNames, long loadedAt) {
+    }
+
     /**
      * 存储指标数据到数据库
      *
@@ -81,94 +104,177 @@ public class KpiStorageService {
         }
     }
 
+    /**
+     * 存储一次指标计算的结果
+     * 带宽表分区文件 (SQLite 引擎流式计算) 时上传并登记，查询端对模型的全部指标只下载、ATTACH 一次；
+     * 否则 (MySQL 引擎) 按纵表存储。
+     *
+     * @param computeResult 计算结果
+     * @param engineType 存储引擎类型：MYSQL 或 SQLITE
+     * @return 存储结果 (宽表分区时带 modelId)
+     */
+    public StorageResult storageMetrics(KpiComputeService.ComputeResult computeResult, String engineType) {
+        if (computeResult.partitionFile() != null) {
+            try {
+                return storageToSQLite(computeResult.partitionFile());
+            } catch (Exception e) {
+                log.error("SQLite宽表存储失败", e);
+                return StorageResult.error("SQLite宽表存储失败: " + e.getMessage());
+            }
+        }
+        return storageMetrics(computeResult.data(), engineType);
+    }
+
     /**
      * 存储到MySQL数据库
+     * 按数据表分组，各表在虚拟线程上并发写入 (每张表一个 metadb 连接)，同时写入的表数受 metrics.storage.mysql.parallelism 限制
      */
-    private StorageResult storageToMySQL(List<KpiComputeService.KpiDataRecord> records) throws SQLException {
+    private StorageResult storageToMySQL(List<KpiComputeService.KpiDataRecord> records) throws Exception {
         // 按数据表分组
         Map<String, List<KpiComputeService.KpiDataRecord>> groupedByTable = records.stream()
                 .collect(java.util.stream.Collectors.groupingBy(record ->
                         "kpi_" + getCycleType(record.opTime()).toLowerCase() + "_" + record.compDimCode()));
 
-        int totalStored = 0;
-        StringBuilder resultMsg = new StringBuilder();
-
-        for (Map.Entry<String, List<KpiComputeService.KpiDataRecord>> entry : groupedByTable.entrySet()) {
-            String tableName = entry.getKey();
-            List<KpiComputeService.KpiDataRecord> tableRecords = entry.getValue();
-
-            log.info("存储数据到表：{}，记录数：{}", tableName, tableRecords.size());
+        Semaphore permits = new Semaphore(Math.max(1, metricsConfig.getMySQLWriteParallelism()));
+        Map<String, Future<Integer>> futures = new LinkedHashMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Map.Entry<String, List<KpiComputeService.KpiDataRecord>> entry : groupedByTable.entrySet()) {
+                String tableName = entry.getKey();
+                List<KpiComputeService.KpiDataRecord> tableRecords = entry.getValue();
+                futures.put(tableName, executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        log.info("存储数据到表：{}，记录数：{}", tableName, tableRecords.size());
+                        return insertBatchToMySQL(tableName, tableRecords);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
 
-            int stored = insertBatchToMySQL(tableName, tableRecords);
-            totalStored += stored;
+            int totalStored = 0;
+            StringBuilder resultMsg = new StringBuilder();
+            for (Map.Entry<String, Future<Integer>> entry : futures.entrySet()) {
+                int stored;
+                try {
+                    stored = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception cause ? cause : e;
+                }
+                totalStored += stored;
 
-            if (resultMsg.length() > 0) {
-                resultMsg.append("; ");
+                if (resultMsg.length() > 0) {
+                    resultMsg.append("; ");
+                }
+                resultMsg.append(entry.getKey()).append(": ").append(stored);
             }
-            resultMsg.append(tableName).append(": ").append(stored);
-        }
 
-        log.info("MySQL存储完成，共存储 {} 条记录", totalStored);
-        return StorageResult.success("MySQL存储成功: " + resultMsg, totalStored);
+            log.info("MySQL存储完成，共存储 {} 条记录", totalStored);
+            return StorageResult.success("MySQL存储成功: " + resultMsg, totalStored);
+        }
     }
 
     /**
      * 批量插入MySQL数据
+     * 按块生成多行 INSERT ... ON DUPLICATE KEY UPDATE，每块一次往返、提交一次；
+     * 重跑同一批次时按主键覆盖 kpi_val，结果与首次写入一致
      */
-    private int insertBatchToMySQL(String tableName, List<KpiComputeService.KpiDataRecord> records) throws SQLException {
+    int insertBatchToMySQL(String tableName, List<KpiComputeService.KpiDataRecord> records) throws SQLException {
         if (records.isEmpty()) {
             return 0;
         }
 
-        // 构建INSERT SQL
-        String sql = buildInsertSqlForMySQL(tableName, records.get(0));
-        log.info("MySQL插入SQL：{}", sql);
-
-        try (Connection conn = metadbDataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-
-            // 设置批处理数据
-            for (KpiComputeService.KpiDataRecord record : records) {
-                setStatementParameters(stmt, record, 1);
-                stmt.addBatch();
+        // 同一张表的记录组合维度相同，维度字段只取一次
+        List<String> dimFieldNames = getDimFieldNames(records.get(0).compDimCode());
+        int columnCount = 3 + dimFieldNames.size();
+        int chunkRows = Math.max(1, Math.min(metricsConfig.getMySQLWriteChunkRows(), MAX_STATEMENT_PARAMS / columnCount));
+
+        long startNanos = System.nanoTime();
+        try (Connection conn = metadbDataSource.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement fullChunk = null;
+                try {
+                    for (int from = 0; from < records.size(); from += chunkRows) {
+                        List<KpiComputeService.KpiDataRecord> chunk = records.subList(from, Math.min(from + chunkRows, records.size()));
+                        if (chunk.size() == chunkRows) {
+                            // 整块语句只准备一次，重复使用
+                            if (fullChunk == null) {
+                                fullChunk = conn.prepareStatement(buildInsertSqlForMySQL(tableName, dimFieldNames, chunkRows));
+                            }
+                            executeChunk(fullChunk, chunk, dimFieldNames);
+                        } else {
+                            try (PreparedStatement tail = conn.prepareStatement(
+                                    buildInsertSqlForMySQL(tableName, dimFieldNames, chunk.size()))) {
+                                executeChunk(tail, chunk, dimFieldNames);
+                            }
+                        }
+                        conn.commit();
+                    }
+                } finally {
+                    if (fullChunk != null) {
+                        fullChunk.close();
+                    }
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
             }
+        }
 
-            // 执行批处理：若失败则抛出SQLException，若成功则所有记录都已处理
-            stmt.executeBatch();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        registry.timer("kpi.storage.mysql.duration", "table", tableName).record(elapsedNanos, TimeUnit.NANOSECONDS);
+        registry.counter("kpi.storage.mysql.rows", "table", tableName).increment(records.size());
+        log.info("MySQL插入完成，表：{}，记录数：{}，耗时 {} ms，{} 行/秒", tableName, records.size(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), (long) (records.size() * 1e9 / Math.max(1, elapsedNanos)));
+        return records.size();
+    }
 
-            log.debug("MySQL插入完成，处理记录数：{}", records.size());
-            return records.size(); // 直接返回输入列表大小（已确认所有记录处理成功）
+    private void executeChunk(PreparedStatement stmt, List<KpiComputeService.KpiDataRecord> chunk,
+                              List<String> dimFieldNames) throws SQLException {
+        int idx = 1;
+        for (KpiComputeService.KpiDataRecord record : chunk) {
+            idx = setStatementParameters(stmt, record, dimFieldNames, idx);
         }
+        stmt.executeUpdate();
     }
 
     /**
-     * 构建MySQL INSERT SQL
+     * 构建MySQL多行 INSERT SQL
      * 只存储当前值kpi_val，last_cycle和last_year在查询时计算
      */
-    private String buildInsertSqlForMySQL(String tableName, KpiComputeService.KpiDataRecord record) {
-        // 获取真正的维度字段名列表
-        List<String> dimFieldNames = getDimFieldNames(record.compDimCode());
-
+    static String buildInsertSqlForMySQL(String tableName, List<String> dimFieldNames, int rows) {
         StringBuilder columns = new StringBuilder("kpi_id, op_time, kpi_val");
-        StringBuilder placeholders = new StringBuilder("?, ?, ?");
+        StringBuilder placeholders = new StringBuilder("(?, ?, ?");
 
         // 只添加真正的维度字段
         for (String dimFieldName : dimFieldNames) {
             columns.append(", ").append(dimFieldName);
             placeholders.append(", ?");
         }
+        placeholders.append(')');
 
         // 注意：last_year_val 和 last_cycle_val 不在这里设置
         // 它们会在查询时通过时间点过滤动态计算
-
-        return String.format("INSERT INTO %s (%s) VALUES (%s) ON DUPLICATE KEY UPDATE kpi_val = VALUES(kpi_val)",
-                tableName, columns.toString(), placeholders.toString());
+        StringBuilder sql = new StringBuilder(64 + rows * (placeholders.length() + 2))
+                .append("INSERT INTO ").append(tableName).append(" (").append(columns).append(") VALUES ");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(placeholders);
+        }
+        return sql.append(" ON DUPLICATE KEY UPDATE kpi_val = VALUES(kpi_val)").toString();
     }
 
     /**
-     * 设置PreparedStatement参数
+     * 设置PreparedStatement参数，返回下一条记录的起始参数位置
      */
-    private void setStatementParameters(PreparedStatement stmt, KpiComputeService.KpiDataRecord record, int startIdx) throws SQLException {
+    private int setStatementParameters(PreparedStatement stmt, KpiComputeService.KpiDataRecord record,
+                                       List<String> dimFieldNames, int startIdx) throws SQLException {
         int idx = startIdx;
 
         stmt.setString(idx++, record.kpiId());
@@ -178,23 +284,29 @@ public class KpiStorageService {
         // 设置维度字段
         // 注意：不能直接遍历 dimValues，因为它可能包含派生指标编码等非维度字段
         // 需要根据 compDimCode 获取真正的维度字段列表
-        List<String> dimFieldNames = getDimFieldNames(record.compDimCode());
-
         Map<String, Object> dimValues = record.dimValues();
         for (String dimFieldName : dimFieldNames) {
             Object dimValue = dimValues.get(dimFieldName);
             stmt.setObject(idx++, dimValue);
         }
+        return idx;
     }
 
     /**
      * 根据组合维度编码获取维度字段名列表
-     * 只返回真正的维度字段，不包含派生指标编码
+     * 只返回真正的维度字段，不包含派生指标编码；结果按 compDimCode 缓存 DIM_FIELDS_TTL_MS
      */
     public List<String> getDimFieldNames(String compDimCode) {
+        long now = System.currentTimeMillis();
+        CachedDimFields cached = dimFieldsCache.get(compDimCode);
+        if (cached != null && now - cached.loadedAt() < DIM_FIELDS_TTL_MS) {
+            return cached.fieldNames();
+        }
         String dimFieldsStr = kpiMetadataRepository.getDimFieldsStringByCompDim(compDimCode);
         // 分割字符串并转换为列表
-        return List.of(dimFieldsStr.split("\\s*,\\s*"));
+        List<String> fieldNames = List.of(dimFieldsStr.split("\\s*,\\s*"));
+        dimFieldsCache.put(compDimCode, new CachedDimFields(fieldNames, now));
+        return fieldNames;
     }
 
     /**
@@ -211,83 +323,137 @@ public class KpiStorageService {
             Map<String, List<KpiComputeService.KpiDataRecord>> kpiGroup = records.stream()
                 .collect(Collectors.groupingBy(KpiComputeService.KpiDataRecord::kpiId));
 
+            // 为每个KPI创建单独的SQLite文件：各文件的建库、压缩、上传互不依赖，在虚拟线程上并发执行
             int totalStored = 0;
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<Integer>> futures = new ArrayList<>();
+                for (List<KpiComputeService.KpiDataRecord> kpiRecords : kpiGroup.values()) {
+                    futures.add(executor.submit(() -> storageKpiFile(kpiRecords)));
+                }
+                for (Future<Integer> future : futures) {
+                    try {
+                        totalStored += future.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception cause ? cause : e;
+                    }
+                }
+            }
 
-            // 为每个KPI创建单独的SQLite文件
-            for (Map.Entry<String, List<KpiComputeService.KpiDataRecord>> entry : kpiGroup.entrySet()) {
-                String kpiId = entry.getKey();
-                List<KpiComputeService.KpiDataRecord> kpiRecords = entry.getValue();
+            log.info("SQLite存储完成，共存储 {} 条记录", totalStored);
+            return StorageResult.success("SQLite文件生成并上传成功", totalStored);
 
-                // 获取第一个记录的元数据（所有记录的kpiId, opTime, compDimCode应该相同）
-                KpiComputeService.KpiDataRecord firstRecord = kpiRecords.get(0);
-                String opTime = firstRecord.opTime();
-                String compDimCode = firstRecord.compDimCode();
+        } catch (Exception e) {
+            log.error("SQLite存储失败", e);
+            return StorageResult.error("SQLite存储失败: " + e.getMessage());
+        }
+    }
 
-                // 构建文件路径
-                String localPath = sqliteFileManager.createDBFile(kpiId, opTime, compDimCode);
-                String tableName = sqliteFileManager.getSQLiteTableName(kpiId, opTime, compDimCode);
+    /**
+     * 生成单个指标的SQLite文件并上传，返回存储的记录数
+     */
+    private int storageKpiFile(List<KpiComputeService.KpiDataRecord> kpiRecords) throws Exception {
+        // 获取第一个记录的元数据（所有记录的kpiId, opTime, compDimCode应该相同）
+        KpiComputeService.KpiDataRecord firstRecord = kpiRecords.get(0);
+        String kpiId = firstRecord.kpiId();
+        String opTime = firstRecord.opTime();
+        String compDimCode = firstRecord.compDimCode();
 
-                log.info("创建SQLite文件: {}, 表名: {}", localPath, tableName);
+        // 构建文件路径
+        String localPath = sqliteFileManager.createDBFile(kpiId, opTime, compDimCode);
+        String tableName = sqliteFileManager.getSQLiteTableName(kpiId, opTime, compDimCode);
 
-                // 创建SQLite数据库文件并插入数据（使用SQLiteFileManager）
-                try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + localPath)) {
-                    // 建表
-                    sqliteFileManager.createSQLiteTable(conn, tableName, kpiRecords);
+        log.info("创建SQLite文件: {}, 表名: {}", localPath, tableName);
 
-                    // 插入数据
-                    sqliteFileManager.insertSQLiteData(conn, tableName, kpiRecords);
+        try {
+            // 创建SQLite数据库文件并插入数据（使用SQLiteFileManager）
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + localPath)) {
+                // 建表
+                sqliteFileManager.createSQLiteTable(conn, tableName, kpiRecords);
 
-                    totalStored += kpiRecords.size();
-                }
+                // 插入数据
+                sqliteFileManager.insertSQLiteData(conn, tableName, kpiRecords);
+            }
 
-                // 上传到MinIO（使用SQLiteFileManager的uploadResultDB，添加重试机制）
-                int maxRetries = 3;
-                int retryCount = 0;
-                boolean uploadSuccess = false;
-                Exception lastException = null;
+            // 上传到MinIO（使用SQLiteFileManager的uploadResultDB，添加重试机制）
+            uploadWithRetry(() -> sqliteFileManager.uploadResultDB(localPath, kpiId, opTime, compDimCode));
+        } finally {
+            // 清理本地SQLite文件（压缩文件在uploadResultDB中已自动清理）
+            try {
+                java.nio.file.Files.deleteIfExists(java.nio.file.Paths.get(localPath));
+            } catch (IOException e) {
+                log.warn("清理本地SQLite文件失败: {}", localPath, e);
+            }
+        }
+        return kpiRecords.size();
+    }
 
-                while (retryCount < maxRetries && !uploadSuccess) {
-                    try {
-                        sqliteFileManager.uploadResultDB(localPath, kpiId, opTime, compDimCode);
-                        uploadSuccess = true;
-                        log.info("SQLite文件已上传到MinIO");
-                    } catch (Exception e) {
-                        retryCount++;
-                        lastException = e;
-                        if (retryCount < maxRetries) {
-                            long waitTime = retryCount * 1000L; // 1s, 2s, 3s
-                            log.warn("上传到MinIO失败，第{}次重试，等待{}ms", retryCount, waitTime, e);
-                            try {
-                                Thread.sleep(waitTime);
-                            } catch (InterruptedException ie) {
-                                Thread.currentThread().interrupt();
-                                throw new RuntimeException("上传被中断", ie);
-                            }
-                        } else {
-                            log.error("上传到MinIO失败，已重试{}次", maxRetries, e);
-                        }
-                    }
-                }
+    /**
+     * 上传已写好的宽表分区文件并在元数据中登记，完成后删除本地文件
+     * 一个 (modelId, opTime, compDimCode) 一个文件，每个指标一列，查询端据此把指标映射到 (分区文件, 列)
+     */
+    private StorageResult storageToSQLite(KpiComputeService.ModelPartitionFile partitionFile) {
+        String modelId = partitionFile.modelId();
+        String opTime = partitionFile.opTime();
+        String compDimCode = partitionFile.compDimCode();
+        String localPath = partitionFile.localPath();
+        try {
+            uploadWithRetry(() -> sqliteFileManager.uploadModelResultDB(localPath, modelId, opTime, compDimCode));
+            kpiMetadataRepository.registerModelPartition(modelId, opTime, compDimCode, partitionFile.kpiIds());
+        } finally {
+            deleteLocalFile(localPath);
+        }
 
-                if (!uploadSuccess) {
-                    throw new RuntimeException("上传MinIO失败，已重试" + maxRetries + "次", lastException);
-                }
+        long stored = partitionFile.rowCount();
+        log.info("SQLite宽表存储完成，模型 {} 共 {} 行 × {} 个指标", modelId, stored, partitionFile.kpiIds().size());
+        return StorageResult.success("SQLite宽表分区生成并上传成功", (int) stored, modelId);
+    }
 
-                // 清理本地SQLite文件（压缩文件在uploadResultDB中已自动清理）
-                try {
-                    java.nio.file.Files.deleteIfExists(java.nio.file.Paths.get(localPath));
-                } catch (IOException e) {
-                    log.warn("清理本地SQLite文件失败: {}", localPath, e);
-                }
-            }
+    private void deleteLocalFile(String localPath) {
+        try {
+            java.nio.file.Files.deleteIfExists(java.nio.file.Paths.get(localPath));
+        } catch (IOException e) {
+            log.warn("清理本地SQLite文件失败: {}", localPath, e);
+        }
+    }
 
-            log.info("SQLite存储完成，共存储 {} 条记录", totalStored);
-            return StorageResult.success("SQLite文件生成并上传成功", totalStored);
+    @FunctionalInterface
+    private interface UploadAction {
+        void upload() throws Exception;
+    }
 
-        } catch (Exception e) {
-            log.error("SQLite存储失败", e);
-            return StorageResult.error("SQLite存储失败: " + e.getMessage());
+    /**
+     * 上传到MinIO，失败时重试 (间隔 1s, 2s)
+     * 调用方在虚拟线程上执行，等待期间不占用平台线程
+     */
+    private void uploadWithRetry(UploadAction action) {
+        int maxRetries = 3;
+        int retryCount = 0;
+        Exception lastException = null;
+
+        while (retryCount < maxRetries) {
+            try {
+                action.upload();
+                log.info("SQLite文件已上传到MinIO");
+                return;
+            } catch (Exception e) {
+                retryCount++;
+                lastException = e;
+                if (retryCount < maxRetries) {
+                    long waitTime = retryCount * 1000L; // 1s, 2s, 3s
+                    log.warn("上传到MinIO失败，第{}次重试，等待{}ms", retryCount, waitTime, e);
+                    try {
+                        Thread.sleep(waitTime);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("上传被中断", ie);
+                    }
+                } else {
+                    log.error("上传到MinIO失败，已重试{}次", maxRetries, e);
+                }
+            }
         }
+
+        throw new RuntimeException("上传MinIO失败，已重试" + maxRetries + "次", lastException);
     }
 
     /**
@@ -307,14 +473,21 @@ public class KpiStorageService {
     /**
          * 存储结果
          */
-        public record StorageResult(boolean success, String message, int storedCount) {
+        public record StorageResult(boolean success, String message, int storedCount, String modelId) {
 
         public static StorageResult success(String message, int storedCount) {
-                return new StorageResult(true, message, storedCount);
+                return new StorageResult(true, message, storedCount, null);
+            }
+
+            /**
+             * 宽表分区存储成功，modelId 为分区所属的取数模型
+             */
+            public static StorageResult success(String message, int storedCount, String modelId) {
+                return new StorageResult(true, message, storedCount, modelId);
             }
 
             public static StorageResult error(String message) {
-                return new StorageResult(false, message, 0);
+                return new StorageResult(false, message, 0, null);
             }
         }
 }
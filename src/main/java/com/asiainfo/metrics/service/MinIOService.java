@@ -2,10 +2,13 @@ package com.asiainfo.metrics.service;
 
 import com.asiainfo.metrics.config.MinIOConfig;
 import io.minio.DownloadObjectArgs;
+import io.minio.ListObjectsArgs;
 import io.minio.MinioClient;
+import io.minio.Result;
 import io.minio.StatObjectArgs;
 import io.minio.UploadObjectArgs;
 import io.minio.errors.ErrorResponseException;
+import io.minio.messages.Item;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import org.slf4j.Logger;
@@ -15,12 +18,16 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 @ApplicationScoped
 public class MinIOService {
 
     private static final Logger log = LoggerFactory.getLogger(MinIOService.class);
+    // 分片上传的分片大小 (MinIO 要求不小于 5MB)，大文件按分片上传
+    private static final long MULTIPART_PART_SIZE = 16L * 1024 * 1024;
 
     // 简单的本地缓存，避免重复调用 OS 的 mkdirs
     private final ConcurrentHashMap<String, Boolean> dirCache = new ConcurrentHashMap<>();
@@ -37,7 +44,7 @@ public class MinIOService {
                     UploadObjectArgs.builder()
                             .bucket(minIOConfig.getBucketName())
                             .object(resultKey)
-                            .filename(localPath)
+                            .filename(localPath, MULTIPART_PART_SIZE)
                             .contentType("application/octet-stream")
                             .build()
             );
@@ -75,6 +82,29 @@ public class MinIOService {
         }
     }
 
+    /**
+     * 列出前缀下的全部对象 (递归) 及其 ETag，一次请求代替逐个 statObject
+     * ETag 随对象内容变化，可作为分区版本
+     */
+    public Map<String, String> listObjectVersions(String prefix) throws IOException {
+        try {
+            Map<String, String> versions = new HashMap<>();
+            for (Result<Item> result : minioClient.listObjects(
+                    ListObjectsArgs.builder()
+                            .bucket(minIOConfig.getBucketName())
+                            .prefix(prefix)
+                            .recursive(true)
+                            .build())) {
+                Item item = result.get();
+                versions.put(item.objectName(), item.etag());
+            }
+            return versions;
+        } catch (Exception e) {
+            log.error("列出MinIO对象失败 [{}]: {}", prefix, e.getMessage());
+            throw new IOException("列出MinIO对象失败: " + prefix, e);
+        }
+    }
+
     public void downloadObject(String s3Key, String localPath) throws IOException {
         try {
             ensureDirectoryExists(localPath);
@@ -1,27 +1,27 @@
 package com.asiainfo.metrics.service;
 
 import com.asiainfo.metrics.config.MetricsConfig;
+import com.asiainfo.metrics.util.BlockGzip;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * SQLite 文件管理器
@@ -41,6 +41,9 @@ public class SQLiteFileManager {
     public static final String STR_KPI = "kpi";
     public static final String STR_TARGET = "target";
     public static final String S3_FILE_NOT_EXISTS = "s3文件不存在";
+    // 流式写入宽表时每批提交的行数
+    private static final int STREAM_BATCH_SIZE = 5000;
+
     @Inject
     MinIOService minioService;
 
@@ -67,6 +70,17 @@ public class SQLiteFileManager {
         return localPath;
     }
 
+    /**
+     * 创建取数模型的宽表分区文件 (本地路径与 S3 Key 一致)
+     */
+    public String createModelDBFile(String modelId, String opTime, String compDimCode) throws IOException {
+        Path path = Paths.get(metricsConfig.getSQLiteStorageDir(), buildModelS3Key(modelId, opTime, compDimCode));
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(path);
+        Files.createFile(path);
+        return path.toString();
+    }
+
     /**
      *
      * @param s3Key {op_time}/{compDimCode}/{kpi_id}/{kpi_id}_{op_time}_{compDimCode}.db.gz ..
@@ -257,6 +271,137 @@ public class SQLiteFileManager {
         log.debug("插入数据成功: {} 条记录", records.size());
     }
 
+    /**
+     * 创建宽表分区表结构：维度列 + 每个指标一列 (REAL)，维度组合为主键
+     *
+     * @param conn 数据库连接
+     * @param tableName 表名
+     * @param dimFieldNames 维度字段
+     * @param kpiIds 指标编码 (列名)
+     * @throws SQLException SQL异常
+     */
+    public void createWideSQLiteTable(Connection conn, String tableName, List<String> dimFieldNames,
+                                      List<String> kpiIds) throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        sql.append("CREATE TABLE IF NOT EXISTS ").append(tableName).append(" (");
+        for (String dimField : dimFieldNames) {
+            sql.append(dimField).append(" TEXT, ");
+        }
+        for (String kpiId : kpiIds) {
+            sql.append(kpiId).append(" REAL, ");
+        }
+        sql.append("PRIMARY KEY (").append(String.join(", ", dimFieldNames)).append("))");
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql.toString());
+        }
+
+        log.debug("创建宽表成功: {}", tableName);
+    }
+
+    /**
+     * 将源结果集逐行写入宽表分区 (不在内存中保留结果)，每 {@value #STREAM_BATCH_SIZE} 行执行一次批量插入
+     * 结果集列按名称匹配 (忽略大小写)，缺少的维度或指标列写入 NULL
+     *
+     * @param conn 数据库连接
+     * @param tableName 表名
+     * @param dimFieldNames 维度字段
+     * @param kpiIds 指标编码 (列名)
+     * @param rs 源结果集 {op_time, 维度..., 指标...}
+     * @return 写入的行数
+     * @throws SQLException SQL异常
+     */
+    public long streamWideSQLiteData(Connection conn, String tableName, List<String> dimFieldNames,
+                                     List<String> kpiIds, ResultSet rs) throws SQLException {
+        List<String> columns = new ArrayList<>(dimFieldNames);
+        columns.addAll(kpiIds);
+        String insertSql = "INSERT OR REPLACE INTO " + tableName + " (" + String.join(", ", columns)
+                + ") VALUES (" + "?, ".repeat(columns.size() - 1) + "?)";
+
+        // 列下标只解析一次，逐行按下标读取
+        Map<String, Integer> labelIndex = new HashMap<>();
+        ResultSetMetaData metaData = rs.getMetaData();
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            labelIndex.putIfAbsent(metaData.getColumnLabel(i).toLowerCase(), i);
+        }
+        int[] sourceIndex = columns.stream()
+                .mapToInt(column -> labelIndex.getOrDefault(column.toLowerCase(), 0))
+                .toArray();
+        int dimCount = dimFieldNames.size();
+
+        // 本地临时文件，上传前不需要回滚日志
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = OFF");
+            stmt.execute("PRAGMA synchronous = OFF");
+        }
+
+        long count = 0;
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(insertSql)) {
+            while (rs.next()) {
+                for (int i = 0; i < sourceIndex.length; i++) {
+                    Object value = sourceIndex[i] > 0 ? rs.getObject(sourceIndex[i]) : null;
+                    if (i >= dimCount && value instanceof Number number) {
+                        pstmt.setDouble(i + 1, number.doubleValue());
+                    } else {
+                        pstmt.setString(i + 1, value != null ? value.toString() : null);
+                    }
+                }
+                pstmt.addBatch();
+                if (++count % STREAM_BATCH_SIZE == 0) {
+                    pstmt.executeBatch();
+                }
+            }
+            pstmt.executeBatch();
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+
+        log.debug("流式写入宽表数据成功: {} 行", count);
+        return count;
+    }
+
+    /**
+     * 将分片文件中的宽表合并到当前连接的同名表 (各分片维度组合互不重叠)
+     *
+     * @param conn 目标数据库连接 (表已创建)
+     * @param tableName 表名
+     * @param partPaths 分片文件路径
+     * @throws SQLException SQL异常
+     */
+    public void mergeWideSQLiteFiles(Connection conn, String tableName, List<String> partPaths) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = OFF");
+            stmt.execute("PRAGMA synchronous = OFF");
+            for (String partPath : partPaths) {
+                // ATTACH 不能在事务中执行，每个分片单独提交
+                stmt.execute("ATTACH DATABASE '" + partPath.replace("'", "''") + "' AS part");
+                try {
+                    stmt.execute("INSERT OR REPLACE INTO main." + tableName + " SELECT * FROM part." + tableName);
+                } finally {
+                    stmt.execute("DETACH DATABASE part");
+                }
+            }
+        }
+        log.debug("合并宽表分片成功: {} 个分片", partPaths.size());
+    }
+
+    /**
+     * 上传宽表分区文件
+     */
+    public void uploadModelResultDB(String localPath, String modelId, String opTime, String compDimCode) throws IOException {
+        String resultKey = buildModelS3Key(modelId, opTime, compDimCode);
+        String compressedPath = compressFile(localPath);
+        try {
+            minioService.uploadResult(compressedPath, resultKey);
+            log.info("上传宽表分区成功: {}", resultKey);
+        } finally {
+            Files.deleteIfExists(Paths.get(compressedPath));
+        }
+    }
+
     /**
      * 上传计算结果
      *
@@ -287,16 +432,8 @@ public class SQLiteFileManager {
     private String compressFile(String inputPath) throws IOException {
         String outputPath = inputPath + ".gz";
 
-        try (FileInputStream fis = new FileInputStream(inputPath);
-             GZIPOutputStream gzos = new GZIPOutputStream(
-                 Files.newOutputStream(Paths.get(outputPath)))) {
-
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                gzos.write(buffer, 0, bytesRead);
-            }
-        }
+        // 按块并发压缩，查询端可按块并发解压
+        BlockGzip.compress(Paths.get(inputPath), Paths.get(outputPath));
 
         log.debug("文件压缩完成: {} -> {}", inputPath, outputPath);
         return outputPath;
@@ -304,20 +441,12 @@ public class SQLiteFileManager {
 
     /**
      * 解压缩文件
+     * 分块格式按块并发解压，旧的单流 gzip 文件顺序解压
      */
     public String decompressFile(String compressedPath) throws IOException {
         String outputPath = compressedPath.replace(".gz", "");
 
-        try (GZIPInputStream gzis = new GZIPInputStream(
-                 Files.newInputStream(Paths.get(compressedPath)));
-             FileOutputStream fos = new FileOutputStream(outputPath)) {
-
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = gzis.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
-            }
-        }
+        BlockGzip.decompress(Paths.get(compressedPath), Paths.get(outputPath));
 
         log.debug("文件解压缩完成: {} -> {}", compressedPath, outputPath);
         return outputPath;
@@ -328,8 +457,18 @@ public class SQLiteFileManager {
      * 格式: {op_time}/{compDimCode}/{kpi_id}/{kpi_id}_{op_time}_{compDimCode}.db.gz
      */
     private String buildS3Key(String kpiId, String opTime, String compDimCode) {
-        String fileName = String.format("%s_%s_%s.db.gz", kpiId, opTime, compDimCode);
+        return buildTimePathKey(String.format("%s_%s_%s.db.gz", kpiId, opTime, compDimCode), opTime, compDimCode);
+    }
+
+    /**
+     * 宽表分区的S3存储键，文件名与表名一致，与查询端 StorageManager 的路径规则相同
+     * 格式: {yyyy}/{yyyyMM}/{op_time}/{compDimCode}/kpi_model_{modelId}_{op_time}_{compDimCode}.db.gz
+     */
+    private String buildModelS3Key(String modelId, String opTime, String compDimCode) {
+        return buildTimePathKey(getSQLiteModelTableName(modelId, opTime, compDimCode) + ".db.gz", opTime, compDimCode);
+    }
 
+    private String buildTimePathKey(String fileName, String opTime, String compDimCode) {
         String cleanStr = opTime.trim();
         List<String> pathParts = new ArrayList<>();
         String finalOpTime;
@@ -355,6 +494,13 @@ public class SQLiteFileManager {
         return String.format("%s_%s_%s_%s", STR_KPI, kpiId, opTime, compDimCode);
     }
 
+    /**
+     * kpi_model_M001_20251104_CD003
+     */
+    public String getSQLiteModelTableName(String modelId, String opTime, String compDimCode) {
+        return String.format("%s_model_%s_%s_%s", STR_KPI, modelId, opTime, compDimCode);
+    }
+
     /**
      * kpi_dim_CD003
      */
@@ -0,0 +1,381 @@
+package com.asiainfo.metrics.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * 分区文件分块压缩格式 (.db.gz)
+ * <p>
+ * 文件按固定大小分块，每块独立压缩为一个 gzip member，文件整体仍是标准的多 member gzip：
+ * <pre>
+ *   [索引 member] [块 0 member] [块 1 member] ...
+ * </pre>
+ * 索引 member 是一个空的 gzip member，块索引放在头部扩展字段 (FEXTRA，子字段 'K','B') 中：
+ * 版本 (1) | 块大小 (4) | 原文件大小 (8) | 块数 (4) | 各块压缩后长度 (4 × 块数)，均为小端。
+ * <ul>
+ *   <li>压缩：各块在压缩线程池上并发压缩，按顺序追加写入，最后回填索引</li>
+ *   <li>解压：按索引计算每块的压缩偏移与解压偏移，各块并发解压后按位置写入目标文件</li>
+ *   <li>兼容：没有块索引的旧单流 .db.gz 按顺序流式解压；新格式也能被 gzip / GZIPInputStream 顺序读取</li>
+ * </ul>
+ *
+ * @author QvQ
+ * @date 2025/11/20
+ */
+public final class BlockGzip {
+
+    /**
+     * 默认块大小 4MB
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final int IO_BUFFER_SIZE = 256 * 1024;
+    private static final int FORMAT_VERSION = 1;
+    private static final byte SUBFIELD_ID1 = 'K';
+    private static final byte SUBFIELD_ID2 = 'B';
+    private static final int FLG_FEXTRA = 0x04;
+    // 版本 + 块大小 + 原文件大小 + 块数
+    private static final int INDEX_FIXED_SIZE = 1 + 4 + 8 + 4;
+    // 扩展字段最长 65535 字节，扣除子字段头 (4) 与固定部分后可容纳的块数
+    private static final int MAX_BLOCKS = (0xFFFF - 4 - INDEX_FIXED_SIZE) / 4;
+    // gzip 头 (10) 与尾 (CRC32 + ISIZE)
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    // 空 deflate 流
+    private static final byte[] EMPTY_DEFLATE = {0x03, 0x00};
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private BlockGzip() {
+    }
+
+    /**
+     * 压缩线程池：CPU 密集，线程数等于核数，按需创建
+     */
+    private static final class Pool {
+        private static final AtomicInteger SEQ = new AtomicInteger();
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(PARALLELISM, runnable -> {
+            Thread thread = new Thread(runnable, "block-gzip-" + SEQ.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 块索引
+     *
+     * @param dataOffset 第一个数据块 member 在文件中的偏移 (即索引 member 长度)
+     */
+    private record BlockIndex(int blockSize, long originalSize, int[] compressedLengths, long dataOffset) {
+
+        int blockCount() {
+            return compressedLengths.length;
+        }
+
+        int uncompressedLength(int block) {
+            return (int) Math.min(blockSize, originalSize - (long) block * blockSize);
+        }
+    }
+
+    public static void compress(Path source, Path target) throws IOException {
+        compress(source, target, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * 按块并发压缩 source 到 target
+     * 块数超过索引容量时自动增大块大小
+     */
+    public static void compress(Path source, Path target, int blockSize) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            int effectiveBlockSize = (int) Math.max(blockSize, (size + MAX_BLOCKS - 1) / MAX_BLOCKS);
+            int blockCount = (int) ((size + effectiveBlockSize - 1) / effectiveBlockSize);
+            int[] compressedLengths = new int[blockCount];
+            long position = indexMemberLength(blockCount);
+
+            // 压缩结果按块顺序写出，在途块数有上限，避免大文件的压缩结果全部驻留内存
+            Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            int written = 0;
+            try {
+                while (written < blockCount) {
+                    while (next < blockCount && inFlight.size() < PARALLELISM * 2) {
+                        long offset = (long) next * effectiveBlockSize;
+                        int length = (int) Math.min(effectiveBlockSize, size - offset);
+                        inFlight.add(Pool.EXECUTOR.submit(() -> compressBlock(in, offset, length)));
+                        next++;
+                    }
+                    byte[] member = await(inFlight.poll());
+                    writeFully(out, ByteBuffer.wrap(member), position);
+                    position += member.length;
+                    compressedLengths[written++] = member.length;
+                }
+            } finally {
+                inFlight.forEach(future -> future.cancel(true));
+            }
+
+            BlockIndex index = new BlockIndex(effectiveBlockSize, size, compressedLengths, 0);
+            writeFully(out, ByteBuffer.wrap(indexMember(index)), 0);
+        }
+    }
+
+    /**
+     * 解压 source 到 target
+     * 带块索引的文件各块并发解压并按位置写入；旧的单流 gzip 文件顺序解压
+     */
+    public static void decompress(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            BlockIndex index = readIndex(in);
+            if (index == null) {
+                decompressStream(in, target);
+                return;
+            }
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                List<Future<?>> futures = new ArrayList<>(index.blockCount());
+                long position = index.dataOffset();
+                try {
+                    for (int block = 0; block < index.blockCount(); block++) {
+                        long memberOffset = position;
+                        int memberLength = index.compressedLengths()[block];
+                        int uncompressedLength = index.uncompressedLength(block);
+                        long targetOffset = (long) block * index.blockSize();
+                        int blockNo = block;
+                        futures.add(Pool.EXECUTOR.submit(() -> {
+                            byte[] data = decompressBlock(in, memberOffset, memberLength, uncompressedLength, blockNo);
+                            writeFully(out, ByteBuffer.wrap(data), targetOffset);
+                            return null;
+                        }));
+                        position += memberLength;
+                    }
+                    if (position != in.size()) {
+                        throw new IOException("分块压缩文件长度与块索引不一致: " + source);
+                    }
+                    for (Future<?> future : futures) {
+                        await(future);
+                    }
+                } finally {
+                    futures.forEach(future -> future.cancel(true));
+                }
+            }
+        }
+    }
+
+    /**
+     * 压缩一个块为完整的 gzip member (头 + deflate + CRC32/ISIZE)
+     */
+    private static byte[] compressBlock(FileChannel in, long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        readFully(in, ByteBuffer.wrap(data), offset);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] member = new byte[HEADER_SIZE + length / 2 + 64];
+            writeHeader(member, 0);
+            int pos = HEADER_SIZE;
+            while (!deflater.finished()) {
+                if (pos == member.length) {
+                    member = Arrays.copyOf(member, member.length * 2);
+                }
+                pos += deflater.deflate(member, pos, member.length - pos);
+            }
+            member = Arrays.copyOf(member, pos + TRAILER_SIZE);
+            ByteBuffer.wrap(member, pos, TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt((int) crc.getValue())
+                    .putInt(length);
+            return member;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompressBlock(FileChannel in, long offset, int memberLength, int uncompressedLength,
+                                          int block) throws IOException {
+        byte[] member = new byte[memberLength];
+        readFully(in, ByteBuffer.wrap(member), offset);
+        if (memberLength < HEADER_SIZE + TRAILER_SIZE || (member[0] & 0xFF) != 0x1F || (member[1] & 0xFF) != 0x8B
+                || member[2] != Deflater.DEFLATED || member[3] != 0) {
+            throw new IOException("分块压缩文件第 " + block + " 块头部无效");
+        }
+
+        byte[] data = new byte[uncompressedLength];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, HEADER_SIZE, memberLength - HEADER_SIZE - TRAILER_SIZE);
+            int pos = 0;
+            while (pos < uncompressedLength) {
+                int n = inflater.inflate(data, pos, uncompressedLength - pos);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                pos += n;
+            }
+            if (pos != uncompressedLength || !inflater.finished()) {
+                throw new IOException("分块压缩文件第 " + block + " 块长度不一致");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("分块压缩文件第 " + block + " 块数据损坏", e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer trailer = ByteBuffer.wrap(member, memberLength - TRAILER_SIZE, TRAILER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, uncompressedLength);
+        if (trailer.getInt() != (int) crc.getValue() || trailer.getInt() != uncompressedLength) {
+            throw new IOException("分块压缩文件第 " + block + " 块校验失败");
+        }
+        return data;
+    }
+
+    /**
+     * 读取块索引，不是分块格式 (旧的单流 gzip) 时返回 null
+     */
+    private static BlockIndex readIndex(FileChannel in) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + 2 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        if (in.size() < head.capacity()) {
+            return null;
+        }
+        readFully(in, head, 0);
+        if ((head.get(0) & 0xFF) != 0x1F || (head.get(1) & 0xFF) != 0x8B || head.get(2) != Deflater.DEFLATED
+                || head.get(3) != FLG_FEXTRA || head.get(12) != SUBFIELD_ID1 || head.get(13) != SUBFIELD_ID2) {
+            return null;
+        }
+        int xlen = Short.toUnsignedInt(head.getShort(10));
+        int subfieldLength = Short.toUnsignedInt(head.getShort(14));
+        if (subfieldLength != xlen - 4 || subfieldLength < INDEX_FIXED_SIZE) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(subfieldLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, payload, head.capacity());
+        payload.flip();
+        int version = payload.get();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("不支持的分块压缩格式版本: " + version);
+        }
+        int blockSize = payload.getInt();
+        long originalSize = payload.getLong();
+        int blockCount = payload.getInt();
+        if (blockSize <= 0 || originalSize < 0 || blockCount < 0 || subfieldLength != INDEX_FIXED_SIZE + blockCount * 4
+                || (originalSize + blockSize - 1) / blockSize != blockCount) {
+            throw new IOException("分块压缩文件块索引无效");
+        }
+        int[] compressedLengths = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            compressedLengths[i] = payload.getInt();
+        }
+        return new BlockIndex(blockSize, originalSize, compressedLengths, indexMemberLength(blockCount));
+    }
+
+    private static int indexMemberLength(int blockCount) {
+        return HEADER_SIZE + 2 + 4 + INDEX_FIXED_SIZE + blockCount * 4 + EMPTY_DEFLATE.length + TRAILER_SIZE;
+    }
+
+    /**
+     * 索引 member：带扩展字段的空 gzip member
+     */
+    private static byte[] indexMember(BlockIndex index) {
+        int subfieldLength = INDEX_FIXED_SIZE + index.blockCount() * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(indexMemberLength(index.blockCount())).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(buffer.array(), 0);
+        buffer.put(3, (byte) FLG_FEXTRA);
+        buffer.position(HEADER_SIZE);
+        buffer.putShort((short) (subfieldLength + 4))
+                .put(SUBFIELD_ID1).put(SUBFIELD_ID2).putShort((short) subfieldLength)
+                .put((byte) FORMAT_VERSION)
+                .putInt(index.blockSize())
+                .putLong(index.originalSize())
+                .putInt(index.blockCount());
+        for (int length : index.compressedLengths()) {
+            buffer.putInt(length);
+        }
+        // 空数据的 CRC32 与 ISIZE 均为 0
+        buffer.put(EMPTY_DEFLATE).putInt(0).putInt(0);
+        return buffer.array();
+    }
+
+    private static void writeHeader(byte[] buffer, int offset) {
+        buffer[offset] = 0x1F;
+        buffer[offset + 1] = (byte) 0x8B;
+        buffer[offset + 2] = Deflater.DEFLATED;
+        // FLG、MTIME (4)、XFL 均为 0，OS 未知
+        buffer[offset + 9] = (byte) 0xFF;
+    }
+
+    /**
+     * 旧格式：单流 gzip 顺序解压
+     */
+    private static void decompressStream(FileChannel in, Path target) throws IOException {
+        in.position(0);
+        try (InputStream gzis = new GZIPInputStream(Channels.newInputStream(in), IO_BUFFER_SIZE);
+             OutputStream out = Channels.newOutputStream(FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int len;
+            while ((len = gzis.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("分块压缩文件被截断");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("分块压缩被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.asiainfo.metrics.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 源库流式读取，派生指标计算与 SQLite 生产管线共用
+ */
+public final class JdbcStreaming {
+
+    private JdbcStreaming() {
+    }
+
+    /**
+     * 只进、分批读取的源查询语句
+     * MySQL 驱动仅在 fetchSize = Integer.MIN_VALUE 时逐行流式读取，否则把整个结果集读入内存；
+     * 其他驱动 (如 PostgreSQL) 需关闭自动提交才会按 fetchSize 使用游标。
+     */
+    public static PreparedStatement prepareStreamingStatement(Connection conn, String sql, int fetchSize) throws SQLException {
+        boolean mysql = isMySQL(conn);
+        if (!mysql) {
+            conn.setAutoCommit(false);
+        }
+        PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        stmt.setFetchSize(mysql ? Integer.MIN_VALUE : fetchSize);
+        return stmt;
+    }
+
+    private static boolean isMySQL(Connection conn) throws SQLException {
+        String product = conn.getMetaData().getDatabaseProductName();
+        return product != null
+                && (product.toLowerCase().contains("mysql") || product.toLowerCase().contains("mariadb"));
+    }
+}
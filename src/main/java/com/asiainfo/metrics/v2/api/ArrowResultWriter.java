@@ -0,0 +1,121 @@
+package com.asiainfo.metrics.v2.api;
+
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Arrow IPC 流格式输出 (application/vnd.apache.arrow.stream)
+ *
+ * ResultBatch 本身是列式的，直接映射为 Arrow 列，不经过行视图：
+ * - 字符串列 (维度、维度描述、op_time) -> 字典编码 Utf8，索引为 int32，ResultBatch 的字典与编码原样写出
+ * - 数值列 (指标值) -> float64，空值写入 validity 位图
+ * 业务状态码与消息放在 Schema 的自定义元数据中 (status / msg)，与 JSON 响应的 status、msg 对应。
+ */
+public final class ArrowResultWriter {
+
+    public static final String MEDIA_TYPE = "application/vnd.apache.arrow.stream";
+
+    private static final ArrowType.Int INDEX_TYPE = new ArrowType.Int(32, true);
+    private static final ArrowType FLOAT64 = new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+
+    // 进程级根分配器，每次输出使用子分配器，结束后释放
+    private static final RootAllocator ROOT = new RootAllocator();
+
+    private ArrowResultWriter() {
+    }
+
+    public static void write(ResultBatch batch, String status, String msg, OutputStream out) throws IOException {
+        try (BufferAllocator allocator = ROOT.newChildAllocator("kpi-arrow-response", 0, Long.MAX_VALUE)) {
+            List<String> names = batch.getColumnNames();
+            int rowCount = batch.getRowCount();
+            List<Field> fields = new ArrayList<>(names.size());
+            List<FieldVector> vectors = new ArrayList<>(names.size());
+            DictionaryProvider.MapDictionaryProvider dictionaries = new DictionaryProvider.MapDictionaryProvider();
+
+            try {
+                for (int c = 0; c < names.size(); c++) {
+                    ResultBatch.Column column = batch.column(c);
+                    if (column instanceof ResultBatch.StringColumn s) {
+                        DictionaryEncoding encoding = new DictionaryEncoding(c, false, INDEX_TYPE);
+                        dictionaries.put(new Dictionary(dictionaryVector(names.get(c), s.dictionary(), allocator), encoding));
+                        IntVector indices = new IntVector(names.get(c), new FieldType(true, INDEX_TYPE, encoding), allocator);
+                        indices.allocateNew(rowCount);
+                        int[] codes = s.codes();
+                        for (int r = 0; r < rowCount; r++) {
+                            if (codes[r] < 0) {
+                                indices.setNull(r);
+                            } else {
+                                indices.set(r, codes[r]);
+                            }
+                        }
+                        indices.setValueCount(rowCount);
+                        vectors.add(indices);
+                        fields.add(indices.getField());
+                    } else {
+                        ResultBatch.DoubleColumn d = (ResultBatch.DoubleColumn) column;
+                        Float8Vector values = new Float8Vector(names.get(c), FieldType.nullable(FLOAT64), allocator);
+                        values.allocateNew(rowCount);
+                        for (int r = 0; r < rowCount; r++) {
+                            if (d.isNull(r)) {
+                                values.setNull(r);
+                            } else {
+                                values.set(r, d.values()[r]);
+                            }
+                        }
+                        values.setValueCount(rowCount);
+                        vectors.add(values);
+                        fields.add(values.getField());
+                    }
+                }
+
+                Schema schema = new Schema(fields, Map.of("status", status, "msg", msg == null ? "" : msg));
+                try (VectorSchemaRoot root = new VectorSchemaRoot(schema, vectors, rowCount);
+                     ArrowStreamWriter writer = new ArrowStreamWriter(root, dictionaries, Channels.newChannel(out))) {
+                    writer.start();
+                    if (rowCount > 0) {
+                        writer.writeBatch();
+                    }
+                    writer.end();
+                }
+            } finally {
+                vectors.forEach(FieldVector::close);
+                for (long id : dictionaries.getDictionaryIds()) {
+                    dictionaries.lookup(id).getVector().close();
+                }
+            }
+        }
+    }
+
+    private static VarCharVector dictionaryVector(String name, String[] values, BufferAllocator allocator) {
+        VarCharVector vector = new VarCharVector(name + "_dict", allocator);
+        vector.allocateNew(values.length);
+        for (int i = 0; i < values.length; i++) {
+            vector.setSafe(i, values[i].getBytes(StandardCharsets.UTF_8));
+        }
+        vector.setValueCount(values.length);
+        return vector;
+    }
+}
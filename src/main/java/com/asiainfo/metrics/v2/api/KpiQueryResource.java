@@ -1,16 +1,40 @@
 package com.asiainfo.metrics.v2.api;
 
+import com.asiainfo.metrics.model.http.KpiBatchQueryResult;
+import com.asiainfo.metrics.model.http.KpiQueryPageResult;
 import com.asiainfo.metrics.model.http.KpiQueryRequest;
 import com.asiainfo.metrics.model.http.KpiQueryResult;
+import com.asiainfo.metrics.model.http.KpiTrendResult;
+import com.asiainfo.metrics.v2.core.engine.KpiSubscriptionService;
 import com.asiainfo.metrics.v2.core.engine.UnifiedMetricEngine;
+import com.asiainfo.metrics.v2.core.engine.UnifiedReportEngine;
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import io.smallrye.common.annotation.RunOnVirtualThread;
+import jakarta.annotation.PostConstruct;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -23,39 +47,313 @@ import java.util.Map;
 @Consumes(MediaType.APPLICATION_JSON)
 public class KpiQueryResource {
 
+    private static final Logger log = LoggerFactory.getLogger(KpiQueryResource.class);
+    private static final String CBOR_MEDIA_TYPE = "application/cbor";
+    private static final MediaType CBOR_TYPE = MediaType.valueOf(CBOR_MEDIA_TYPE);
+    private static final MediaType ARROW_TYPE = MediaType.valueOf(ArrowResultWriter.MEDIA_TYPE);
+
     @Inject
     UnifiedMetricEngine engine;
+    @Inject
+    UnifiedReportEngine reportEngine;
+    @Inject
+    KpiSubscriptionService subscriptionService;
+    @Inject
+    ObjectMapper objectMapper;
+
+    // 与 JSON 响应共用应用配置的 ObjectMapper (模块、命名策略、序列化器)，只替换编码格式
+    private ObjectMapper cborMapper;
+
+    @PostConstruct
+    void init() {
+        cborMapper = objectMapper.copyWith(new CBORFactory());
+    }
 
     /**
      * 查询KPI数据（与v1接口完全一致）
+     * 按 Accept 协商响应格式：默认 JSON；application/vnd.apache.arrow.stream 返回 Arrow IPC 流，
+     * application/cbor 返回结构相同的 CBOR。
+     * 成功的响应带 ETag (请求形状 + 所读分区与指标定义的版本 + 响应格式)；
+     * If-None-Match 命中时只做规划与版本查询即返回 304，不执行查询、不读取缓存结果、不序列化。
+     * 响应体复用计算版本时的规划，按同一版本标识读取结果缓存、校验本地分区副本，ETag 与响应体始终对应同一版本的数据。
      *
      * @param request 查询请求
      * @return 查询结果（格式与v1完全一致：dataArray, status, msg）
      */
     @POST
     @Path("/queryKpiData")
+    @Produces({MediaType.APPLICATION_JSON, ArrowResultWriter.MEDIA_TYPE, CBOR_MEDIA_TYPE})
     @RunOnVirtualThread
-    public KpiQueryResult query(KpiQueryRequest request) {
-        try {
-            List<Map<String, Object>> results = engine.execute(request);
+    public Response queryKpiData(KpiQueryRequest request, @Context HttpHeaders headers) throws IOException {
+        MediaType type = negotiate(headers.getAcceptableMediaTypes());
+        UnifiedMetricEngine.QueryPlan plan = engine.plan(request);
+        String version = plan.version();
+        EntityTag etag = version == null ? null : new EntityTag(version + "-" + type.getSubtype().replace('.', '-'));
+        if (etag != null && matches(headers.getHeaderString(HttpHeaders.IF_NONE_MATCH), etag)) {
+            return Response.notModified(etag).header(HttpHeaders.CACHE_CONTROL, "no-cache").build();
+        }
 
-            // 构建详细的消息信息
-            StringBuilder msgBuilder = new StringBuilder("查询成功！");
-            msgBuilder.append(" 返回 ").append(results.size()).append(" 条记录");
-            if (request.includeHistoricalData()) {
-                msgBuilder.append(" [包含历史数据]");
+        KpiQueryResult result = query(request, plan);
+        Response.ResponseBuilder response;
+        if (ARROW_TYPE.equals(type)) {
+            // Arrow 直接读取列式结果；缓存命中时结果为反序列化的行，先转为列式
+            ResultBatch batch = result.dataArray() instanceof ResultBatch b ? b : ResultBatch.fromRows(result.dataArray());
+            StreamingOutput body = output -> ArrowResultWriter.write(batch, result.status(), result.msg(), output);
+            response = Response.ok(body, ARROW_TYPE);
+        } else if (CBOR_TYPE.equals(type)) {
+            response = Response.ok(cborMapper.writeValueAsBytes(result), CBOR_TYPE);
+        } else {
+            response = Response.ok(result, MediaType.APPLICATION_JSON_TYPE);
+        }
+        // 失败结果不带 ETag，避免客户端把错误响应当作有效版本缓存
+        if (etag != null && "0000".equals(result.status())) {
+            response.tag(etag).header(HttpHeaders.CACHE_CONTROL, "no-cache");
+        }
+        return response.build();
+    }
+
+    /**
+     * If-None-Match 比较 (弱比较)：逗号分隔的多个标签任一相同，或为 *
+     */
+    private static boolean matches(String ifNoneMatch, EntityTag etag) {
+        if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
             }
-            if (request.includeTargetData()) {
-                msgBuilder.append(" [包含目标值]");
+            if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")
+                    && tag.substring(1, tag.length() - 1).equals(etag.getValue())) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // 使用与v1完全一致的返回格式：dataArray, status, msg
-            return new KpiQueryResult(results, "0000", msgBuilder.toString());
+    public KpiQueryResult query(KpiQueryRequest request) {
+        return query(request, engine.plan(request));
+    }
 
+    /**
+     * 按已完成的规划查询 (结果缓存 Key 含规划时计算的版本标识)
+     * 版本未知 (如分区目录不可用) 时不带 ETag，结果缓存改用无版本 Key
+     */
+    private KpiQueryResult query(KpiQueryRequest request, UnifiedMetricEngine.QueryPlan plan) {
+        try {
+            List<Map<String, Object>> results = engine.execute(plan);
+            return success(request, results);
         } catch (Exception e) {
             // 错误格式也与v1一致
             return new KpiQueryResult(List.of(), "9999", "查询失败: " + e.getMessage());
         }
     }
 
+    private static KpiQueryResult success(KpiQueryRequest request, List<Map<String, Object>> results) {
+        // 构建详细的消息信息
+        StringBuilder msgBuilder = new StringBuilder("查询成功！");
+        msgBuilder.append(" 返回 ").append(results.size()).append(" 条记录");
+        if (Boolean.TRUE.equals(request.includeHistoricalData())) {
+            msgBuilder.append(" [包含历史数据]");
+        }
+        if (Boolean.TRUE.equals(request.includeTargetData())) {
+            msgBuilder.append(" [包含目标值]");
+        }
+
+        // 使用与v1完全一致的返回格式：dataArray, status, msg
+        return new KpiQueryResult(results, "0000", msgBuilder.toString());
+    }
+
+    /**
+     * 趋势查询
+     * opTimeRange 指定账期范围 (start/end/granularity)，也可沿用 opTimeArray；
+     * 返回紧凑序列：每个维度组合一条，指标值按 opTimeArray 对齐，没有数据的账期不出现在 opTimeArray 中。
+     */
+    @POST
+    @Path("/queryKpiTrend")
+    @RunOnVirtualThread
+    public KpiTrendResult queryTrend(KpiQueryRequest request) {
+        try {
+            KpiTrendResult result = engine.executeTrend(request);
+            return result.withStatus("0000", "查询成功！ " + result.opTimeArray().size() + " 个账期，"
+                    + result.seriesArray().size() + " 条序列");
+        } catch (Exception e) {
+            log.error("Trend query failed", e);
+            return KpiTrendResult.error("查询失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 批量查询KPI数据 (仪表盘一次提交多个查询)
+     * 各查询统一规划，相同的分区与维度库只准备、ATTACH 一次；
+     * resultArray 与请求顺序一一对应，单个查询失败时其 status 为 9999，不影响其他查询。
+     */
+    @POST
+    @Path("/queryKpiDataBatch")
+    @RunOnVirtualThread
+    public KpiBatchQueryResult queryBatch(List<KpiQueryRequest> requests) {
+        if (requests == null || requests.isEmpty()) {
+            return new KpiBatchQueryResult(List.of(), "0000", "查询成功！ 共 0 个查询");
+        }
+        try {
+            List<UnifiedMetricEngine.BatchItem> items = engine.executeBatch(requests);
+            List<KpiQueryResult> results = new ArrayList<>(items.size());
+            int failed = 0;
+            for (int i = 0; i < items.size(); i++) {
+                UnifiedMetricEngine.BatchItem item = items.get(i);
+                if (item.error() != null) {
+                    failed++;
+                    results.add(new KpiQueryResult(List.of(), "9999", "查询失败: " + item.error().getMessage()));
+                } else {
+                    results.add(success(requests.get(i), item.rows()));
+                }
+            }
+            String msg = failed == 0
+                    ? "查询成功！ 共 " + items.size() + " 个查询"
+                    : "部分查询失败: " + failed + "/" + items.size();
+            return new KpiBatchQueryResult(results, failed == 0 ? "0000" : "9999", msg);
+        } catch (Exception e) {
+            log.error("Batch query failed", e);
+            return new KpiBatchQueryResult(List.of(), "9999", "查询失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 报表分页查询
+     * 按 sortOptions 排序，pageSize 为每页行数，pageCursor 取上一页返回的 nextCursor
+     */
+    @POST
+    @Path("/queryReportData")
+    @RunOnVirtualThread
+    public Response queryReportData(KpiQueryRequest request) {
+        try {
+            KpiQueryPageResult result = reportEngine.queryReportData(request);
+            return Response.ok(result).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", String.valueOf(e.getMessage())))
+                    .build();
+        } catch (Exception e) {
+            log.error("Report query failed", e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity(Map.of("error", String.valueOf(e.getMessage())))
+                    .build();
+        }
+    }
+
+    /**
+     * 注册KPI订阅 (代替轮询 queryKpiData)
+     * 相同查询返回相同的 subscriptionId；随后以 GET /subscriptions/{subscriptionId} 建立 SSE 事件流
+     */
+    @POST
+    @Path("/subscriptions")
+    @RunOnVirtualThread
+    public Response subscribe(KpiQueryRequest request) {
+        try {
+            String id = subscriptionService.register(request);
+            return Response.ok(Map.of("subscriptionId", id, "eventsPath", "/api/v2/kpi/subscriptions/" + id)).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("error", String.valueOf(e.getMessage())))
+                    .build();
+        }
+    }
+
+    /**
+     * KPI订阅事件流 (SSE)
+     * 连接后先收到 snapshot 事件 (当前完整结果)，每次 ETL 发布使结果变化时收到 diff 事件；
+     * 事件数据为 KpiSubscriptionEvent，事件 id 为结果版本。
+     */
+    @GET
+    @Path("/subscriptions/{id}")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @RunOnVirtualThread
+    public void events(@PathParam("id") String id, @Context SseEventSink sink, @Context Sse sse) {
+        try {
+            if (!subscriptionService.subscribe(id, sink, sse)) {
+                sink.send(sse.newEventBuilder().name("error").data(String.class, "subscription not found: " + id).build());
+                sink.close();
+            }
+        } catch (Exception e) {
+            log.error("Subscription failed: {}", id, e);
+            sink.send(sse.newEventBuilder().name("error").data(String.class, "查询失败: " + e.getMessage()).build());
+            sink.close();
+        }
+    }
+
+    /**
+     * 按 Accept 顺序 (已按 q 值排序) 选择第一个支持的格式，通配或无法匹配时返回 JSON
+     */
+    private static MediaType negotiate(List<MediaType> acceptable) {
+        for (MediaType accepted : acceptable) {
+            if (accepted.isWildcardType() || MediaType.APPLICATION_JSON_TYPE.isCompatible(accepted)) {
+                return MediaType.APPLICATION_JSON_TYPE;
+            }
+            if (ARROW_TYPE.isCompatible(accepted)) {
+                return ARROW_TYPE;
+            }
+            if (CBOR_TYPE.isCompatible(accepted)) {
+                return CBOR_TYPE;
+            }
+        }
+        return MediaType.APPLICATION_JSON_TYPE;
+    }
+
+    /**
+     * 流式查询KPI数据
+     * 响应结构与 queryKpiData 相同 (dataArray, status, msg)，dataArray 在读取 SQLite 游标的同时分块写出，
+     * 大结果集不再在内存中同时持有完整结果与完整 JSON。
+     * status/msg 写在 dataArray 之后：中途失败时 dataArray 只包含已写出的行，status 为 9999。
+     */
+    @POST
+    @Path("/queryKpiData/stream")
+    @RunOnVirtualThread
+    public StreamingOutput queryStream(KpiQueryRequest request) {
+        return output -> {
+            try (JsonGenerator gen = objectMapper.getFactory().createGenerator(output)) {
+                gen.writeStartObject();
+                gen.writeFieldName("dataArray");
+                String status;
+                String msg;
+                try {
+                    long rows = engine.executeStreaming(request, gen);
+                    StringBuilder msgBuilder = new StringBuilder("查询成功！");
+                    if (rows >= 0) {
+                        msgBuilder.append(" 返回 ").append(rows).append(" 条记录");
+                    }
+                    if (Boolean.TRUE.equals(request.includeHistoricalData())) {
+                        msgBuilder.append(" [包含历史数据]");
+                    }
+                    if (Boolean.TRUE.equals(request.includeTargetData())) {
+                        msgBuilder.append(" [包含目标值]");
+                    }
+                    status = "0000";
+                    msg = msgBuilder.toString();
+                } catch (Exception e) {
+                    log.error("Streaming query failed", e);
+                    // 补齐未闭合的 dataArray (可能尚未开始或已写出部分行)
+                    JsonStreamContext context = gen.getOutputContext();
+                    if (context.inObject() && context.getParent().inRoot()) {
+                        gen.writeStartArray();
+                        gen.writeEndArray();
+                    } else {
+                        while (!(gen.getOutputContext().inObject() && gen.getOutputContext().getParent().inRoot())) {
+                            if (gen.getOutputContext().inArray()) gen.writeEndArray();
+                            else gen.writeEndObject();
+                        }
+                    }
+                    status = "9999";
+                    msg = "查询失败: " + e.getMessage();
+                }
+                gen.writeStringField("status", status);
+                gen.writeStringField("msg", msg);
+                gen.writeEndObject();
+            }
+        };
+    }
+
 }
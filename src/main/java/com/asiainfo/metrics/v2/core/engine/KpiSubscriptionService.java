@@ -0,0 +1,304 @@
+package com.asiainfo.metrics.v2.core.engine;
+
+import com.asiainfo.metrics.model.http.KpiQueryRequest;
+import com.asiainfo.metrics.model.http.KpiSubscriptionEvent;
+import com.asiainfo.metrics.v2.core.model.PhysicalTableReq;
+import com.asiainfo.metrics.v2.infra.persistence.MetadataRepository;
+import com.asiainfo.metrics.v2.infra.storage.StorageManager;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.redis.datasource.RedisDataSource;
+import io.quarkus.redis.datasource.pubsub.PubSubCommands;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseBroadcaster;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KPI订阅服务 (SSE 推送代替客户端轮询)
+ * - 相同的规范化查询 (queryId) 共享一个主题，无论多少订阅者，每次数据发布只计算一次
+ * - ETL 发布后经 Redis 频道通知所有实例：失效本地分区副本、目录缓存与宽表分区登记缓存，
+ *   各主题比较结果版本 (versionTag)，版本变化才重新计算并推送与上次结果的差异
+ * - 无订阅者的主题空闲超过 kpi.subscription.idle-seconds 后移除
+ */
+@ApplicationScoped
+public class KpiSubscriptionService {
+
+    private static final Logger log = LoggerFactory.getLogger(KpiSubscriptionService.class);
+    private static final String PUBLISH_CHANNEL = "metrics:v2:publish";
+
+    @Inject
+    UnifiedMetricEngine engine;
+    @Inject
+    StorageManager storageManager;
+    @Inject
+    MetadataRepository metadataRepo;
+    @Inject
+    RedisDataSource redisDataSource;
+    @Inject
+    ObjectMapper objectMapper;
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "kpi.subscription.idle-seconds", defaultValue = "600")
+    long idleSeconds;
+
+    private final ExecutorService vThreadExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+    private PubSubCommands.RedisSubscriber publishSubscriber;
+
+    /**
+     * 订阅主题：一个规范化查询及其最近一次推送的结果
+     */
+    private static final class Topic {
+        final KpiQueryRequest request;
+        final List<String> keyColumns;
+        final AtomicInteger subscribers = new AtomicInteger();
+        // 重新计算期间持有 (含 S3 列表、下载、SQLite)，使用 ReentrantLock 避免 synchronized 钉住虚拟线程的载体线程
+        final ReentrantLock lock = new ReentrantLock();
+        SseBroadcaster broadcaster;
+        Sse sse;
+        String version;
+        Map<List<Object>, Map<String, Object>> rows;
+        volatile long idleSince = System.currentTimeMillis();
+
+        Topic(KpiQueryRequest request) {
+            this.request = request;
+            this.keyColumns = new ArrayList<>(request.dimCodeArray() != null ? request.dimCodeArray() : List.of());
+            this.keyColumns.add("op_time");
+        }
+    }
+
+    void onStart(@Observes StartupEvent ev) {
+        try {
+            PubSubCommands<String> pubsub = redisDataSource.pubsub(String.class);
+            publishSubscriber = pubsub.subscribe(PUBLISH_CHANNEL, message -> vThreadExecutor.submit(() -> onMessage(message)));
+        } catch (Exception e) {
+            // Redis 不可用时只处理本实例的发布通知
+            log.warn("Subscribe to {} failed, publish notifications stay local: {}", PUBLISH_CHANNEL, e.getMessage());
+        }
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        if (publishSubscriber != null) {
+            publishSubscriber.unsubscribe();
+        }
+        topics.values().forEach(topic -> {
+            topic.lock.lock();
+            try {
+                if (topic.broadcaster != null) topic.broadcaster.close();
+            } finally {
+                topic.lock.unlock();
+            }
+        });
+        vThreadExecutor.shutdownNow();
+    }
+
+    /**
+     * 注册订阅，返回查询标识 (相同查询返回相同标识)
+     */
+    public String register(KpiQueryRequest request) {
+        if (request.kpiArray() == null || request.kpiArray().isEmpty()
+                || request.opTimeArray() == null || request.opTimeArray().isEmpty()) {
+            throw new IllegalArgumentException("kpiArray and opTimeArray are required");
+        }
+        pruneIdle();
+        String id = engine.queryId(request);
+        topics.computeIfAbsent(id, k -> new Topic(request));
+        return id;
+    }
+
+    /**
+     * 连接事件流：先发送当前结果 (snapshot)，之后每次数据发布推送差异 (diff)
+     *
+     * @return 主题不存在 (未注册或已过期) 时返回 false
+     */
+    public boolean subscribe(String id, SseEventSink sink, Sse sse) {
+        Topic topic = topics.get(id);
+        if (topic == null) {
+            return false;
+        }
+        // 持锁发送 snapshot 后再加入广播，保证订阅者不会先收到比 snapshot 更新的 diff
+        topic.lock.lock();
+        try {
+            if (topic.broadcaster == null) {
+                topic.sse = sse;
+                topic.broadcaster = sse.newBroadcaster();
+                topic.broadcaster.onClose(closed -> release(topic));
+            }
+            if (topic.rows == null) {
+                recompute(topic, plan(topic));
+            }
+            sink.send(event(sse, "snapshot",
+                    new KpiSubscriptionEvent(topic.version, new ArrayList<>(topic.rows.values()), List.of())));
+            topic.broadcaster.register(sink);
+            topic.subscribers.incrementAndGet();
+        } finally {
+            topic.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * ETL 发布完成：通知所有实例 (Redis 不可用时只在本实例处理)
+     */
+    public void publish(Collection<PhysicalTableReq> partitions) {
+        try {
+            redisDataSource.pubsub(String.class).publish(PUBLISH_CHANNEL, objectMapper.writeValueAsString(partitions));
+        } catch (Exception e) {
+            log.warn("Publish notification via Redis failed, refreshing locally: {}", e.getMessage());
+            onPublished(List.copyOf(partitions));
+        }
+    }
+
+    private void onMessage(String message) {
+        try {
+            onPublished(objectMapper.readValue(message, new TypeReference<List<PhysicalTableReq>>() {
+            }));
+        } catch (Exception e) {
+            log.error("Invalid publish notification: {}", message, e);
+        }
+    }
+
+    private void onPublished(List<PhysicalTableReq> partitions) {
+        storageManager.invalidate(partitions);
+        partitions.stream().map(PhysicalTableReq::opTime).distinct().forEach(metadataRepo::invalidatePartitions);
+        pruneIdle();
+        for (Topic topic : topics.values()) {
+            if (topic.subscribers.get() > 0) {
+                vThreadExecutor.submit(() -> refresh(topic));
+            }
+        }
+    }
+
+    /**
+     * 版本未变化时不计算；变化时重新计算一次并向该主题的全部订阅者广播差异
+     */
+    private void refresh(Topic topic) {
+        try {
+            topic.lock.lock();
+            try {
+                UnifiedMetricEngine.QueryPlan plan = plan(topic);
+                if (plan.version().equals(topic.version)) {
+                    return;
+                }
+                Map<List<Object>, Map<String, Object>> previous = topic.rows;
+                recompute(topic, plan);
+
+                List<Map<String, Object>> upserts = new ArrayList<>();
+                List<Map<String, Object>> removes = new ArrayList<>();
+                topic.rows.forEach((key, row) -> {
+                    if (previous == null || !row.equals(previous.get(key))) upserts.add(row);
+                });
+                if (previous != null) {
+                    previous.forEach((key, row) -> {
+                        if (!topic.rows.containsKey(key)) removes.add(keyRow(topic, key));
+                    });
+                }
+                if ((!upserts.isEmpty() || !removes.isEmpty()) && topic.broadcaster != null) {
+                    topic.broadcaster.broadcast(event(topic.sse, "diff",
+                            new KpiSubscriptionEvent(topic.version, upserts, removes)));
+                }
+                log.info("Subscription {} refreshed: {} upserts, {} removes", topic.version, upserts.size(), removes.size());
+            } finally {
+                topic.lock.unlock();
+            }
+        } catch (Exception e) {
+            log.error("Subscription refresh failed", e);
+        }
+    }
+
+    /**
+     * 规划主题查询并计算版本标识，版本未知时无法判断结果是否变化，按失败处理
+     */
+    private UnifiedMetricEngine.QueryPlan plan(Topic topic) {
+        UnifiedMetricEngine.QueryPlan plan = engine.plan(topic.request);
+        if (plan.version() == null) {
+            throw new IllegalStateException("Version lookup failed for subscription");
+        }
+        return plan;
+    }
+
+    /**
+     * 按调用方已完成的规划重新计算主题结果 (跳过结果缓存，复用规划)，调用方持有 topic 锁
+     */
+    private void recompute(Topic topic, UnifiedMetricEngine.QueryPlan plan) {
+        Timer.Sample sample = Timer.start(registry);
+        Map<List<Object>, Map<String, Object>> rows = new LinkedHashMap<>();
+        for (Map<String, Object> row : engine.refresh(plan)) {
+            List<Object> key = new ArrayList<>(topic.keyColumns.size());
+            for (String column : topic.keyColumns) {
+                key.add(row.get(column));
+            }
+            rows.put(key, new LinkedHashMap<>(row));
+        }
+        topic.version = plan.version();
+        topic.rows = rows;
+        sample.stop(Timer.builder("metrics.subscription.refresh.duration")
+                .description("Subscription recompute duration")
+                .register(registry));
+    }
+
+    private static Map<String, Object> keyRow(Topic topic, List<Object> key) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < topic.keyColumns.size(); i++) {
+            row.put(topic.keyColumns.get(i), key.get(i));
+        }
+        return row;
+    }
+
+    private static OutboundSseEvent event(Sse sse, String name, KpiSubscriptionEvent data) {
+        return sse.newEventBuilder()
+                .name(name)
+                .id(data.version())
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(KpiSubscriptionEvent.class, data)
+                .build();
+    }
+
+    private void release(Topic topic) {
+        if (topic.subscribers.decrementAndGet() <= 0) {
+            topic.subscribers.set(0);
+            topic.idleSince = System.currentTimeMillis();
+        }
+    }
+
+    private void pruneIdle() {
+        long deadline = System.currentTimeMillis() - idleSeconds * 1000;
+        topics.entrySet().removeIf(entry -> {
+            Topic topic = entry.getValue();
+            if (topic.subscribers.get() > 0 || topic.idleSince >= deadline) {
+                return false;
+            }
+            topic.lock.lock();
+            try {
+                if (topic.broadcaster != null) topic.broadcaster.close();
+            } finally {
+                topic.lock.unlock();
+            }
+            return true;
+        });
+    }
+}
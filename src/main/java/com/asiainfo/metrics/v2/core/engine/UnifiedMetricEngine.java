@@ -1,15 +1,26 @@
 package com.asiainfo.metrics.v2.core.engine;
 
 import com.asiainfo.metrics.model.http.KpiQueryRequest;
+import com.asiainfo.metrics.model.http.KpiTrendResult;
+import com.asiainfo.metrics.v2.core.expression.EvaluationPlan;
+import com.asiainfo.metrics.v2.core.expression.EvaluationPlanner;
+import com.asiainfo.metrics.v2.core.expression.ExpressionCompiler;
+import com.asiainfo.metrics.v2.core.expression.MetricExpression;
 import com.asiainfo.metrics.v2.core.generator.SqlGenerator;
+import com.asiainfo.metrics.v2.core.model.BaseAggregate;
+import com.asiainfo.metrics.v2.core.model.DerivedOutput;
 import com.asiainfo.metrics.v2.core.model.MetricDefinition;
 import com.asiainfo.metrics.v2.core.model.MetricType;
+import com.asiainfo.metrics.v2.core.model.OrderSpec;
 import com.asiainfo.metrics.v2.core.model.PhysicalTableReq;
 import com.asiainfo.metrics.v2.core.model.QueryContext;
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
+import com.asiainfo.metrics.v2.core.model.SortKey;
 import com.asiainfo.metrics.v2.core.parser.MetricParser;
 import com.asiainfo.metrics.v2.infra.persistence.MetadataRepository;
 import com.asiainfo.metrics.v2.infra.persistence.SQLiteExecutor;
 import com.asiainfo.metrics.v2.infra.storage.StorageManager;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.micrometer.core.instrument.MeterRegistry;
@@ -22,8 +33,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import io.micrometer.core.instrument.Timer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -41,12 +58,21 @@ public class UnifiedMetricEngine {
     private static final Logger log = LoggerFactory.getLogger(UnifiedMetricEngine.class);
     private static final int ATTACH_THRESHOLD = 8;
     private static final String CACHE_PREFIX = "metrics:v2:query:";
+    private static final int STREAM_CHUNK_SIZE = 1024;
+    // SQLite 单连接最多 ATTACH 的数据库个数 (SQLITE_MAX_ATTACHED 默认值)
+    private static final int MAX_ATTACHED = 10;
+    // 趋势查询单次扫描的基础聚合列上限 (SQLite 默认最多 2000 列)
+    private static final int TREND_MAX_COLUMNS = 1000;
 
     @Inject
     MetricParser parser;
     @Inject
     SqlGenerator sqlGenerator;
     @Inject
+    EvaluationPlanner planner;
+    @Inject
+    ExpressionCompiler compiler;
+    @Inject
     SQLiteExecutor sqliteExecutor;
     @Inject
     MetadataRepository metadataRepo;
@@ -63,16 +89,81 @@ public class UnifiedMetricEngine {
     @ConfigProperty(name = "kpi.cache.ttl.minutes", defaultValue = "30")
     long cacheTtlMinutes;
 
+    @ConfigProperty(name = "kpi.cache.max-entry-bytes", defaultValue = "8388608")
+    long cacheMaxEntryBytes;
+
+    @ConfigProperty(name = "kpi.cache.unversioned-ttl-seconds", defaultValue = "30")
+    long unversionedTtlSeconds;
+
     // 使用 JDK 21 正式特性的虚拟线程池
     private final ExecutorService vThreadExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
+    /**
+     * 带版本标识的查询规划
+     * 计算版本标识 (versionTag) 需要先完成各账期的依赖解析与求值计划，随后的执行直接复用这份规划，不再重复解析。
+     * version 为 null 表示版本未知 (如分区目录不可用)，结果缓存改用无版本 Key 与较短的 TTL；
+     * 规划本身失败时 timePoints 为 null，执行时重新规划并抛出原始错误。
+     * 规划中的上下文在执行时被填充 (别名、查询参数)，一份规划只执行一次。
+     */
+    public static final class QueryPlan {
+        private final KpiQueryRequest request;
+        private final String version;
+        private final List<TimePointQuery> timePoints;
+
+        private QueryPlan(KpiQueryRequest request, String version, List<TimePointQuery> timePoints) {
+            this.request = request;
+            this.version = version;
+            this.timePoints = timePoints;
+        }
+
+        public KpiQueryRequest request() {
+            return request;
+        }
+
+        public String version() {
+            return version;
+        }
+    }
+
+    /**
+     * 规划查询并计算版本标识 (不执行 SQLite、不读取结果缓存)，失败时不抛出异常 (见 {@link QueryPlan})
+     */
+    public QueryPlan plan(KpiQueryRequest req) {
+        List<TimePointQuery> timePoints;
+        try {
+            timePoints = planTimePoints(req);
+        } catch (Exception e) {
+            log.warn("Query planning failed: {}", e.getMessage());
+            return new QueryPlan(req, null, null);
+        }
+        try {
+            return new QueryPlan(req, versionTag(req, timePoints), timePoints);
+        } catch (Exception e) {
+            log.warn("Version lookup failed, use unversioned result cache: {}", e.getMessage());
+            return new QueryPlan(req, null, timePoints);
+        }
+    }
+
     public List<Map<String, Object>> execute(KpiQueryRequest req) {
+        return execute(plan(req));
+    }
+
+    /**
+     * 执行已规划的查询，结果缓存按 plan.version() 区分
+     * 调用方已计算版本标识 (如 HTTP ETag) 时传入同一规划，保证返回的数据与该标识对应同一版本
+     */
+    public List<Map<String, Object>> execute(QueryPlan plan) {
         // 2. 启动计时器
         Timer.Sample sample = Timer.start(registry);
         String cacheStatus = "miss";
 
         try {
-            String cacheKey = generateCacheKey(req);
+            if (plan.timePoints == null) {
+                // 规划失败：重新规划并抛出原始错误，不读取缓存
+                cacheStatus = "bypass";
+                return compute(plan);
+            }
+            String cacheKey = resultCacheKey(plan.request(), plan.version());
             ValueCommands<String, String> redisCommands = null;
 
             // --- 缓存读取 ---
@@ -91,46 +182,644 @@ public class UnifiedMetricEngine {
             }
 
             log.info("Cache MISS, executing query...");
-            List<Map<String, Object>> finalResults = new ArrayList<>();
+            ResultBatch finalResults = compute(plan);
+
+            // --- 缓存写入 ---
+            if (redisCommands != null) {
+                writeCache(redisCommands, cacheKey, finalResults, cacheTtlSeconds(plan.version()));
+            }
+
+            return finalResults;
+
+        } finally {
+            // 3. 停止计时并记录指标
+            sample.stop(Timer.builder("metrics.req.duration")
+                    .description("API request duration")
+                    .tag("cache", cacheStatus) // 关键标签：区分缓存命中与否
+                    .register(registry));
+        }
+    }
+
+    /**
+     * 跳过结果缓存重新计算，并按规划的版本写入缓存 (数据发布后刷新订阅)，版本未知时不写缓存
+     */
+    public ResultBatch refresh(QueryPlan plan) {
+        ResultBatch results = compute(plan);
+        if (plan.version() != null) {
+            try {
+                writeCache(redisDataSource.value(String.class), resultCacheKey(plan.request(), plan.version()), results,
+                        cacheTtlSeconds(plan.version()));
+            } catch (Exception e) {
+                log.warn("Redis write failed: {}", e.getMessage());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 核心计算 (不经过结果缓存)
+     */
+    private ResultBatch compute(QueryPlan plan) {
+        KpiQueryRequest req = plan.request();
+        List<TimePointQuery> timePoints = timePoints(plan);
+        if (isOrdered(req)) {
+            // 排行类查询：排序与 Top-N 下推，不返回全部分组
+            return executeOrdered(timePoints, orderOf(req));
+        }
+        List<ResultBatch> batches = new ArrayList<>();
+        for (TimePointQuery query : timePoints) {
+            String opTime = query.ctx().getOpTime();
+            try {
+                batches.add(executeSingleTimePoint(query));
+            } catch (Exception e) {
+                log.error("Query failed for opTime: {}", opTime, e);
+                throw new RuntimeException("Query failed for opTime: " + opTime, e);
+            }
+        }
+        // 列式结果直接交给序列化器，不再展开为逐行 Map
+        return ResultBatch.concat(batches);
+    }
+
+    /**
+     * 规划中的各账期查询；规划失败 (timePoints 为 null) 时重新规划，抛出原始错误
+     */
+    private List<TimePointQuery> timePoints(QueryPlan plan) {
+        return plan.timePoints != null ? plan.timePoints : planTimePoints(plan.request());
+    }
+
+    private void writeCache(ValueCommands<String, String> redisCommands, String cacheKey, ResultBatch results, long ttlSeconds) {
+        try {
+            if (!results.isEmpty()) {
+                String jsonResult = objectMapper.writeValueAsString(results);
+                redisCommands.setex(cacheKey, ttlSeconds, jsonResult);
+            }
+        } catch (Exception e) {
+            log.warn("Redis write failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 流式执行：在 SQLite 游标上按块读取、求值并直接写入 gen (dataArray 数组)
+     * 峰值内存为一个块 (STREAM_CHUNK_SIZE 行) 而非整个结果集；写出阻塞即对游标读取形成背压。
+     * 结果同时写入一份缓存副本 (tee)，超过 kpi.cache.max-entry-bytes 时放弃缓存。
+     *
+     * @return 写出的行数，命中缓存时返回 -1 (直接写出缓存的 JSON)
+     */
+    public long executeStreaming(KpiQueryRequest req, JsonGenerator gen) throws IOException {
+        Timer.Sample sample = Timer.start(registry);
+        String cacheStatus = "miss";
+
+        try {
+            QueryPlan plan = plan(req);
+            String cacheKey = plan.timePoints != null ? resultCacheKey(req, plan.version()) : null;
+            ValueCommands<String, String> redisCommands = null;
+
+            // --- 缓存读取 ---
+            try {
+                if (cacheKey != null) {
+                    redisCommands = redisDataSource.value(String.class);
+                }
+                String cachedValue = redisCommands != null ? redisCommands.get(cacheKey) : null;
+                if (cachedValue != null) {
+                    log.info("Cache HIT: {}", cacheKey);
+                    cacheStatus = "hit";
+                    gen.writeRawValue(cachedValue);
+                    return -1;
+                }
+            } catch (Exception e) {
+                log.warn("Redis read failed: {}", e.getMessage());
+                cacheStatus = "error";
+            }
+
+            log.info("Cache MISS, streaming query...");
+            StreamTee tee = redisCommands != null ? new StreamTee() : null;
+            gen.writeStartArray();
 
-            // --- 核心计算 ---
-            List<MetricDefinition> taskMetrics = expandMetrics(req.kpiArray(), req.includeHistoricalData());
-            for (String opTime : req.opTimeArray()) {
+            long rows = 0;
+            List<TimePointQuery> timePoints = timePoints(plan);
+            if (isOrdered(req)) {
+                // 排序/Top-N 需要看到全部账期后才能输出第一行，结果整体写出
+                ResultBatch result = executeOrdered(timePoints, orderOf(req));
+                result.writeRows(gen);
+                if (tee != null) tee.write(result);
+                rows = result.getRowCount();
+            } else {
+                for (TimePointQuery query : timePoints) {
+                    String opTime = query.ctx().getOpTime();
+                    preparePhysicalTables(List.of(query.ctx()));
+                    rows += runQuery(query, null, rs -> {
+                        long written = 0;
+                        ResultBatch chunk;
+                        while ((chunk = ResultBatch.fromResultSet(rs, STREAM_CHUNK_SIZE)).getRowCount() > 0) {
+                            ResultBatch result = query.plan().evaluate(chunk, query.dims()).withConstant("op_time", opTime);
+                            result.writeRows(gen);
+                            gen.flush();
+                            if (tee != null) tee.write(result);
+                            written += result.getRowCount();
+                        }
+                        return written;
+                    }, 0L);
+                }
+            }
+            gen.writeEndArray();
+
+            // --- 缓存写入 ---
+            if (tee != null && rows > 0) {
                 try {
-                    List<Map<String, Object>> batchResults = executeSingleTimePoint(req, taskMetrics, opTime);
-                    finalResults.addAll(batchResults);
+                    String jsonResult = tee.finish();
+                    if (jsonResult != null) {
+                        redisCommands.setex(cacheKey, cacheTtlSeconds(plan.version()), jsonResult);
+                    }
+                } catch (Exception e) {
+                    log.warn("Redis write failed: {}", e.getMessage());
+                }
+            }
+            return rows;
+
+        } finally {
+            sample.stop(Timer.builder("metrics.req.duration")
+                    .description("API request duration")
+                    .tag("cache", cacheStatus)
+                    .register(registry));
+        }
+    }
+
+    /**
+     * 流式输出的缓存副本 (与 execute 写入的缓存格式一致)，超过上限后丢弃
+     */
+    private final class StreamTee {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private JsonGenerator gen;
+
+        StreamTee() throws IOException {
+            gen = objectMapper.getFactory().createGenerator(buffer);
+            gen.writeStartArray();
+        }
+
+        void write(ResultBatch result) throws IOException {
+            if (gen == null) return;
+            result.writeRows(gen);
+            gen.flush();
+            if (buffer.size() > cacheMaxEntryBytes) {
+                log.info("Streaming result exceeds {} bytes, skip caching", cacheMaxEntryBytes);
+                gen = null;
+                buffer.reset();
+            }
+        }
+
+        /**
+         * @return 完整的 JSON 数组，已放弃缓存时返回 null
+         */
+        String finish() throws IOException {
+            if (gen == null) return null;
+            gen.writeEndArray();
+            gen.close();
+            return buffer.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 有序执行：按 order.keys() (须为全序) 排序，返回键集游标 order.after() 之后的至多 order.limit() 行
+     * 排序键均为维度或基础聚合指标时，ORDER BY / 键集条件 / LIMIT 下推到每个账期的 SQL，只读取所需行；
+     * 多账期时各账期结果再用大小为 limit 的堆归并 (全局 Top-N 必然在各账期 Top-N 的并集中)。
+     * 按复合指标排序时全量求值后在内存中排序。不经过 Redis 结果缓存。
+     * 调用方按 plan.version() 缓存结果时传入同一规划，保证结果与该版本对应。
+     */
+    public ResultBatch executeOrdered(QueryPlan plan, OrderSpec order) {
+        return executeOrdered(timePoints(plan), order);
+    }
+
+    private ResultBatch executeOrdered(List<TimePointQuery> timePoints, OrderSpec order) {
+        Timer.Sample sample = Timer.start(registry);
+        String mode = "memory";
+        try {
+            List<ResultBatch> batches = new ArrayList<>();
+            boolean pushedDown = true;
+            for (TimePointQuery query : timePoints) {
+                String opTime = query.ctx().getOpTime();
+                try {
+                    preparePhysicalTables(List.of(query.ctx()));
+                    boolean pushable = sqlGenerator.canPushDownOrder(query.plan(), query.dims(), order.keys());
+                    pushedDown &= pushable;
+                    ResultBatch baseRows = runQuery(query, pushable ? order : null, ResultBatch::fromResultSet, ResultBatch.empty());
+                    batches.add(query.plan().evaluate(baseRows, query.dims()).withConstant("op_time", opTime));
                 } catch (Exception e) {
                     log.error("Query failed for opTime: {}", opTime, e);
                     throw new RuntimeException("Query failed for opTime: " + opTime, e);
                 }
             }
+            if (pushedDown) {
+                mode = "pushdown";
+                if (batches.size() == 1) {
+                    return batches.get(0);
+                }
+            }
 
-            // --- 缓存写入 ---
+            ResultBatch all = ResultBatch.concat(batches);
+            if (all.isEmpty()) {
+                return all;
+            }
+            if (order.limit() != null) {
+                return all.take(all.topN(order.keys(), order.after(), order.limit()));
+            }
+            ResultBatch sorted = all.take(all.sortedOrder(order.keys()));
+            int from = order.after() == null ? 0 : sorted.firstAfter(order.keys(), order.after());
+            return from == 0 ? sorted : sorted.slice(from, sorted.getRowCount());
+        } finally {
+            sample.stop(Timer.builder("metrics.req.ordered.duration")
+                    .description("Ordered (report / ranking) query duration")
+                    .tag("mode", mode)
+                    .register(registry));
+        }
+    }
+
+    /**
+     * 批量查询中单个请求的结果：rows 与 error 二选一
+     */
+    public record BatchItem(List<Map<String, Object>> rows, Exception error) {
+    }
+
+    /**
+     * 批量查询的单账期子查询 (request 为请求下标)
+     */
+    private record BatchLeg(int request, int timeIndex, TimePointQuery query, String sql) {
+    }
+
+    /**
+     * 批量执行 (仪表盘一次性提交多个查询)
+     * 1. 逐个读取 Redis 缓存，只规划未命中的请求
+     * 2. 所有子查询 (请求 × 账期) 统一规划，涉及的分区库与维度库去重后并行准备一次
+     * 3. 直接查询的子查询按去重后的 ATTACH 数量 (不超过 SQLite 上限) 分组，同组共享一个连接与一次 ATTACH，
+     *    各组、Staging 子查询、排序/Top-N 请求在虚拟线程上并行执行
+     * 4. 结果按请求分别返回，单个请求失败不影响其他请求
+     */
+    public List<BatchItem> executeBatch(List<KpiQueryRequest> reqs) {
+        Timer.Sample sample = Timer.start(registry);
+        try {
+            int n = reqs.size();
+            BatchItem[] items = new BatchItem[n];
+            String[] cacheKeys = new String[n];
+            String[] versions = new String[n];
+            ValueCommands<String, String> redisCommands = null;
             try {
-                if (!finalResults.isEmpty() && redisCommands != null) {
-                    String jsonResult = objectMapper.writeValueAsString(finalResults);
-                    redisCommands.setex(cacheKey, cacheTtlMinutes * 60, jsonResult);
-                }
+                redisCommands = redisDataSource.value(String.class);
             } catch (Exception e) {
-                log.warn("Redis write failed: {}", e.getMessage());
+                log.warn("Redis unavailable for batch: {}", e.getMessage());
             }
 
-            return finalResults;
+            // 1. 缓存读取与规划
+            Map<Integer, Exception> failures = new ConcurrentHashMap<>();
+            List<Callable<Void>> orderedTasks = new ArrayList<>();
+            List<BatchLeg> legs = new ArrayList<>();
+            ResultBatch[][] legResults = new ResultBatch[n][];
+            for (int i = 0; i < n; i++) {
+                KpiQueryRequest req = reqs.get(i);
+                QueryPlan plan = plan(req);
+                try {
+                    versions[i] = plan.version();
+                    cacheKeys[i] = plan.timePoints != null ? resultCacheKey(req, plan.version()) : null;
+                    String cachedValue = redisCommands != null && cacheKeys[i] != null ? redisCommands.get(cacheKeys[i]) : null;
+                    if (cachedValue != null) {
+                        items[i] = new BatchItem(objectMapper.readValue(cachedValue,
+                                new TypeReference<List<Map<String, Object>>>() {
+                                }), null);
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.warn("Redis read failed: {}", e.getMessage());
+                }
 
+                final int index = i;
+                if (isOrdered(req)) {
+                    // 排序/Top-N 请求需要跨账期归并，整体执行
+                    orderedTasks.add(() -> {
+                        try {
+                            items[index] = new BatchItem(executeOrdered(timePoints(plan), orderOf(req)), null);
+                        } catch (Exception e) {
+                            failures.putIfAbsent(index, e);
+                        }
+                        return null;
+                    });
+                    continue;
+                }
+                try {
+                    List<TimePointQuery> timePoints = timePoints(plan);
+                    legResults[i] = new ResultBatch[timePoints.size()];
+                    for (int t = 0; t < timePoints.size(); t++) {
+                        legs.add(new BatchLeg(i, t, timePoints.get(t), null));
+                    }
+                } catch (Exception e) {
+                    failures.put(i, e);
+                }
+            }
+
+            // 2. 共享的 IO 准备
+            List<BatchLeg> planned = legs.stream().filter(leg -> !failures.containsKey(leg.request())).toList();
+            preparePhysicalTables(planned.stream().map(leg -> leg.query().ctx()).toList());
+
+            // 3. 分组并行执行
+            List<Callable<Void>> tasks = new ArrayList<>(orderedTasks);
+            List<List<BatchLeg>> groups = new ArrayList<>();
+            List<BatchLeg> group = new ArrayList<>();
+            Set<String> groupAttach = new HashSet<>();
+            for (BatchLeg leg : planned) {
+                QueryContext ctx = leg.query().ctx();
+                if (ctx.getPartitionFileCount() > ATTACH_THRESHOLD) {
+                    tasks.add(() -> {
+                        try {
+                            ResultBatch baseRows = runQuery(leg.query(), null, ResultBatch::fromResultSet, ResultBatch.empty());
+                            legResults[leg.request()][leg.timeIndex()] = evaluateLeg(leg.query(), baseRows);
+                        } catch (Exception e) {
+                            failures.putIfAbsent(leg.request(), e);
+                        }
+                        return null;
+                    });
+                    continue;
+                }
+                String sql = sqlGenerator.generateSql(leg.query().plan(), ctx, leg.query().dims());
+                if (sql.isEmpty()) {
+                    legResults[leg.request()][leg.timeIndex()] = evaluateLeg(leg.query(), ResultBatch.empty());
+                    continue;
+                }
+                Set<String> attach = attachNames(ctx);
+                Set<String> merged = new HashSet<>(groupAttach);
+                merged.addAll(attach);
+                if (!group.isEmpty() && merged.size() > MAX_ATTACHED) {
+                    groups.add(group);
+                    group = new ArrayList<>();
+                    merged = attach;
+                }
+                group.add(new BatchLeg(leg.request(), leg.timeIndex(), leg.query(), sql));
+                groupAttach = merged;
+            }
+            if (!group.isEmpty()) groups.add(group);
+
+            for (List<BatchLeg> g : groups) {
+                tasks.add(() -> {
+                    List<SQLiteExecutor.SharedResult<ResultBatch>> results;
+                    try {
+                        results = sqliteExecutor.executeShared(
+                                g.stream().map(leg -> leg.query().ctx()).toList(),
+                                g.stream().map(BatchLeg::sql).toList(),
+                                ResultBatch::fromResultSet);
+                    } catch (Exception e) {
+                        g.forEach(leg -> failures.putIfAbsent(leg.request(), e));
+                        return null;
+                    }
+                    for (int k = 0; k < g.size(); k++) {
+                        BatchLeg leg = g.get(k);
+                        try {
+                            if (results.get(k).error() != null) throw results.get(k).error();
+                            legResults[leg.request()][leg.timeIndex()] = evaluateLeg(leg.query(), results.get(k).value());
+                        } catch (Exception e) {
+                            failures.putIfAbsent(leg.request(), e);
+                        }
+                    }
+                    return null;
+                });
+            }
+            log.info("Batch of {} queries: {} sub-queries in {} shared groups", n, planned.size(), groups.size());
+
+            try {
+                // 各任务自行记录失败，invokeAll 返回时全部已完成
+                vThreadExecutor.invokeAll(tasks);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Batch query interrupted", e);
+            }
+
+            // 4. 按请求汇总结果并写回缓存
+            for (int i = 0; i < n; i++) {
+                if (items[i] != null) continue;
+                if (failures.containsKey(i)) {
+                    log.error("Batch query {} failed", i, failures.get(i));
+                    items[i] = new BatchItem(null, failures.get(i));
+                    continue;
+                }
+                ResultBatch rows = ResultBatch.concat(Arrays.asList(legResults[i]));
+                items[i] = new BatchItem(rows, null);
+                try {
+                    if (!rows.isEmpty() && redisCommands != null && cacheKeys[i] != null) {
+                        redisCommands.setex(cacheKeys[i], cacheTtlSeconds(versions[i]), objectMapper.writeValueAsString(rows));
+                    }
+                } catch (Exception e) {
+                    log.warn("Redis write failed: {}", e.getMessage());
+                }
+            }
+            return Arrays.asList(items);
         } finally {
-            // 3. 停止计时并记录指标
-            sample.stop(Timer.builder("metrics.req.duration")
-                    .description("API request duration")
-                    .tag("cache", cacheStatus) // 关键标签：区分缓存命中与否
+            sample.stop(Timer.builder("metrics.req.batch.duration")
+                    .description("Batch API request duration")
                     .register(registry));
         }
     }
 
-    private List<Map<String, Object>> executeSingleTimePoint(
+    private static ResultBatch evaluateLeg(TimePointQuery query, ResultBatch baseRows) {
+        return query.plan().evaluate(baseRows, query.dims()).withConstant("op_time", query.ctx().getOpTime());
+    }
+
+    /**
+     * 查询需要 ATTACH 的库 (分区库别名 + 维度库)
+     */
+    private static Set<String> attachNames(QueryContext ctx) {
+        Set<String> names = new HashSet<>();
+        ctx.getRequiredTables().forEach(req -> names.add(ctx.getAlias(req.kpiId(), req.opTime())));
+        ctx.getDimensionTablePaths().keySet().forEach(code -> names.add("dim_db_" + code));
+        return names;
+    }
+
+    /**
+     * 趋势查询：按 opTimeRange (或 opTimeArray) 的全部账期输出紧凑序列
+     * 1. 先按分区目录过滤存在的物理表 (按目录列表，不逐个探测 S3)，没有任何数据的账期直接跳过
+     * 2. 所有账期的基础聚合合并为一次扫描：SQL 按维度分组，每个 (指标, 账期) 一列；
+     *    列数超过 TREND_MAX_COLUMNS 时按账期分段扫描
+     * 3. 各账期的求值计划在同一份基础聚合上求值，结果按维度组合写入序列，指标值按账期对齐
+     */
+    public KpiTrendResult executeTrend(KpiQueryRequest req) {
+        Timer.Sample sample = Timer.start(registry);
+        try {
+            List<String> opTimes = req.opTimeRange() != null ? req.opTimeRange().expand() : req.opTimeArray();
+            if (opTimes == null || opTimes.isEmpty()) {
+                throw new IllegalArgumentException("opTimeRange or opTimeArray is required");
+            }
+            List<MetricDefinition> taskMetrics = expandMetrics(req);
+            List<String> dims = req.dimCodeArray() != null ? req.dimCodeArray() : List.of();
+
+            // 1. 分区目录：只保留存在的物理表，当期没有任何物理表的账期跳过
+            preloadPartitions(opTimes);
+            QueryContext all = newContext(req, opTimes.get(opTimes.size() - 1));
+            for (String opTime : opTimes) {
+                for (MetricDefinition metric : taskMetrics) {
+                    parser.resolveDependencies(metric, opTime, all);
+                }
+            }
+            Set<PhysicalTableReq> available = storageManager.filterAvailable(all.getRequiredTables());
+            Set<String> presentTimes = available.stream().map(PhysicalTableReq::opTime).collect(Collectors.toSet());
+            List<String> present = opTimes.stream().filter(presentTimes::contains).toList();
+            log.info("Trend query: {} of {} opTimes have data", present.size(), opTimes.size());
+
+            // 2. 按列数分段
+            List<EvaluationPlan> plans = present.stream().map(t -> planner.plan(taskMetrics, t)).toList();
+            List<List<Integer>> chunks = new ArrayList<>();
+            Set<BaseAggregate> chunkColumns = new HashSet<>();
+            for (int t = 0; t < present.size(); t++) {
+                Set<BaseAggregate> merged = new HashSet<>(chunkColumns);
+                merged.addAll(plans.get(t).getBaseAggregates());
+                if (chunks.isEmpty() || merged.size() > TREND_MAX_COLUMNS) {
+                    chunks.add(new ArrayList<>());
+                    merged = new HashSet<>(plans.get(t).getBaseAggregates());
+                }
+                chunks.get(chunks.size() - 1).add(t);
+                chunkColumns = merged;
+            }
+
+            List<String> kpis = new ArrayList<>(new LinkedHashSet<>(plans.isEmpty()
+                    ? taskMetrics.stream().map(MetricDefinition::id).toList()
+                    : plans.get(0).getMetricIds()));
+            Map<List<Object>, KpiTrendResult.Series> series = new LinkedHashMap<>();
+
+            for (List<Integer> chunk : chunks) {
+                QueryContext ctx = newContext(req, present.get(chunk.get(chunk.size() - 1)));
+                ctx.setIncludeTarget(false);
+                Set<BaseAggregate> bases = new LinkedHashSet<>();
+                for (int t : chunk) {
+                    for (MetricDefinition metric : taskMetrics) {
+                        parser.resolveDependencies(metric, present.get(t), ctx);
+                    }
+                    bases.addAll(plans.get(t).getBaseAggregates());
+                }
+                ctx.getRequiredTables().retainAll(available);
+                preparePhysicalTables(List.of(ctx));
+
+                // 只做基础聚合的合并计划：一次扫描得到段内所有账期的基础聚合
+                EvaluationPlan scan = new EvaluationPlan(new ArrayList<>(bases), List.of(), List.of(), new int[0], 0);
+                ResultBatch base = runQuery(new TimePointQuery(ctx, scan, dims), null, ResultBatch::fromResultSet, ResultBatch.empty());
+
+                for (int t : chunk) {
+                    ResultBatch values = plans.get(t).evaluate(base, dims);
+                    appendSeries(series, values, dims, kpis, t, present.size());
+                }
+            }
+
+            return new KpiTrendResult(present, kpis, dims, new ArrayList<>(series.values()), "0000", "");
+        } finally {
+            sample.stop(Timer.builder("metrics.req.trend.duration")
+                    .description("Trend query duration")
+                    .register(registry));
+        }
+    }
+
+    /**
+     * 将某账期的求值结果写入序列 (按维度组合归并，指标值写入第 timeIndex 个位置)
+     */
+    private static void appendSeries(Map<List<Object>, KpiTrendResult.Series> series, ResultBatch values,
+                                     List<String> dims, List<String> kpis, int timeIndex, int timeCount) {
+        int[] dimColumns = dims.stream().mapToInt(values::columnIndex).toArray();
+        int[] descColumns = dims.stream().mapToInt(d -> values.columnIndex(d + "_desc")).toArray();
+        int[] kpiColumns = kpis.stream().mapToInt(values::columnIndex).toArray();
+        for (int r = 0; r < values.getRowCount(); r++) {
+            List<Object> key = new ArrayList<>(dimColumns.length);
+            for (int c : dimColumns) {
+                key.add(values.column(c).get(r));
+            }
+            final int row = r;
+            KpiTrendResult.Series s = series.computeIfAbsent(key, k -> {
+                Map<String, Object> dimValues = new LinkedHashMap<>();
+                for (int d = 0; d < dims.size(); d++) {
+                    dimValues.put(dims.get(d), k.get(d));
+                    dimValues.put(dims.get(d) + "_desc", descColumns[d] < 0 ? null : values.column(descColumns[d]).get(row));
+                }
+                Map<String, List<Double>> kpiValues = new LinkedHashMap<>();
+                for (String kpi : kpis) {
+                    kpiValues.put(kpi, new ArrayList<>(Collections.nCopies(timeCount, (Double) null)));
+                }
+                return new KpiTrendResult.Series(dimValues, kpiValues);
+            });
+            for (int k = 0; k < kpiColumns.length; k++) {
+                ResultBatch.Column column = values.column(kpiColumns[k]);
+                if (!column.isNull(r)) {
+                    s.values().get(kpis.get(k)).set(timeIndex, column.getDouble(r));
+                }
+            }
+        }
+    }
+
+    /**
+     * 请求是否要求排序或 Top-N (sortOptions / limit)
+     */
+    private static boolean isOrdered(KpiQueryRequest req) {
+        return req.limit() != null || (req.sortOptions() != null && !req.sortOptions().isEmpty());
+    }
+
+    private static OrderSpec orderOf(KpiQueryRequest req) {
+        if (req.limit() != null && req.limit() <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + req.limit());
+        }
+        List<String> dims = req.dimCodeArray() != null ? req.dimCodeArray() : List.of();
+        return new OrderSpec(SortKey.withTiebreakers(SortKey.parse(req.sortOptions()), dims), null, req.limit());
+    }
+
+    private ResultBatch executeSingleTimePoint(TimePointQuery query) {
+        // 2. IO 准备 (并行下载 KPI表 和 维度表)
+        preparePhysicalTables(List.of(query.ctx()));
+        ResultBatch baseRows = runQuery(query, null, ResultBatch::fromResultSet, ResultBatch.empty());
+
+        // 4. 复合/虚拟指标在 Java 中基于基础聚合求值
+        return query.plan().evaluate(baseRows, query.dims()).withConstant("op_time", query.ctx().getOpTime());
+    }
+
+    /**
+     * 单账期查询的准备结果：上下文 (物理表已就绪)、求值计划、输出维度
+     */
+    private record TimePointQuery(QueryContext ctx, EvaluationPlan plan, List<String> dims) {
+    }
+
+    /**
+     * 按 opTimeArray 顺序规划各账期查询 (不含 IO)
+     */
+    private List<TimePointQuery> planTimePoints(KpiQueryRequest req) {
+        List<MetricDefinition> taskMetrics = expandMetrics(req);
+        preloadPartitions(req.opTimeArray());
+        List<TimePointQuery> timePoints = new ArrayList<>(req.opTimeArray().size());
+        for (String opTime : req.opTimeArray()) {
+            timePoints.add(planTimePoint(req, taskMetrics, opTime));
+        }
+        return timePoints;
+    }
+
+    /**
+     * 一次读取请求账期及其同比、环比账期的宽表分区登记，依赖解析时不再逐账期查询元数据
+     */
+    private void preloadPartitions(List<String> opTimes) {
+        Set<String> times = new LinkedHashSet<>();
+        for (String opTime : opTimes) {
+            times.add(opTime);
+            times.add(parser.calculateTime(opTime, "lastYear"));
+            times.add(parser.calculateTime(opTime, "lastCycle"));
+        }
+        metadataRepo.preloadPartitions(times);
+    }
+
+    /**
+     * 单账期查询规划 (不含 IO)：维度、过滤条件、依赖解析与求值计划
+     */
+    private TimePointQuery planTimePoint(
             KpiQueryRequest req,
             List<MetricDefinition> taskMetrics,
             String opTime) {
 
+        QueryContext ctx = newContext(req, opTime);
+
+        // 1. 解析阶段
+        for (MetricDefinition metric : taskMetrics) {
+            parser.resolveDependencies(metric, opTime, ctx);
+        }
+
+        List<String> dims = req.dimCodeArray() != null ? req.dimCodeArray() : new ArrayList<>();
+        return new TimePointQuery(ctx, planner.plan(taskMetrics, opTime), dims);
+    }
+
+    private QueryContext newContext(KpiQueryRequest req, String opTime) {
         QueryContext ctx = new QueryContext();
         ctx.setOpTime(opTime);
         ctx.setIncludeHistorical(req.includeHistoricalData());
@@ -144,58 +833,83 @@ public class UnifiedMetricEngine {
                 ctx.addDimCode(dim);
             }
         }
+        applyDimConditions(req, ctx);
+        return ctx;
+    }
 
-        // 1. 解析阶段
-        for (MetricDefinition metric : taskMetrics) {
-            parser.resolveDependencies(metric, opTime, ctx);
-        }
-
-        // 2. IO 准备 (并行下载 KPI表 和 维度表)
-        preparePhysicalTables(ctx);
-
-        // 3. SQL 生成与执行
-        int tableCount = ctx.getRequiredTables().size();
-        List<String> dims = req.dimCodeArray() != null ? req.dimCodeArray() : new ArrayList<>();
+    /**
+     * 3. SQL 生成与执行 (SQLite 只计算基础聚合)，结果游标交给 handler 处理
+     *
+     * @param order      排序/键集分页/LIMIT，为空表示不排序
+     * @param emptyValue 无物理表 (SQL 为空) 时的返回值
+     */
+    private <T> T runQuery(TimePointQuery query, OrderSpec order, SQLiteExecutor.ResultSetHandler<T> handler, T emptyValue) {
+        QueryContext ctx = query.ctx();
+        EvaluationPlan plan = query.plan();
+        List<String> dims = query.dims();
 
-        List<Map<String, Object>> results;
-        if (tableCount > ATTACH_THRESHOLD) {
-            results = sqliteExecutor.executeWithStaging(ctx, dims,
-                    (tableName) -> sqlGenerator.generateSqlWithStaging(taskMetrics, ctx, dims, tableName));
-        } else {
-            String sql = sqlGenerator.generateSql(taskMetrics, ctx, dims);
-            results = sqliteExecutor.executeQuery(ctx, sql);
+        if (ctx.getPartitionFileCount() > ATTACH_THRESHOLD) {
+            return sqliteExecutor.executeWithStaging(ctx, dims,
+                    (tableReq) -> sqlGenerator.generatePartitionAggregate(tableReq, ctx),
+                    (tableName) -> sqlGenerator.generateSqlWithStaging(plan, ctx, dims, tableName, order),
+                    handler);
+        }
+        String sql = sqlGenerator.generateSql(plan, ctx, dims, order);
+        if (sql.isEmpty()) {
+            return emptyValue;
         }
+        return sqliteExecutor.executeQuery(ctx, sql, handler);
+    }
 
-        results.forEach(row -> row.put("op_time", opTime));
-        return results;
+    /**
+     * 维度过滤条件: "4,10" -> city_id IN ('4', '10')，下推到每个分区扫描
+     */
+    private void applyDimConditions(KpiQueryRequest req, QueryContext ctx) {
+        if (req.dimConditionArray() == null) return;
+        for (KpiQueryRequest.DimCondition cond : req.dimConditionArray()) {
+            String dim = cond.dimConditionCode();
+            if (dim == null || !dim.matches("^[a-zA-Z0-9_]+$")) {
+                throw new IllegalArgumentException("Invalid dimension condition code: " + dim);
+            }
+            if (cond.dimConditionVal() == null || cond.dimConditionVal().isBlank()) {
+                continue;
+            }
+            List<String> values = Arrays.stream(cond.dimConditionVal().split(","))
+                    .map(String::trim)
+                    .filter(v -> !v.isEmpty())
+                    .toList();
+            ctx.addDimFilter(dim, values);
+        }
     }
 
-    private void preparePhysicalTables(QueryContext ctx) {
+    /**
+     * 并行下载一组查询所需的 KPI 表与维度表，批量查询时相同的分区/维度库只准备一次
+     */
+    private void preparePhysicalTables(List<QueryContext> ctxs) {
         List<Callable<Void>> tasks = new ArrayList<>();
 
-        // A. 下载 KPI 数据表
-        for (PhysicalTableReq req : ctx.getRequiredTables()) {
+        // A. 下载 KPI 数据表 (去重)
+        Set<PhysicalTableReq> distinctTables = new LinkedHashSet<>();
+        ctxs.forEach(ctx -> distinctTables.addAll(ctx.getRequiredTables()));
+        for (PhysicalTableReq req : distinctTables) {
             tasks.add(() -> {
                 storageManager.downloadAndPrepare(req);
-                String alias = "db_" + Math.abs((req.kpiId() + req.opTime()).hashCode());
-                ctx.registerAlias(req, alias);
                 return null;
             });
         }
 
         // B. 任务：下载 维度表 (新增逻辑)
         // 提取所有涉及的 compDimCode
-        Set<String> distinctCompDimCodes = ctx.getRequiredTables().stream()
+        Set<String> distinctCompDimCodes = distinctTables.stream()
                 .map(PhysicalTableReq::compDimCode)
                 .filter(Objects::nonNull)
                 .collect(Collectors.toSet());
+        Map<String, String> dimPaths = new ConcurrentHashMap<>();
 
         for (String compDimCode : distinctCompDimCodes) {
             tasks.add(() -> {
                 // 调用 StorageManager 下载维度表
-                String localPath = storageManager.downloadAndCacheDimDB(compDimCode);
-                // 注册到 Context，供 Executor 使用
-                ctx.addDimensionTablePath(compDimCode, localPath);
+                dimPaths.put(compDimCode, storageManager.downloadAndCacheDimDB(compDimCode));
                 return null;
             });
         }
@@ -207,13 +921,31 @@ public class UnifiedMetricEngine {
         } catch (Exception e) {
             throw new RuntimeException("Failed to prepare tables", e);
         }
+
+        // 注册到 Context，供 Executor 使用
+        for (QueryContext ctx : ctxs) {
+            for (PhysicalTableReq req : ctx.getRequiredTables()) {
+                // 别名按分区文件生成，同一宽表分区的多个指标共用一次 ATTACH
+                ctx.registerAlias(req, "db_" + Math.abs(req.toTableName().hashCode()));
+                if (storageManager.isDimEncoded(req)) {
+                    ctx.markDimEncoded(req);
+                }
+                if (storageManager.isOptimizedLayout(req)) {
+                    ctx.markOptimizedLayout(req);
+                }
+                if (req.compDimCode() != null) {
+                    ctx.addDimensionTablePath(req.compDimCode(), dimPaths.get(req.compDimCode()));
+                }
+            }
+        }
     }
 
-    private List<MetricDefinition> expandMetrics(List<String> kpiArray, Boolean includeHistorical) {
+    private List<MetricDefinition> expandMetrics(KpiQueryRequest req) {
         List<MetricDefinition> tasks = new ArrayList<>();
-        boolean loadHistory = Boolean.TRUE.equals(includeHistorical);
+        boolean loadHistory = Boolean.TRUE.equals(req.includeHistoricalData());
+        List<DerivedOutput> derived = DerivedOutput.parse(req.derivedArray());
 
-        for (String kpiInput : kpiArray) {
+        for (String kpiInput : req.kpiArray()) {
             MetricDefinition baseDef;
             if (kpiInput.startsWith("${")) {
                 String id = "V_" + Math.abs(kpiInput.hashCode());
@@ -223,16 +955,112 @@ public class UnifiedMetricEngine {
             }
             tasks.add(baseDef);
 
-            if (loadHistory && baseDef.type() != MetricType.VIRTUAL) {
+            if (baseDef.type() == MetricType.VIRTUAL) {
+                continue;
+            }
+            if (loadHistory) {
                 tasks.add(new MetricDefinition(baseDef.id() + "_lastYear", "${" + baseDef.id() + ".lastYear}",
                         MetricType.COMPOSITE, baseDef.aggFunc(), baseDef.compDimCode()));
                 tasks.add(new MetricDefinition(baseDef.id() + "_lastCycle", "${" + baseDef.id() + ".lastCycle}",
                         MetricType.COMPOSITE, baseDef.aggFunc(), baseDef.compDimCode()));
             }
+            // 派生输出与历史值引用同一组基础聚合，不增加扫描
+            for (DerivedOutput output : derived) {
+                tasks.add(new MetricDefinition(baseDef.id() + "_" + output.suffix(), output.expression(baseDef.id()),
+                        MetricType.COMPOSITE, baseDef.aggFunc(), baseDef.compDimCode()));
+            }
         }
         return tasks;
     }
 
+    /**
+     * 结果版本标识 (用于 HTTP ETag)：请求形状 + 读取的全部指标定义、物理分区与维度表的版本
+     * 只做查询规划 (不含 IO) 和分区目录查询 (有缓存)，不执行 SQLite、不读取 Redis 结果。
+     * 任一分区重新发布 (S3 ETag 变化) 或指标定义变化，标识随之变化。
+     * 随后还要执行查询时使用 {@link #plan}，规划结果可直接复用。
+     */
+    public String versionTag(KpiQueryRequest req) {
+        return versionTag(req, planTimePoints(req));
+    }
+
+    private String versionTag(KpiQueryRequest req, List<TimePointQuery> timePoints) {
+        Timer.Sample sample = Timer.start(registry);
+        try {
+            StringBuilder sb = new StringBuilder(generateCacheKey(req));
+
+            // 指标定义 (含间接依赖的复合指标)
+            Map<String, MetricDefinition> definitions = new TreeMap<>();
+            for (MetricDefinition metric : expandMetrics(req)) {
+                collectDefinitions(metric, definitions);
+            }
+            definitions.values().forEach(def -> sb.append("|def:").append(def));
+
+            // 物理分区与维度表 (规划得到，按 Key 排序保证确定性)
+            Set<PhysicalTableReq> tables = new LinkedHashSet<>();
+            for (TimePointQuery query : timePoints) {
+                tables.addAll(query.ctx().getRequiredTables());
+            }
+            Map<String, String> versions = new TreeMap<>();
+            Set<String> compDimCodes = new TreeSet<>();
+            for (PhysicalTableReq table : tables) {
+                versions.put(table.kpiId() + "@" + table.opTime() + "@" + table.compDimCode(),
+                        storageManager.partitionVersion(table));
+                compDimCodes.add(table.compDimCode());
+            }
+            for (String compDimCode : compDimCodes) {
+                versions.put("dim@" + compDimCode, storageManager.dimVersion(compDimCode));
+            }
+            versions.forEach((key, version) -> sb.append("|").append(key).append("=").append(version));
+
+            return digest(sb.toString());
+        } finally {
+            sample.stop(Timer.builder("metrics.req.version.duration")
+                    .description("Result version (ETag) lookup duration")
+                    .register(registry));
+        }
+    }
+
+    /**
+     * 结果缓存 Key：规范化请求 + 版本标识
+     * 分区重新发布或指标定义变化后版本标识随之变化，旧版本的缓存结果不再命中，
+     * 相同版本标识 (ETag) 始终对应同一版本数据计算出的结果。
+     * 版本未知时使用无版本 Key (TTL 较短，见 cacheTtlSeconds)，元数据短暂不可用时结果缓存仍然生效。
+     */
+    private String resultCacheKey(KpiQueryRequest req, String version) {
+        return version == null ? generateCacheKey(req) + "unversioned" : generateCacheKey(req) + "version:" + version;
+    }
+
+    private long cacheTtlSeconds(String version) {
+        return version == null ? unversionedTtlSeconds : cacheTtlMinutes * 60;
+    }
+
+    /**
+     * 查询标识：规范化请求 (与结果缓存 Key 相同的规则) 的摘要，相同查询的订阅共享同一标识
+     */
+    public String queryId(KpiQueryRequest req) {
+        return digest(generateCacheKey(req));
+    }
+
+    private static String digest(String text) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(text.getBytes(StandardCharsets.UTF_8)), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void collectDefinitions(MetricDefinition metric, Map<String, MetricDefinition> definitions) {
+        if (definitions.putIfAbsent(metric.id(), metric) != null || metric.type() == MetricType.PHYSICAL) {
+            return;
+        }
+        List<MetricExpression.Reference> refs = new ArrayList<>();
+        compiler.compile(metric.expression()).collectReferences(refs::add);
+        for (MetricExpression.Reference ref : refs) {
+            collectDefinitions(metadataRepo.findById(ref.kpiId()), definitions);
+        }
+    }
+
     /**
      * 生成确定性的缓存 Key
      */
@@ -261,6 +1089,17 @@ public class UnifiedMetricEngine {
             sb.append("conds:").append(req.dimConditionArray().hashCode()).append("|");
         }
 
+        // 排序与 Top-N (按请求顺序，顺序决定排序优先级)
+        if (req.sortOptions() != null && !req.sortOptions().isEmpty()) {
+            sb.append("sort:").append(req.sortOptions()).append("|");
+        }
+        if (req.limit() != null) {
+            sb.append("limit:").append(req.limit()).append("|");
+        }
+        if (req.derivedArray() != null && !req.derivedArray().isEmpty()) {
+            sb.append("derived:").append(String.join(",", new TreeSet<>(req.derivedArray()))).append("|");
+        }
+
         // 标志位
         sb.append("hist:").append(req.includeHistoricalData()).append("|");
         sb.append("target:").append(req.includeTargetData());
@@ -0,0 +1,189 @@
+package com.asiainfo.metrics.v2.core.engine;
+
+import com.asiainfo.metrics.model.http.KpiQueryPageResult;
+import com.asiainfo.metrics.model.http.KpiQueryRequest;
+import com.asiainfo.metrics.service.KpiReportEngine;
+import com.asiainfo.metrics.v2.core.model.OrderSpec;
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
+import com.asiainfo.metrics.v2.core.model.SortKey;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 报表分页查询引擎 (基于 v2 统一指标引擎)
+ * - 按 sortOptions 排序，维度与 op_time 作为兜底排序键，保证分页稳定
+ * - 键集分页：游标为上一页最后一行的排序键取值，不使用 OFFSET
+ * - 第一页计算完整排序结果并在进程内缓存 (LRU + TTL)，后续页在缓存上二分定位，不重新扫描分区
+ * - 缓存与游标都带结果版本 (versionTag)：数据发布后旧版本的排序结果不再命中，游标之后的页按新版本重新排序并更新总数
+ * - 同一版本的缓存失效时用键集条件 + LIMIT 只读取下一页，总数沿用游标中记录的值
+ */
+@ApplicationScoped
+public class UnifiedReportEngine implements KpiReportEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(UnifiedReportEngine.class);
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    @Inject
+    UnifiedMetricEngine engine;
+    @Inject
+    ObjectMapper objectMapper;
+
+    @ConfigProperty(name = "kpi.report.max-page-size", defaultValue = "1000")
+    int maxPageSize;
+
+    @ConfigProperty(name = "kpi.report.cache.max-entries", defaultValue = "32")
+    int cacheMaxEntries;
+
+    @ConfigProperty(name = "kpi.report.cache.ttl-seconds", defaultValue = "300")
+    long cacheTtlSeconds;
+
+    private final ExecutorService vThreadExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // 排序后的完整结果，按访问顺序淘汰
+    private final Map<SortedKey, CachedResult> sortedCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SortedKey, CachedResult> eldest) {
+            return size() > cacheMaxEntries;
+        }
+    };
+
+    /**
+     * 排序结果的缓存 Key：去掉分页参数的请求 + 完整排序键 (sortOptions 的顺序有意义，不能只比较 Map) + 结果版本
+     */
+    private record SortedKey(KpiQueryRequest request, List<SortKey> keys, String version) {
+    }
+
+    private record CachedResult(ResultBatch rows, long expiresAt) {
+    }
+
+    /**
+     * 分页游标：排序键取值 + 第一页计算出的总数 + 计算时的结果版本 (旧游标为 null)
+     */
+    record Cursor(List<Object> keys, long total, String version) {
+    }
+
+    @Override
+    public CompletableFuture<KpiQueryPageResult> queryReportDataAsync(KpiQueryRequest request) {
+        return CompletableFuture.supplyAsync(() -> queryReportData(request), vThreadExecutor);
+    }
+
+    @Override
+    public KpiQueryPageResult queryReportData(KpiQueryRequest request) {
+        int pageSize = request.pageSize() == null ? DEFAULT_PAGE_SIZE : request.pageSize();
+        if (pageSize <= 0 || pageSize > maxPageSize) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + maxPageSize);
+        }
+        List<String> dims = request.dimCodeArray() != null ? request.dimCodeArray() : List.of();
+        List<SortKey> keys = SortKey.withTiebreakers(SortKey.parse(request.sortOptions()), dims);
+        Cursor cursor = decodeCursor(request.pageCursor());
+        if (cursor != null && cursor.keys().size() != keys.size()) {
+            throw new IllegalArgumentException("pageCursor does not match sortOptions");
+        }
+
+        // 只规划一次：版本与执行的账期查询来自同一规划，重新发布不会让新数据缓存在旧版本下
+        // 版本未知 (分区目录不可用) 时不使用进程内缓存，也无法判断游标是否过期
+        UnifiedMetricEngine.QueryPlan plan = engine.plan(request);
+        String version = plan.version();
+        SortedKey cacheKey = version == null ? null : new SortedKey(new KpiQueryRequest(request.kpiArray(),
+                request.opTimeArray(), request.dimCodeArray(), request.dimConditionArray(), request.sortOptions(),
+                request.includeHistoricalData(), request.includeTargetData(), null, null, null, null,
+                request.derivedArray()), keys, version);
+        ResultBatch sorted = cacheKey == null ? null : getCached(cacheKey);
+        boolean staleCursor = cursor != null && version != null && !version.equals(cursor.version());
+        if (sorted == null && (cursor == null || staleCursor)) {
+            // 第一页，或游标之后数据已重新发布：按当前版本重新排序，总数随之更新
+            sorted = engine.executeOrdered(plan, new OrderSpec(keys, null, null));
+            if (cacheKey != null) {
+                putCached(cacheKey, sorted);
+            }
+        }
+
+        ResultBatch page;
+        boolean hasNext;
+        long total;
+        if (sorted != null) {
+            int from = cursor == null ? 0 : sorted.firstAfter(keys, cursor.keys());
+            int to = Math.min(sorted.getRowCount(), from + pageSize);
+            page = sorted.slice(from, to);
+            hasNext = to < sorted.getRowCount();
+            total = sorted.getRowCount();
+        } else {
+            // 排序结果已淘汰：键集条件只读取游标之后的一页，多取一行判断是否还有下一页
+            log.info("Report cache MISS with cursor, running keyset query");
+            ResultBatch rows = engine.executeOrdered(plan, new OrderSpec(keys, cursor.keys(), pageSize + 1));
+            hasNext = rows.getRowCount() > pageSize;
+            page = hasNext ? rows.slice(0, pageSize) : rows;
+            total = cursor.total();
+        }
+
+        String nextCursor = hasNext && !page.isEmpty()
+                ? encodeCursor(new Cursor(page.keyOf(page.getRowCount() - 1, keys), total,
+                        cursor != null && sorted == null ? cursor.version() : version))
+                : null;
+        return KpiQueryPageResult.page(page, hasNext, total, new LinkedHashSet<>(page.getColumnNames()), nextCursor);
+    }
+
+    private ResultBatch getCached(SortedKey key) {
+        synchronized (sortedCache) {
+            CachedResult cached = sortedCache.get(key);
+            if (cached == null) return null;
+            if (cached.expiresAt() < System.currentTimeMillis()) {
+                sortedCache.remove(key);
+                return null;
+            }
+            return cached.rows();
+        }
+    }
+
+    private void putCached(SortedKey key, ResultBatch rows) {
+        synchronized (sortedCache) {
+            sortedCache.put(key, new CachedResult(rows, System.currentTimeMillis() + cacheTtlSeconds * 1000));
+        }
+    }
+
+    /**
+     * 游标编码为 URL 安全的 Base64 JSON：{"k": [排序键取值...], "t": 总数, "v": 结果版本}
+     */
+    String encodeCursor(Cursor cursor) {
+        try {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("k", cursor.keys());
+            json.put("t", cursor.total());
+            if (cursor.version() != null) {
+                json.put("v", cursor.version());
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(objectMapper.writeValueAsBytes(json));
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to encode page cursor", e);
+        }
+    }
+
+    Cursor decodeCursor(String token) {
+        if (token == null || token.isBlank()) return null;
+        try {
+            Map<String, Object> json = objectMapper.readValue(Base64.getUrlDecoder().decode(token),
+                    new TypeReference<Map<String, Object>>() {
+                    });
+            List<Object> keys = new ArrayList<>((List<?>) json.get("k"));
+            Object version = json.get("v");
+            return new Cursor(keys, ((Number) json.get("t")).longValue(), version == null ? null : version.toString());
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid pageCursor", e);
+        }
+    }
+}
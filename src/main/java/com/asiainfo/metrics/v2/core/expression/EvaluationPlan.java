@@ -0,0 +1,127 @@
+package com.asiainfo.metrics.v2.core.expression;
+
+import com.asiainfo.metrics.v2.core.model.BaseAggregate;
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 指标求值计划 (单个账期)
+ *
+ * 槽位布局：[0, B) 为 SQL 输出的基础聚合，[B, B + N) 为按拓扑层排好序的指标节点。
+ * - baseAggregates: SQL 需要输出的基础聚合列，顺序即槽位下标
+ * - nodes: 复合/虚拟指标节点 (指标 × 账期) 已绑定槽位的表达式，下层节点先求值
+ * - outputSlots: 各输出指标对应的节点槽位
+ * 被多个指标共享的中间复合指标在每行只求值一次。
+ * SQLite 只负责按维度算基础聚合，复合/虚拟指标的算术在 Java 中完成。
+ */
+public class EvaluationPlan {
+
+    private final List<BaseAggregate> baseAggregates;
+    private final MetricExpression[] nodes;
+    private final List<String> metricIds;
+    private final int[] outputSlots;
+    private final int layerCount;
+
+    public EvaluationPlan(List<BaseAggregate> baseAggregates, List<MetricExpression> nodes,
+                          List<String> metricIds, int[] outputSlots, int layerCount) {
+        this.baseAggregates = List.copyOf(baseAggregates);
+        this.nodes = nodes.toArray(new MetricExpression[0]);
+        this.metricIds = List.copyOf(metricIds);
+        this.outputSlots = outputSlots.clone();
+        this.layerCount = layerCount;
+    }
+
+    public List<BaseAggregate> getBaseAggregates() {
+        return baseAggregates;
+    }
+
+    public List<String> getMetricIds() {
+        return metricIds;
+    }
+
+    /**
+     * 输出指标直接等于某个基础聚合 (如物理指标本身) 时返回该列名，否则返回 null
+     * 用于判断按该指标排序能否下推到 SQL
+     */
+    public String baseColumnOf(String metricId) {
+        int m = metricIds.indexOf(metricId);
+        if (m < 0) return null;
+        int node = outputSlots[m] - baseAggregates.size();
+        if (node >= 0 && nodes[node] instanceof MetricExpression.Slot slot && slot.index() < baseAggregates.size()) {
+            return baseAggregates.get(slot.index()).columnName();
+        }
+        return null;
+    }
+
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    public int getLayerCount() {
+        return layerCount;
+    }
+
+    /**
+     * 对 SQL 返回的基础聚合逐行求值，输入输出均为列式结果集
+     * 输出列顺序：维度..., 指标..., 维度描述...
+     */
+    public ResultBatch evaluate(ResultBatch base, List<String> dims) {
+        int baseCount = baseAggregates.size();
+        ResultBatch.Column[] baseColumns = new ResultBatch.Column[baseCount];
+        for (int i = 0; i < baseCount; i++) {
+            int c = base.columnIndex(baseAggregates.get(i).columnName());
+            baseColumns[i] = c < 0 ? null : base.column(c);
+        }
+        int[] dimColumns = dims.stream().mapToInt(base::columnIndex).toArray();
+        int[] descColumns = dims.stream().mapToInt(d -> base.columnIndex(d + "_desc")).toArray();
+
+        // 同一指标重复请求时只输出一列
+        Map<String, Integer> metricSlots = new LinkedHashMap<>();
+        for (int m = 0; m < metricIds.size(); m++) {
+            metricSlots.putIfAbsent(metricIds.get(m), outputSlots[m]);
+        }
+        int[] outSlots = metricSlots.values().stream().mapToInt(Integer::intValue).toArray();
+
+        List<String> outputNames = new ArrayList<>(dims.size() * 2 + outSlots.length);
+        outputNames.addAll(dims);
+        outputNames.addAll(metricSlots.keySet());
+        dims.forEach(d -> outputNames.add(d + "_desc"));
+        ResultBatch.Builder out = ResultBatch.builder(outputNames);
+
+        double[] slots = new double[baseCount + nodes.length];
+        int metricOffset = dims.size();
+        int descOffset = metricOffset + outSlots.length;
+        for (int r = 0; r < base.getRowCount(); r++) {
+            for (int i = 0; i < baseCount; i++) {
+                slots[i] = baseColumns[i] == null ? MetricExpression.NULL : baseColumns[i].getDouble(r);
+            }
+            for (int n = 0; n < nodes.length; n++) {
+                slots[baseCount + n] = nodes[n].evaluate(slots);
+            }
+
+            for (int d = 0; d < dimColumns.length; d++) {
+                copyOrNull(out, d, base, dimColumns[d], r);
+            }
+            for (int m = 0; m < outSlots.length; m++) {
+                out.addDouble(metricOffset + m, slots[outSlots[m]]);
+            }
+            for (int d = 0; d < descColumns.length; d++) {
+                copyOrNull(out, descOffset + d, base, descColumns[d], r);
+            }
+            out.endRow();
+        }
+        return out.build();
+    }
+
+    private static void copyOrNull(ResultBatch.Builder out, int target, ResultBatch base, int source, int row) {
+        if (source < 0) {
+            out.addNull(target);
+        } else {
+            out.copy(target, base.column(source), row);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.asiainfo.metrics.v2.core.expression;
+
+import com.asiainfo.metrics.v2.core.model.BaseAggregate;
+import com.asiainfo.metrics.v2.core.model.MetricDefinition;
+import com.asiainfo.metrics.v2.core.model.MetricType;
+import com.asiainfo.metrics.v2.core.parser.MetricParser;
+import com.asiainfo.metrics.v2.infra.persistence.MetadataRepository;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.util.*;
+
+/**
+ * 求值计划生成器
+ *
+ * 将请求指标编译为依赖 DAG：
+ * - 引用物理指标 -> 基础聚合 (kpi, op_time)，由 SQL 计算
+ * - 引用复合/虚拟指标 -> 指标节点 (metricId, op_time)，按其自身表达式继续展开，
+ *   时间修饰符相对节点自身账期换算 (与 MetricParser 的依赖解析一致)
+ * 节点按拓扑层排序 (层号 = 依赖节点最大层号 + 1)，相同 (metricId, op_time) 的中间指标只建一个节点。
+ */
+@ApplicationScoped
+public class EvaluationPlanner {
+
+    private static final int MAX_DEPTH = 50;
+
+    @Inject
+    ExpressionCompiler compiler;
+    @Inject
+    MetricParser parser;
+    @Inject
+    MetadataRepository metadataRepo;
+
+    public EvaluationPlan plan(List<MetricDefinition> metrics, String opTime) {
+        Builder builder = new Builder();
+        List<NodeKey> outputs = new ArrayList<>(metrics.size());
+        List<String> metricIds = new ArrayList<>(metrics.size());
+        for (MetricDefinition metric : metrics) {
+            outputs.add(builder.visit(metric, opTime, 0));
+            metricIds.add(metric.id());
+        }
+        return builder.build(outputs, metricIds);
+    }
+
+    private record NodeKey(String metricId, String opTime) {
+    }
+
+    /**
+     * 未绑定的节点：表达式 + 每个引用解析到的目标 (BaseAggregate 或 NodeKey)
+     */
+    private record PendingNode(MetricExpression expr, Map<MetricExpression.Reference, Object> targets, int layer) {
+    }
+
+    private final class Builder {
+        private final Map<BaseAggregate, Integer> baseIndex = new LinkedHashMap<>();
+        // 后序遍历插入，天然满足拓扑序
+        private final Map<NodeKey, PendingNode> nodes = new LinkedHashMap<>();
+        private final Set<NodeKey> visiting = new HashSet<>();
+
+        NodeKey visit(MetricDefinition metric, String opTime, int depth) {
+            NodeKey key = new NodeKey(metric.id(), opTime);
+            if (nodes.containsKey(key)) {
+                return key;
+            }
+            if (depth > MAX_DEPTH) {
+                throw new RuntimeException("Expression depth limit exceeded: " + metric.id());
+            }
+            if (!visiting.add(key)) {
+                throw new RuntimeException("Circular dependency detected: " + key.metricId() + "@" + opTime);
+            }
+
+            MetricExpression expr = compiler.compile(metric.expression());
+            List<MetricExpression.Reference> refs = new ArrayList<>();
+            expr.collectReferences(refs::add);
+
+            Map<MetricExpression.Reference, Object> targets = new HashMap<>();
+            int layer = 0;
+            for (MetricExpression.Reference ref : refs) {
+                if (targets.containsKey(ref)) continue;
+                String targetTime = parser.calculateTime(opTime, ref.modifier());
+                MetricDefinition refDef = metric.type() == MetricType.PHYSICAL && ref.kpiId().equals(metric.id())
+                        ? metric
+                        : metadataRepo.findById(ref.kpiId());
+
+                if (refDef == null || refDef.type() == MetricType.PHYSICAL) {
+                    BaseAggregate base = new BaseAggregate(ref.kpiId(), targetTime);
+                    baseIndex.computeIfAbsent(base, k -> baseIndex.size());
+                    targets.put(ref, base);
+                } else {
+                    NodeKey child = visit(refDef, targetTime, depth + 1);
+                    layer = Math.max(layer, nodes.get(child).layer() + 1);
+                    targets.put(ref, child);
+                }
+            }
+
+            visiting.remove(key);
+            nodes.put(key, new PendingNode(expr, targets, layer));
+            return key;
+        }
+
+        EvaluationPlan build(List<NodeKey> outputs, List<String> metricIds) {
+            int baseCount = baseIndex.size();
+
+            // 按层稳定排序，同层内保持后序
+            List<NodeKey> ordered = new ArrayList<>(nodes.keySet());
+            ordered.sort(Comparator.comparingInt(k -> nodes.get(k).layer()));
+            Map<NodeKey, Integer> nodeSlot = new HashMap<>();
+            for (int i = 0; i < ordered.size(); i++) {
+                nodeSlot.put(ordered.get(i), baseCount + i);
+            }
+
+            List<MetricExpression> bound = new ArrayList<>(ordered.size());
+            int layerCount = 0;
+            for (NodeKey key : ordered) {
+                PendingNode node = nodes.get(key);
+                layerCount = Math.max(layerCount, node.layer() + 1);
+                bound.add(node.expr().bind(ref -> {
+                    Object target = node.targets().get(ref);
+                    return target instanceof BaseAggregate base ? baseIndex.get(base) : nodeSlot.get(target);
+                }));
+            }
+
+            int[] outputSlots = outputs.stream().mapToInt(nodeSlot::get).toArray();
+            return new EvaluationPlan(new ArrayList<>(baseIndex.keySet()), bound, metricIds, outputSlots, layerCount);
+        }
+    }
+}
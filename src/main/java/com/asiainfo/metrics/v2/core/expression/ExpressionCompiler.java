@@ -0,0 +1,247 @@
+package com.asiainfo.metrics.v2.core.expression;
+
+import com.asiainfo.metrics.v2.core.MetricsConstants;
+import com.asiainfo.metrics.v2.core.expression.MetricExpression.*;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 指标表达式编译器
+ * 将 MetricDefinition.expression (如 "${KD1002} * 0.7 / (${KD1005.lastYear} + 100)")
+ * 一次性解析为 {@link MetricExpression} 语法树并缓存，请求热路径上不再做正则匹配。
+ *
+ * 语法：
+ * <pre>
+ * expr    := term (('+' | '-') term)*
+ * term    := unary (('*' | '/') unary)*
+ * unary   := ('-' | '+') unary | primary
+ * primary := NUMBER | '${' KPI_ID ('.' MODIFIER)? '}' | FUNC '(' expr (',' expr)* ')' | '(' expr ')'
+ * </pre>
+ */
+@ApplicationScoped
+public class ExpressionCompiler {
+
+    // 虚拟指标由请求直接传入表达式，限制缓存规模防止无界增长
+    private static final int MAX_CACHE_SIZE = 10_000;
+    private static final Set<String> FUNCTIONS = Set.of("abs", "round", "coalesce", "ifnull", "nullif", "min", "max");
+
+    private final Map<String, MetricExpression> cache = new ConcurrentHashMap<>();
+
+    /**
+     * 编译表达式 (带缓存)
+     *
+     * @throws IllegalArgumentException 表达式语法错误
+     */
+    public MetricExpression compile(String expression) {
+        if (expression == null || expression.isBlank()) {
+            throw new IllegalArgumentException("Metric expression is empty");
+        }
+        MetricExpression cached = cache.get(expression);
+        if (cached != null) {
+            return cached;
+        }
+        MetricExpression compiled = parse(expression);
+        if (cache.size() >= MAX_CACHE_SIZE) {
+            cache.clear();
+        }
+        cache.put(expression, compiled);
+        return compiled;
+    }
+
+    /**
+     * 解析表达式 (不走缓存)
+     */
+    public static MetricExpression parse(String expression) {
+        Parser parser = new Parser(expression);
+        MetricExpression expr = parser.parseExpression();
+        parser.skipWhitespace();
+        if (!parser.atEnd()) {
+            throw parser.error("Unexpected character '" + parser.peek() + "'");
+        }
+        return expr;
+    }
+
+    /**
+     * 手写递归下降解析器
+     */
+    private static final class Parser {
+        private final String src;
+        private int pos;
+
+        Parser(String src) {
+            this.src = src;
+        }
+
+        MetricExpression parseExpression() {
+            MetricExpression left = parseTerm();
+            while (true) {
+                skipWhitespace();
+                if (consume('+')) {
+                    left = new Binary('+', left, parseTerm());
+                } else if (consume('-')) {
+                    left = new Binary('-', left, parseTerm());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private MetricExpression parseTerm() {
+            MetricExpression left = parseUnary();
+            while (true) {
+                skipWhitespace();
+                if (consume('*')) {
+                    left = new Binary('*', left, parseUnary());
+                } else if (consume('/')) {
+                    left = new Binary('/', left, parseUnary());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private MetricExpression parseUnary() {
+            skipWhitespace();
+            if (consume('-')) {
+                return new Negate(parseUnary());
+            }
+            if (consume('+')) {
+                return parseUnary();
+            }
+            return parsePrimary();
+        }
+
+        private MetricExpression parsePrimary() {
+            skipWhitespace();
+            if (atEnd()) {
+                throw error("Unexpected end of expression");
+            }
+            char c = peek();
+            if (c == '$') {
+                return parseReference();
+            }
+            if (c == '(') {
+                pos++;
+                MetricExpression inner = parseExpression();
+                expect(')');
+                return inner;
+            }
+            if (Character.isDigit(c) || c == '.') {
+                return parseNumber();
+            }
+            if (Character.isLetter(c)) {
+                return parseCall();
+            }
+            throw error("Unexpected character '" + c + "'");
+        }
+
+        private MetricExpression parseReference() {
+            int start = pos;
+            pos++; // $
+            expect('{');
+            int end = src.indexOf('}', pos);
+            if (end < 0) {
+                throw error("Unclosed reference starting at " + start);
+            }
+            String body = src.substring(pos, end).trim();
+            pos = end + 1;
+
+            int dot = body.indexOf('.');
+            String kpiId = dot < 0 ? body : body.substring(0, dot);
+            String modifier = dot < 0 ? null : body.substring(dot + 1);
+            if (!MetricsConstants.KPI_ID_PATTERN.matcher(kpiId).matches()) {
+                throw new IllegalArgumentException("Invalid KPI id '" + kpiId + "' in expression: " + src);
+            }
+            if (modifier != null && (modifier.isEmpty() || !modifier.chars().allMatch(Character::isLetter))) {
+                throw new IllegalArgumentException("Invalid time modifier '" + modifier + "' in expression: " + src);
+            }
+            return new Reference(kpiId, modifier);
+        }
+
+        private MetricExpression parseNumber() {
+            int start = pos;
+            while (!atEnd() && (Character.isDigit(peek()) || peek() == '.')) pos++;
+            if (!atEnd() && (peek() == 'e' || peek() == 'E')) {
+                pos++;
+                if (!atEnd() && (peek() == '+' || peek() == '-')) pos++;
+                while (!atEnd() && Character.isDigit(peek())) pos++;
+            }
+            String literal = src.substring(start, pos);
+            try {
+                return new Constant(Double.parseDouble(literal));
+            } catch (NumberFormatException e) {
+                throw error("Invalid number '" + literal + "'");
+            }
+        }
+
+        private MetricExpression parseCall() {
+            int start = pos;
+            while (!atEnd() && (Character.isLetterOrDigit(peek()) || peek() == '_')) pos++;
+            String name = src.substring(start, pos).toLowerCase();
+            if (!FUNCTIONS.contains(name)) {
+                throw error("Unsupported function '" + name + "'");
+            }
+            skipWhitespace();
+            expect('(');
+            List<MetricExpression> args = new ArrayList<>();
+            skipWhitespace();
+            if (!consume(')')) {
+                do {
+                    args.add(parseExpression());
+                    skipWhitespace();
+                } while (consume(','));
+                expect(')');
+            }
+            checkArity(name, args.size());
+            return new Call(name, List.copyOf(args));
+        }
+
+        private void checkArity(String name, int count) {
+            boolean ok = switch (name) {
+                case "abs" -> count == 1;
+                case "round" -> count == 1 || count == 2;
+                case "nullif", "ifnull" -> count == 2;
+                default -> count >= 1; // coalesce / min / max
+            };
+            if (!ok) {
+                throw error("Wrong number of arguments for " + name + ": " + count);
+            }
+        }
+
+        void skipWhitespace() {
+            while (!atEnd() && Character.isWhitespace(peek())) pos++;
+        }
+
+        private boolean consume(char c) {
+            if (!atEnd() && peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            skipWhitespace();
+            if (!consume(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        boolean atEnd() {
+            return pos >= src.length();
+        }
+
+        char peek() {
+            return src.charAt(pos);
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos + " in expression: " + src);
+        }
+    }
+}
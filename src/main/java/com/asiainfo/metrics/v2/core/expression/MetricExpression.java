@@ -0,0 +1,210 @@
+package com.asiainfo.metrics.v2.core.expression;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * 指标表达式语法树 (由 {@link ExpressionCompiler} 编译得到)
+ *
+ * 求值约定 (与 SQLite 语义保持一致)：
+ * - 空值用 NaN 表示，任何算术运算遇到空值结果为空
+ * - 除数为 0 时结果为空
+ * - Reference 必须先通过 bind 绑定到槽位 (Slot) 才能求值
+ */
+public sealed interface MetricExpression {
+
+    /** 空值哨兵 */
+    double NULL = Double.NaN;
+
+    static boolean isNull(double v) {
+        return Double.isNaN(v);
+    }
+
+    /**
+     * 在槽位数组上求值，slots 中为基础聚合 (及中间结果) 的值
+     */
+    double evaluate(double[] slots);
+
+    /**
+     * 将指标引用替换为槽位下标，返回可直接求值的新树
+     */
+    MetricExpression bind(ToIntFunction<Reference> resolver);
+
+    /**
+     * 按出现顺序收集指标引用 (可能重复)
+     */
+    void collectReferences(Consumer<Reference> sink);
+
+    /**
+     * 常量
+     */
+    record Constant(double value) implements MetricExpression {
+        @Override
+        public double evaluate(double[] slots) {
+            return value;
+        }
+
+        @Override
+        public MetricExpression bind(ToIntFunction<Reference> resolver) {
+            return this;
+        }
+
+        @Override
+        public void collectReferences(Consumer<Reference> sink) {
+        }
+    }
+
+    /**
+     * 指标引用 ${KD1002.lastYear}，modifier 为空表示 current
+     */
+    record Reference(String kpiId, String modifier) implements MetricExpression {
+        @Override
+        public double evaluate(double[] slots) {
+            throw new IllegalStateException("Unbound metric reference: " + kpiId);
+        }
+
+        @Override
+        public MetricExpression bind(ToIntFunction<Reference> resolver) {
+            return new Slot(resolver.applyAsInt(this));
+        }
+
+        @Override
+        public void collectReferences(Consumer<Reference> sink) {
+            sink.accept(this);
+        }
+    }
+
+    /**
+     * 已绑定的槽位
+     */
+    record Slot(int index) implements MetricExpression {
+        @Override
+        public double evaluate(double[] slots) {
+            return slots[index];
+        }
+
+        @Override
+        public MetricExpression bind(ToIntFunction<Reference> resolver) {
+            return this;
+        }
+
+        @Override
+        public void collectReferences(Consumer<Reference> sink) {
+        }
+    }
+
+    /**
+     * 一元负号
+     */
+    record Negate(MetricExpression operand) implements MetricExpression {
+        @Override
+        public double evaluate(double[] slots) {
+            return -operand.evaluate(slots); // NaN 取负仍为 NaN
+        }
+
+        @Override
+        public MetricExpression bind(ToIntFunction<Reference> resolver) {
+            return new Negate(operand.bind(resolver));
+        }
+
+        @Override
+        public void collectReferences(Consumer<Reference> sink) {
+            operand.collectReferences(sink);
+        }
+    }
+
+    /**
+     * 四则运算
+     */
+    record Binary(char op, MetricExpression left, MetricExpression right) implements MetricExpression {
+        @Override
+        public double evaluate(double[] slots) {
+            double l = left.evaluate(slots);
+            double r = right.evaluate(slots);
+            if (isNull(l) || isNull(r)) return NULL;
+            return switch (op) {
+                case '+' -> l + r;
+                case '-' -> l - r;
+                case '*' -> l * r;
+                case '/' -> r == 0 ? NULL : l / r;
+                default -> throw new IllegalStateException("Unknown operator: " + op);
+            };
+        }
+
+        @Override
+        public MetricExpression bind(ToIntFunction<Reference> resolver) {
+            return new Binary(op, left.bind(resolver), right.bind(resolver));
+        }
+
+        @Override
+        public void collectReferences(Consumer<Reference> sink) {
+            left.collectReferences(sink);
+            right.collectReferences(sink);
+        }
+    }
+
+    /**
+     * 标量函数调用，支持 abs / round / coalesce / ifnull / nullif / min / max
+     */
+    record Call(String function, List<MetricExpression> args) implements MetricExpression {
+        @Override
+        public double evaluate(double[] slots) {
+            switch (function) {
+                case "coalesce", "ifnull" -> {
+                    for (MetricExpression arg : args) {
+                        double v = arg.evaluate(slots);
+                        if (!isNull(v)) return v;
+                    }
+                    return NULL;
+                }
+                case "nullif" -> {
+                    double a = args.get(0).evaluate(slots);
+                    double b = args.get(1).evaluate(slots);
+                    return !isNull(b) && a == b ? NULL : a;
+                }
+                case "abs" -> {
+                    return Math.abs(args.get(0).evaluate(slots));
+                }
+                case "round" -> {
+                    double v = args.get(0).evaluate(slots);
+                    double digits = args.size() > 1 ? args.get(1).evaluate(slots) : 0;
+                    if (isNull(v) || isNull(digits)) return NULL;
+                    // 除以极小分母得到的 ±Infinity 原样返回
+                    if (!Double.isFinite(v)) return v;
+                    // 与 SQLite 一致：位数限制在 [0, 30]，四舍五入 (远离零)
+                    int scale = (int) Math.max(0, Math.min(30, digits));
+                    return BigDecimal.valueOf(v).setScale(scale, RoundingMode.HALF_UP).doubleValue();
+                }
+                case "min", "max" -> {
+                    boolean isMin = "min".equals(function);
+                    double acc = 0;
+                    for (int i = 0; i < args.size(); i++) {
+                        double v = args.get(i).evaluate(slots);
+                        if (isNull(v)) return NULL;
+                        acc = i == 0 ? v : (isMin ? Math.min(acc, v) : Math.max(acc, v));
+                    }
+                    return acc;
+                }
+                default -> throw new IllegalStateException("Unknown function: " + function);
+            }
+        }
+
+        @Override
+        public MetricExpression bind(ToIntFunction<Reference> resolver) {
+            List<MetricExpression> bound = new ArrayList<>(args.size());
+            for (MetricExpression arg : args) {
+                bound.add(arg.bind(resolver));
+            }
+            return new Call(function, bound);
+        }
+
+        @Override
+        public void collectReferences(Consumer<Reference> sink) {
+            args.forEach(arg -> arg.collectReferences(sink));
+        }
+    }
+}
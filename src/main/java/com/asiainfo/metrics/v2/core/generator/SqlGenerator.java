@@ -1,45 +1,69 @@
 package com.asiainfo.metrics.v2.core.generator;
 
-import com.asiainfo.metrics.v2.core.MetricsConstants;
+import com.asiainfo.metrics.v2.core.expression.EvaluationPlan;
+import com.asiainfo.metrics.v2.core.expression.EvaluationPlanner;
 import com.asiainfo.metrics.v2.core.model.*;
-import com.asiainfo.metrics.v2.core.parser.MetricParser;
 import com.asiainfo.metrics.v2.infra.persistence.MetadataRepository;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class SqlGenerator {
 
     @Inject MetadataRepository metadataRepo;
-    @Inject MetricParser parser;
+    @Inject EvaluationPlanner planner;
 
     public String generateSql(List<MetricDefinition> metrics, QueryContext ctx, List<String> dims) {
-        return generateSqlInternal(metrics, ctx, dims, null);
+        return generateSqlInternal(planner.plan(metrics, ctx.getOpTime()), ctx, dims, null, null);
     }
 
-    public String generateSqlWithStaging(List<MetricDefinition> metrics, QueryContext ctx, List<String> dims, String stagingTableName) {
-        return generateSqlInternal(metrics, ctx, dims, stagingTableName);
+    public String generateSql(EvaluationPlan plan, QueryContext ctx, List<String> dims) {
+        return generateSqlInternal(plan, ctx, dims, null, null);
     }
 
-    private String generateSqlInternal(List<MetricDefinition> metrics, QueryContext ctx, List<String> dims, String stagingTableName) {
+    public String generateSql(EvaluationPlan plan, QueryContext ctx, List<String> dims, OrderSpec order) {
+        return generateSqlInternal(plan, ctx, dims, null, order);
+    }
+
+    public String generateSqlWithStaging(EvaluationPlan plan, QueryContext ctx, List<String> dims, String stagingTableName) {
+        return generateSqlInternal(plan, ctx, dims, stagingTableName, null);
+    }
+
+    public String generateSqlWithStaging(EvaluationPlan plan, QueryContext ctx, List<String> dims, String stagingTableName,
+                                         OrderSpec order) {
+        return generateSqlInternal(plan, ctx, dims, stagingTableName, order);
+    }
+
+    /**
+     * 排序键能否下推到 SQL：只有维度、op_time (单账期内为常量) 与直接等于基础聚合的指标可以在 SQL 中排序，
+     * 复合/虚拟指标在 Java 中求值，只能在内存中排序
+     */
+    public boolean canPushDownOrder(EvaluationPlan plan, List<String> dims, List<SortKey> keys) {
+        return keys.stream().allMatch(k -> "op_time".equals(k.field()) || orderColumn(plan, dims, k.field()) != null);
+    }
+
+    /**
+     * 生成基础聚合 SQL
+     * 只输出维度、基础聚合列与维度描述，复合/虚拟指标由 {@link EvaluationPlan} 在 Java 中求值
+     */
+    private String generateSqlInternal(EvaluationPlan plan, QueryContext ctx, List<String> dims, String stagingTableName,
+                                       OrderSpec order) {
         StringBuilder sql = new StringBuilder();
 
         // 维度字段处理：明确指定从 raw_union 获取 ID
         String qualifiedDimFields = dims.stream()
                 .map(d -> "raw_union." + d)
                 .collect(Collectors.joining(", "));
-        String dimFields = String.join(", ", dims); // 用于子查询生成
 
-        // 1. 数据源 CTE
+        // 1. 数据源 CTE (各分区已预聚合)
         if (stagingTableName != null) {
             sql.append("WITH raw_union AS (SELECT * FROM ").append(stagingTableName).append(")");
         } else {
             List<String> unions = ctx.getRequiredTables().stream()
-                    .map(req -> generateUnionQuery(req, dimFields, ctx))
+                    .map(req -> generatePartitionAggregate(req, ctx))
                     .collect(Collectors.toList());
             if (unions.isEmpty()) return "";
             sql.append("WITH raw_union AS (\n").append(String.join("\nUNION ALL\n", unions)).append("\n)");
@@ -53,33 +77,42 @@ public class SqlGenerator {
             sql.append("\n)");
         }
 
-        // 3. 主查询 SELECT
-        sql.append("\nSELECT ");
-        if (!dims.isEmpty()) {
-            sql.append(qualifiedDimFields);
+        // 3. 基础聚合 CTE：按维度分组，每个去重后的 (kpi, op_time) 一列，只计算一次
+        sql.append(",\nbase_agg AS (\nSELECT ");
+        List<String> baseSelect = new ArrayList<>();
+        dims.forEach(d -> baseSelect.add("raw_union." + d));
+        for (BaseAggregate base : plan.getBaseAggregates()) {
+            baseSelect.add(String.format(
+                    "%s(CASE WHEN kpi_id='%s' AND op_time='%s' THEN kpi_val ELSE NULL END) AS %s",
+                    rollupFunc(ctx.getAggFunc(base.kpiId())), base.kpiId(), base.opTime(), base.columnName()));
         }
-
-        for (MetricDefinition metric : metrics) {
-            if (!dims.isEmpty() || metrics.indexOf(metric) > 0) {
-                sql.append(",\n  ");
-            } else {
-                sql.append("\n  ");
-            }
-            String sqlExpr = transpileToSql(metric.expression(), ctx, metric.aggFunc(), dims);
-            sql.append(sqlExpr).append(" AS ").append(metric.id());
+        if (baseSelect.isEmpty()) {
+            // 指标全为常量表达式且无维度时，保证 CTE 至少输出一行
+            baseSelect.add("count(*) AS row_count");
+        }
+        sql.append(String.join(",\n  ", baseSelect));
+        sql.append("\nFROM raw_union");
+        if (!qualifiedDimFields.isEmpty()) {
+            sql.append("\nGROUP BY ").append(qualifiedDimFields);
         }
+        sql.append("\n)");
 
+        // 4. 主查询 SELECT：基础聚合列 + 维度描述，不再聚合
+        List<String> select = new ArrayList<>();
+        dims.forEach(d -> select.add("base_agg." + d));
+        plan.getBaseAggregates().forEach(base -> select.add(base.columnName()));
         // 添加维度描述字段 (从 JOIN 的维度表中获取)
-        if (!dims.isEmpty()) {
-            for (String dim : dims) {
-                // t_city_id.dim_val as city_id_desc
-                sql.append(",\n  t_").append(dim).append(".dim_val as ").append(dim).append("_desc");
-            }
+        // t_city_id.dim_val as city_id_desc
+        dims.forEach(d -> select.add("t_" + d + ".dim_val as " + d + "_desc"));
+        if (select.isEmpty()) {
+            select.add("row_count");
         }
 
-        sql.append("\nFROM raw_union");
+        sql.append("\nSELECT ").append(String.join(",\n  ", select));
+        sql.append("\nFROM base_agg");
 
-        // 4. 维度 JOIN (核心修复：纵表多次 JOIN)
+        // 5. 维度 JOIN (核心修复：纵表多次 JOIN)
+        // base_agg 已按维度分组，每个维度组合一行，JOIN 后无需再次 GROUP BY
         if (!dims.isEmpty()) {
             String compDimCode = findMainCompDimCode(ctx);
             String dimTableName = String.format("kpi_dim_%s", compDimCode);
@@ -88,53 +121,223 @@ public class SqlGenerator {
                 String alias = "t_" + dim; // 为每个维度创建一个别名表，如 t_city_id
 
                 // LEFT JOIN kpi_dim_CD003 t_city_id
-                // ON raw_union.city_id = t_city_id.dim_code AND t_city_id.dim_id = 'city_id'
+                // ON base_agg.city_id = t_city_id.dim_code AND t_city_id.dim_id = 'city_id'
                 sql.append("\nLEFT JOIN ").append(dimTableName).append(" ").append(alias);
-                sql.append(" ON raw_union.").append(dim).append(" = ").append(alias).append(".dim_code");
+                sql.append(" ON base_agg.").append(dim).append(" = ").append(alias).append(".dim_code");
                 sql.append(" AND ").append(alias).append(".dim_id = '").append(dim).append("'");
             }
+        }
 
-            // GROUP BY
-            sql.append("\nGROUP BY ").append(qualifiedDimFields);
-            for (String dim : dims) {
-                sql.append(", ").append("t_").append(dim).append(".dim_val");
+        // 6. 排序 / 键集分页 / LIMIT 下推
+        if (order != null) {
+            appendOrder(sql, plan, ctx, dims, order);
+        }
+
+        return sql.toString();
+    }
+
+    /**
+     * 键集分页：WHERE (排序键) 位于游标之后，ORDER BY 排序键 NULLS LAST，LIMIT n
+     * 游标值以查询参数绑定。op_time 在单账期查询中为常量：不参与 ORDER BY，
+     * 键集条件中与游标的比较结果在生成 SQL 时即可确定 (多账期分别查询时各账期结果不同)。
+     */
+    private void appendOrder(StringBuilder sql, EvaluationPlan plan, QueryContext ctx, List<String> dims, OrderSpec order) {
+        List<String> exprs = new ArrayList<>();
+        for (SortKey key : order.keys()) {
+            String column = "op_time".equals(key.field()) ? null : orderColumn(plan, dims, key.field());
+            if (column == null && !"op_time".equals(key.field())) {
+                throw new IllegalArgumentException("Sort field cannot be pushed down: " + key.field());
             }
-        } else {
-            // 无维度聚合
-            if (!qualifiedDimFields.isEmpty()) {
-                sql.append("\nGROUP BY ").append(qualifiedDimFields);
+            exprs.add(column);
+        }
+
+        if (order.after() != null) {
+            // (k1 之后) OR (k1 相同 AND k2 之后) OR ...，空值排在最后
+            List<String> disjuncts = new ArrayList<>();
+            List<String> equalPrefix = new ArrayList<>();
+            for (int i = 0; i < exprs.size(); i++) {
+                SortKey key = order.keys().get(i);
+                Object value = order.after().get(i);
+                if (exprs.get(i) == null) {
+                    int cmp = value == null ? -1 : ctx.getOpTime().compareTo(value.toString());
+                    if (key.descending()) cmp = -cmp;
+                    if (cmp == 0) continue;
+                    if (cmp > 0) {
+                        // 本账期整体位于游标之后：前缀相同即满足
+                        disjuncts.add(equalPrefix.isEmpty() ? "1" : "(" + String.join(" AND ", equalPrefix) + ")");
+                    }
+                    break;
+                }
+                String expr = exprs.get(i);
+                if (value != null) {
+                    String param = ctx.addQueryParam(value);
+                    String cmp = key.descending() ? " < " : " > ";
+                    List<String> term = new ArrayList<>(equalPrefix);
+                    term.add("(" + expr + cmp + param + " OR " + expr + " IS NULL)");
+                    disjuncts.add("(" + String.join(" AND ", term) + ")");
+                    equalPrefix.add(expr + " = " + param);
+                } else {
+                    // 游标值为空：之后只可能是同样为空的行
+                    equalPrefix.add(expr + " IS NULL");
+                }
             }
+            sql.append("\nWHERE ").append(disjuncts.isEmpty() ? "0" : String.join("\n   OR ", disjuncts));
         }
 
-        return sql.toString();
+        List<String> orderBy = new ArrayList<>();
+        for (int i = 0; i < exprs.size(); i++) {
+            if (exprs.get(i) == null) continue;
+            orderBy.add(exprs.get(i) + (order.keys().get(i).descending() ? " DESC" : " ASC") + " NULLS LAST");
+        }
+        if (!orderBy.isEmpty()) {
+            sql.append("\nORDER BY ").append(String.join(", ", orderBy));
+        }
+        if (order.limit() != null) {
+            sql.append("\nLIMIT ").append(order.limit());
+        }
+    }
+
+    private static String orderColumn(EvaluationPlan plan, List<String> dims, String field) {
+        if (dims.contains(field)) {
+            return "base_agg." + field;
+        }
+        String baseColumn = plan.baseColumnOf(field);
+        return baseColumn == null ? null : "base_agg." + baseColumn;
     }
 
-    // 智能 UNION: 物理表缺少的维度列补 NULL
-    private String generateUnionQuery(PhysicalTableReq req, String ignoredDimFields, QueryContext ctx) {
+    /**
+     * 分区级预聚合子查询
+     * 每个物理表先按请求维度 GROUP BY，外层只需处理 "维度组合 × 分区" 行，而不是原始明细行。
+     * 物理表缺少的维度列补 NULL (智能 UNION)。
+     * OPTIMIZED 布局的聚簇主键不允许 NULL，生产端以空串存储 NULL 维度，这类分区的维度列以 nullif(dim, '') 输出；
+     * 分组仍按原始列，可沿聚簇主键顺序扫描。其他布局中空串是真实的维度取值，原样输出。
+     * Staging 模式下同一条 SELECT 也用于 INSERT，保证两条路径的数据形态一致。
+     */
+    public String generatePartitionAggregate(PhysicalTableReq req, QueryContext ctx) {
+        if (ctx.isDimEncoded(req)) {
+            return generateEncodedPartitionAggregate(req, ctx);
+        }
         String dbAlias = ctx.getAlias(req.kpiId(), req.opTime());
-        String tableName = String.format("kpi_%s_%s_%s", req.kpiId(), req.opTime(), req.compDimCode());
+        String tableName = req.toTableName();
 
         List<String> requestedDims = ctx.getDimCodes();
         Set<String> tableActualDims = metadataRepo.getDimCols(req.compDimCode());
+        boolean optimized = ctx.isOptimizedLayout(req);
 
         StringBuilder smartSelect = new StringBuilder();
+        List<String> groupCols = new ArrayList<>();
         for (String dim : requestedDims) {
             if (tableActualDims.contains(dim)) {
-                smartSelect.append(dim).append(", ");
+                if (optimized) {
+                    smartSelect.append("nullif(").append(dim).append(", '') as ").append(dim).append(", ");
+                } else {
+                    smartSelect.append(dim).append(", ");
+                }
+                groupCols.add(dim);
             } else {
                 smartSelect.append("NULL as ").append(dim).append(", ");
             }
         }
 
-        if (smartSelect.length() > 0) {
-            smartSelect.setLength(smartSelect.length() - 2);
-            smartSelect.append(", ");
+        String aggFunc = ctx.getAggFunc(req.kpiId());
+        StringBuilder sql = new StringBuilder();
+        sql.append(String.format(
+                "SELECT %s'%s' as kpi_id, '%s' as op_time, %s(%s) as kpi_val FROM %s.%s",
+                smartSelect, req.kpiId(), req.opTime(), aggFunc, req.valueColumn(), dbAlias, tableName
+        ));
+        String where = generateWhere(req, ctx, tableActualDims, null);
+        if (where != null) {
+            sql.append(" WHERE ").append(where);
+        }
+        if (!groupCols.isEmpty()) {
+            sql.append(" GROUP BY ").append(String.join(", ", groupCols));
+        }
+        return sql.toString();
+    }
+
+    /**
+     * 整数编码分区的预聚合子查询
+     * 分区内按整数代理键 GROUP BY，只对分组结果按 dim_key 关联维度表解码为维度编码，
+     * 输出形态与文本分区相同，可与之 UNION。过滤条件先在维度表中把编码换成代理键。
+     * 代理键在组合维度内唯一，解码关联无需 dim_id 条件；空维度 (0 或 NULL) 关联不到，解码为 NULL。
+     */
+    private String generateEncodedPartitionAggregate(PhysicalTableReq req, QueryContext ctx) {
+        String dbAlias = ctx.getAlias(req.kpiId(), req.opTime());
+        String dimTable = String.format("dim_db_%s.kpi_dim_%s", req.compDimCode(), req.compDimCode());
+
+        List<String> requestedDims = ctx.getDimCodes();
+        Set<String> tableActualDims = metadataRepo.getDimCols(req.compDimCode());
+        List<String> groupCols = requestedDims.stream().filter(tableActualDims::contains).toList();
+
+        StringBuilder select = new StringBuilder();
+        StringBuilder joins = new StringBuilder();
+        for (String dim : requestedDims) {
+            if (groupCols.contains(dim)) {
+                String alias = "d_" + dim;
+                select.append(alias).append(".dim_code as ").append(dim).append(", ");
+                joins.append(" LEFT JOIN ").append(dimTable).append(" ").append(alias)
+                        .append(" ON ").append(alias).append(".dim_key = g.").append(dim);
+            } else {
+                select.append("NULL as ").append(dim).append(", ");
+            }
+        }
+
+        StringBuilder inner = new StringBuilder("SELECT ");
+        groupCols.forEach(dim -> inner.append(dim).append(", "));
+        inner.append(ctx.getAggFunc(req.kpiId())).append("(").append(req.valueColumn()).append(") as kpi_val FROM ")
+                .append(dbAlias).append(".").append(req.toTableName());
+        String where = generateWhere(req, ctx, tableActualDims, dimTable);
+        if (where != null) {
+            inner.append(" WHERE ").append(where);
+        }
+        if (!groupCols.isEmpty()) {
+            inner.append(" GROUP BY ").append(String.join(", ", groupCols));
+        }
+
+        return String.format("SELECT %s'%s' as kpi_id, '%s' as op_time, g.kpi_val FROM (%s) g%s",
+                select, req.kpiId(), req.opTime(), inner, joins);
+    }
+
+    /**
+     * 分区扫描条件：维度过滤 + 宽表分区只取本指标有值的行
+     * 宽表中一行是模型全部指标在某维度组合上的取值，本指标为空的行在单指标分区中本不存在，
+     * 若不排除会产生只有 NULL 值的维度组合。
+     */
+    private String generateWhere(PhysicalTableReq req, QueryContext ctx, Set<String> tableActualDims, String encodedDimTable) {
+        String filter = generateFilterCondition(ctx, tableActualDims, encodedDimTable);
+        if (req.modelId() == null) {
+            return filter;
         }
+        String notNull = req.valueColumn() + " IS NOT NULL";
+        return filter == null ? notNull : notNull + " AND " + filter;
+    }
+
+    /**
+     * 维度过滤下推到分区扫描
+     * city_id IN (?1, ?2)，可命中 SqliteDataProducer 在维度列上建立的索引；取值通过编号参数绑定。
+     * 分区缺少被过滤的维度列时，该分区的行在过滤维度上均为 NULL，不可能满足条件，直接跳过 (WHERE 0)。
+     *
+     * @param encodedDimTable 整数编码分区使用的维度表，取值先换成代理键：
+     *                        city_id IN (SELECT dim_key FROM ... WHERE dim_id = 'city_id' AND dim_code IN (?1, ?2))
+     */
+    private String generateFilterCondition(QueryContext ctx, Set<String> tableActualDims, String encodedDimTable) {
+        Map<String, List<String>> filters = ctx.getDimFilters();
+        if (filters.isEmpty()) return null;
 
-        return String.format(
-                "SELECT %s'%s' as kpi_id, '%s' as op_time, kpi_val FROM %s.%s",
-                smartSelect.toString(), req.kpiId(), req.opTime(), dbAlias, tableName
-        );
+        List<String> conditions = new ArrayList<>();
+        for (String dim : filters.keySet()) {
+            String placeholders = ctx.getFilterPlaceholders(dim);
+            if (placeholders == null || !tableActualDims.contains(dim)) {
+                return "0";
+            }
+            if (encodedDimTable != null) {
+                conditions.add(String.format("%s IN (SELECT dim_key FROM %s WHERE dim_id = '%s' AND dim_code IN (%s))",
+                        dim, encodedDimTable, dim, placeholders));
+            } else {
+                conditions.add(dim + " IN (" + placeholders + ")");
+            }
+        }
+        return String.join(" AND ", conditions);
     }
 
     // ... 辅助方法保持不变 ...
@@ -166,20 +369,17 @@ public class SqlGenerator {
         return dims.stream().map(d -> "raw_union." + d + " = t." + d).collect(Collectors.joining(" AND "));
     }
 
-    private String transpileToSql(String domainExpr, QueryContext ctx, String aggFunc, List<String> dims) {
-        Matcher matcher = MetricsConstants.VARIABLE_PATTERN.matcher(domainExpr);
-        StringBuilder sb = new StringBuilder();
-        while (matcher.find()) {
-            String kpiId = matcher.group(1);
-            String modifier = matcher.group(3);
-            String targetOpTime = parser.calculateTime(ctx.getOpTime(), modifier);
-            String aggPart = String.format(
-                    "%s(CASE WHEN kpi_id='%s' AND op_time='%s' THEN kpi_val ELSE NULL END)",
-                    aggFunc != null ? aggFunc : "sum", kpiId, targetOpTime
-            );
-            matcher.appendReplacement(sb, aggPart);
-        }
-        matcher.appendTail(sb);
-        return sb.toString();
+    /**
+     * 预聚合后的二次汇总函数
+     * 分区内已完成真正的聚合，每个 (维度组合, kpi_id, op_time) 在 raw_union 中只剩一行，
+     * 外层只需把这一行取出来：count 的结果要累加，其余函数对单值取 min/max 均等价。
+     */
+    private static String rollupFunc(String aggFunc) {
+        if (aggFunc == null) return "sum";
+        return switch (aggFunc.toLowerCase()) {
+            case "sum", "count" -> "sum";
+            case "min" -> "min";
+            default -> "max";
+        };
     }
 }
\ No newline at end of file
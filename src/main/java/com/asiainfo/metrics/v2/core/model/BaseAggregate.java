@@ -0,0 +1,18 @@
+package com.asiainfo.metrics.v2.core.model;
+
+/**
+ * 基础聚合
+ * 某个物理指标在某个账期上按维度聚合后的值，是所有复合/虚拟指标求值的输入
+ */
+public record BaseAggregate(
+    String kpiId,   // KPI ID
+    String opTime   // 账期，已按时间修饰符换算，如 lastYear -> 20241104
+) {
+    /**
+     * 生成 SQL 中的列名
+     * 格式：b_{kpiId}_{opTime}，如 b_KD1002_20251104
+     */
+    public String columnName() {
+        return "b_" + kpiId + "_" + opTime;
+    }
+}
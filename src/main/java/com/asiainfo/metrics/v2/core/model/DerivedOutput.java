@@ -0,0 +1,65 @@
+package com.asiainfo.metrics.v2.core.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 派生输出 (同比/环比)
+ * 以复合指标表达式实现，与 _lastYear / _lastCycle 引用相同的基础聚合，在同一次扫描中求值。
+ * 空值与零值：任一输入为空时结果为空；增长率的基期为 0 时结果为空 (除零为空)，
+ * 基期为负时以绝对值作分母，保证增长为正、下降为负。
+ */
+public enum DerivedOutput {
+
+    YOY_RATE("yoy_rate", "(${%1$s} - ${%1$s.lastYear}) / abs(${%1$s.lastYear})"),
+    MOM_RATE("mom_rate", "(${%1$s} - ${%1$s.lastCycle}) / abs(${%1$s.lastCycle})"),
+    YOY_DELTA("yoy_delta", "${%1$s} - ${%1$s.lastYear}"),
+    MOM_DELTA("mom_delta", "${%1$s} - ${%1$s.lastCycle}");
+
+    private final String suffix;
+    private final String template;
+
+    DerivedOutput(String suffix, String template) {
+        this.suffix = suffix;
+        this.template = template;
+    }
+
+    /**
+     * 输出列后缀，如 KD1002_yoy_rate
+     */
+    public String suffix() {
+        return suffix;
+    }
+
+    /**
+     * 指标的派生表达式
+     */
+    public String expression(String kpiId) {
+        return String.format(template, kpiId);
+    }
+
+    /**
+     * 解析请求中的派生输出名 (忽略大小写，去重保序)
+     *
+     * @throws IllegalArgumentException 未知的派生输出
+     */
+    public static List<DerivedOutput> parse(List<String> names) {
+        List<DerivedOutput> outputs = new ArrayList<>();
+        if (names == null) return outputs;
+        for (String name : names) {
+            DerivedOutput output = null;
+            for (DerivedOutput candidate : values()) {
+                if (candidate.suffix.equalsIgnoreCase(name)) {
+                    output = candidate;
+                }
+            }
+            if (output == null) {
+                throw new IllegalArgumentException("Unknown derived output: " + name);
+            }
+            if (!outputs.contains(output)) {
+                outputs.add(output);
+            }
+        }
+        return outputs;
+    }
+}
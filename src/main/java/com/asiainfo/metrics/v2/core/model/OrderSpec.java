@@ -0,0 +1,22 @@
+package com.asiainfo.metrics.v2.core.model;
+
+import java.util.List;
+
+/**
+ * 排序与分页规格
+ * - keys: 完整排序键 (已追加兜底键，全序)
+ * - after: 键集游标，上一页最后一行的排序键取值 (与 keys 一一对应)，为空表示从头开始
+ * - limit: 最多返回行数，为空表示不限
+ */
+public record OrderSpec(
+    List<SortKey> keys,
+    List<Object> after,
+    Integer limit
+) {
+    public OrderSpec {
+        keys = List.copyOf(keys);
+        if (after != null && after.size() != keys.size()) {
+            throw new IllegalArgumentException("Cursor does not match sort keys");
+        }
+    }
+}
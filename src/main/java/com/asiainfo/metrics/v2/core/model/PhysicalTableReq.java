@@ -7,14 +7,29 @@ package com.asiainfo.metrics.v2.core.model;
 public record PhysicalTableReq(
     String kpiId,        // KPI ID
     String opTime,       // 操作时间，如 20251024
-    String compDimCode   // 复合维度代码，如 CD003
+    String compDimCode,  // 复合维度代码，如 CD003
+    String modelId       // 宽表分区所属的取数模型，为空表示单指标分区
 ) {
+    public PhysicalTableReq(String kpiId, String opTime, String compDimCode) {
+        this(kpiId, opTime, compDimCode, null);
+    }
+
     /**
-     * 生成表名
-     * 格式：kpiId_opTime_compDimCode
-     * 例如：KD1002_20251024_CD003
+     * 生成表名 (同时是分区文件名，宽表分区由同一模型的多个指标共享)
+     * 单指标分区：kpi_KD1002_20251024_CD003
+     * 宽表分区：kpi_model_M001_20251024_CD003
      */
     public String toTableName() {
+        if (modelId != null) {
+            return String.format("kpi_model_%s_%s_%s", modelId, opTime, compDimCode);
+        }
         return String.format("kpi_%s_%s_%s", kpiId, opTime, compDimCode);
     }
+
+    /**
+     * 指标取值列：单指标分区为 kpi_val，宽表分区为以指标编码命名的列
+     */
+    public String valueColumn() {
+        return modelId != null ? kpiId : "kpi_val";
+    }
 }
@@ -14,6 +14,16 @@ public class QueryContext {
     private final Set<String> dimCodes = ConcurrentHashMap.newKeySet(); // 维度代码集合
     private final Map<String, String> fastAliasIndex = new ConcurrentHashMap<>();
     private final Map<String, String> dimensionTablePaths = new ConcurrentHashMap<>();
+    // 物理指标的分区内聚合函数 (kpiId -> aggFunc)，用于分区级预聚合
+    private final Map<String, String> aggFuncIndex = new ConcurrentHashMap<>();
+    // 维度过滤条件 (dimCode -> 取值列表)，保持插入顺序以确定绑定参数编号
+    private final Map<String, List<String>> dimFilters = Collections.synchronizedMap(new LinkedHashMap<>());
+    // 维度列为整数代理键的分区 (需经维度表 dim_key 解码)
+    private final Set<PhysicalTableReq> dimEncodedTables = ConcurrentHashMap.newKeySet();
+    // OPTIMIZED 布局的分区 (维度列以空串存储 NULL，读取时需还原)
+    private final Set<PhysicalTableReq> optimizedLayoutTables = ConcurrentHashMap.newKeySet();
+    // 追加的查询参数 (编号在过滤参数之后)
+    private final List<Object> queryParams = new ArrayList<>();
     // 单次执行的时间切片
     private String opTime;
 
@@ -25,6 +35,31 @@ public class QueryContext {
         requiredTables.add(req);
     }
 
+    public void addPhysicalTable(String kpiId, String opTime, String compDimCode, String aggFunc) {
+        addPhysicalTable(new PhysicalTableReq(kpiId, opTime, compDimCode), aggFunc);
+    }
+
+    public void addPhysicalTable(PhysicalTableReq req, String aggFunc) {
+        requiredTables.add(req);
+        if (aggFunc != null && !aggFunc.isEmpty()) {
+            aggFuncIndex.put(req.kpiId(), aggFunc);
+        }
+    }
+
+    /**
+     * 需要 ATTACH 的分区文件数：同一宽表分区的多个指标只算一个
+     */
+    public int getPartitionFileCount() {
+        return (int) requiredTables.stream().map(PhysicalTableReq::toTableName).distinct().count();
+    }
+
+    /**
+     * 获取物理指标的聚合函数，未登记时按可加指标处理 (sum)
+     */
+    public String getAggFunc(String kpiId) {
+        return aggFuncIndex.getOrDefault(kpiId, "sum");
+    }
+
     public void addDimensionTablePath(String compDimCode, String path) {
         dimensionTablePaths.put(compDimCode, path);
     }
@@ -33,6 +68,26 @@ public class QueryContext {
         return dimensionTablePaths;
     }
 
+    public void markDimEncoded(PhysicalTableReq req) {
+        dimEncodedTables.add(req);
+    }
+
+    public boolean isDimEncoded(PhysicalTableReq req) {
+        return dimEncodedTables.contains(req);
+    }
+
+    public boolean hasDimEncodedTables() {
+        return !dimEncodedTables.isEmpty();
+    }
+
+    public void markOptimizedLayout(PhysicalTableReq req) {
+        optimizedLayoutTables.add(req);
+    }
+
+    public boolean isOptimizedLayout(PhysicalTableReq req) {
+        return optimizedLayoutTables.contains(req);
+    }
+
     public Set<PhysicalTableReq> getRequiredTables() {
         return requiredTables; // 返回并发集合视图
     }
@@ -62,6 +117,72 @@ public class QueryContext {
         return new ArrayList<>(dimCodes);
     }
 
+    /**
+     * 添加维度过滤条件 (IN 列表)，同一维度多次添加时取交集 (条件之间为 AND 关系)
+     */
+    public void addDimFilter(String dimCode, Collection<String> values) {
+        dimFilters.merge(dimCode, List.copyOf(new LinkedHashSet<>(values)), (oldVals, newVals) ->
+                oldVals.stream().filter(newVals::contains).toList());
+    }
+
+    public Map<String, List<String>> getDimFilters() {
+        synchronized (dimFilters) {
+            return new LinkedHashMap<>(dimFilters);
+        }
+    }
+
+    /**
+     * 过滤条件的绑定参数 (按维度插入顺序展开)
+     * SQL 中使用 SQLite 编号参数 ?N，同一取值在每个分区子查询中复用同一编号，只需绑定一次
+     */
+    public List<String> getFilterParams() {
+        List<String> params = new ArrayList<>();
+        getDimFilters().values().forEach(params::addAll);
+        return params;
+    }
+
+    /**
+     * 某个过滤维度对应的编号占位符，如 "?1, ?2"；取值为空列表时返回 null
+     */
+    public String getFilterPlaceholders(String dimCode) {
+        int index = 1;
+        for (Map.Entry<String, List<String>> entry : getDimFilters().entrySet()) {
+            int size = entry.getValue().size();
+            if (entry.getKey().equals(dimCode)) {
+                if (size == 0) return null;
+                StringJoiner joiner = new StringJoiner(", ");
+                for (int i = 0; i < size; i++) {
+                    joiner.add("?" + (index + i));
+                }
+                return joiner.toString();
+            }
+            index += size;
+        }
+        return null;
+    }
+
+    /**
+     * 追加查询参数 (如键集分页的游标值)，编号排在过滤参数之后，返回占位符 "?N"
+     */
+    public String addQueryParam(Object value) {
+        synchronized (queryParams) {
+            queryParams.add(value);
+            return "?" + (getFilterParams().size() + queryParams.size());
+        }
+    }
+
+    /**
+     * 最终查询需绑定的全部参数：过滤参数 + 追加的查询参数
+     * Staging 装载语句只引用过滤参数，应使用 getFilterParams()
+     */
+    public List<Object> getQueryParams() {
+        List<Object> params = new ArrayList<>(getFilterParams());
+        synchronized (queryParams) {
+            params.addAll(queryParams);
+        }
+        return params;
+    }
+
     // --- Getters & Setters ---
 
     public void setOpTime(String opTime) { this.opTime = opTime; }
@@ -112,6 +233,13 @@ public class QueryContext {
 
     public void clear() {
         requiredTables.clear();
+        aggFuncIndex.clear();
+        dimFilters.clear();
+        dimEncodedTables.clear();
+        optimizedLayoutTables.clear();
+        synchronized (queryParams) {
+            queryParams.clear();
+        }
 //        dbAliasMap.clear();
 //        requiredDimCodes.clear();
         dimCodes.clear();
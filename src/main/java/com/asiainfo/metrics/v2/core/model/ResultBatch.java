@@ -0,0 +1,700 @@
+package com.asiainfo.metrics.v2.core.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * 列式结果集
+ *
+ * 查询链路 (ResultSet -> 求值 -> 序列化) 统一使用列式存储，替代每行一个 LinkedHashMap：
+ * - 列名 (schema) 所有行共享
+ * - 字符串列字典编码：String[] 字典 + int[] 编码，维度值、op_time 重复度高
+ * - 数值列：double[] + 空值位图 + 整数位图 (整数值按整数写出，与行式 Map 序列化结果一致)
+ * 对外仍表现为 List&lt;Map&gt; (只读行视图，按需创建)，兼容缓存与现有调用方；
+ * JSON 序列化直接按列写出，不经过行视图。
+ */
+@JsonSerialize(using = ResultBatch.Serializer.class)
+public final class ResultBatch extends AbstractList<Map<String, Object>> {
+
+    private static final ResultBatch EMPTY = new ResultBatch(new String[0], new Column[0], 0);
+
+    private final String[] names;
+    private final Column[] columns;
+    private final int rowCount;
+    private final Map<String, Integer> index;
+
+    private ResultBatch(String[] names, Column[] columns, int rowCount) {
+        this.names = names;
+        this.columns = columns;
+        this.rowCount = rowCount;
+        this.index = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            index.put(names[i], i);
+        }
+    }
+
+    public static ResultBatch empty() {
+        return EMPTY;
+    }
+
+    public static Builder builder(List<String> columnNames) {
+        return new Builder(columnNames);
+    }
+
+    /**
+     * 从 JDBC 游标直接构建，不创建中间行对象
+     */
+    public static ResultBatch fromResultSet(ResultSet rs) throws SQLException {
+        return fromResultSet(rs, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 从游标当前位置最多读取 maxRows 行，用于分块流式输出；游标读完时返回空结果集
+     */
+    public static ResultBatch fromResultSet(ResultSet rs, int maxRows) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        int count = md.getColumnCount();
+        List<String> labels = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            labels.add(md.getColumnLabel(i));
+        }
+        Builder builder = new Builder(labels);
+        while (builder.rowCount < maxRows && rs.next()) {
+            for (int i = 0; i < count; i++) {
+                builder.add(i, rs.getObject(i + 1));
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * 由行式数据构建 (缓存反序列化结果、测试数据)，列集合取第一行的键
+     */
+    public static ResultBatch fromRows(List<Map<String, Object>> rows) {
+        if (rows.isEmpty()) return EMPTY;
+        List<String> names = new ArrayList<>(rows.get(0).keySet());
+        Builder builder = new Builder(names);
+        for (Map<String, Object> row : rows) {
+            for (int i = 0; i < names.size(); i++) {
+                builder.add(i, row.get(names.get(i)));
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * 按行拼接多个结果集 (如多个账期)，列以第一个结果集为准，其他结果集缺少的列补空
+     */
+    public static ResultBatch concat(List<ResultBatch> batches) {
+        List<ResultBatch> nonEmpty = batches.stream().filter(b -> b.rowCount > 0).toList();
+        if (nonEmpty.isEmpty()) return EMPTY;
+        if (nonEmpty.size() == 1) return nonEmpty.get(0);
+
+        List<String> names = nonEmpty.get(0).getColumnNames();
+        Builder builder = new Builder(names);
+        for (ResultBatch batch : nonEmpty) {
+            int[] mapping = new int[names.size()];
+            for (int c = 0; c < names.size(); c++) {
+                mapping[c] = batch.columnIndex(names.get(c));
+            }
+            for (int r = 0; r < batch.rowCount; r++) {
+                for (int c = 0; c < mapping.length; c++) {
+                    if (mapping[c] < 0) {
+                        builder.addNull(c);
+                    } else {
+                        builder.copy(c, batch.columns[mapping[c]], r);
+                    }
+                }
+                builder.endRow();
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * 追加一个常量列 (如 op_time)，字典只有一个值，不修改原结果集
+     */
+    public ResultBatch withConstant(String name, String value) {
+        String[] newNames = Arrays.copyOf(names, names.length + 1);
+        newNames[names.length] = name;
+        Column[] newColumns = Arrays.copyOf(columns, columns.length + 1);
+        newColumns[columns.length] = new StringColumn(new String[]{value}, new int[rowCount]);
+        return new ResultBatch(newNames, newColumns, rowCount);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public List<String> getColumnNames() {
+        return List.of(names);
+    }
+
+    public int columnIndex(String name) {
+        return index.getOrDefault(name, -1);
+    }
+
+    public Column column(int columnIndex) {
+        return columns[columnIndex];
+    }
+
+    /**
+     * 按行号选取 (可重排) 行，字符串列共享字典
+     */
+    public ResultBatch take(int[] rows) {
+        Column[] taken = new Column[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            taken[c] = columns[c].take(rows);
+        }
+        return new ResultBatch(names, taken, rows.length);
+    }
+
+    /**
+     * 连续区间 [from, to) 的行
+     */
+    public ResultBatch slice(int from, int to) {
+        int[] rows = new int[Math.max(0, to - from)];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = from + i;
+        }
+        return take(rows);
+    }
+
+    // --- 排序 ---
+
+    /**
+     * 按排序键返回排好序的行号 (稳定排序)，空值始终在最后
+     */
+    public int[] sortedOrder(List<SortKey> keys) {
+        Column[] keyColumns = keyColumns(keys);
+        Integer[] order = new Integer[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            order[r] = r;
+        }
+        Arrays.sort(order, (a, b) -> compareRows(keyColumns, keys, a, b));
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * 比较两行 (r1 在前返回负数)
+     */
+    public int compareRows(List<SortKey> keys, int r1, int r2) {
+        return compareRows(keyColumns(keys), keys, r1, r2);
+    }
+
+    /**
+     * 比较某行与键集游标 (如 [12.5, "4", "20251104"])，行在游标之后返回正数
+     */
+    public int compareToKey(int row, List<SortKey> keys, List<Object> keyValues) {
+        return compareToKey(keyColumns(keys), keys, row, keyValues);
+    }
+
+    /**
+     * Top-N：返回位于游标 after (可为空) 之后、排序最靠前的至多 n 行的行号 (已排序)
+     * 用大小为 n 的堆逐行筛选，内存与排序开销只与 n 相关，而不是与总行数相关。
+     * 排序键须为全序 (见 {@link SortKey#withTiebreakers})，结果才是确定的。
+     */
+    public int[] topN(List<SortKey> keys, List<Object> after, int n) {
+        if (n <= 0) return new int[0];
+        Column[] keyColumns = keyColumns(keys);
+        Comparator<Integer> order = (a, b) -> compareRows(keyColumns, keys, a, b);
+        // 堆顶为当前保留行中排序最靠后的一行
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.min(n, rowCount) + 1, order.reversed());
+        for (int r = 0; r < rowCount; r++) {
+            if (after != null && compareToKey(keyColumns, keys, r, after) <= 0) continue;
+            if (heap.size() < n) {
+                heap.add(r);
+            } else if (order.compare(r, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(r);
+            }
+        }
+        int[] rows = new int[heap.size()];
+        for (int i = rows.length - 1; i >= 0; i--) {
+            rows[i] = heap.poll();
+        }
+        return rows;
+    }
+
+    private static int compareToKey(Column[] keyColumns, List<SortKey> keys, int row, List<Object> keyValues) {
+        for (int k = 0; k < keyColumns.length; k++) {
+            Column column = keyColumns[k];
+            Object value = keyValues.get(k);
+            boolean rowNull = column.isNull(row);
+            if (rowNull || value == null) {
+                if (rowNull && value == null) continue;
+                return rowNull ? 1 : -1; // 空值在最后
+            }
+            int cmp = column instanceof StringColumn s
+                    ? s.dictionary()[s.codes()[row]].compareTo(value.toString())
+                    : Double.compare(column.getDouble(row), value instanceof Number n ? n.doubleValue() : Double.parseDouble(value.toString()));
+            if (cmp != 0) return keys.get(k).descending() ? -cmp : cmp;
+        }
+        return 0;
+    }
+
+    /**
+     * 已按 keys 排序的结果中，第一条位于键集游标之后的行号 (二分查找)，没有时返回行数
+     */
+    public int firstAfter(List<SortKey> keys, List<Object> keyValues) {
+        int low = 0;
+        int high = rowCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareToKey(mid, keys, keyValues) > 0) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 取某行的排序键值，用作下一页的键集游标
+     */
+    public List<Object> keyOf(int row, List<SortKey> keys) {
+        List<Object> values = new ArrayList<>(keys.size());
+        for (Column column : keyColumns(keys)) {
+            values.add(column.get(row));
+        }
+        return values;
+    }
+
+    private Column[] keyColumns(List<SortKey> keys) {
+        Column[] keyColumns = new Column[keys.size()];
+        for (int k = 0; k < keys.size(); k++) {
+            int c = columnIndex(keys.get(k).field());
+            if (c < 0) {
+                throw new IllegalArgumentException("Unknown sort field: " + keys.get(k).field());
+            }
+            keyColumns[k] = columns[c];
+        }
+        return keyColumns;
+    }
+
+    private static int compareRows(Column[] keyColumns, List<SortKey> keys, int r1, int r2) {
+        for (int k = 0; k < keyColumns.length; k++) {
+            Column column = keyColumns[k];
+            boolean n1 = column.isNull(r1);
+            boolean n2 = column.isNull(r2);
+            if (n1 || n2) {
+                if (n1 && n2) continue;
+                return n1 ? 1 : -1; // 空值在最后
+            }
+            int cmp = column instanceof StringColumn s
+                    ? s.dictionary()[s.codes()[r1]].compareTo(s.dictionary()[s.codes()[r2]])
+                    : Double.compare(column.getDouble(r1), column.getDouble(r2));
+            if (cmp != 0) return keys.get(k).descending() ? -cmp : cmp;
+        }
+        return 0;
+    }
+
+    /**
+     * 逐行写出 JSON 对象 (不含外层数组)，供序列化器与流式输出共用
+     */
+    public void writeRows(JsonGenerator gen) throws IOException {
+        for (int r = 0; r < rowCount; r++) {
+            gen.writeStartObject();
+            for (int c = 0; c < columns.length; c++) {
+                gen.writeFieldName(names[c]);
+                columns[c].write(gen, r);
+            }
+            gen.writeEndObject();
+        }
+    }
+
+    // --- List<Map> 兼容视图 ---
+
+    @Override
+    public Map<String, Object> get(int row) {
+        Objects.checkIndex(row, rowCount);
+        return new RowView(row);
+    }
+
+    @Override
+    public int size() {
+        return rowCount;
+    }
+
+    /**
+     * 只读行视图，按列读取值
+     */
+    private final class RowView extends AbstractMap<String, Object> {
+        private final int row;
+
+        RowView(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public Object get(Object key) {
+            Integer c = index.get(key);
+            return c == null ? null : columns[c].get(row);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return index.containsKey(key);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<>() {
+                        int c = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return c < columns.length;
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            if (c >= columns.length) throw new NoSuchElementException();
+                            Entry<String, Object> e = new SimpleImmutableEntry<>(names[c], columns[c].get(row));
+                            c++;
+                            return e;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return columns.length;
+                }
+            };
+        }
+    }
+
+    // --- 列 ---
+
+    public sealed interface Column permits DoubleColumn, StringColumn {
+        boolean isNull(int row);
+
+        /** 数值读取，空值返回 NaN */
+        double getDouble(int row);
+
+        Object get(int row);
+
+        void write(JsonGenerator gen, int row) throws IOException;
+
+        /** 按行号选取，生成新列 */
+        Column take(int[] rows);
+    }
+
+    /**
+     * 数值列：double[] + 空值位图
+     * integral 标记以整数类型写入的行 (如 SQLite INTEGER 的指标值、维度编码)，读取与序列化时还原为整数 (|v| < 2^53 精确)
+     */
+    public record DoubleColumn(double[] values, BitSet nulls, BitSet integral) implements Column {
+        @Override
+        public boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        public double getDouble(int row) {
+            return nulls.get(row) ? Double.NaN : values[row];
+        }
+
+        @Override
+        public Object get(int row) {
+            if (nulls.get(row)) return null;
+            if (integral.get(row)) return (long) values[row];
+            return values[row];
+        }
+
+        @Override
+        public void write(JsonGenerator gen, int row) throws IOException {
+            if (nulls.get(row)) {
+                gen.writeNull();
+            } else if (integral.get(row)) {
+                gen.writeNumber((long) values[row]);
+            } else {
+                gen.writeNumber(values[row]);
+            }
+        }
+
+        @Override
+        public Column take(int[] rows) {
+            double[] taken = new double[rows.length];
+            BitSet takenNulls = new BitSet();
+            BitSet takenIntegral = new BitSet();
+            for (int i = 0; i < rows.length; i++) {
+                if (nulls.get(rows[i])) {
+                    takenNulls.set(i);
+                } else {
+                    taken[i] = values[rows[i]];
+                    if (integral.get(rows[i])) {
+                        takenIntegral.set(i);
+                    }
+                }
+            }
+            return new DoubleColumn(taken, takenNulls, takenIntegral);
+        }
+    }
+
+    /**
+     * 字典编码字符串列，编码 -1 表示空值
+     */
+    public record StringColumn(String[] dictionary, int[] codes) implements Column {
+        @Override
+        public boolean isNull(int row) {
+            return codes[row] < 0;
+        }
+
+        @Override
+        public double getDouble(int row) {
+            if (codes[row] < 0) return Double.NaN;
+            try {
+                // SQLiteFileManager 生成的分区 kpi_val 为 TEXT，max/min 聚合后仍为字符串
+                return Double.parseDouble(dictionary[codes[row]]);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        @Override
+        public Object get(int row) {
+            return codes[row] < 0 ? null : dictionary[codes[row]];
+        }
+
+        @Override
+        public void write(JsonGenerator gen, int row) throws IOException {
+            if (codes[row] < 0) {
+                gen.writeNull();
+            } else {
+                gen.writeString(dictionary[codes[row]]);
+            }
+        }
+
+        @Override
+        public Column take(int[] rows) {
+            int[] taken = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                taken[i] = codes[rows[i]];
+            }
+            return new StringColumn(dictionary, taken);
+        }
+    }
+
+    // --- 构建 ---
+
+    /**
+     * 按行追加、按列存储的构建器
+     * 列类型由写入值决定：先写入数值为数值列，遇到字符串则整列转为字符串列 (SQLite 为动态类型)。
+     */
+    public static final class Builder {
+        private final String[] names;
+        private final ColumnBuilder[] builders;
+        private int rowCount;
+
+        private Builder(List<String> columnNames) {
+            this.names = columnNames.toArray(new String[0]);
+            this.builders = new ColumnBuilder[names.length];
+            for (int i = 0; i < names.length; i++) {
+                builders[i] = new ColumnBuilder();
+            }
+        }
+
+        public Builder add(int column, Object value) {
+            if (value == null) {
+                builders[column].addNull(rowCount);
+            } else if (isIntegral(value)) {
+                builders[column].addLong(rowCount, ((Number) value).longValue());
+            } else if (value instanceof Number n) {
+                builders[column].addDouble(rowCount, n.doubleValue());
+            } else {
+                builders[column].addString(rowCount, value.toString());
+            }
+            return this;
+        }
+
+        /**
+         * 写入数值，NaN 视为空值 (与 MetricExpression 的空值约定一致)
+         */
+        public Builder addDouble(int column, double value) {
+            if (Double.isNaN(value)) {
+                builders[column].addNull(rowCount);
+            } else {
+                builders[column].addDouble(rowCount, value);
+            }
+            return this;
+        }
+
+        public Builder addString(int column, String value) {
+            if (value == null) {
+                builders[column].addNull(rowCount);
+            } else {
+                builders[column].addString(rowCount, value);
+            }
+            return this;
+        }
+
+        public Builder addNull(int column) {
+            builders[column].addNull(rowCount);
+            return this;
+        }
+
+        /**
+         * 从另一列复制一个值，保持原有类型，避免装箱
+         */
+        public Builder copy(int column, Column source, int row) {
+            if (source.isNull(row)) {
+                builders[column].addNull(rowCount);
+            } else if (source instanceof StringColumn s) {
+                builders[column].addString(rowCount, s.dictionary()[s.codes()[row]]);
+            } else if (source instanceof DoubleColumn d && d.integral().get(row)) {
+                builders[column].addLong(rowCount, (long) d.values()[row]);
+            } else {
+                builders[column].addDouble(rowCount, source.getDouble(row));
+            }
+            return this;
+        }
+
+        private static boolean isIntegral(Object value) {
+            return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+        }
+
+        public void endRow() {
+            rowCount++;
+        }
+
+        public ResultBatch build() {
+            Column[] columns = new Column[builders.length];
+            for (int i = 0; i < builders.length; i++) {
+                columns[i] = builders[i].build(rowCount);
+            }
+            return new ResultBatch(names, columns, rowCount);
+        }
+    }
+
+    private static final class ColumnBuilder {
+        private static final int INITIAL_CAPACITY = 64;
+
+        // 数值模式
+        private double[] values = new double[INITIAL_CAPACITY];
+        private final BitSet nulls = new BitSet();
+        private final BitSet integral = new BitSet();
+        // 字符串模式 (遇到第一个字符串值后切换)
+        private Map<String, Integer> dict;
+        private List<String> dictValues;
+        private int[] codes;
+
+        void addNull(int row) {
+            if (dict == null) {
+                ensureDoubleCapacity(row);
+                nulls.set(row);
+            } else {
+                ensureCodeCapacity(row);
+                codes[row] = -1;
+            }
+        }
+
+        void addDouble(int row, double value) {
+            if (dict != null) {
+                addString(row, Double.toString(value));
+                return;
+            }
+            ensureDoubleCapacity(row);
+            values[row] = value;
+        }
+
+        void addLong(int row, long value) {
+            if (dict != null) {
+                addString(row, Long.toString(value));
+                return;
+            }
+            ensureDoubleCapacity(row);
+            values[row] = value;
+            integral.set(row);
+        }
+
+        void addString(int row, String value) {
+            if (dict == null) {
+                switchToStrings(row);
+            }
+            ensureCodeCapacity(row);
+            Integer code = dict.get(value);
+            if (code == null) {
+                code = dictValues.size();
+                dict.put(value, code);
+                dictValues.add(value);
+            }
+            codes[row] = code;
+        }
+
+        /**
+         * 已写入的数值转为字符串编码
+         */
+        private void switchToStrings(int row) {
+            dict = new HashMap<>();
+            dictValues = new ArrayList<>();
+            codes = new int[Math.max(values.length, INITIAL_CAPACITY)];
+            for (int r = 0; r < row; r++) {
+                if (nulls.get(r)) {
+                    codes[r] = -1;
+                } else {
+                    String s = integral.get(r) ? Long.toString((long) values[r]) : Double.toString(values[r]);
+                    Integer code = dict.get(s);
+                    if (code == null) {
+                        code = dictValues.size();
+                        dict.put(s, code);
+                        dictValues.add(s);
+                    }
+                    codes[r] = code;
+                }
+            }
+            values = null;
+        }
+
+        private void ensureDoubleCapacity(int row) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, Math.max(row + 1, values.length * 2));
+            }
+        }
+
+        private void ensureCodeCapacity(int row) {
+            if (row >= codes.length) {
+                codes = Arrays.copyOf(codes, Math.max(row + 1, codes.length * 2));
+            }
+        }
+
+        Column build(int rowCount) {
+            if (dict == null) {
+                return new DoubleColumn(Arrays.copyOf(values, rowCount), nulls, integral);
+            }
+            return new StringColumn(dictValues.toArray(new String[0]), Arrays.copyOf(codes, rowCount));
+        }
+    }
+
+    /**
+     * 直接按列写出 JSON 数组：[{"city_id":"A","KD1002":6.0,...}, ...]
+     */
+    public static final class Serializer extends StdSerializer<ResultBatch> {
+
+        public Serializer() {
+            super(ResultBatch.class);
+        }
+
+        @Override
+        public void serialize(ResultBatch batch, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartArray(batch, batch.rowCount);
+            batch.writeRows(gen);
+            gen.writeEndArray();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.asiainfo.metrics.v2.core.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 排序键
+ * 由 KpiQueryRequest.sortOptions 解析而来，如 {"KD1002": "desc", "city_id": "asc"}
+ * 空值始终排在最后 (与 SQL 中的 NULLS LAST 一致)，与排序方向无关。
+ */
+public record SortKey(
+    String field,       // 输出字段：维度、指标 ID 或 op_time
+    boolean descending  // 是否倒序
+) {
+    private static final String FIELD_REGEX = "^[a-zA-Z0-9_]+$";
+
+    /**
+     * 解析 sortOptions，保持请求中的字段顺序
+     *
+     * @throws IllegalArgumentException 字段名或排序方向非法
+     */
+    public static List<SortKey> parse(Map<String, String> sortOptions) {
+        List<SortKey> keys = new ArrayList<>();
+        if (sortOptions == null) return keys;
+        for (Map.Entry<String, String> entry : sortOptions.entrySet()) {
+            String field = entry.getKey();
+            if (field == null || !field.matches(FIELD_REGEX)) {
+                throw new IllegalArgumentException("Invalid sort field: " + field);
+            }
+            String direction = entry.getValue() == null ? "asc" : entry.getValue().trim().toLowerCase();
+            if (!direction.equals("asc") && !direction.equals("desc")) {
+                throw new IllegalArgumentException("Invalid sort direction for " + field + ": " + entry.getValue());
+            }
+            keys.add(new SortKey(field, direction.equals("desc")));
+        }
+        return keys;
+    }
+
+    /**
+     * 追加维度与 op_time 作为升序兜底排序键，保证排序全序 (每个 维度组合 × 账期 只有一行)
+     */
+    public static List<SortKey> withTiebreakers(List<SortKey> keys, List<String> dims) {
+        List<SortKey> full = new ArrayList<>(keys);
+        List<String> tiebreakers = new ArrayList<>(dims);
+        tiebreakers.add("op_time");
+        for (String dim : tiebreakers) {
+            if (full.stream().noneMatch(k -> k.field().equals(dim))) {
+                full.add(new SortKey(dim, false));
+            }
+        }
+        return full;
+    }
+}
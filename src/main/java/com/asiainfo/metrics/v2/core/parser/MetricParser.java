@@ -1,6 +1,7 @@
 package com.asiainfo.metrics.v2.core.parser;
 
-import com.asiainfo.metrics.v2.core.MetricsConstants;
+import com.asiainfo.metrics.v2.core.expression.ExpressionCompiler;
+import com.asiainfo.metrics.v2.core.expression.MetricExpression;
 import com.asiainfo.metrics.v2.core.model.*;
 import com.asiainfo.metrics.v2.infra.persistence.MetadataRepository;
 import jakarta.enterprise.context.ApplicationScoped;
@@ -9,18 +10,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
 
 @ApplicationScoped
 public class MetricParser {
 
     private static final Logger log = LoggerFactory.getLogger(MetricParser.class);
     private static final DateTimeFormatter DATE_FMT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter MONTH_FMT = DateTimeFormatter.ofPattern("yyyyMM");
 
     @Inject MetadataRepository metadataRepo;
+    @Inject ExpressionCompiler compiler;
 
     public void resolveDependencies(MetricDefinition metric, String baseOpTime, QueryContext ctx) {
         resolveRecursive(metric, baseOpTime, ctx, new HashSet<>(), 0);
@@ -45,41 +50,47 @@ public class MetricParser {
             if (targetCompDim == null) {
                 targetCompDim = "CD003";
             }
-            ctx.addPhysicalTable(metric.id(), currentOpTime, targetCompDim);
+            // 已登记为宽表分区的指标读取模型分区文件中的同名列
+            String modelId = metadataRepo.findPartitionModel(metric.id(), currentOpTime, targetCompDim);
+            ctx.addPhysicalTable(new PhysicalTableReq(metric.id(), currentOpTime, targetCompDim, modelId), metric.aggFunc());
             return;
         }
 
-        try {
-            String expr = metric.expression();
-            if (expr != null) {
-                // DEBUG LOGGING START
-                log.debug("Matching expression: '{}' with pattern: '{}'", expr, MetricsConstants.VARIABLE_PATTERN.pattern());
-                // DEBUG LOGGING END
-
-                Matcher matcher = MetricsConstants.VARIABLE_PATTERN.matcher(expr);
-                while (matcher.find()) {
-                    String refId = matcher.group(1);
-                    log.debug("Found dependency: {}", refId); // DEBUG LOG
+        String expr = metric.expression();
+        if (expr != null) {
+            // 表达式已编译缓存，这里只遍历语法树中的引用
+            List<MetricExpression.Reference> refs = new ArrayList<>();
+            compiler.compile(expr).collectReferences(refs::add);
+            for (MetricExpression.Reference ref : refs) {
+                String refId = ref.kpiId();
+                log.debug("Found dependency: {}", refId);
 
-                    String modifier = matcher.group(3);
-                    String targetTime = calculateTime(currentOpTime, modifier);
+                String targetTime = calculateTime(currentOpTime, ref.modifier());
 
-                    MetricDefinition refDef = metadataRepo.findById(refId);
-                    if (refDef == null) {
-                        log.error("Metric definition not found for: {}", refId);
-                        throw new RuntimeException("Dependent metric not found: " + refId);
-                    }
-                    resolveRecursive(refDef, targetTime, ctx, new HashSet<>(visitedPath), depth + 1);
+                MetricDefinition refDef = metadataRepo.findById(refId);
+                if (refDef == null) {
+                    log.error("Metric definition not found for: {}", refId);
+                    throw new RuntimeException("Dependent metric not found: " + refId);
                 }
+                resolveRecursive(refDef, targetTime, ctx, new HashSet<>(visitedPath), depth + 1);
             }
-        } finally {
-            // no-op
         }
     }
 
+    /**
+     * 计算引用修饰符对应的账期，支持日账期 (yyyyMMdd) 与月账期 (yyyyMM)
+     */
     public String calculateTime(String baseTime, String modifier) {
         if (modifier == null || modifier.isEmpty() || "current".equals(modifier)) return baseTime;
         try {
+            if (baseTime.length() == 6) {
+                YearMonth month = YearMonth.parse(baseTime, MONTH_FMT);
+                return switch (modifier) {
+                    case "lastYear" -> month.minusYears(1).format(MONTH_FMT);
+                    case "lastCycle", "lastMonth" -> month.minusMonths(1).format(MONTH_FMT);
+                    default -> baseTime;
+                };
+            }
             LocalDate date = LocalDate.parse(baseTime, DATE_FMT);
             return switch (modifier) {
                 case "lastYear" -> date.minusYears(1).format(DATE_FMT);
@@ -1,5 +1,6 @@
 package com.asiainfo.metrics.v2.infra.persistence;
 
+import com.asiainfo.metrics.config.MetricsConfig;
 import com.asiainfo.metrics.model.db.DimDef;
 import com.asiainfo.metrics.repository.KpiMetadataRepository;
 import com.asiainfo.metrics.v2.core.model.MetricDefinition;
@@ -21,9 +22,18 @@ public class MetadataRepository {
     // 新增缓存：记录每个 compDimCode 拥有的物理列名 (如 CD001 -> [city_id])
     private final Map<String, Set<String>> dimSchemaCache = new ConcurrentHashMap<>();
 
+    // 宽表分区登记缓存：opTime -> (kpiId@compDimCode -> modelId)，短期有效，发布时主动失效，写入时清除过期项
+    private record PartitionLayout(Map<String, String> models, long expiresAt) {
+    }
+
+    private final Map<String, PartitionLayout> partitionCache = new ConcurrentHashMap<>();
+
     @Inject
     KpiMetadataRepository legacyRepo;
 
+    @Inject
+    MetricsConfig metricsConfig;
+
     public MetricDefinition findById(String kpiId) {
         return metricCache.computeIfAbsent(kpiId, this::loadMetricFromDb);
     }
@@ -66,6 +76,57 @@ public class MetadataRepository {
         });
     }
 
+    /**
+     * 物理指标在某账期所在的宽表分区 (取数模型 ID)
+     * 未登记 (历史数据或按单指标发布) 时返回 null，按单指标分区读取。
+     */
+    public String findPartitionModel(String kpiId, String opTime, String compDimCode) {
+        PartitionLayout layout = partitionCache.get(opTime);
+        if (layout == null || layout.expiresAt() < System.currentTimeMillis()) {
+            layout = loadPartitions(List.of(opTime)).get(opTime);
+        }
+        return layout.models().get(kpiId + "@" + compDimCode);
+    }
+
+    /**
+     * 查询规划前预加载一批账期的宽表分区登记：缓存中缺失或过期的账期合并为一次元数据查询
+     */
+    public void preloadPartitions(Collection<String> opTimes) {
+        long now = System.currentTimeMillis();
+        List<String> missing = opTimes.stream()
+                .distinct()
+                .filter(opTime -> {
+                    PartitionLayout layout = partitionCache.get(opTime);
+                    return layout == null || layout.expiresAt() < now;
+                })
+                .toList();
+        if (!missing.isEmpty()) {
+            loadPartitions(missing);
+        }
+    }
+
+    private Map<String, PartitionLayout> loadPartitions(List<String> opTimes) {
+        Map<String, Map<String, String>> loaded = legacyRepo.getModelPartitions(opTimes);
+        long now = System.currentTimeMillis();
+        // 缓存只保留有效期内用到的账期，趋势查询的大量账期过期后随下一次写入清除
+        partitionCache.values().removeIf(layout -> layout.expiresAt() < now);
+        long expiresAt = now + metricsConfig.getCatalogTtlSeconds() * 1000;
+        Map<String, PartitionLayout> layouts = new HashMap<>();
+        for (String opTime : opTimes) {
+            PartitionLayout layout = new PartitionLayout(loaded.getOrDefault(opTime, Map.of()), expiresAt);
+            partitionCache.put(opTime, layout);
+            layouts.put(opTime, layout);
+        }
+        return layouts;
+    }
+
+    /**
+     * 分区发布后丢弃该账期的宽表分区登记缓存
+     */
+    public void invalidatePartitions(String opTime) {
+        partitionCache.remove(opTime);
+    }
+
     private MetricDefinition convertToDomain(com.asiainfo.metrics.model.db.KpiDefinition dbDef) {
         String id = dbDef.kpiId();
         String type = dbDef.kpiType();
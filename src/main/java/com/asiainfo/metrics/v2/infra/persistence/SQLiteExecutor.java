@@ -2,6 +2,7 @@ package com.asiainfo.metrics.v2.infra.persistence;
 
 import com.asiainfo.metrics.v2.core.model.PhysicalTableReq;
 import com.asiainfo.metrics.v2.core.model.QueryContext;
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
 import com.asiainfo.metrics.v2.infra.storage.StorageManager;
 import io.agroal.api.AgroalDataSource;
 import io.micrometer.core.instrument.MeterRegistry;
@@ -32,9 +33,21 @@ public class SQLiteExecutor {
     @DataSource("sqlite")
     AgroalDataSource sqliteDataSource;
 
-    public List<Map<String, Object>> executeQuery(QueryContext ctx, String sql) {
+    /**
+     * 游标处理回调，流式输出时在游标上逐块读取，连接在回调返回前保持占用
+     */
+    @FunctionalInterface
+    public interface ResultSetHandler<T> {
+        T handle(ResultSet rs) throws Exception;
+    }
+
+    public ResultBatch executeQuery(QueryContext ctx, String sql) {
         if (sql == null || sql.isEmpty())
-            return Collections.emptyList();
+            return ResultBatch.empty();
+        return executeQuery(ctx, sql, ResultBatch::fromResultSet);
+    }
+
+    public <T> T executeQuery(QueryContext ctx, String sql, ResultSetHandler<T> handler) {
 
         // 2. 从连接池获取连接 (Reuse)
         try (Connection conn = sqliteDataSource.getConnection()) {
@@ -42,18 +55,19 @@ public class SQLiteExecutor {
             try {
                 Statement stmt = conn.createStatement();
 
-                // Attach KPI Tables
+                // Attach KPI Tables (同一宽表分区的多个指标只 ATTACH 一次)
                 for (var req : ctx.getRequiredTables()) {
-                    String alias = attachDatabase(stmt, ctx, req);
-                    attachedAliases.add(alias);
+                    if (!attachedAliases.contains(ctx.getAlias(req.kpiId(), req.opTime()))) {
+                        attachedAliases.add(attachDatabase(stmt, ctx, req));
+                    }
                 }
 
                 // Attach Dim Tables
                 List<String> dimAliases = attachDimensionTables(stmt, ctx);
                 attachedAliases.addAll(dimAliases);
 
-                // Execute
-                return executeAndMap(stmt, sql);
+                // Execute (维度过滤取值以绑定参数传入)
+                return executeAndMap(conn, sql, ctx.getQueryParams(), handler);
 
             } finally {
                 // 3. 关键：归还前必须清理现场 (Cleanup)
@@ -66,9 +80,69 @@ public class SQLiteExecutor {
         }
     }
 
+    /**
+     * 共享连接执行结果：value 与 error 二选一
+     */
+    public record SharedResult<T>(T value, Exception error) {
+    }
+
+    /**
+     * 在同一连接上执行一组查询 (批量查询)：各查询涉及的分区库与维度库去重后只 ATTACH 一次，
+     * 各 SQL 依次执行并绑定各自的查询参数。单条 SQL 失败不影响同组其他查询。
+     * 调用方需保证去重后的 ATTACH 数量不超过 SQLite 上限 (默认 10)。
+     */
+    public <T> List<SharedResult<T>> executeShared(List<QueryContext> ctxs, List<String> sqls, ResultSetHandler<T> handler) {
+        try (Connection conn = sqliteDataSource.getConnection()) {
+            Set<String> attachedAliases = new LinkedHashSet<>();
+            try {
+                Statement stmt = conn.createStatement();
+                for (QueryContext ctx : ctxs) {
+                    for (var req : ctx.getRequiredTables()) {
+                        String alias = ctx.getAlias(req.kpiId(), req.opTime());
+                        if (attachedAliases.add(alias)) {
+                            String localPath = storageManager.downloadAndPrepare(req);
+                            stmt.execute(String.format("ATTACH DATABASE '%s' AS %s", localPath, alias));
+                        }
+                    }
+                    for (Map.Entry<String, String> entry : ctx.getDimensionTablePaths().entrySet()) {
+                        String alias = "dim_db_" + entry.getKey();
+                        if (attachedAliases.add(alias)) {
+                            stmt.execute(String.format("ATTACH DATABASE '%s' AS %s", entry.getValue(), alias));
+                        }
+                    }
+                }
+
+                List<SharedResult<T>> results = new ArrayList<>(sqls.size());
+                for (int i = 0; i < sqls.size(); i++) {
+                    try {
+                        results.add(new SharedResult<>(executeAndMap(conn, sqls.get(i), ctxs.get(i).getQueryParams(), handler), null));
+                    } catch (Exception e) {
+                        log.error("SQLite execution failed in shared batch", e);
+                        results.add(new SharedResult<>(null, e));
+                    }
+                }
+                return results;
+            } finally {
+                detachAll(conn, attachedAliases);
+            }
+        } catch (Exception e) {
+            log.error("SQLite execution failed", e);
+            throw new RuntimeException("Query execution failed", e);
+        }
+    }
+
     // Staging 模式同理适配
-    public List<Map<String, Object>> executeWithStaging(QueryContext ctx, List<String> dims,
+    // partitionSqlProvider: 生成单个分区的预聚合 SELECT，装载时直接写入聚合后的行
+    public ResultBatch executeWithStaging(QueryContext ctx, List<String> dims,
+            Function<PhysicalTableReq, String> partitionSqlProvider,
             Function<String, String> sqlProvider) {
+        return executeWithStaging(ctx, dims, partitionSqlProvider, sqlProvider, ResultBatch::fromResultSet);
+    }
+
+    public <T> T executeWithStaging(QueryContext ctx, List<String> dims,
+            Function<PhysicalTableReq, String> partitionSqlProvider,
+            Function<String, String> sqlProvider,
+            ResultSetHandler<T> handler) {
         String stagingTable = "staging_data";
         try (Connection conn = sqliteDataSource.getConnection()) {
             Set<String> attachedAliases = new HashSet<>();
@@ -81,25 +155,47 @@ public class SQLiteExecutor {
             conn.setAutoCommit(false);
             try {
                 createStagingTable(stmt, stagingTable, dims);
-                List<PhysicalTableReq> allTables = new ArrayList<>(ctx.getRequiredTables());
+                // 按分区文件分组：一个文件只 ATTACH 一次，装载其中被引用的全部指标
+                Map<String, List<PhysicalTableReq>> files = new LinkedHashMap<>();
+                for (PhysicalTableReq req : ctx.getRequiredTables()) {
+                    files.computeIfAbsent(ctx.getAlias(req.kpiId(), req.opTime()), k -> new ArrayList<>()).add(req);
+                }
+                List<List<PhysicalTableReq>> allFiles = new ArrayList<>(files.values());
+
+                // 整数编码分区在装载时即按维度表解码，维度库需先 ATTACH，并占用每批的 ATTACH 名额
+                // 维度库占满名额时每批装载不了任何分区 (批大小为 0 不会前进)，ATTACH 前直接拒绝
+                boolean decodeOnLoad = ctx.hasDimEncodedTables();
+                if (decodeOnLoad) {
+                    int dimTables = ctx.getDimensionTablePaths().size();
+                    if (dimTables + 1 > BATCH_SIZE) {
+                        throw new IllegalStateException(String.format(
+                                "Too many dimension tables for integer-encoded partitions: %d dimension databases "
+                                        + "plus at least 1 partition exceed the SQLite ATTACH limit of %d",
+                                dimTables, BATCH_SIZE));
+                    }
+                    attachedAliases.addAll(attachDimensionTables(stmt, ctx));
+                }
+                int batchSize = BATCH_SIZE - attachedAliases.size();
 
-                for (int i = 0; i < allTables.size(); i += BATCH_SIZE) {
-                    int end = Math.min(i + BATCH_SIZE, allTables.size());
-                    List<PhysicalTableReq> batch = allTables.subList(i, end);
+                for (int i = 0; i < allFiles.size(); i += batchSize) {
+                    int end = Math.min(i + batchSize, allFiles.size());
+                    List<List<PhysicalTableReq>> batch = allFiles.subList(i, end);
 
                     // Load Batch 会负责 Attach -> Insert -> Detach
                     // 所以这里只需要收集 staging 过程中产生的临时 alias (如果有残留)
-                    loadBatch(stmt, ctx, batch, stagingTable, dims);
+                    loadBatch(stmt, ctx, batch, stagingTable, partitionSqlProvider);
                 }
 
                 conn.commit();
 
                 // 最后查询时的 Dimension Attach
-                List<String> dimAliases = attachDimensionTables(stmt, ctx);
-                attachedAliases.addAll(dimAliases);
+                if (!decodeOnLoad) {
+                    attachedAliases.addAll(attachDimensionTables(stmt, ctx));
+                }
 
                 String sql = sqlProvider.apply(stagingTable);
-                List<Map<String, Object>> result = executeAndMap(stmt, sql);
+                // 过滤已在装载阶段完成，汇总查询只会引用追加的查询参数 (未引用的编号绑定无副作用)
+                T result = executeAndMap(conn, sql, ctx.getQueryParams(), handler);
 
                 // 清理 Staging 表 (因为连接是复用的，表会残留)
                 stmt.execute("DROP TABLE IF EXISTS " + stagingTable);
@@ -174,21 +270,25 @@ public class SQLiteExecutor {
 
     // ... (existing code)
 
-    private void loadBatch(Statement stmt, QueryContext ctx, List<PhysicalTableReq> batch, String stagingTable,
-            List<String> dims) throws Exception {
+    private void loadBatch(Statement stmt, QueryContext ctx, List<List<PhysicalTableReq>> batch, String stagingTable,
+            Function<PhysicalTableReq, String> partitionSqlProvider) throws Exception {
         Set<String> batchAliases = new HashSet<>();
-        for (PhysicalTableReq req : batch) {
-            batchAliases.add(attachDatabase(stmt, ctx, req));
+        for (List<PhysicalTableReq> file : batch) {
+            batchAliases.add(attachDatabase(stmt, ctx, file.get(0)));
         }
 
-        String selectDims = dims.isEmpty() ? "" : ", " + String.join(", ", dims);
-        String insertDims = dims.isEmpty() ? "" : ", " + String.join(", ", dims);
-        for (PhysicalTableReq req : batch) {
-            String alias = ctx.getAlias(req.kpiId(), req.opTime());
-            String insertSql = String.format(
-                    "INSERT INTO %s (kpi_id, op_time, kpi_val%s) SELECT '%s', '%s', kpi_val%s FROM %s.%s",
-                    stagingTable, insertDims, req.kpiId(), req.opTime(), selectDims, alias, req.toTableName());
-            stmt.execute(insertSql);
+        // 列顺序与预聚合 SELECT 保持一致: 维度(ctx 顺序)..., kpi_id, op_time, kpi_val
+        List<String> ctxDims = ctx.getDimCodes();
+        String insertDims = ctxDims.isEmpty() ? "" : String.join(", ", ctxDims) + ", ";
+        List<String> filterParams = ctx.getFilterParams();
+        for (PhysicalTableReq req : batch.stream().flatMap(List::stream).toList()) {
+            String insertSql = String.format("INSERT INTO %s (%skpi_id, op_time, kpi_val) %s",
+                    stagingTable, insertDims, partitionSqlProvider.apply(req));
+            // 维度过滤在装载时生效，staging 表只保留命中的行；缺少过滤维度的分区 (WHERE 0) 不含占位符，不绑定参数
+            try (PreparedStatement ps = stmt.getConnection().prepareStatement(insertSql)) {
+                bindParams(ps, filterParams);
+                ps.executeUpdate();
+            }
         }
 
         // Batch 结束立即 Detach
@@ -197,33 +297,33 @@ public class SQLiteExecutor {
         }
     }
 
-    private List<Map<String, Object>> executeAndMap(Statement stmt, String sql) throws Exception {
-        if (sql == null || sql.isEmpty())
-            return Collections.emptyList();
+    private <T> T executeAndMap(Connection conn, String sql, List<?> params, ResultSetHandler<T> handler) throws Exception {
         return Timer.builder("metrics.sqlite.query.time")
                 .description("SQLite query execution time")
                 .register(registry)
                 .recordCallable(() -> {
                     long start = System.currentTimeMillis();
-                    try (ResultSet rs = stmt.executeQuery(sql)) {
-                        List<Map<String, Object>> results = resultSetToList(rs);
-                        log.debug("Executed in {} ms, rows: {}", System.currentTimeMillis() - start, results.size());
-                        return results;
+                    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                        bindParams(ps, params);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            T results = handler.handle(rs);
+                            log.debug("Executed in {} ms", System.currentTimeMillis() - start);
+                            return results;
+                        }
                     }
                 });
     }
 
-    private List<Map<String, Object>> resultSetToList(ResultSet rs) throws SQLException {
-        ResultSetMetaData md = rs.getMetaData();
-        int columns = md.getColumnCount();
-        List<Map<String, Object>> list = new ArrayList<>();
-        while (rs.next()) {
-            Map<String, Object> row = new LinkedHashMap<>();
-            for (int i = 1; i <= columns; ++i) {
-                row.put(md.getColumnLabel(i), rs.getObject(i));
-            }
-            list.add(row);
+    /**
+     * 绑定 SQLite 编号参数 (?1, ?2 ...)，参数 i 对应 params[i - 1]
+     * 按语句逐条绑定，只绑定到该语句中出现的最大编号：缺少过滤维度的分区扫描 (WHERE 0)、
+     * 全部分区均为 WHERE 0 的直接查询与 Staging 汇总查询都不引用 (全部) 过滤参数，
+     * 超出语句编号的参数若照常绑定会抛出越界异常。编号范围内未被引用的参数绑定无副作用。
+     */
+    static void bindParams(PreparedStatement ps, List<?> params) throws SQLException {
+        int count = Math.min(params.size(), ps.getParameterMetaData().getParameterCount());
+        for (int i = 0; i < count; i++) {
+            ps.setObject(i + 1, params.get(i));
         }
-        return list;
     }
 }
\ No newline at end of file
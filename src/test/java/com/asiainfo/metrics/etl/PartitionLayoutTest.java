@@ -0,0 +1,284 @@
+package com.asiainfo.metrics.etl;
+
+import com.asiainfo.metrics.etl.SqliteDataProducer.PartitionLayout;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分区文件布局对比：两种布局 (及整数编码维度) 的查询结果一致，并输出文件大小、压缩后大小 (下载量) 与扫描耗时
+ */
+public class PartitionLayoutTest {
+
+    private static final List<String> DIMS = List.of("city_id", "county_id");
+    private final List<Path> files = new ArrayList<>();
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testOptimizedLayoutMatchesLegacy() throws Exception {
+        Path legacy = produce(PartitionLayout.LEGACY);
+        Path optimized = produce(PartitionLayout.OPTIMIZED);
+
+        // 与 SqlGenerator.generatePartitionAggregate 相同形态的分区扫描 (只有 OPTIMIZED 布局把空串还原为 NULL)
+        String byCity = "SELECT nullif(city_id, '') as city_id, sum(kpi_val) as kpi_val FROM db.kpi_KD1002_20251104_CD003"
+                + " GROUP BY city_id ORDER BY 1";
+        String byCounty = "SELECT nullif(city_id, '') as city_id, nullif(county_id, '') as county_id, sum(kpi_val) as kpi_val"
+                + " FROM db.kpi_KD1002_20251104_CD003 WHERE city_id IN ('C7') GROUP BY city_id, county_id ORDER BY 1, 2";
+        String legacyByCity = byCity.replaceAll("nullif\\((\\w+), ''\\) as \\w+", "$1");
+        String legacyByCounty = byCounty.replaceAll("nullif\\((\\w+), ''\\) as \\w+", "$1");
+        assertEquals(scan(legacy, legacyByCity).rows(), scan(optimized, byCity).rows());
+        assertEquals(scan(legacy, legacyByCounty).rows(), scan(optimized, byCounty).rows());
+        // 县为空的行仍按 NULL 输出
+        assertTrue(scan(optimized, byCounty).rows().stream().anyMatch(row -> row.get("county_id") == null));
+
+        long legacySize = Files.size(legacy);
+        long optimizedSize = Files.size(optimized);
+        long legacyGz = gzipSize(legacy);
+        long optimizedGz = gzipSize(optimized);
+        long legacyScan = scan(legacy, legacyByCity).nanos();
+        long optimizedScan = scan(optimized, byCity).nanos();
+        System.out.printf("LEGACY    size=%d gz=%d scan=%.2fms%n", legacySize, legacyGz, legacyScan / 1e6);
+        System.out.printf("OPTIMIZED size=%d gz=%d scan=%.2fms%n", optimizedSize, optimizedGz, optimizedScan / 1e6);
+
+        assertTrue(optimizedSize < legacySize, "优化布局去掉冗余列与二级索引，文件应更小");
+        assertTrue(optimizedGz < legacyGz, "优化布局压缩后应更小");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + optimized);
+             ResultSet rs = conn.createStatement().executeQuery("SELECT count(*) FROM sqlite_stat1")) {
+            assertTrue(rs.next() && rs.getInt(1) > 0, "优化布局应内嵌 ANALYZE 统计");
+        }
+    }
+
+    @Test
+    public void testDimEncodedPartitionDecodesToSameResult() throws Exception {
+        SqliteDataProducer producer = new SqliteDataProducer("http://127.0.0.1:9000", "test", "test", "test");
+        Path dimFile = produceDim(producer, DimDictionary.empty());
+        DimDictionary dictionary;
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dimFile)) {
+            dictionary = DimDictionary.load(conn, "kpi_dim_CD003");
+        }
+
+        Path text = produce(PartitionLayout.OPTIMIZED);
+        Path encoded = produce(PartitionLayout.OPTIMIZED, dictionary);
+        String byCounty = "SELECT nullif(city_id, '') as city_id, nullif(county_id, '') as county_id, sum(kpi_val) as kpi_val"
+                + " FROM db.kpi_KD1002_20251104_CD003 WHERE city_id IN ('C7') GROUP BY city_id, county_id ORDER BY 1, 2";
+        // 与 SqlGenerator 整数编码分区的形态一致：整数键上过滤、分组，结果按 dim_key 解码
+        String encodedByCounty = "SELECT d_city_id.dim_code as city_id, d_county_id.dim_code as county_id, g.kpi_val FROM ("
+                + "SELECT city_id, county_id, sum(kpi_val) as kpi_val FROM db.kpi_KD1002_20251104_CD003"
+                + " WHERE city_id IN (SELECT dim_key FROM dim.kpi_dim_CD003 WHERE dim_id = 'city_id' AND dim_code IN ('C7'))"
+                + " GROUP BY city_id, county_id) g"
+                + " LEFT JOIN dim.kpi_dim_CD003 d_city_id ON d_city_id.dim_key = g.city_id"
+                + " LEFT JOIN dim.kpi_dim_CD003 d_county_id ON d_county_id.dim_key = g.county_id ORDER BY 1, 2";
+        assertEquals(scan(text, byCounty).rows(), scan(encoded, encodedByCounty, dimFile).rows());
+
+        // 重新生产维度表沿用已有的代理键
+        Path republished = produceDim(producer, dictionary);
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + republished)) {
+            DimDictionary reloaded = DimDictionary.load(conn, "kpi_dim_CD003");
+            assertEquals(dictionary.encode("county_id", "C7_3"), reloaded.encode("county_id", "C7_3"));
+        }
+        assertEquals(DimDictionary.NULL_KEY, dictionary.encode("county_id", null));
+    }
+
+    @Test
+    public void testRollupParityWithUnevenGroups() throws Exception {
+        for (String aggFunc : List.of("sum", "min", "max", "avg", "count")) {
+            Path legacy = produceUneven(PartitionLayout.LEGACY, aggFunc);
+            Path optimized = produceUneven(PartitionLayout.OPTIMIZED, aggFunc);
+            // 查询端在分区上按地市再次聚合：合并后的行上重复聚合，结果须与原始行一致
+            String byCity = "SELECT city_id, " + aggFunc + "(kpi_val) as kpi_val FROM db.kpi_KD1002_20251104_CD003"
+                    + " GROUP BY city_id ORDER BY 1";
+            assertEquals(scan(legacy, byCity).rows(), scan(optimized, byCity).rows(), aggFunc);
+            assertEquals(SqliteDataProducer.isRollupSafe(aggFunc), isWithoutRowid(optimized), aggFunc);
+        }
+    }
+
+    private Path produceUneven(PartitionLayout layout, String aggFunc) throws Exception {
+        SqliteDataProducer producer = new SqliteDataProducer("http://127.0.0.1:9000", "test", "test", "test");
+        try (Connection source = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = source.createStatement()) {
+            stmt.execute("CREATE TABLE src (city_id TEXT, county_id TEXT, kpi_val REAL)");
+            try (PreparedStatement ps = source.prepareStatement("INSERT INTO src VALUES (?, ?, ?)")) {
+                // 同一维度组合的行数各不相同：county k 有 k+1 行
+                for (int city = 0; city < 3; city++) {
+                    for (int county = 0; county < 4; county++) {
+                        for (int i = 0; i <= county; i++) {
+                            ps.setString(1, "C" + city);
+                            ps.setString(2, "C" + city + "_" + county);
+                            ps.setDouble(3, city * 100 + county * 10 + i * i);
+                            ps.addBatch();
+                        }
+                    }
+                }
+                ps.executeBatch();
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT city_id, county_id, kpi_val FROM src")) {
+                Path file = producer.writeKpiFile(rs, "KD1002", "20251104", "CD003", DIMS, layout, aggFunc, null);
+                files.add(file);
+                return file;
+            }
+        }
+    }
+
+    private static boolean isWithoutRowid(Path file) throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+             ResultSet rs = conn.createStatement().executeQuery(
+                     "SELECT sql FROM sqlite_master WHERE name = 'kpi_KD1002_20251104_CD003'")) {
+            return rs.next() && rs.getString(1).toUpperCase().contains("WITHOUT ROWID");
+        }
+    }
+
+    @Test
+    public void testDroppedDimCodeKeepsItsKey() throws Exception {
+        SqliteDataProducer producer = new SqliteDataProducer("http://127.0.0.1:9000", "test", "test", "test");
+        DimDictionary first = loadDim(produceCities(producer, DimDictionary.empty(), "C0", "C1", "C2"));
+        long droppedKey = first.encode("city_id", "C2");
+
+        // C2 (持有最大键) 从源数据中下线后连续重新生产两次
+        DimDictionary second = loadDim(produceCities(producer, first, "C0", "C1"));
+        Path thirdFile = produceCities(producer, second, "C0", "C1", "C3");
+        DimDictionary third = loadDim(thirdFile);
+
+        assertEquals(droppedKey, third.encode("city_id", "C2"));
+        assertEquals(first.encode("city_id", "C0"), third.encode("city_id", "C0"));
+        assertTrue(third.encode("city_id", "C3") > droppedKey, "新编码不能复用已下线编码的键");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + thirdFile);
+             ResultSet rs = conn.createStatement().executeQuery(
+                     "SELECT dim_val, count(*) OVER () FROM kpi_dim_CD003 WHERE dim_key = " + droppedKey)) {
+            assertTrue(rs.next());
+            assertEquals("CityC2", rs.getString(1));
+            assertEquals(1, rs.getInt(2));
+        }
+    }
+
+    private Path produceCities(SqliteDataProducer producer, DimDictionary dictionary, String... cities) throws Exception {
+        try (Connection source = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = source.createStatement()) {
+            stmt.execute("CREATE TABLE src (dim_code TEXT, dim_val TEXT, dim_id TEXT, parent_dim_code TEXT)");
+            for (String city : cities) {
+                stmt.execute("INSERT INTO src VALUES ('" + city + "', 'City" + city + "', 'city_id', NULL)");
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM src")) {
+                Path file = producer.writeDimFile(rs, "CD003", dictionary);
+                files.add(file);
+                return file;
+            }
+        }
+    }
+
+    private static DimDictionary loadDim(Path dimFile) throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dimFile)) {
+            return DimDictionary.load(conn, "kpi_dim_CD003");
+        }
+    }
+
+    private Path produceDim(SqliteDataProducer producer, DimDictionary dictionary) throws Exception {
+        try (Connection source = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = source.createStatement()) {
+            stmt.execute("CREATE TABLE src (dim_code TEXT, dim_val TEXT, dim_id TEXT, parent_dim_code TEXT)");
+            for (int city = 0; city < 20; city++) {
+                stmt.execute("INSERT INTO src VALUES ('C" + city + "', 'City" + city + "', 'city_id', NULL)");
+                for (int county = 0; county < 500; county++) {
+                    stmt.execute("INSERT INTO src VALUES ('C" + city + "_" + county + "', NULL, 'county_id', 'C" + city + "')");
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM src")) {
+                Path file = producer.writeDimFile(rs, "CD003", dictionary);
+                files.add(file);
+                return file;
+            }
+        }
+    }
+
+    private Path produce(PartitionLayout layout) throws Exception {
+        return produce(layout, null);
+    }
+
+    private Path produce(PartitionLayout layout, DimDictionary dictionary) throws Exception {
+        SqliteDataProducer producer = new SqliteDataProducer("http://127.0.0.1:9000", "test", "test", "test");
+        try (Connection source = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = source.createStatement()) {
+            stmt.execute("CREATE TABLE src (city_id TEXT, county_id TEXT, kpi_val REAL)");
+            source.setAutoCommit(false);
+            try (PreparedStatement ps = source.prepareStatement("INSERT INTO src VALUES (?, ?, ?)")) {
+                for (int city = 0; city < 20; city++) {
+                    for (int county = 0; county < 500; county++) {
+                        ps.setString(1, "C" + city);
+                        // 每个地市有一批县为空的汇总行
+                        ps.setString(2, county % 50 == 0 ? null : "C" + city + "_" + county);
+                        ps.setDouble(3, city * 1000 + county);
+                        ps.addBatch();
+                    }
+                }
+                ps.executeBatch();
+            }
+            source.commit();
+            try (ResultSet rs = stmt.executeQuery("SELECT city_id, county_id, kpi_val FROM src")) {
+                Path file = producer.writeKpiFile(rs, "KD1002", "20251104", "CD003", DIMS, layout, "sum", dictionary);
+                files.add(file);
+                return file;
+            }
+        }
+    }
+
+    private record ScanResult(List<Map<String, Object>> rows, long nanos) {
+    }
+
+    private static ScanResult scan(Path file, String sql) throws Exception {
+        return scan(file, sql, null);
+    }
+
+    private static ScanResult scan(Path file, String sql, Path dimFile) throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("ATTACH DATABASE '" + file + "' AS db");
+            if (dimFile != null) {
+                stmt.execute("ATTACH DATABASE '" + dimFile + "' AS dim");
+            }
+            long start = System.nanoTime();
+            List<Map<String, Object>> rows = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery(sql)) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    for (int i = 1; i <= columns; i++) {
+                        row.put(rs.getMetaData().getColumnLabel(i), rs.getObject(i));
+                    }
+                    rows.add(row);
+                }
+            }
+            return new ScanResult(rows, System.nanoTime() - start);
+        }
+    }
+
+    private long gzipSize(Path file) throws IOException {
+        Path gz = Path.of(file + ".gz");
+        files.add(gz);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+            Files.copy(file, out);
+        }
+        return Files.size(gz);
+    }
+}
@@ -0,0 +1,175 @@
+package com.asiainfo.metrics.etl;
+
+import com.asiainfo.metrics.etl.SqliteDataProducer.PartitionLayout;
+import com.asiainfo.metrics.etl.SqliteProducerPipeline.Options;
+import com.asiainfo.metrics.etl.SqliteProducerPipeline.Report;
+import com.asiainfo.metrics.etl.SqliteProducerPipeline.SourceJob;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.sqlite.SQLiteDataSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 生产流水线：多指标多账期并发生产、上传失败重试、抽取失败隔离
+ */
+public class SqliteProducerPipelineTest {
+
+    private static final List<String> DATES = List.of("20251101", "20251102", "20251103");
+    private static final List<String> DIMS = List.of("city_id", "county_id");
+
+    private Path workDir;
+    private SQLiteDataSource source;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("pipeline-test");
+        Path sourceDb = workDir.resolve("source.db");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + sourceDb);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE kpi_day_CD003 (op_time TEXT, kpi_id TEXT, city_id TEXT, county_id TEXT, kpi_val REAL)");
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement("INSERT INTO kpi_day_CD003 VALUES (?, ?, ?, ?, ?)")) {
+                for (String date : DATES) {
+                    for (String kpi : List.of("KD1002", "KD1005", "KD9999")) {
+                        for (int city = 0; city < 10; city++) {
+                            for (int county = 0; county < 20; county++) {
+                                insert.setString(1, date);
+                                insert.setString(2, kpi);
+                                insert.setString(3, "C" + city);
+                                insert.setString(4, "T" + county);
+                                insert.setDouble(5, county + 1);
+                                insert.addBatch();
+                            }
+                        }
+                    }
+                }
+                insert.executeBatch();
+            }
+            conn.commit();
+        }
+        source = new SQLiteDataSource();
+        source.setUrl("jdbc:sqlite:" + sourceDb);
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void testProducesAllKpisAndDatesWithRetry() throws Exception {
+        Path bucket = Files.createDirectories(workDir.resolve("bucket"));
+        Set<String> failedOnce = ConcurrentHashMap.newKeySet();
+        // 每个文件第一次上传失败，验证重试
+        SqliteProducerPipeline.Uploader uploader = (filePath, key) -> {
+            if (failedOnce.add(key)) {
+                throw new IOException("simulated network error");
+            }
+            Path target = bucket.resolve(key);
+            Files.createDirectories(target.getParent());
+            Files.copy(Path.of(filePath), target, StandardCopyOption.REPLACE_EXISTING);
+        };
+
+        SqliteDataProducer producer = new SqliteDataProducer("http://127.0.0.1:9000", "test", "test", "test");
+        Options options = new Options(2, 2, 2, 2, 2, 3, 3, 10L);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SqliteProducerPipeline pipeline = new SqliteProducerPipeline(source, producer, options, registry, uploader);
+
+        List<SourceJob> jobs = new ArrayList<>();
+        for (String date : DATES) {
+            // 一次源查询生产两个指标 (KD9999 不在作业中，应被忽略)
+            String sql = "SELECT kpi_id, city_id, county_id, kpi_val FROM kpi_day_CD003 WHERE op_time = '" + date + "'";
+            jobs.add(new SourceJob(sql, date, "CD003", DIMS, Map.of("KD1002", "sum", "KD1005", "max"),
+                    PartitionLayout.OPTIMIZED, null));
+        }
+        Report report = pipeline.run(jobs);
+
+        assertTrue(report.success(), "failures: " + report.failures());
+        assertEquals(DATES.size() * 2, report.uploadedKeys().size());
+        for (String date : DATES) {
+            Path sumFile = bucket.resolve(producer.buildKpiS3Key("KD1002", date, "CD003"));
+            Path maxFile = bucket.resolve(producer.buildKpiS3Key("KD1005", date, "CD003"));
+            // 每个城市 20 个区县，取值 1..20
+            assertEquals(10 * 210.0, scalar(sumFile, "SELECT sum(kpi_val) FROM kpi_KD1002_" + date + "_CD003"));
+            assertEquals(20.0, scalar(maxFile, "SELECT max(kpi_val) FROM kpi_KD1005_" + date + "_CD003"));
+        }
+        assertFalse(Files.exists(bucket.resolve(producer.buildKpiS3Key("KD9999", DATES.get(0), "CD003"))));
+
+        // 每个阶段都有统计，抽取只执行了每个账期一次
+        assertEquals(DATES.size(), report.stages().get("extract").count());
+        assertEquals(DATES.size() * 2L, report.stages().get("build").count());
+        assertEquals(DATES.size() * 2L, report.stages().get("compress").count());
+        assertEquals(DATES.size() * 2L, report.stages().get("upload").count());
+        assertTrue(report.stages().get("compress").bytes() > 0);
+        assertEquals(DATES.size() * 2L,
+                registry.get("etl.producer.stage.duration").tag("stage", "upload").timer().count());
+    }
+
+    @Test
+    public void testFailedJobDoesNotAffectOthers() {
+        Path bucket = workDir.resolve("bucket");
+        SqliteProducerPipeline.Uploader uploader = (filePath, key) -> {
+            Path target = bucket.resolve(key);
+            Files.createDirectories(target.getParent());
+            Files.copy(Path.of(filePath), target, StandardCopyOption.REPLACE_EXISTING);
+        };
+        SqliteDataProducer producer = new SqliteDataProducer("http://127.0.0.1:9000", "test", "test", "test");
+        SqliteProducerPipeline pipeline = new SqliteProducerPipeline(source, producer,
+                new Options(1, 1, 1, 1, 1, 1, 1, 10L), new SimpleMeterRegistry(), uploader);
+
+        Report report = pipeline.run(List.of(
+                // 结果集没有 kpi_id 列，作业只有一个指标
+                new SourceJob("SELECT city_id, county_id, kpi_val FROM kpi_day_CD003 WHERE kpi_id = 'KD1002' AND op_time = '20251101'",
+                        "20251101", "CD003", DIMS, Map.of("KD1002", "sum"), PartitionLayout.LEGACY, null),
+                new SourceJob("SELECT * FROM missing_table", "20251102", "CD003", DIMS,
+                        Map.of("KD1002", "sum", "KD1005", "sum"), PartitionLayout.LEGACY, null)));
+
+        assertEquals(List.of(producer.buildKpiS3Key("KD1002", "20251101", "CD003")), report.uploadedKeys());
+        assertEquals(2, report.failures().size());
+        assertTrue(report.failures().stream().allMatch(f -> f.stage().equals("extract") && f.opTime().equals("20251102")));
+    }
+
+    private static double scalar(Path gzFile, String sql) throws Exception {
+        Path dbFile = Files.createTempFile("pipeline-read", ".db");
+        try {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(gzFile))) {
+                Files.copy(in, dbFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+                 ResultSet rs = conn.createStatement().executeQuery(sql)) {
+                assertTrue(rs.next());
+                return rs.getDouble(1);
+            }
+        } finally {
+            Files.deleteIfExists(dbFile);
+        }
+    }
+}
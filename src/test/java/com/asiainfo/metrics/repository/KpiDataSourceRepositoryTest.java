@@ -0,0 +1,131 @@
+package com.asiainfo.metrics.repository;
+
+import io.agroal.api.AgroalDataSource;
+import io.agroal.api.AgroalDataSourceMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 取数数据源连接池：按需创建、配置不变时复用、modo_datasource 变化时重建，
+ * 元数据库不可用时沿用现有连接池，被替换的连接池在活动连接归还后关闭
+ */
+public class KpiDataSourceRepositoryTest {
+
+    private KpiDataSourceRepository repository;
+    private final List<AgroalDataSource> created = new ArrayList<>();
+    private final List<String> createdUrls = new ArrayList<>();
+    private final Map<AgroalDataSource, Long> activeCounts = new HashMap<>();
+    private String url = "jdbc:mysql://db1/kpi";
+    private boolean metadbDown;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true);
+        when(rs.getString("url")).thenAnswer(invocation -> url);
+        when(rs.getString("ds_acct")).thenReturn("kpi");
+        when(rs.getString("ds_auth")).thenReturn("secret");
+        when(rs.getString("driver_class_name")).thenReturn("com.mysql.cj.jdbc.Driver");
+        PreparedStatement stmt = mock(PreparedStatement.class);
+        when(stmt.executeQuery()).thenReturn(rs);
+        Connection metadbConn = mock(Connection.class);
+        when(metadbConn.prepareStatement(anyString())).thenReturn(stmt);
+        AgroalDataSource metadb = mock(AgroalDataSource.class);
+        when(metadb.getConnection()).thenAnswer(invocation -> {
+            if (metadbDown) {
+                throw new SQLException("metadb down");
+            }
+            return metadbConn;
+        });
+
+        repository = new KpiDataSourceRepository() {
+            @Override
+            AgroalDataSource createPool(String dsName, DataSourceDef def) {
+                AgroalDataSource pool = mock(AgroalDataSource.class);
+                AgroalDataSourceMetrics metrics = mock(AgroalDataSourceMetrics.class);
+                when(metrics.activeCount()).thenAnswer(invocation -> activeCounts.getOrDefault(pool, 0L));
+                when(pool.getMetrics()).thenReturn(metrics);
+                try {
+                    when(pool.getConnection()).thenAnswer(invocation -> mock(Connection.class));
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                created.add(pool);
+                createdUrls.add(def.url());
+                return pool;
+            }
+        };
+        repository.metadbDataSource = metadb;
+        repository.registry = new SimpleMeterRegistry();
+        // 每次获取连接都重新读取配置
+        repository.refreshSeconds = 0;
+    }
+
+    @Test
+    public void testPoolCreatedLazilyAndReusedWhenConfigUnchanged() throws Exception {
+        assertEquals(0, created.size());
+
+        repository.getConnection("ds1");
+        repository.getConnection("ds1");
+        assertEquals(1, created.size());
+        verify(created.get(0), never()).close();
+
+        repository.getConnection("ds2");
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void testConfigChangeRebuildsAndRetiresOldPool() throws Exception {
+        repository.getConnection("ds1");
+        AgroalDataSource oldPool = created.get(0);
+        // 旧连接池仍有借出的连接
+        activeCounts.put(oldPool, 1L);
+
+        url = "jdbc:mysql://db2/kpi";
+        repository.getConnection("ds1");
+        assertEquals(List.of("jdbc:mysql://db1/kpi", "jdbc:mysql://db2/kpi"), createdUrls);
+        verify(oldPool).flush(AgroalDataSource.FlushMode.GRACEFUL);
+        verify(oldPool, never()).close();
+
+        // 连接归还后，下一次刷新时关闭旧连接池
+        activeCounts.put(oldPool, 0L);
+        repository.getConnection("ds1");
+        verify(oldPool).close();
+        verify(created.get(1), never()).close();
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void testMetadbFailureKeepsExistingPool() throws Exception {
+        repository.getConnection("ds1");
+
+        metadbDown = true;
+        repository.getConnection("ds1");
+        assertEquals(1, created.size());
+        verify(created.get(0), never()).flush(any());
+
+        // 没有现有连接池时抛出原始错误
+        RuntimeException e = assertThrows(RuntimeException.class, () -> repository.getConnection("ds2"));
+        assertSame(SQLException.class, e.getCause().getClass());
+    }
+}
@@ -0,0 +1,143 @@
+package com.asiainfo.metrics.service;
+
+import com.asiainfo.metrics.config.MetricsConfig;
+import com.asiainfo.metrics.model.db.KpiModel;
+import com.asiainfo.metrics.repository.KpiMetadataRepository;
+import com.asiainfo.metrics.service.EtlJobService.EtlJob;
+import com.asiainfo.metrics.service.EtlJobService.JobState;
+import com.asiainfo.metrics.v2.core.engine.KpiSubscriptionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * ETL 任务队列：重复通知合并、同一数据源串行、状态与进度
+ */
+public class EtlJobServiceTest {
+
+    private EtlJobService service;
+    private KpiComputeService computeService;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() {
+        service = new EtlJobService();
+        computeService = mock(KpiComputeService.class);
+        KpiStorageService storageService = mock(KpiStorageService.class);
+        KpiMetadataRepository metadataRepository = mock(KpiMetadataRepository.class);
+        MetricsConfig metricsConfig = mock(MetricsConfig.class);
+        service.kpiComputeService = computeService;
+        service.kpiStorageService = storageService;
+        service.metadataRepository = metadataRepository;
+        service.subscriptionService = mock(KpiSubscriptionService.class);
+        service.metricsConfig = metricsConfig;
+        service.registry = new SimpleMeterRegistry();
+        service.workers = 4;
+        service.perDataSourceConcurrency = 1;
+        service.queueCapacity = 10;
+        service.retentionMinutes = 60;
+        service.onStart(null);
+
+        when(metricsConfig.getCurrentEngine()).thenReturn("SQLite");
+        when(metricsConfig.isSQLiteEnabled()).thenReturn(true);
+        when(metadataRepository.getMetricsModelDef(anyString())).thenReturn(
+                new KpiModel("M1", "model", "1", "CD003", "ds_hive", "select 1", "1", "team", null, null));
+        when(computeService.computeExtendedMetricsToSQLite(anyString(), anyString())).thenAnswer(invocation -> {
+            int now = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(now, Math::max);
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+            return KpiComputeService.ComputeResult.success(new KpiComputeService.ModelPartitionFile(
+                    "M1", invocation.getArgument(1), "CD003", List.of("KD1002"), "/tmp/none.db", 5));
+        });
+        when(storageService.storageMetrics(any(KpiComputeService.ComputeResult.class), eq("SQLite")))
+                .thenReturn(KpiStorageService.StorageResult.success("ok", 5, "M1"));
+    }
+
+    @AfterEach
+    public void cleanup() {
+        release.countDown();
+        service.shutdown();
+    }
+
+    @Test
+    public void testPendingDuplicatesAreMergedAndDataSourceIsSerialized() throws Exception {
+        EtlJob first = service.submit("ods_table_yyyymmdd", "2025-11-01");
+        awaitState(first, JobState.RUNNING);
+
+        // 同一数据源并发为 1：第二个批次排队，重复通知合并到排队中的任务
+        EtlJob second = service.submit("ods_table_yyyymmdd", "20251102");
+        EtlJob duplicate = service.submit("ods_table_yyyymmdd", "2025-11-02");
+        assertEquals(second.getJobId(), duplicate.getJobId());
+        assertEquals(JobState.PENDING, second.getState());
+        assertEquals(1.0, service.registry.get("etl.job.queue.depth").gauge().value());
+
+        // 正在执行的批次再次通知时登记新任务 (数据可能已更新)
+        EtlJob rerun = service.submit("ods_table_yyyymmdd", "20251101");
+        assertNotEquals(first.getJobId(), rerun.getJobId());
+
+        release.countDown();
+        awaitState(first, JobState.SUCCESS);
+        awaitState(second, JobState.SUCCESS);
+        awaitState(rerun, JobState.SUCCESS);
+
+        assertEquals(1, maxConcurrent.get());
+        verify(computeService, times(1)).computeExtendedMetricsToSQLite("ods_table_yyyymmdd", "20251102");
+        verify(computeService, times(2)).computeExtendedMetricsToSQLite("ods_table_yyyymmdd", "20251101");
+        assertEquals(100, second.getProgress());
+        assertEquals(5, second.getComputeCount());
+        assertEquals(5, second.getStorageCount());
+        assertEquals(3, service.listJobs(JobState.SUCCESS).size());
+        // 耗时在任务结束后记录
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (service.registry.get("etl.job.duration").tag("status", "success").timer().count() < 3
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3L, service.registry.get("etl.job.duration").tag("status", "success").timer().count());
+    }
+
+    @Test
+    public void testComputeFailureMarksJobError() throws Exception {
+        doReturn(KpiComputeService.ComputeResult.error("计算结果为空"))
+                .when(computeService).computeExtendedMetricsToSQLite(anyString(), anyString());
+
+        EtlJob job = service.submit("ods_table_yyyymmdd", "20251103");
+        awaitState(job, JobState.ERROR);
+
+        assertEquals("计算结果为空", job.getMessage());
+        assertEquals("COMPUTE", job.getStage());
+        assertTrue(service.getJob(job.getJobId()).isPresent());
+    }
+
+    private static void awaitState(EtlJob job, JobState state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (job.getState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, job.getState(), "job " + job.getJobId());
+    }
+}
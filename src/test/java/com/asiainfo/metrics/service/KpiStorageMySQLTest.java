@@ -0,0 +1,127 @@
+package com.asiainfo.metrics.service;
+
+import com.asiainfo.metrics.config.MetricsConfig;
+import com.asiainfo.metrics.repository.KpiMetadataRepository;
+import io.agroal.api.AgroalDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * MySQL 存储：多行 INSERT 分块提交、维度字段缓存、各表并发写入
+ */
+public class KpiStorageMySQLTest {
+
+    private KpiStorageService service;
+    private KpiMetadataRepository metadataRepository;
+    private final List<String> preparedSqls = new ArrayList<>();
+    private Connection conn;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        service = new KpiStorageService();
+        metadataRepository = mock(KpiMetadataRepository.class);
+        MetricsConfig metricsConfig = mock(MetricsConfig.class);
+        AgroalDataSource dataSource = mock(AgroalDataSource.class);
+        conn = mock(Connection.class);
+        service.kpiMetadataRepository = metadataRepository;
+        service.metricsConfig = metricsConfig;
+        service.metadbDataSource = dataSource;
+        service.registry = new SimpleMeterRegistry();
+
+        when(metricsConfig.getMySQLWriteChunkRows()).thenReturn(100);
+        when(metricsConfig.getMySQLWriteParallelism()).thenReturn(2);
+        when(metadataRepository.getDimFieldsStringByCompDim("CD003")).thenReturn("city_id, county_id");
+        when(metadataRepository.getDimFieldsStringByCompDim("CD002")).thenReturn("city_id");
+        when(dataSource.getConnection()).thenReturn(conn);
+        when(conn.getAutoCommit()).thenReturn(true);
+        when(conn.prepareStatement(anyString())).thenAnswer(invocation -> {
+            synchronized (preparedSqls) {
+                preparedSqls.add(invocation.getArgument(0));
+            }
+            return mock(PreparedStatement.class);
+        });
+    }
+
+    @Test
+    public void testBuildsMultiRowUpsert() {
+        assertEquals("INSERT INTO kpi_day_CD002 (kpi_id, op_time, kpi_val, city_id) VALUES (?, ?, ?, ?), (?, ?, ?, ?)"
+                        + " ON DUPLICATE KEY UPDATE kpi_val = VALUES(kpi_val)",
+                KpiStorageService.buildInsertSqlForMySQL("kpi_day_CD002", List.of("city_id"), 2));
+    }
+
+    @Test
+    public void testWritesTablesInChunksWithCachedDimFields() throws Exception {
+        List<KpiComputeService.KpiDataRecord> records = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            records.add(new KpiComputeService.KpiDataRecord("KD1002", "20251101", "CD003",
+                    Map.of("city_id", "C" + (i % 10), "county_id", "T" + i, "KD1002", 1), i));
+        }
+        for (int i = 0; i < 30; i++) {
+            records.add(new KpiComputeService.KpiDataRecord("KD2002", "202511", "CD002",
+                    Map.of("city_id", "C" + i), i));
+        }
+
+        KpiStorageService.StorageResult result = service.storageMetrics(records, "MySQL");
+
+        assertTrue(result.success(), result.message());
+        assertEquals(280, result.storedCount());
+        // 维度字段按组合维度只查询一次
+        verify(metadataRepository, times(1)).getDimFieldsStringByCompDim("CD003");
+        verify(metadataRepository, times(1)).getDimFieldsStringByCompDim("CD002");
+        // kpi_day_CD003: 两个整块复用一条语句 + 50 行尾块；kpi_month_CD002: 30 行一块
+        assertEquals(3, preparedSqls.size());
+        assertTrue(preparedSqls.stream().allMatch(sql -> sql.endsWith("ON DUPLICATE KEY UPDATE kpi_val = VALUES(kpi_val)")));
+        assertEquals(1, preparedSqls.stream().filter(sql -> sql.startsWith("INSERT INTO kpi_day_CD003")
+                && count(sql, "(?, ?, ?, ?, ?)") == 100).count());
+        assertEquals(1, preparedSqls.stream().filter(sql -> sql.startsWith("INSERT INTO kpi_day_CD003")
+                && count(sql, "(?, ?, ?, ?, ?)") == 50).count());
+        assertEquals(1, preparedSqls.stream().filter(sql -> sql.startsWith("INSERT INTO kpi_month_CD002")
+                && count(sql, "(?, ?, ?, ?)") == 30).count());
+        verify(conn, times(4)).commit();
+        verify(conn, times(2)).setAutoCommit(eq(true));
+        assertEquals(250.0, service.registry.get("kpi.storage.mysql.rows").tag("table", "kpi_day_CD003").counter().count());
+        assertEquals(1L, service.registry.get("kpi.storage.mysql.duration").tag("table", "kpi_month_CD002").timer().count());
+    }
+
+    @Test
+    public void testChunkRowsRespectStatementParameterLimit() throws Exception {
+        when(metadataRepository.getDimFieldsStringByCompDim("CD009")).thenReturn("a, b, c, d, e, f, g");
+        service.metricsConfig = mock(MetricsConfig.class);
+        when(service.metricsConfig.getMySQLWriteChunkRows()).thenReturn(100_000);
+
+        List<KpiComputeService.KpiDataRecord> records = new ArrayList<>();
+        for (int i = 0; i < 7000; i++) {
+            records.add(new KpiComputeService.KpiDataRecord("KD1", "20251101", "CD009", Map.of("a", i), i));
+        }
+        service.insertBatchToMySQL("kpi_day_CD009", records);
+
+        // 10 列 × 6553 行 < 65535 个参数
+        assertEquals(2, preparedSqls.size());
+        assertEquals(6553, count(preparedSqls.get(0), "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"));
+        verify(conn, times(2)).commit();
+    }
+
+    private static int count(String sql, String token) {
+        int count = 0;
+        for (int idx = sql.indexOf(token); idx >= 0; idx = sql.indexOf(token, idx + token.length())) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,128 @@
+package com.asiainfo.metrics.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 派生指标结果流式写入宽表分区：跨多个批次的行全部写入，列按名称 (忽略大小写) 匹配，空值保留为 NULL；
+ * 分片取数的分片文件合并后与整体写入一致
+ */
+public class WideSQLiteStreamTest {
+
+    private static final List<String> DIMS = List.of("city_id", "county_id");
+    private static final List<String> KPIS = List.of("KD1002", "KD1005");
+    private static final int ROWS = 12_345;
+
+    private Path sourceDb;
+    private Path wideDb;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        sourceDb = Files.createTempFile("compute-source", ".db");
+        wideDb = Files.createTempFile("kpi_model_M1_20251104_CD003", ".db");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + sourceDb);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE model_result (op_time TEXT, CITY_ID TEXT, county_id TEXT, kd1002 REAL, KD1005 INTEGER)");
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement("INSERT INTO model_result VALUES ('20251104', ?, ?, ?, ?)")) {
+                for (int i = 0; i < ROWS; i++) {
+                    insert.setString(1, "C" + (i % 10));
+                    insert.setString(2, i % 100 == 0 ? null : "T" + i);
+                    insert.setDouble(3, 1.5);
+                    if (i % 2 == 0) {
+                        insert.setLong(4, 2);
+                    } else {
+                        insert.setNull(4, java.sql.Types.INTEGER);
+                    }
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            conn.commit();
+        }
+    }
+
+    @AfterEach
+    public void cleanup() throws Exception {
+        Files.deleteIfExists(sourceDb);
+        Files.deleteIfExists(wideDb);
+    }
+
+    @Test
+    public void testMergesSliceFiles() throws Exception {
+        SQLiteFileManager fileManager = new SQLiteFileManager();
+        String tableName = "kpi_model_M1_20251104_CD003";
+        List<Path> parts = List.of(Files.createTempFile("slice0", ".db"), Files.createTempFile("slice1", ".db"));
+        try {
+            // 按城市奇偶拆成两个分片
+            for (int slice = 0; slice < parts.size(); slice++) {
+                try (Connection sourceConn = DriverManager.getConnection("jdbc:sqlite:" + sourceDb);
+                     PreparedStatement stmt = sourceConn.prepareStatement(
+                             "SELECT * FROM model_result WHERE CAST(substr(CITY_ID, 2) AS INTEGER) % 2 = " + slice);
+                     ResultSet rs = stmt.executeQuery();
+                     Connection partConn = DriverManager.getConnection("jdbc:sqlite:" + parts.get(slice))) {
+                    fileManager.createWideSQLiteTable(partConn, tableName, DIMS, KPIS);
+                    fileManager.streamWideSQLiteData(partConn, tableName, DIMS, KPIS, rs);
+                }
+            }
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + wideDb)) {
+                fileManager.createWideSQLiteTable(conn, tableName, DIMS, KPIS);
+                fileManager.mergeWideSQLiteFiles(conn, tableName, parts.stream().map(Path::toString).toList());
+                try (ResultSet rs = conn.createStatement().executeQuery(
+                        "SELECT count(*), sum(KD1002), count(DISTINCT city_id) FROM " + tableName)) {
+                    assertTrue(rs.next());
+                    assertEquals(ROWS, rs.getLong(1));
+                    assertEquals(ROWS * 1.5, rs.getDouble(2), 1e-6);
+                    assertEquals(10, rs.getLong(3));
+                }
+            }
+        } finally {
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    @Test
+    public void testStreamsAllRowsIntoWideTable() throws Exception {
+        SQLiteFileManager fileManager = new SQLiteFileManager();
+        String tableName = "kpi_model_M1_20251104_CD003";
+
+        long written;
+        try (Connection sourceConn = DriverManager.getConnection("jdbc:sqlite:" + sourceDb);
+             PreparedStatement stmt = sourceConn.prepareStatement("SELECT * FROM model_result",
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+             ResultSet rs = stmt.executeQuery();
+             Connection wideConn = DriverManager.getConnection("jdbc:sqlite:" + wideDb)) {
+            fileManager.createWideSQLiteTable(wideConn, tableName, DIMS, KPIS);
+            written = fileManager.streamWideSQLiteData(wideConn, tableName, DIMS, KPIS, rs);
+        }
+
+        assertEquals(ROWS, written);
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + wideDb);
+             ResultSet rs = conn.createStatement().executeQuery(
+                     "SELECT count(*), sum(KD1002), sum(KD1005), count(KD1005), sum(county_id IS NULL), count(DISTINCT city_id)"
+                             + " FROM " + tableName)) {
+            assertTrue(rs.next());
+            assertEquals(ROWS, rs.getLong(1));
+            assertEquals(ROWS * 1.5, rs.getDouble(2), 1e-6);
+            assertEquals((ROWS + 1) / 2 * 2.0, rs.getDouble(3), 1e-6);
+            assertEquals((ROWS + 1) / 2, rs.getLong(4));
+            assertEquals((ROWS + 99) / 100, rs.getLong(5));
+            assertEquals(10, rs.getLong(6));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.asiainfo.metrics.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分块压缩格式：块边界往返、标准 gzip 可读、旧单流文件兼容、损坏检测，以及大分区压缩/解压基准
+ * 基准分区行数可通过 -Dbenchmark.rows 调整
+ */
+public class BlockGzipTest {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private Path workDir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("block-gzip-test");
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripAcrossBlockBoundaries() throws IOException {
+        for (int size : new int[]{0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, BLOCK_SIZE * 7 / 2}) {
+            byte[] data = sample(size);
+            Path source = write("source_" + size + ".db", data);
+            Path compressed = workDir.resolve("source_" + size + ".db.gz");
+            Path restored = workDir.resolve("restored_" + size + ".db");
+
+            BlockGzip.compress(source, compressed, BLOCK_SIZE);
+            BlockGzip.decompress(compressed, restored);
+
+            assertArrayEquals(data, Files.readAllBytes(restored), "size " + size);
+            // 新格式仍是标准 gzip，旧版本的顺序解压同样可读
+            assertArrayEquals(data, gunzip(compressed), "size " + size);
+        }
+    }
+
+    @Test
+    public void testLegacySingleStreamFileStillLoads() throws IOException {
+        byte[] data = sample(BLOCK_SIZE * 3);
+        Path legacy = workDir.resolve("legacy.db.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(legacy))) {
+            out.write(data);
+        }
+        Path restored = workDir.resolve("legacy.db");
+
+        BlockGzip.decompress(legacy, restored);
+
+        assertArrayEquals(data, Files.readAllBytes(restored));
+    }
+
+    @Test
+    public void testCorruptBlockIsRejected() throws IOException {
+        byte[] data = sample(BLOCK_SIZE * 3);
+        Path compressed = workDir.resolve("corrupt.db.gz");
+        BlockGzip.compress(write("corrupt.db", data), compressed, BLOCK_SIZE);
+
+        byte[] bytes = Files.readAllBytes(compressed);
+        // 最后一个块的 CRC32
+        bytes[bytes.length - 6] ^= 0x5A;
+        Files.write(compressed, bytes);
+
+        assertThrows(IOException.class, () -> BlockGzip.decompress(compressed, workDir.resolve("corrupt_out.db")));
+    }
+
+    @Test
+    public void testLargePartitionBenchmark() throws Exception {
+        int rows = Integer.getInteger("benchmark.rows", 1_000_000);
+        Path partition = workDir.resolve("kpi_model_M1_20251101_CD003.db");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + partition);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE kpi_model_M1_20251101_CD003 (op_time TEXT, city_id TEXT, county_id TEXT, "
+                    + "KD1002 REAL, KD1005 REAL, KD1008 REAL)");
+            conn.setAutoCommit(false);
+            Random random = new Random(42);
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO kpi_model_M1_20251101_CD003 VALUES ('20251101', ?, ?, ?, ?, ?)")) {
+                for (int i = 0; i < rows; i++) {
+                    insert.setString(1, "C" + (i % 20));
+                    insert.setString(2, "T" + (i % 3000));
+                    insert.setDouble(3, random.nextInt(100_000) / 100.0);
+                    insert.setDouble(4, random.nextDouble());
+                    insert.setLong(5, random.nextInt(1000));
+                    insert.addBatch();
+                    if (i % 10_000 == 9_999) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            conn.commit();
+        }
+        long size = Files.size(partition);
+        byte[] expected = Files.readAllBytes(partition);
+
+        Path legacy = workDir.resolve("legacy.db.gz");
+        long start = System.nanoTime();
+        try (InputStream in = Files.newInputStream(partition);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(legacy), 256 * 1024)) {
+            in.transferTo(out);
+        }
+        long legacyCompress = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(legacy), 256 * 1024)) {
+            Files.copy(in, workDir.resolve("legacy.db"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        long legacyDecompress = System.nanoTime() - start;
+
+        Path blocked = workDir.resolve("blocked.db.gz");
+        start = System.nanoTime();
+        BlockGzip.compress(partition, blocked);
+        long blockCompress = System.nanoTime() - start;
+
+        Path restored = workDir.resolve("blocked.db");
+        start = System.nanoTime();
+        BlockGzip.decompress(blocked, restored);
+        long blockDecompress = System.nanoTime() - start;
+
+        assertArrayEquals(expected, Files.readAllBytes(restored));
+        // 分块压缩率与单流相近 (块间不共享字典)
+        assertTrue(Files.size(blocked) < Files.size(legacy) * 1.1);
+        assertEquals(size, Files.size(restored));
+
+        System.out.printf("分区 %d 行, %.1f MB, %d 核%n", rows, size / 1048576.0, Runtime.getRuntime().availableProcessors());
+        System.out.printf("单流 gzip: 压缩 %.1f MB/s, 解压 %.1f MB/s, 压缩后 %.1f MB%n",
+                mbPerSecond(size, legacyCompress), mbPerSecond(size, legacyDecompress), Files.size(legacy) / 1048576.0);
+        System.out.printf("分块 gzip: 压缩 %.1f MB/s, 解压 %.1f MB/s, 压缩后 %.1f MB%n",
+                mbPerSecond(size, blockCompress), mbPerSecond(size, blockDecompress), Files.size(blocked) / 1048576.0);
+    }
+
+    private Path write(String name, byte[] data) throws IOException {
+        return Files.write(workDir.resolve(name), data);
+    }
+
+    private static byte[] gunzip(Path path) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * 半随机半重复的数据，接近 SQLite 页的可压缩程度
+     */
+    private static byte[] sample(int size) {
+        byte[] data = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            data[i] = (i / 64) % 2 == 0 ? (byte) random.nextInt(256) : (byte) (i % 7);
+        }
+        return data;
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / 1048576.0 / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,130 @@
+package com.asiainfo.metrics.v2;
+
+import com.asiainfo.metrics.v2.api.ArrowResultWriter;
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryEncoder;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArrowResultWriterTest {
+
+    private static ResultBatch sampleBatch(int rows) {
+        List<Map<String, Object>> data = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("city_id", "C" + (i % 10));
+            row.put("KD1002", i % 7 == 0 ? null : i * 1.25);
+            row.put("city_id_desc", i % 10 == 3 ? null : "城市" + (i % 10));
+            data.add(row);
+        }
+        return ResultBatch.fromRows(data).withConstant("op_time", "20251104");
+    }
+
+    /**
+     * 读取 Arrow 流并解码字典，还原为行
+     */
+    private static List<Map<String, Object>> readBack(byte[] bytes, Map<String, String> metadataOut) throws Exception {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (RootAllocator allocator = new RootAllocator();
+             ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(bytes), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            metadataOut.putAll(root.getSchema().getCustomMetadata());
+            while (reader.loadNextBatch()) {
+                List<FieldVector> decoded = new ArrayList<>();
+                for (FieldVector vector : root.getFieldVectors()) {
+                    var encoding = vector.getField().getDictionary();
+                    if (encoding == null) {
+                        decoded.add(vector);
+                    } else {
+                        Dictionary dictionary = reader.getDictionaryVectors().get(encoding.getId());
+                        decoded.add((FieldVector) DictionaryEncoder.decode(vector, dictionary));
+                    }
+                }
+                for (int r = 0; r < root.getRowCount(); r++) {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    for (int c = 0; c < decoded.size(); c++) {
+                        // 解码后的向量名为字典名，列名取原索引向量
+                        Object value = decoded.get(c).getObject(r);
+                        row.put(root.getVector(c).getName(), value == null ? null : value instanceof Double ? value : value.toString());
+                    }
+                    rows.add(row);
+                }
+                for (int i = 0; i < decoded.size(); i++) {
+                    if (decoded.get(i) != root.getVector(i)) decoded.get(i).close();
+                }
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ResultBatch batch = sampleBatch(50);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowResultWriter.write(batch, "0000", "查询成功！", out);
+
+        Map<String, String> metadata = new LinkedHashMap<>();
+        List<Map<String, Object>> rows = readBack(out.toByteArray(), metadata);
+
+        assertEquals("0000", metadata.get("status"));
+        assertEquals("查询成功！", metadata.get("msg"));
+        assertEquals(List.copyOf(batch), rows);
+    }
+
+    @Test
+    public void testColumnEncoding() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowResultWriter.write(sampleBatch(20), "0000", "", out);
+
+        try (RootAllocator allocator = new RootAllocator();
+             ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            // 维度列为字典编码，指标列为 float64
+            assertNotNull(root.getSchema().findField("city_id").getDictionary());
+            assertNotNull(root.getSchema().findField("op_time").getDictionary());
+            assertEquals(new ArrowType.FloatingPoint(org.apache.arrow.vector.types.FloatingPointPrecision.DOUBLE),
+                    root.getSchema().findField("KD1002").getType());
+            assertTrue(reader.loadNextBatch());
+            assertTrue(((Float8Vector) root.getVector("KD1002")).isNull(0));
+            assertEquals(10, reader.getDictionaryVectors().get(
+                    root.getSchema().findField("city_id").getDictionary().getId()).getVector().getValueCount());
+        }
+    }
+
+    @Test
+    public void testEmptyResultKeepsStatus() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowResultWriter.write(ResultBatch.empty(), "9999", "查询失败: boom", out);
+
+        Map<String, String> metadata = new LinkedHashMap<>();
+        assertTrue(readBack(out.toByteArray(), metadata).isEmpty());
+        assertEquals("9999", metadata.get("status"));
+    }
+
+    @Test
+    public void testSmallerThanJson() throws Exception {
+        ResultBatch batch = sampleBatch(5000);
+        ByteArrayOutputStream arrow = new ByteArrayOutputStream();
+        ArrowResultWriter.write(batch, "0000", "", arrow);
+        byte[] json = new ObjectMapper().writeValueAsBytes(batch);
+
+        assertTrue(arrow.size() < json.length / 2,
+                "Arrow 编码应明显小于 JSON: arrow=" + arrow.size() + ", json=" + json.length);
+    }
+}
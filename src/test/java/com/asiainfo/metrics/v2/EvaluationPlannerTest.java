@@ -0,0 +1,126 @@
+package com.asiainfo.metrics.v2;
+
+import com.asiainfo.metrics.v2.core.expression.EvaluationPlan;
+import com.asiainfo.metrics.v2.core.expression.EvaluationPlanner;
+import com.asiainfo.metrics.v2.core.model.BaseAggregate;
+import com.asiainfo.metrics.v2.core.model.MetricDefinition;
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
+import com.asiainfo.metrics.v2.infra.persistence.MetadataRepository;
+import io.quarkus.test.InjectMock;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@QuarkusTest
+public class EvaluationPlannerTest {
+
+    @Inject
+    EvaluationPlanner planner;
+
+    @InjectMock
+    MetadataRepository metadataRepo;
+
+    @BeforeEach
+    public void setUp() {
+        // KD3000 = KD1002 + KD1005
+        // KD3001 = KD3000 / KD1002.lastYear   (复合引用复合)
+        // KD3002 = KD3000.lastYear            (复合指标的同比账期)
+        Mockito.when(metadataRepo.findById("KD1002")).thenReturn(MetricDefinition.physical("KD1002", "sum", "CD003"));
+        Mockito.when(metadataRepo.findById("KD1005")).thenReturn(MetricDefinition.physical("KD1005", "sum", "CD003"));
+        Mockito.when(metadataRepo.findById("KD3000"))
+                .thenReturn(MetricDefinition.composite("KD3000", "${KD1002}+${KD1005}", "sum", "CD003"));
+        Mockito.when(metadataRepo.findById("KD3001"))
+                .thenReturn(MetricDefinition.composite("KD3001", "${KD3000}/${KD1002.lastYear}", "sum", "CD003"));
+        Mockito.when(metadataRepo.findById("KD3002"))
+                .thenReturn(MetricDefinition.composite("KD3002", "${KD3000.lastYear}", "sum", "CD003"));
+    }
+
+    @Test
+    public void testNestedCompositeEvaluatedInLayers() {
+        List<MetricDefinition> metrics = List.of(
+                metadataRepo.findById("KD3001"),
+                metadataRepo.findById("KD3000"),
+                metadataRepo.findById("KD3002"));
+        EvaluationPlan plan = planner.plan(metrics, "20251104");
+
+        // 只有物理指标成为基础聚合，KD3000 的当期与去年账期各展开一次
+        assertEquals(List.of(
+                new BaseAggregate("KD1002", "20251104"),
+                new BaseAggregate("KD1005", "20251104"),
+                new BaseAggregate("KD1002", "20241104"),
+                new BaseAggregate("KD1005", "20241104")), plan.getBaseAggregates());
+        // 节点：KD3000@20251104, KD3001, KD3000@20241104, KD3002
+        assertEquals(4, plan.getNodeCount());
+        assertEquals(2, plan.getLayerCount());
+
+        Map<String, Object> row = new HashMap<>();
+        row.put("city_id", "A");
+        row.put("b_KD1002_20251104", 6.0);
+        row.put("b_KD1005_20251104", 10);
+        row.put("b_KD1002_20241104", "100");
+        row.put("b_KD1005_20241104", 20.0);
+
+        Map<String, Object> result = plan.evaluate(ResultBatch.fromRows(List.of(row)), List.of("city_id")).get(0);
+        assertEquals(16.0, result.get("KD3000"));
+        assertEquals(0.16, (Double) result.get("KD3001"), 1e-9);
+        assertEquals(120.0, result.get("KD3002"));
+        assertEquals(List.of("city_id", "KD3001", "KD3000", "KD3002", "city_id_desc"), List.copyOf(result.keySet()));
+    }
+
+    @Test
+    public void testMonthlyOpTimeResolvesHistoricalPeriods() {
+        // 月账期：同比取去年同月，环比取上月，不能与当期落到同一账期
+        Mockito.when(metadataRepo.findById("KD3003"))
+                .thenReturn(MetricDefinition.composite("KD3003", "${KD1002} - ${KD1002.lastCycle}", "sum", "CD003"));
+        EvaluationPlan plan = planner.plan(List.of(metadataRepo.findById("KD3002"), metadataRepo.findById("KD3003")), "202511");
+
+        assertEquals(List.of(
+                new BaseAggregate("KD1002", "202411"),
+                new BaseAggregate("KD1005", "202411"),
+                new BaseAggregate("KD1002", "202511"),
+                new BaseAggregate("KD1002", "202510")), plan.getBaseAggregates());
+
+        Map<String, Object> row = new HashMap<>();
+        row.put("b_KD1002_202411", 5.0);
+        row.put("b_KD1005_202411", 7.0);
+        row.put("b_KD1002_202511", 30.0);
+        row.put("b_KD1002_202510", 20.0);
+
+        Map<String, Object> result = plan.evaluate(ResultBatch.fromRows(List.of(row)), List.of()).get(0);
+        assertEquals(12.0, result.get("KD3002"));
+        assertEquals(10.0, result.get("KD3003"));
+    }
+
+    @Test
+    public void testMissingBaseValuePropagatesNull() {
+        EvaluationPlan plan = planner.plan(List.of(metadataRepo.findById("KD3001")), "20251104");
+
+        Map<String, Object> row = new HashMap<>();
+        row.put("b_KD1002_20251104", 6.0);
+        row.put("b_KD1005_20251104", 10.0);
+        // 去年无数据
+
+        Map<String, Object> result = plan.evaluate(ResultBatch.fromRows(List.of(row)), List.of()).get(0);
+        assertNull(result.get("KD3001"));
+    }
+
+    @Test
+    public void testCircularDependencyRejected() {
+        Mockito.when(metadataRepo.findById("KD4000"))
+                .thenReturn(MetricDefinition.composite("KD4000", "${KD4001}+1", "sum", "CD003"));
+        Mockito.when(metadataRepo.findById("KD4001"))
+                .thenReturn(MetricDefinition.composite("KD4001", "${KD4000}*2", "sum", "CD003"));
+
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> planner.plan(List.of(metadataRepo.findById("KD4000")), "20251104"));
+        assertTrue(e.getMessage().contains("Circular dependency"));
+    }
+}
@@ -0,0 +1,97 @@
+package com.asiainfo.metrics.v2;
+
+import com.asiainfo.metrics.v2.core.expression.ExpressionCompiler;
+import com.asiainfo.metrics.v2.core.expression.MetricExpression;
+import com.asiainfo.metrics.v2.core.model.DerivedOutput;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExpressionCompilerTest {
+
+    /**
+     * 按引用出现顺序依次绑定槽位 0,1,2...
+     */
+    private static double eval(String expr, double... slots) {
+        int[] next = {0};
+        MetricExpression bound = ExpressionCompiler.parse(expr).bind(ref -> next[0]++);
+        return bound.evaluate(slots);
+    }
+
+    @Test
+    public void testReferencesAndModifiers() {
+        List<MetricExpression.Reference> refs = new ArrayList<>();
+        ExpressionCompiler.parse("${KD2002.lastCycle}/(${KD2003} + ${KD2002})").collectReferences(refs::add);
+
+        assertEquals(3, refs.size());
+        assertEquals(new MetricExpression.Reference("KD2002", "lastCycle"), refs.get(0));
+        assertEquals(new MetricExpression.Reference("KD2003", null), refs.get(1));
+    }
+
+    @Test
+    public void testArithmeticPrecedence() {
+        assertEquals(14.0, eval("${KD1001} + ${KD1002} * 3", 2, 4));
+        assertEquals(18.0, eval("(${KD1001} + ${KD1002}) * 3", 2, 4));
+        assertEquals(-2.0, eval("-${KD1001}", 2));
+        assertEquals(0.35, eval("${KD1002} * 0.7 / (${KD1002} + 100)", 100, 100), 1e-9);
+    }
+
+    @Test
+    public void testNullAndDivideByZeroSemantics() {
+        // 与 SQLite 一致：除数为 0 结果为空，空值参与运算结果为空
+        assertTrue(MetricExpression.isNull(eval("${KD1001} / ${KD1002}", 5, 0)));
+        assertTrue(MetricExpression.isNull(eval("${KD1001} + ${KD1002}", 5, MetricExpression.NULL)));
+        assertEquals(5.0, eval("coalesce(${KD1001}, 0) + ${KD1002}", MetricExpression.NULL, 5));
+        assertTrue(MetricExpression.isNull(eval("${KD1001} / nullif(${KD1002}, 0)", 5, 0)));
+        assertEquals(3.14, eval("round(${KD1001}, 2)", 3.14159));
+    }
+
+    @Test
+    public void testRoundEdgeCases() {
+        // 非有限值原样返回，负位数按 0 处理 (与 SQLite round 一致)
+        assertEquals(Double.POSITIVE_INFINITY, eval("round(${KD1001} / ${KD1002}, 2)", 1, 1e-320));
+        assertEquals(Double.NEGATIVE_INFINITY, eval("round(${KD1001}, 2)", Double.NEGATIVE_INFINITY));
+        assertEquals(1235.0, eval("round(${KD1001}, -2)", 1234.56));
+        assertEquals(-3.0, eval("round(${KD1001})", -2.5));
+    }
+
+    /**
+     * 派生输出：当期值绑定槽位 0，带修饰符的历史值绑定槽位 1
+     */
+    private static double derived(DerivedOutput output, double current, double previous) {
+        MetricExpression bound = ExpressionCompiler.parse(output.expression("KD1002"))
+                .bind(ref -> ref.modifier() == null ? 0 : 1);
+        return bound.evaluate(new double[]{current, previous});
+    }
+
+    @Test
+    public void testDerivedOutputs() {
+        assertEquals(0.25, derived(DerivedOutput.YOY_RATE, 125, 100), 1e-9);
+        assertEquals(-0.5, derived(DerivedOutput.MOM_RATE, 50, 100), 1e-9);
+        // 基期为负时以绝对值作分母：-100 -> -50 为增长
+        assertEquals(0.5, derived(DerivedOutput.YOY_RATE, -50, -100), 1e-9);
+        assertEquals(25.0, derived(DerivedOutput.YOY_DELTA, 125, 100));
+        assertEquals(-50.0, derived(DerivedOutput.MOM_DELTA, 50, 100));
+
+        // 基期为 0 或任一侧为空时结果为空
+        assertTrue(MetricExpression.isNull(derived(DerivedOutput.YOY_RATE, 10, 0)));
+        assertTrue(MetricExpression.isNull(derived(DerivedOutput.YOY_RATE, 10, MetricExpression.NULL)));
+        assertTrue(MetricExpression.isNull(derived(DerivedOutput.MOM_RATE, MetricExpression.NULL, 10)));
+        assertTrue(MetricExpression.isNull(derived(DerivedOutput.YOY_DELTA, MetricExpression.NULL, 10)));
+
+        assertEquals(List.of(DerivedOutput.YOY_RATE, DerivedOutput.MOM_DELTA),
+                DerivedOutput.parse(List.of("yoy_rate", "MOM_DELTA", "yoy_rate")));
+        assertThrows(IllegalArgumentException.class, () -> DerivedOutput.parse(List.of("qoq_rate")));
+    }
+
+    @Test
+    public void testInvalidExpression() {
+        assertThrows(IllegalArgumentException.class, () -> ExpressionCompiler.parse("${KD1001} +"));
+        assertThrows(IllegalArgumentException.class, () -> ExpressionCompiler.parse("${BAD}"));
+        assertThrows(IllegalArgumentException.class, () -> ExpressionCompiler.parse("sleep(1)"));
+        assertThrows(IllegalArgumentException.class, () -> ExpressionCompiler.parse("(${KD1001}"));
+    }
+}
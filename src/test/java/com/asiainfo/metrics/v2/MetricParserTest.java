@@ -44,6 +44,34 @@ public class MetricParserTest {
         assertEquals(2, tables.size());
     }
 
+    @Test
+    public void testWidePartitionMapping() {
+        // 场景：KD1001、KD1002 登记在模型 M001 的宽表分区中，同年上期仍为单指标分区
+        String opTime = "20251104";
+        QueryContext ctx = new QueryContext();
+        ctx.setOpTime(opTime);
+
+        Mockito.when(metadataRepo.findById("KD1001"))
+                .thenReturn(MetricDefinition.physical("KD1001", "sum", "CD003"));
+        Mockito.when(metadataRepo.findById("KD1002"))
+                .thenReturn(MetricDefinition.physical("KD1002", "sum", "CD003"));
+        Mockito.when(metadataRepo.findPartitionModel("KD1001", opTime, "CD003")).thenReturn("M001");
+        Mockito.when(metadataRepo.findPartitionModel("KD1002", opTime, "CD003")).thenReturn("M001");
+
+        MetricDefinition v1 = MetricDefinition.virtual("V1", "${KD1001} + ${KD1002} + ${KD1002.lastYear}", "sum");
+        parser.resolveDependencies(v1, opTime, ctx);
+
+        Set<PhysicalTableReq> tables = ctx.getRequiredTables();
+        assertEquals(3, tables.size());
+        assertTrue(tables.contains(new PhysicalTableReq("KD1001", opTime, "CD003", "M001")));
+        assertTrue(tables.contains(new PhysicalTableReq("KD1002", "20241104", "CD003")));
+        // 同一宽表分区的两个指标只需 ATTACH 一个文件
+        assertEquals(2, ctx.getPartitionFileCount());
+        assertEquals("kpi_model_M001_20251104_CD003",
+                new PhysicalTableReq("KD1002", opTime, "CD003", "M001").toTableName());
+        assertEquals("KD1002", new PhysicalTableReq("KD1002", opTime, "CD003", "M001").valueColumn());
+    }
+
     @Test
     public void testCircularDependency() {
         String opTime = "20251104";
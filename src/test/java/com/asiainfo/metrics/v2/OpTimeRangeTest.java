@@ -0,0 +1,32 @@
+package com.asiainfo.metrics.v2;
+
+import com.asiainfo.metrics.model.http.KpiQueryRequest.OpTimeRange;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class OpTimeRangeTest {
+
+    @Test
+    public void testExpandDaysAcrossMonth() {
+        List<String> opTimes = new OpTimeRange("20251129", "20251202", "day").expand();
+        assertEquals(List.of("20251129", "20251130", "20251201", "20251202"), opTimes);
+    }
+
+    @Test
+    public void testExpandMonthsInferredFromLength() {
+        List<String> opTimes = new OpTimeRange("202411", "202502", null).expand();
+        assertEquals(List.of("202411", "202412", "202501", "202502"), opTimes);
+    }
+
+    @Test
+    public void testInvalidRanges() {
+        assertThrows(IllegalArgumentException.class, () -> new OpTimeRange("20251202", "20251129", "day").expand());
+        assertThrows(IllegalArgumentException.class, () -> new OpTimeRange("2025-11-29", "20251202", "day").expand());
+        assertThrows(IllegalArgumentException.class, () -> new OpTimeRange("20200101", "20251231", "day").expand());
+        assertThrows(IllegalArgumentException.class, () -> new OpTimeRange("20251101", "20251102", "week").expand());
+    }
+}
@@ -0,0 +1,212 @@
+package com.asiainfo.metrics.v2;
+
+import com.asiainfo.metrics.v2.core.model.ResultBatch;
+import com.asiainfo.metrics.v2.core.model.SortKey;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResultBatchTest {
+
+    private static Map<String, Object> row(Object... kv) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            m.put((String) kv[i], kv[i + 1]);
+        }
+        return m;
+    }
+
+    @Test
+    public void testColumnTypesAndDictionaryEncoding() {
+        ResultBatch batch = ResultBatch.fromRows(List.of(
+                row("city_id", "A", "KD1002", 6.0),
+                row("city_id", "B", "KD1002", null),
+                row("city_id", "A", "KD1002", 3)));
+
+        assertEquals(3, batch.getRowCount());
+        ResultBatch.StringColumn city = (ResultBatch.StringColumn) batch.column(batch.columnIndex("city_id"));
+        assertEquals(2, city.dictionary().length, "重复的维度值应共享字典项");
+        ResultBatch.Column kpi = batch.column(batch.columnIndex("KD1002"));
+        assertInstanceOf(ResultBatch.DoubleColumn.class, kpi);
+        assertTrue(kpi.isNull(1));
+        assertEquals(3.0, kpi.getDouble(2));
+
+        // 行视图与原 Map 语义一致
+        assertEquals(row("city_id", "A", "KD1002", 6.0), batch.get(0));
+        assertNull(batch.get(1).get("KD1002"));
+    }
+
+    @Test
+    public void testMixedTypesFallBackToString() {
+        // SQLite 动态类型：同一列先出现数值后出现文本
+        ResultBatch batch = ResultBatch.fromRows(List.of(row("v", 1.5), row("v", "abc")));
+        ResultBatch.Column v = batch.column(0);
+        assertInstanceOf(ResultBatch.StringColumn.class, v);
+        assertEquals("1.5", v.get(0));
+        assertEquals("abc", v.get(1));
+        assertEquals(1.5, v.getDouble(0));
+        assertTrue(Double.isNaN(v.getDouble(1)));
+    }
+
+    @Test
+    public void testIntegralValuesRoundTrip() throws Exception {
+        // 整数指标值、整数维度编码按整数输出；同列混合整数与小数时逐值保持原类型
+        List<Map<String, Object>> rows = List.of(
+                row("city_code", 4, "KD1002", 123L, "KD1005", 1.5),
+                row("city_code", 5, "KD1002", null, "KD1005", 2));
+        ObjectMapper mapper = new ObjectMapper();
+        ResultBatch batch = ResultBatch.fromRows(rows);
+        assertEquals("[{\"city_code\":4,\"KD1002\":123,\"KD1005\":1.5},{\"city_code\":5,\"KD1002\":null,\"KD1005\":2}]",
+                mapper.writeValueAsString(batch));
+        assertEquals(123L, batch.get(0).get("KD1002"));
+        // 重排、拼接后整数标记保留
+        ResultBatch reordered = ResultBatch.concat(List.of(batch.take(new int[]{1, 0}), batch));
+        assertEquals("2", mapper.readTree(mapper.writeValueAsString(reordered)).get(0).get("KD1005").toString());
+
+        // 整数列转为字符串列时不带小数部分
+        ResultBatch mixed = ResultBatch.fromRows(List.of(row("v", 4), row("v", 2.5), row("v", "abc")));
+        assertEquals("4", mixed.get(0).get("v"));
+        assertEquals("2.5", mixed.get(1).get("v"));
+    }
+
+    @Test
+    public void testConcatAndConstantColumn() {
+        ResultBatch a = ResultBatch.fromRows(List.of(row("city_id", "A", "KD1002", 1.0))).withConstant("op_time", "20251104");
+        ResultBatch b = ResultBatch.fromRows(List.of(row("city_id", "B", "KD1002", 2.0))).withConstant("op_time", "20251105");
+
+        ResultBatch all = ResultBatch.concat(List.of(a, ResultBatch.empty(), b));
+        assertEquals(List.of("city_id", "KD1002", "op_time"), all.getColumnNames());
+        assertEquals(row("city_id", "B", "KD1002", 2.0, "op_time", "20251105"), all.get(1));
+    }
+
+    @Test
+    public void testSerializedJsonMatchesRowMaps() throws Exception {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            rows.add(row("city_id", "C" + (i % 7), "KD1002", i % 5 == 0 ? null : i * 1.5, "city_id_desc", null));
+        }
+        ObjectMapper mapper = new ObjectMapper();
+        String expected = mapper.writeValueAsString(rows);
+        String actual = mapper.writeValueAsString(ResultBatch.fromRows(rows));
+        assertEquals(expected, actual);
+
+        // 作为 List<Map> 字段嵌套序列化时同样走列式序列化器
+        Map<String, Object> envelope = new LinkedHashMap<>();
+        envelope.put("dataArray", ResultBatch.fromRows(rows));
+        assertEquals("{\"dataArray\":" + expected + "}", mapper.writeValueAsString(envelope));
+        assertEquals(Arrays.asList(rows.toArray()), mapper.readValue(actual, List.class));
+    }
+
+    @Test
+    public void testChunkedCursorRead() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE t (city_id TEXT, kpi_val REAL)");
+            for (int i = 0; i < 5; i++) {
+                stmt.execute("INSERT INTO t VALUES ('C" + i + "', " + i + ")");
+            }
+
+            // 流式输出按块读取游标，每块最多 2 行
+            List<Integer> chunkSizes = new ArrayList<>();
+            StringWriter json = new StringWriter();
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM t ORDER BY city_id");
+                 JsonGenerator gen = new ObjectMapper().getFactory().createGenerator(json)) {
+                gen.writeStartArray();
+                ResultBatch chunk;
+                while ((chunk = ResultBatch.fromResultSet(rs, 2)).getRowCount() > 0) {
+                    chunkSizes.add(chunk.getRowCount());
+                    chunk.writeRows(gen);
+                }
+                gen.writeEndArray();
+            }
+            assertEquals(List.of(2, 2, 1), chunkSizes);
+
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM t ORDER BY city_id")) {
+                assertEquals(new ObjectMapper().writeValueAsString(ResultBatch.fromResultSet(rs)), json.toString(),
+                        "分块写出的 JSON 应与一次性序列化一致");
+            }
+        }
+    }
+
+    @Test
+    public void testKeysetPagingMatchesSqliteOrder() throws Exception {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        String[] cities = {"C3", "C1", "C4", "C0", "C2", "C5", "C6"};
+        Double[] values = {2.0, null, 5.0, 2.0, 7.5, null, -1.0};
+        for (int i = 0; i < cities.length; i++) {
+            rows.add(row("city_id", cities[i], "KD1002", values[i]));
+        }
+        ResultBatch batch = ResultBatch.fromRows(rows);
+        List<SortKey> keys = List.of(new SortKey("KD1002", true), new SortKey("city_id", false));
+
+        ResultBatch sorted = batch.take(batch.sortedOrder(keys));
+        List<Object> cityOrder = new ArrayList<>();
+        sorted.forEach(r -> cityOrder.add(r.get("city_id")));
+        // 倒序，同值按 city_id 升序，空值始终在最后
+        assertEquals(List.of("C2", "C4", "C0", "C3", "C6", "C1", "C5"), cityOrder);
+
+        // 与 SQLite 的 ORDER BY ... NULLS LAST 一致 (下推与内存排序结果相同)
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE t (city_id TEXT, KD1002 REAL)");
+            for (int i = 0; i < cities.length; i++) {
+                stmt.execute("INSERT INTO t VALUES ('" + cities[i] + "', " + values[i] + ")");
+            }
+            List<Object> sqlOrder = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT city_id FROM t ORDER BY KD1002 DESC NULLS LAST, city_id ASC NULLS LAST")) {
+                while (rs.next()) sqlOrder.add(rs.getString(1));
+            }
+            assertEquals(sqlOrder, cityOrder);
+        }
+
+        // 键集游标逐页读取 (每页 3 行)，拼接后与完整排序一致，不重不漏
+        List<Object> paged = new ArrayList<>();
+        List<Object> cursor = null;
+        while (true) {
+            int from = cursor == null ? 0 : sorted.firstAfter(keys, cursor);
+            int to = Math.min(sorted.getRowCount(), from + 3);
+            if (from >= to) break;
+            ResultBatch page = sorted.slice(from, to);
+            page.forEach(r -> paged.add(r.get("city_id")));
+            cursor = page.keyOf(page.getRowCount() - 1, keys);
+        }
+        assertEquals(cityOrder, paged);
+        // 游标在空值行上：之后只剩同为空值且 city_id 更大的行
+        assertEquals(6, sorted.firstAfter(keys, Arrays.asList(null, "C1")));
+    }
+
+    @Test
+    public void testTopNMatchesFullSort() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            // 大量同值，依赖兜底键 city_id 保证顺序确定
+            rows.add(row("city_id", String.format("C%03d", (i * 37) % 500), "KD1002", i % 7 == 0 ? null : (double) (i % 13)));
+        }
+        ResultBatch batch = ResultBatch.fromRows(rows);
+        List<SortKey> keys = SortKey.withTiebreakers(List.of(new SortKey("KD1002", true)), List.of("city_id"))
+                .subList(0, 2);
+
+        ResultBatch sorted = batch.take(batch.sortedOrder(keys));
+        assertEquals(sorted.slice(0, 10), batch.take(batch.topN(keys, null, 10)));
+
+        // 带游标的 Top-N 即下一页
+        List<Object> cursor = sorted.keyOf(9, keys);
+        assertEquals(sorted.slice(10, 20), batch.take(batch.topN(keys, cursor, 10)));
+        // n 大于剩余行数
+        assertEquals(sorted.slice(495, 500), batch.take(batch.topN(keys, sorted.keyOf(494, keys), 10)));
+    }
+}
@@ -1,9 +1,13 @@
 package com.asiainfo.metrics.v2;
 
+import com.asiainfo.metrics.v2.core.expression.EvaluationPlan;
+import com.asiainfo.metrics.v2.core.expression.EvaluationPlanner;
 import com.asiainfo.metrics.v2.core.generator.SqlGenerator;
 import com.asiainfo.metrics.v2.core.model.MetricDefinition;
+import com.asiainfo.metrics.v2.core.model.OrderSpec;
 import com.asiainfo.metrics.v2.core.model.PhysicalTableReq;
 import com.asiainfo.metrics.v2.core.model.QueryContext;
+import com.asiainfo.metrics.v2.core.model.SortKey;
 import com.asiainfo.metrics.v2.core.parser.MetricParser;
 import com.asiainfo.metrics.v2.infra.persistence.MetadataRepository;
 import io.quarkus.test.InjectMock;
@@ -12,9 +16,12 @@ import jakarta.inject.Inject;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @QuarkusTest
@@ -23,6 +30,9 @@ public class SqlGeneratorTest {
     @Inject
     SqlGenerator sqlGenerator;
 
+    @Inject
+    EvaluationPlanner planner;
+
     @InjectMock
     MetadataRepository metadataRepo;
 
@@ -74,5 +84,222 @@ public class SqlGeneratorTest {
         // 我们可以简单检查 SQL 结构是否包含两个 SELECT 子句
         assertTrue(sql.contains("FROM db_1.kpi_KD1001"), "应包含表1查询");
         assertTrue(sql.contains("FROM db_2.kpi_KD1002"), "应包含表2查询");
+
+        // 断言：分区先按自身拥有的维度预聚合，再进入 UNION
+        assertTrue(sql.contains("kpi_KD1001_20251104_CD001 GROUP BY city_id"), "CD001 分区应只按 city_id 预聚合");
+    }
+
+    @Test
+    public void testSharedBaseAggregateComputedOnce() {
+        // 场景：两个复合/虚拟指标共享 KD1002、KD1005 两个输入
+        String opTime = "20251104";
+        QueryContext ctx = new QueryContext();
+        ctx.setOpTime(opTime);
+        ctx.addDimCode("city_id");
+
+        ctx.addPhysicalTable("KD1002", opTime, "CD002");
+        ctx.registerAlias(new PhysicalTableReq("KD1002", opTime, "CD002"), "db_1");
+        ctx.addPhysicalTable("KD1005", opTime, "CD002");
+        ctx.registerAlias(new PhysicalTableReq("KD1005", opTime, "CD002"), "db_2");
+
+        Mockito.when(metadataRepo.getDimCols("CD002")).thenReturn(Set.of("city_id", "county_id"));
+        Mockito.when(parser.calculateTime(opTime, null)).thenReturn(opTime);
+
+        List<MetricDefinition> metrics = List.of(
+                MetricDefinition.composite("KD3000", "${KD1002}+${KD1005}", "sum", "CD002"),
+                MetricDefinition.virtual("V1", "${KD1002}/${KD1005}", "sum")
+        );
+
+        String sql = sqlGenerator.generateSql(metrics, ctx, List.of("city_id"));
+        System.out.println("Generated SQL:\n" + sql);
+
+        String kd1002Agg = "CASE WHEN kpi_id='KD1002' AND op_time='20251104'";
+        assertEquals(sql.indexOf(kd1002Agg), sql.lastIndexOf(kd1002Agg), "KD1002 的基础聚合只应计算一次");
+        assertTrue(sql.contains("AS b_KD1005_20251104"), "应输出基础聚合列");
+        // 指标算术在 Java 中求值，SQL 中不再出现表达式
+        assertFalse(sql.contains("AS KD3000"), "复合指标不应下推到 SQL");
+        assertFalse(sql.contains("AS V1"), "虚拟指标不应下推到 SQL");
+    }
+
+    @Test
+    public void testDimConditionPushedIntoPartitionScan() {
+        // 场景：按 city_id 过滤，KD1001 (CD001) 有 city_id，KD1003 (CD004) 没有 city_id
+        String opTime = "20251104";
+        QueryContext ctx = new QueryContext();
+        ctx.setOpTime(opTime);
+        ctx.addDimCode("county_id");
+        ctx.addDimFilter("city_id", List.of("4", "10"));
+
+        ctx.addPhysicalTable("KD1001", opTime, "CD001");
+        ctx.registerAlias(new PhysicalTableReq("KD1001", opTime, "CD001"), "db_1");
+        ctx.addPhysicalTable("KD1003", opTime, "CD004");
+        ctx.registerAlias(new PhysicalTableReq("KD1003", opTime, "CD004"), "db_2");
+
+        Mockito.when(metadataRepo.getDimCols("CD001")).thenReturn(Set.of("city_id", "county_id"));
+        Mockito.when(metadataRepo.getDimCols("CD004")).thenReturn(Set.of("county_id"));
+
+        String sql = sqlGenerator.generateSql(List.of(
+                MetricDefinition.physical("KD1001", "sum", "CD001"),
+                MetricDefinition.physical("KD1003", "sum", "CD004")
+        ), ctx, List.of("county_id"));
+        System.out.println("Generated SQL:\n" + sql);
+
+        // 过滤值以编号参数绑定，不拼接进 SQL
+        assertTrue(sql.contains("kpi_KD1001_20251104_CD001 WHERE city_id IN (?1, ?2) GROUP BY county_id"),
+                "过滤条件应下推到分区扫描");
+        assertFalse(sql.contains("'10'"), "过滤值不应拼接到 SQL 中");
+        assertEquals(List.of("4", "10"), ctx.getFilterParams());
+        // 缺少过滤维度的分区不可能命中条件
+        assertTrue(sql.contains("kpi_KD1003_20251104_CD004 WHERE 0"), "缺少过滤维度的分区应直接跳过");
+    }
+
+    @Test
+    public void testNullifOnlyForOptimizedLayout() {
+        // 场景：KD1001 为 OPTIMIZED 布局 (空维度存空串)，KD1002 为历史布局 (空串是真实取值)
+        String opTime = "20251104";
+        QueryContext ctx = new QueryContext();
+        ctx.setOpTime(opTime);
+        ctx.addDimCode("county_id");
+
+        PhysicalTableReq optimized = new PhysicalTableReq("KD1001", opTime, "CD003");
+        ctx.addPhysicalTable("KD1001", opTime, "CD003");
+        ctx.registerAlias(optimized, "db_1");
+        ctx.markOptimizedLayout(optimized);
+        PhysicalTableReq legacy = new PhysicalTableReq("KD1002", opTime, "CD003");
+        ctx.addPhysicalTable("KD1002", opTime, "CD003");
+        ctx.registerAlias(legacy, "db_2");
+
+        Mockito.when(metadataRepo.getDimCols("CD003")).thenReturn(Set.of("city_id", "county_id"));
+
+        assertTrue(sqlGenerator.generatePartitionAggregate(optimized, ctx).startsWith("SELECT nullif(county_id, '') as county_id, "));
+        String legacySql = sqlGenerator.generatePartitionAggregate(legacy, ctx);
+        assertTrue(legacySql.startsWith("SELECT county_id, 'KD1002' as kpi_id"));
+        assertFalse(legacySql.contains("nullif"), "历史布局中的空串不应并入 NULL 分组");
+    }
+
+    @Test
+    public void testDimEncodedPartitionDecodedPerGroup() {
+        // 场景：KD1001 为整数编码分区，KD1002 为文本分区，按 city_id 过滤
+        String opTime = "20251104";
+        QueryContext ctx = new QueryContext();
+        ctx.setOpTime(opTime);
+        ctx.addDimCode("city_id");
+        ctx.addDimCode("county_id");
+        ctx.addDimFilter("city_id", List.of("4"));
+
+        PhysicalTableReq encoded = new PhysicalTableReq("KD1001", opTime, "CD003");
+        ctx.addPhysicalTable("KD1001", opTime, "CD003");
+        ctx.registerAlias(encoded, "db_1");
+        ctx.markDimEncoded(encoded);
+        ctx.addPhysicalTable("KD1002", opTime, "CD003");
+        ctx.registerAlias(new PhysicalTableReq("KD1002", opTime, "CD003"), "db_2");
+
+        Mockito.when(metadataRepo.getDimCols("CD003")).thenReturn(Set.of("city_id", "county_id"));
+
+        String sql = sqlGenerator.generateSql(List.of(
+                MetricDefinition.physical("KD1001", "sum", "CD003"),
+                MetricDefinition.physical("KD1002", "sum", "CD003")
+        ), ctx, List.of("city_id", "county_id"));
+        System.out.println("Generated SQL:\n" + sql);
+
+        // 整数键上分组，分组结果按 dim_key 解码
+        assertTrue(sql.contains("FROM db_1.kpi_KD1001_20251104_CD003 WHERE city_id IN (SELECT dim_key FROM dim_db_CD003.kpi_dim_CD003"
+                + " WHERE dim_id = 'city_id' AND dim_code IN (?1)) GROUP BY"));
+        assertTrue(sql.contains("LEFT JOIN dim_db_CD003.kpi_dim_CD003 d_city_id ON d_city_id.dim_key = g.city_id"));
+        assertTrue(sql.contains("LEFT JOIN dim_db_CD003.kpi_dim_CD003 d_county_id ON d_county_id.dim_key = g.county_id"));
+        assertTrue(sql.contains("d_city_id.dim_code as city_id"));
+        // 文本分区保持原样
+        assertTrue(sql.contains("FROM db_2.kpi_KD1002_20251104_CD003 WHERE city_id IN (?1) GROUP BY"));
+    }
+
+    @Test
+    public void testWidePartitionReadsKpiColumn() {
+        // 场景：KD1001、KD1002 在同一宽表分区 (模型 M001)，共用一个 ATTACH 别名
+        String opTime = "20251104";
+        QueryContext ctx = new QueryContext();
+        ctx.setOpTime(opTime);
+        ctx.addDimCode("city_id");
+        ctx.addDimFilter("city_id", List.of("4"));
+
+        for (String kpiId : List.of("KD1001", "KD1002")) {
+            PhysicalTableReq req = new PhysicalTableReq(kpiId, opTime, "CD003", "M001");
+            ctx.addPhysicalTable(req, "sum");
+            ctx.registerAlias(req, "db_1");
+        }
+
+        Mockito.when(metadataRepo.getDimCols("CD003")).thenReturn(Set.of("city_id", "county_id"));
+
+        String sql = sqlGenerator.generateSql(List.of(
+                MetricDefinition.physical("KD1001", "sum", "CD003"),
+                MetricDefinition.physical("KD1002", "sum", "CD003")
+        ), ctx, List.of("city_id"));
+        System.out.println("Generated SQL:\n" + sql);
+
+        assertTrue(sql.contains("sum(KD1001) as kpi_val FROM db_1.kpi_model_M001_20251104_CD003 WHERE KD1001 IS NOT NULL AND city_id IN (?1)"));
+        assertTrue(sql.contains("sum(KD1002) as kpi_val FROM db_1.kpi_model_M001_20251104_CD003 WHERE KD1002 IS NOT NULL AND city_id IN (?1)"));
+        assertEquals(1, ctx.getPartitionFileCount());
+    }
+
+    @Test
+    public void testOrderAndKeysetPushedDown() {
+        String opTime = "20251104";
+        QueryContext ctx = new QueryContext();
+        ctx.setOpTime(opTime);
+        ctx.addDimCode("city_id");
+        ctx.addDimFilter("city_id", List.of("4", "10", "12"));
+        ctx.addPhysicalTable("KD1002", opTime, "CD002");
+        ctx.registerAlias(new PhysicalTableReq("KD1002", opTime, "CD002"), "db_1");
+
+        Mockito.when(metadataRepo.getDimCols("CD002")).thenReturn(Set.of("city_id", "county_id"));
+        Mockito.when(parser.calculateTime(opTime, null)).thenReturn(opTime);
+
+        EvaluationPlan plan = planner.plan(List.of(
+                MetricDefinition.physical("KD1002", "sum", "CD002"),
+                MetricDefinition.composite("KD3000", "${KD1002}*2", "sum", "CD002")
+        ), opTime);
+        List<String> dims = List.of("city_id");
+        List<SortKey> keys = SortKey.withTiebreakers(List.of(new SortKey("KD1002", true)), dims);
+
+        // 复合指标在 Java 中求值，不能下推排序
+        assertTrue(sqlGenerator.canPushDownOrder(plan, dims, keys));
+        assertFalse(sqlGenerator.canPushDownOrder(plan, dims, List.of(new SortKey("KD3000", false))));
+
+        String sql = sqlGenerator.generateSql(plan, ctx, dims,
+                new OrderSpec(keys, Arrays.asList(5.0, "4", opTime), 11));
+        System.out.println("Generated SQL:\n" + sql);
+
+        assertTrue(sql.contains("ORDER BY base_agg.b_KD1002_20251104 DESC NULLS LAST, base_agg.city_id ASC NULLS LAST"),
+                "排序应下推到 SQL，op_time 为常量不参与排序");
+        assertTrue(sql.contains("(base_agg.b_KD1002_20251104 < ?4 OR base_agg.b_KD1002_20251104 IS NULL)"),
+                "倒序键集条件，空值排在最后");
+        assertTrue(sql.contains("base_agg.b_KD1002_20251104 = ?4 AND (base_agg.city_id > ?5 OR base_agg.city_id IS NULL)"));
+        assertTrue(sql.endsWith("LIMIT 11"));
+        // 游标值编号在过滤参数之后
+        assertEquals(List.of("4", "10", "12", 5.0, "4"), ctx.getQueryParams());
+    }
+
+    @Test
+    public void testTopNKeysetAcrossTimePoints() {
+        // 多账期 Top-N：每个账期分别下推，op_time 与游标的比较在生成 SQL 时确定
+        String opTime = "20251105";
+        QueryContext ctx = new QueryContext();
+        ctx.setOpTime(opTime);
+        ctx.addDimCode("city_id");
+        ctx.addPhysicalTable("KD1002", opTime, "CD002");
+        ctx.registerAlias(new PhysicalTableReq("KD1002", opTime, "CD002"), "db_1");
+
+        Mockito.when(metadataRepo.getDimCols("CD002")).thenReturn(Set.of("city_id", "county_id"));
+
+        EvaluationPlan plan = planner.plan(List.of(MetricDefinition.physical("KD1002", "sum", "CD002")), opTime);
+        List<String> dims = List.of("city_id");
+        List<SortKey> keys = SortKey.withTiebreakers(List.of(new SortKey("KD1002", true)), dims);
+
+        String sql = sqlGenerator.generateSql(plan, ctx, dims,
+                new OrderSpec(keys, Arrays.asList(5.0, "4", "20251104"), 10));
+        System.out.println("Generated SQL:\n" + sql);
+
+        // 本账期晚于游标账期：KD1002、city_id 都相同的行也在游标之后
+        assertTrue(sql.contains("OR (base_agg.b_KD1002_20251105 = ?1 AND base_agg.city_id = ?2)\nORDER BY"));
+        assertTrue(sql.endsWith("LIMIT 10"));
     }
-}
\ No newline at end of file
+}
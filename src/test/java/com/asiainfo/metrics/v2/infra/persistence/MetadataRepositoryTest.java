@@ -0,0 +1,60 @@
+package com.asiainfo.metrics.v2.infra.persistence;
+
+import com.asiainfo.metrics.config.MetricsConfig;
+import com.asiainfo.metrics.repository.KpiMetadataRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 宽表分区登记缓存：一批账期合并为一次元数据查询，已缓存的账期不重复查询
+ */
+public class MetadataRepositoryTest {
+
+    private MetadataRepository repository;
+    private KpiMetadataRepository legacyRepo;
+
+    @BeforeEach
+    public void setUp() {
+        legacyRepo = mock(KpiMetadataRepository.class);
+        MetricsConfig metricsConfig = mock(MetricsConfig.class);
+        when(metricsConfig.getCatalogTtlSeconds()).thenReturn(60L);
+        when(legacyRepo.getModelPartitions(anyCollection())).thenAnswer(invocation -> {
+            Map<String, Map<String, String>> result = new HashMap<>();
+            for (String opTime : invocation.<Collection<String>>getArgument(0)) {
+                result.put(opTime, "20251101".equals(opTime) ? Map.of("KD1001@CD003", "M001") : Map.of());
+            }
+            return result;
+        });
+
+        repository = new MetadataRepository();
+        repository.legacyRepo = legacyRepo;
+        repository.metricsConfig = metricsConfig;
+    }
+
+    @Test
+    public void testPreloadLoadsAllOpTimesInOneQuery() {
+        repository.preloadPartitions(List.of("20251101", "20251102", "20241101"));
+
+        assertEquals("M001", repository.findPartitionModel("KD1001", "20251101", "CD003"));
+        assertNull(repository.findPartitionModel("KD1001", "20251102", "CD003"));
+        assertNull(repository.findPartitionModel("KD1001", "20241101", "CD003"));
+        verify(legacyRepo, times(1)).getModelPartitions(anyCollection());
+
+        // 已缓存的账期不再查询
+        repository.preloadPartitions(List.of("20251101", "20251102"));
+        verify(legacyRepo, times(1)).getModelPartitions(anyCollection());
+    }
+}
@@ -0,0 +1,93 @@
+package com.asiainfo.metrics.v2.infra.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 维度过滤参数按语句绑定：过滤维度齐全的分区与缺少过滤维度的分区 (WHERE 0) 混合时，
+ * 每条语句只绑定自身引用的编号参数
+ */
+public class SQLiteExecutorTest {
+
+    // 与 SqlGenerator.generatePartitionAggregate 相同形态：KD1001 有 city_id，KD1003 缺少 city_id
+    private static final String FILTERED = "SELECT county_id, 'KD1001' as kpi_id, '20251104' as op_time, sum(kpi_val) as kpi_val"
+            + " FROM kpi_KD1001_20251104_CD001 WHERE city_id IN (?1, ?2) GROUP BY county_id";
+    private static final String MISSING_DIM = "SELECT county_id, 'KD1003' as kpi_id, '20251104' as op_time, sum(kpi_val) as kpi_val"
+            + " FROM kpi_KD1003_20251104_CD004 WHERE 0 GROUP BY county_id";
+    private static final List<String> FILTER_PARAMS = List.of("4", "10");
+
+    private Connection conn;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE kpi_KD1001_20251104_CD001 (city_id TEXT, county_id TEXT, kpi_val REAL)");
+            stmt.execute("INSERT INTO kpi_KD1001_20251104_CD001 VALUES ('4', 'A', 1), ('10', 'A', 2), ('12', 'B', 4)");
+            stmt.execute("CREATE TABLE kpi_KD1003_20251104_CD004 (county_id TEXT, kpi_val REAL)");
+            stmt.execute("INSERT INTO kpi_KD1003_20251104_CD004 VALUES ('A', 8)");
+            stmt.execute("CREATE TABLE staging_data (county_id TEXT, kpi_id TEXT, op_time TEXT, kpi_val REAL)");
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        conn.close();
+    }
+
+    @Test
+    public void testStagingLoadBindsPerPartition() throws Exception {
+        // Staging 装载：每个分区一条 INSERT ... SELECT，WHERE 0 的分区没有占位符
+        for (String partition : List.of(FILTERED, MISSING_DIM)) {
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO staging_data (county_id, kpi_id, op_time, kpi_val) " + partition)) {
+                SQLiteExecutor.bindParams(ps, FILTER_PARAMS);
+                ps.executeUpdate();
+            }
+        }
+        assertEquals(List.of(List.of("A", "KD1001", 3.0)),
+                rows("SELECT county_id, kpi_id, kpi_val FROM staging_data", List.of()));
+    }
+
+    @Test
+    public void testDirectQueryWithFilteredAndMissingDimPartitions() throws Exception {
+        String sql = "SELECT county_id, kpi_id, kpi_val FROM (" + FILTERED + " UNION ALL " + MISSING_DIM + ")";
+        assertEquals(List.of(List.of("A", "KD1001", 3.0)), rows(sql, FILTER_PARAMS));
+
+        // 全部分区都缺少过滤维度：语句中没有任何占位符
+        assertEquals(List.of(), rows(MISSING_DIM, FILTER_PARAMS));
+
+        // 追加的查询参数 (键集游标) 编号在过滤参数之后，未被引用的过滤参数编号照常绑定
+        List<Object> params = new ArrayList<>(FILTER_PARAMS);
+        params.add("A");
+        assertEquals(List.of(), rows("SELECT * FROM (" + MISSING_DIM + ") WHERE county_id > ?3", params));
+    }
+
+    private List<List<Object>> rows(String sql, List<?> params) throws Exception {
+        List<List<Object>> rows = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            SQLiteExecutor.bindParams(ps, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    List<Object> row = new ArrayList<>();
+                    for (int i = 1; i <= columns; i++) {
+                        row.add(rs.getObject(i));
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+        return rows;
+    }
+}
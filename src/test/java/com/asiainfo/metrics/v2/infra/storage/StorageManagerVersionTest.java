@@ -0,0 +1,142 @@
+package com.asiainfo.metrics.v2.infra.storage;
+
+import com.asiainfo.metrics.config.MetricsConfig;
+import com.asiainfo.metrics.service.MinIOService;
+import com.asiainfo.metrics.util.BlockGzip;
+import com.asiainfo.metrics.v2.core.model.PhysicalTableReq;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 本地分区副本按分区目录中的 S3 ETag 校验：版本不变时复用，重新发布后重新下载
+ */
+public class StorageManagerVersionTest {
+
+    private static final PhysicalTableReq REQ = new PhysicalTableReq("KD1002", "20251101", "CD003");
+    private static final String KEY = "2025/202511/20251101/CD003/kpi_KD1002_20251101_CD003.db.gz";
+
+    private Path workDir;
+    private StorageManager storageManager;
+    private MinIOService minioService;
+    private final Map<String, String> versions = new HashMap<>();
+    private String content = "v1";
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("storage-version-test");
+        minioService = mock(MinIOService.class);
+        MetricsConfig metricsConfig = mock(MetricsConfig.class);
+        when(metricsConfig.getSQLiteStorageDir()).thenReturn(workDir.resolve("cache").toString());
+        when(metricsConfig.getCatalogTtlSeconds()).thenReturn(0L);
+        when(minioService.statObject(anyString())).thenReturn(true);
+        when(minioService.listObjectVersions(anyString())).thenAnswer(invocation -> Map.copyOf(versions));
+        doAnswer(invocation -> {
+            Path source = workDir.resolve("object.db");
+            Files.writeString(source, content);
+            BlockGzip.compress(source, Path.of((String) invocation.getArgument(1)));
+            return null;
+        }).when(minioService).downloadObject(anyString(), anyString());
+
+        storageManager = new StorageManager();
+        storageManager.minioService = minioService;
+        storageManager.metricsConfig = metricsConfig;
+        storageManager.registry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void testRepublishedPartitionIsDownloadedAgain() throws Exception {
+        versions.put(KEY, "etag-1");
+        String path = storageManager.downloadAndPrepare(REQ);
+        assertEquals("v1", read(path));
+
+        // 版本未变化：复用本地副本
+        storageManager.downloadAndPrepare(REQ);
+        verify(minioService, times(1)).downloadObject(anyString(), anyString());
+
+        // 重新发布：本地副本版本过期，重新下载
+        versions.put(KEY, "etag-2");
+        content = "v2";
+        assertEquals("v2", read(storageManager.downloadAndPrepare(REQ)));
+        verify(minioService, times(2)).downloadObject(anyString(), anyString());
+
+        // 重启后从 .version 文件恢复本地版本，不重复下载
+        StorageManager restarted = new StorageManager();
+        restarted.minioService = minioService;
+        restarted.metricsConfig = storageManager.metricsConfig;
+        restarted.registry = storageManager.registry;
+        assertEquals("v2", read(restarted.downloadAndPrepare(REQ)));
+        verify(minioService, times(2)).downloadObject(anyString(), anyString());
+    }
+
+    @Test
+    public void testCatalogUnavailableKeepsLocalCopy() throws Exception {
+        versions.put(KEY, "etag-1");
+        storageManager.downloadAndPrepare(REQ);
+
+        when(minioService.listObjectVersions(anyString())).thenThrow(new IOException("minio down"));
+        assertEquals("v1", read(storageManager.downloadAndPrepare(REQ)));
+        verify(minioService, times(1)).downloadObject(anyString(), anyString());
+    }
+
+    @Test
+    public void testCatalogListsPartitionDirectoryOncePerRefresh() throws Exception {
+        versions.put(KEY, "etag-1");
+        when(storageManager.metricsConfig.getCatalogTtlSeconds()).thenReturn(60L);
+        when(minioService.listObjectVersions(anyString())).thenAnswer(invocation -> {
+            Thread.sleep(100);
+            return Map.copyOf(versions);
+        });
+
+        // 并发请求同一分区目录：只列出一次，且只列出分区所在目录
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<String>> tasks = Collections.nCopies(8, () -> storageManager.partitionVersion(REQ));
+            for (Future<String> future : pool.invokeAll(tasks)) {
+                assertEquals("etag-1", future.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        verify(minioService, times(1)).listObjectVersions(anyString());
+        verify(minioService).listObjectVersions(eq("2025/202511/20251101/CD003/"));
+    }
+
+    private static String read(String path) throws IOException {
+        return Files.readString(Path.of(path), StandardCharsets.UTF_8);
+    }
+}